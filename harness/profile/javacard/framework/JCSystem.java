@@ -0,0 +1,46 @@
+package javacard.framework;
+
+import pro.javacard.playground.WriteCounters;
+import pro.javacard.vre.VRE;
+
+/**
+ * javacard.framework.JCSystem as in vJCRE, reporting transactions to
+ * WriteCounters. vJCRE does not journal, so an abort does not roll back; the
+ * depth is tracked here so that nesting errors are raised as on a card.
+ */
+public final class JCSystem extends VRE {
+
+	public static final byte ARRAY_TYPE_BOOLEAN = 1;
+	public static final byte ARRAY_TYPE_BYTE = 2;
+	public static final byte ARRAY_TYPE_SHORT = 3;
+	public static final byte ARRAY_TYPE_INT = 4;
+	public static final byte ARRAY_TYPE_OBJECT = 5;
+	public static final byte CLEAR_ON_RESET = 1;
+	public static final byte CLEAR_ON_DESELECT = 2;
+	public static final byte MEMORY_TYPE_PERSISTENT = 0;
+	public static final byte MEMORY_TYPE_TRANSIENT_RESET = 1;
+	public static final byte MEMORY_TYPE_TRANSIENT_DESELECT = 2;
+	public static final byte NOT_A_TRANSIENT_OBJECT = 0;
+
+	public static void beginTransaction() throws TransactionException {
+		if (WriteCounters.getTransactionDepth() != 0)
+			TransactionException.throwIt(TransactionException.IN_PROGRESS);
+		WriteCounters.beginTransaction();
+	}
+
+	public static void abortTransaction() throws TransactionException {
+		if (WriteCounters.getTransactionDepth() == 0)
+			TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+		WriteCounters.abortTransaction();
+	}
+
+	public static void commitTransaction() throws TransactionException {
+		if (WriteCounters.getTransactionDepth() == 0)
+			TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+		WriteCounters.commitTransaction();
+	}
+
+	public static byte getTransactionDepth() {
+		return (byte) WriteCounters.getTransactionDepth();
+	}
+}
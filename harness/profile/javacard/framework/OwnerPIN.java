@@ -0,0 +1,85 @@
+package javacard.framework;
+
+import pro.javacard.playground.WriteCounters;
+
+/**
+ * javacard.framework.OwnerPIN as the Java Card specification has it,
+ * reporting its persistent writes to WriteCounters. vJCRE's own starts with
+ * no tries left and never validates.
+ */
+public class OwnerPIN implements PIN {
+
+	private final byte tryLimit;
+	private final byte maxPINSize;
+	private final byte[] pin;
+	private byte pinSize;
+	private byte triesLeft;
+	private final boolean[] validated;
+
+	public OwnerPIN(byte tryLimit, byte maxPINSize) throws PINException {
+		if (tryLimit < 1 || maxPINSize < 1)
+			PINException.throwIt(PINException.ILLEGAL_VALUE);
+		this.tryLimit = tryLimit;
+		this.maxPINSize = maxPINSize;
+		pin = new byte[maxPINSize];
+		triesLeft = tryLimit;
+		validated = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_RESET);
+	}
+
+	protected boolean getValidatedFlag() {
+		return validated[0];
+	}
+
+	protected void setValidatedFlag(boolean value) {
+		validated[0] = value;
+	}
+
+	public byte getTriesRemaining() {
+		return triesLeft;
+	}
+
+	public boolean check(byte[] pin, short offset, byte length) throws ArrayIndexOutOfBoundsException,
+			NullPointerException {
+		setValidatedFlag(false);
+		if (triesLeft == 0)
+			return false;
+		// the try is counted before comparing, against tearing
+		triesLeft--;
+		WriteCounters.pinWrite(1);
+		if (length != pinSize)
+			return false;
+		for (short i = 0; i < length; i++) {
+			if (pin[(short) (offset + i)] != this.pin[i])
+				return false;
+		}
+		setValidatedFlag(true);
+		triesLeft = tryLimit;
+		WriteCounters.pinWrite(1);
+		return true;
+	}
+
+	public boolean isValidated() {
+		return getValidatedFlag();
+	}
+
+	public void reset() {
+		if (isValidated())
+			resetAndUnblock();
+	}
+
+	public void update(byte[] pin, short offset, byte length) throws PINException {
+		if (length > maxPINSize || length < 0)
+			PINException.throwIt(PINException.ILLEGAL_VALUE);
+		System.arraycopy(pin, offset, this.pin, 0, length);
+		pinSize = length;
+		triesLeft = tryLimit;
+		setValidatedFlag(false);
+		WriteCounters.pinWrite(length + 2);
+	}
+
+	public void resetAndUnblock() {
+		triesLeft = tryLimit;
+		setValidatedFlag(false);
+		WriteCounters.pinWrite(1);
+	}
+}
@@ -0,0 +1,61 @@
+package javacard.framework;
+
+import pro.javacard.playground.WriteCounters;
+
+/**
+ * javacard.framework.Util as in vJCRE, reporting every write to
+ * WriteCounters. arrayCompare() does not print its arguments.
+ */
+public class Util {
+
+	public static final short arrayCopy(byte[] src, short srcOff, byte[] dest, short destOff, short length)
+			throws ArrayIndexOutOfBoundsException, NullPointerException, TransactionException {
+		System.arraycopy(src, srcOff, dest, destOff, length);
+		WriteCounters.write(dest, length, true);
+		return (short) (destOff + length);
+	}
+
+	public static final short arrayCopyNonAtomic(byte[] src, short srcOff, byte[] dest, short destOff, short length)
+			throws ArrayIndexOutOfBoundsException, NullPointerException {
+		System.arraycopy(src, srcOff, dest, destOff, length);
+		WriteCounters.write(dest, length, false);
+		return (short) (destOff + length);
+	}
+
+	public static final short arrayFillNonAtomic(byte[] bArray, short bOff, short bLen, byte bValue)
+			throws ArrayIndexOutOfBoundsException, NullPointerException {
+		if (bLen < 0)
+			throw new ArrayIndexOutOfBoundsException();
+		java.util.Arrays.fill(bArray, bOff, bOff + bLen, bValue);
+		WriteCounters.write(bArray, bLen, false);
+		return (short) (bOff + bLen);
+	}
+
+	public static final byte arrayCompare(byte[] src, short srcOff, byte[] dest, short destOff, short length)
+			throws ArrayIndexOutOfBoundsException, NullPointerException {
+		if (srcOff < 0 || destOff < 0 || length < 0)
+			throw new ArrayIndexOutOfBoundsException();
+		for (short i = 0; i < length; i++) {
+			if (src[srcOff + i] != dest[destOff + i])
+				return (byte) ((src[srcOff + i] & 0xFF) > (dest[destOff + i] & 0xFF) ? 1 : -1);
+		}
+		return 0;
+	}
+
+	public static final short makeShort(byte b1, byte b2) {
+		return (short) ((b1 << 8) + (b2 & 0xFF));
+	}
+
+	public static final short getShort(byte[] bArray, short bOff) throws ArrayIndexOutOfBoundsException,
+			NullPointerException {
+		return (short) ((bArray[bOff] << 8) + (bArray[bOff + 1] & 0xFF));
+	}
+
+	public static final short setShort(byte[] bArray, short bOff, short sValue) throws TransactionException,
+			ArrayIndexOutOfBoundsException, NullPointerException {
+		bArray[bOff] = (byte) (sValue >> 8);
+		bArray[bOff + 1] = (byte) sValue;
+		WriteCounters.write(bArray, 2, false);
+		return (short) (bOff + 2);
+	}
+}
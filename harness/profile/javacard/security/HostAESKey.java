@@ -0,0 +1,59 @@
+package javacard.security;
+
+import java.util.Arrays;
+
+/**
+ * An AES key, which vJCRE does not have. The javacardx.crypto.Cipher of the
+ * profile takes its value with getKey().
+ */
+final class HostAESKey implements AESKey {
+
+	private final byte type;
+	private final short size;
+	private final byte[] key;
+	private boolean initialized;
+
+	HostAESKey(byte type, short size) {
+		if (size != 128 && size != 192 && size != 256)
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		this.type = type;
+		this.size = size;
+		key = new byte[size / 8];
+	}
+
+	@Override
+	public void setKey(byte[] keyData, short kOff) throws CryptoException, NullPointerException,
+			ArrayIndexOutOfBoundsException {
+		System.arraycopy(keyData, kOff, key, 0, key.length);
+		initialized = true;
+	}
+
+	@Override
+	public byte getKey(byte[] keyData, short kOff) throws CryptoException {
+		if (!initialized)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		System.arraycopy(key, 0, keyData, kOff, key.length);
+		return (byte) key.length;
+	}
+
+	@Override
+	public void clearKey() {
+		Arrays.fill(key, (byte) 0);
+		initialized = false;
+	}
+
+	@Override
+	public short getSize() {
+		return size;
+	}
+
+	@Override
+	public byte getType() {
+		return type;
+	}
+
+	@Override
+	public boolean isInitialized() {
+		return initialized;
+	}
+}
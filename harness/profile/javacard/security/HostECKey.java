@@ -0,0 +1,192 @@
+package javacard.security;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The domain parameters of an EC key over a prime field, which vJCRE does not
+ * have, with the affine point arithmetic its users need. Points are arrays
+ * of their two coordinates, null for the point at infinity.
+ */
+abstract class HostECKey implements Key, ECKey {
+
+	private final byte type;
+	private final short size;
+	private BigInteger field;
+	private BigInteger a;
+	private BigInteger b;
+	private BigInteger[] g;
+	private BigInteger r;
+	private short k;
+	private boolean kSet;
+
+	HostECKey(byte type, short size) {
+		this.type = type;
+		this.size = size;
+	}
+
+	/** The length of a coordinate, and of a private value, in bytes */
+	final short getFieldLength() {
+		return (short) ((size + 7) / 8);
+	}
+
+	final boolean isDomainInitialized() {
+		return field != null && a != null && b != null && g != null && r != null && kSet;
+	}
+
+	@Override
+	public short getSize() {
+		return size;
+	}
+
+	@Override
+	public byte getType() {
+		return type;
+	}
+
+	@Override
+	public void setFieldFP(byte[] buffer, short offset, short length) throws CryptoException {
+		field = get(buffer, offset, length);
+	}
+
+	@Override
+	public void setFieldF2M(short e) throws CryptoException {
+		CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+	}
+
+	@Override
+	public void setFieldF2M(short e1, short e2, short e3) throws CryptoException {
+		CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+	}
+
+	@Override
+	public void setA(byte[] buffer, short offset, short length) throws CryptoException {
+		a = get(buffer, offset, length);
+	}
+
+	@Override
+	public void setB(byte[] buffer, short offset, short length) throws CryptoException {
+		b = get(buffer, offset, length);
+	}
+
+	@Override
+	public void setG(byte[] buffer, short offset, short length) throws CryptoException {
+		g = decodePoint(buffer, offset, length);
+	}
+
+	@Override
+	public void setR(byte[] buffer, short offset, short length) throws CryptoException {
+		r = get(buffer, offset, length);
+	}
+
+	@Override
+	public void setK(short k) {
+		this.k = k;
+		kSet = true;
+	}
+
+	@Override
+	public short getField(byte[] buffer, short offset) throws CryptoException {
+		return put(check(field), buffer, offset);
+	}
+
+	@Override
+	public short getA(byte[] buffer, short offset) throws CryptoException {
+		return put(check(a), buffer, offset);
+	}
+
+	@Override
+	public short getB(byte[] buffer, short offset) throws CryptoException {
+		return put(check(b), buffer, offset);
+	}
+
+	@Override
+	public short getG(byte[] buffer, short offset) throws CryptoException {
+		return encodePoint(check(g), buffer, offset);
+	}
+
+	@Override
+	public short getR(byte[] buffer, short offset) throws CryptoException {
+		return put(check(r), buffer, offset);
+	}
+
+	@Override
+	public short getK() throws CryptoException {
+		if (!kSet)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		return k;
+	}
+
+	final BigInteger getOrder() {
+		return r;
+	}
+
+	final BigInteger[] getGenerator() {
+		return g;
+	}
+
+	private static <T> T check(T value) {
+		if (value == null)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		return value;
+	}
+
+	static BigInteger get(byte[] buffer, short offset, short length) {
+		return new BigInteger(1, Arrays.copyOfRange(buffer, offset, offset + length));
+	}
+
+	/** Writes value on the length of the field */
+	final short put(BigInteger value, byte[] buffer, short offset) {
+		byte[] bytes = value.toByteArray();
+		short length = getFieldLength();
+		int skip = bytes.length > length ? bytes.length - length : 0;
+		Arrays.fill(buffer, offset, offset + length, (byte) 0);
+		System.arraycopy(bytes, skip, buffer, offset + length - (bytes.length - skip), bytes.length - skip);
+		return length;
+	}
+
+	/** Decodes an uncompressed point, the only form the applets use */
+	final BigInteger[] decodePoint(byte[] buffer, short offset, short length) {
+		short n = getFieldLength();
+		if (length != 1 + 2 * n || buffer[offset] != 0x04)
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		return new BigInteger[] { get(buffer, (short) (offset + 1), n), get(buffer, (short) (offset + 1 + n), n) };
+	}
+
+	final short encodePoint(BigInteger[] point, byte[] buffer, short offset) {
+		buffer[offset] = 0x04;
+		put(point[0], buffer, (short) (offset + 1));
+		put(point[1], buffer, (short) (offset + 1 + getFieldLength()));
+		return (short) (1 + 2 * getFieldLength());
+	}
+
+	final BigInteger[] add(BigInteger[] p, BigInteger[] q) {
+		if (p == null)
+			return q;
+		if (q == null)
+			return p;
+		BigInteger lambda;
+		if (p[0].equals(q[0])) {
+			if (p[1].add(q[1]).mod(field).signum() == 0)
+				return null;
+			lambda = p[0].pow(2).multiply(BigInteger.valueOf(3)).add(a)
+					.multiply(p[1].shiftLeft(1).modInverse(field));
+		} else {
+			lambda = q[1].subtract(p[1]).multiply(q[0].subtract(p[0]).modInverse(field));
+		}
+		lambda = lambda.mod(field);
+		BigInteger x = lambda.pow(2).subtract(p[0]).subtract(q[0]).mod(field);
+		BigInteger y = lambda.multiply(p[0].subtract(x)).subtract(p[1]).mod(field);
+		return new BigInteger[] { x, y };
+	}
+
+	final BigInteger[] multiply(BigInteger scalar, BigInteger[] point) {
+		BigInteger[] result = null;
+		for (int i = scalar.bitLength() - 1; i >= 0; i--) {
+			result = add(result, result);
+			if (scalar.testBit(i))
+				result = add(result, point);
+		}
+		return result;
+	}
+}
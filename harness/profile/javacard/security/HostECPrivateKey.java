@@ -0,0 +1,44 @@
+package javacard.security;
+
+import java.math.BigInteger;
+
+/**
+ * An EC private key over a prime field. clearKey() keeps the domain
+ * parameters, as the applets set them once at install.
+ */
+final class HostECPrivateKey extends HostECKey implements ECPrivateKey {
+
+	private BigInteger s;
+
+	HostECPrivateKey(byte type, short size) {
+		super(type, size);
+	}
+
+	@Override
+	public void setS(byte[] buffer, short offset, short length) throws CryptoException {
+		if (length > getFieldLength())
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		s = get(buffer, offset, length);
+	}
+
+	@Override
+	public short getS(byte[] buffer, short offset) throws CryptoException {
+		if (s == null)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		return put(s, buffer, offset);
+	}
+
+	BigInteger getS() {
+		return s;
+	}
+
+	@Override
+	public void clearKey() {
+		s = null;
+	}
+
+	@Override
+	public boolean isInitialized() {
+		return s != null && isDomainInitialized();
+	}
+}
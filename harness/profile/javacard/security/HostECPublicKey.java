@@ -0,0 +1,42 @@
+package javacard.security;
+
+import java.math.BigInteger;
+
+/**
+ * An EC public key over a prime field. clearKey() keeps the domain
+ * parameters, as the applets set them once at install.
+ */
+final class HostECPublicKey extends HostECKey implements ECPublicKey {
+
+	private BigInteger[] w;
+
+	HostECPublicKey(byte type, short size) {
+		super(type, size);
+	}
+
+	@Override
+	public void setW(byte[] buffer, short offset, short length) throws CryptoException {
+		w = decodePoint(buffer, offset, length);
+	}
+
+	@Override
+	public short getW(byte[] buffer, short offset) throws CryptoException {
+		if (w == null)
+			CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		return encodePoint(w, buffer, offset);
+	}
+
+	BigInteger[] getW() {
+		return w;
+	}
+
+	@Override
+	public void clearKey() {
+		w = null;
+	}
+
+	@Override
+	public boolean isInitialized() {
+		return w != null && isDomainInitialized();
+	}
+}
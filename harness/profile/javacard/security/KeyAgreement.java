@@ -0,0 +1,73 @@
+package javacard.security;
+
+import java.math.BigInteger;
+
+import pro.javacard.vre.vKeyAgreement;
+
+/**
+ * javacard.security.KeyAgreement with EC Diffie-Hellman over a prime field,
+ * which vJCRE does not have. ALG_EC_SVDP_DH_PLAIN returns the coordinate x
+ * of the shared point, ALG_EC_SVDP_DH its SHA-1. Other algorithms are
+ * vJCRE's.
+ */
+public abstract class KeyAgreement {
+
+	public static final byte ALG_EC_SVDP_DH = 1;
+	public static final byte ALG_EC_SVDP_DH_PLAIN = 3;
+
+	protected KeyAgreement() {
+	}
+
+	public abstract void init(PrivateKey privKey) throws CryptoException;
+
+	public abstract byte getAlgorithm();
+
+	public abstract short generateSecret(byte[] publicData, short publicOffset, short publicLength, byte[] secret,
+			short secretOffset) throws CryptoException;
+
+	public static final KeyAgreement getInstance(final byte algorithm, boolean externalAccess)
+			throws CryptoException {
+		if (externalAccess)
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		if (algorithm != ALG_EC_SVDP_DH && algorithm != ALG_EC_SVDP_DH_PLAIN)
+			return new vKeyAgreement(algorithm);
+		return new KeyAgreement() {
+			private HostECPrivateKey key;
+
+			@Override
+			public void init(PrivateKey privKey) {
+				if (!(privKey instanceof HostECPrivateKey))
+					CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+				if (!privKey.isInitialized())
+					CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+				key = (HostECPrivateKey) privKey;
+			}
+
+			@Override
+			public byte getAlgorithm() {
+				return algorithm;
+			}
+
+			@Override
+			public short generateSecret(byte[] publicData, short publicOffset, short publicLength, byte[] secret,
+					short secretOffset) {
+				if (key == null)
+					CryptoException.throwIt(CryptoException.INVALID_INIT);
+				BigInteger[] point = key.multiply(key.getS(), key.decodePoint(publicData, publicOffset, publicLength));
+				if (point == null)
+					CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+				byte[] x = new byte[key.getFieldLength()];
+				key.put(point[0], x, (short) 0);
+				if (algorithm == ALG_EC_SVDP_DH) {
+					try {
+						x = java.security.MessageDigest.getInstance("SHA-1").digest(x);
+					} catch (java.security.NoSuchAlgorithmException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				System.arraycopy(x, 0, secret, secretOffset, x.length);
+				return (short) x.length;
+			}
+		};
+	}
+}
@@ -0,0 +1,44 @@
+package javacard.security;
+
+import pro.javacard.vre.vKey;
+
+/**
+ * javacard.security.KeyBuilder with EC keys over a prime field and AES keys,
+ * which vJCRE's cannot build, so that SatoChip can be set up. Other types
+ * are vJCRE's.
+ */
+public final class KeyBuilder {
+
+	public static final byte TYPE_EC_FP_PUBLIC = 11;
+	public static final byte TYPE_EC_FP_PRIVATE = 12;
+	public static final byte TYPE_AES_TRANSIENT_RESET = 13;
+	public static final byte TYPE_AES_TRANSIENT_DESELECT = 14;
+	public static final byte TYPE_AES = 15;
+	public static final byte TYPE_EC_FP_PRIVATE_TRANSIENT_RESET = 30;
+	public static final byte TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT = 31;
+
+	public static Key buildKey(byte keyType, short keyLength, boolean keyEncryption) throws CryptoException {
+		if (keyEncryption)
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		switch (keyType) {
+		case TYPE_EC_FP_PUBLIC:
+			return new HostECPublicKey(keyType, keyLength);
+		case TYPE_EC_FP_PRIVATE:
+		case TYPE_EC_FP_PRIVATE_TRANSIENT_RESET:
+		case TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT:
+			return new HostECPrivateKey(keyType, keyLength);
+		case TYPE_AES:
+		case TYPE_AES_TRANSIENT_RESET:
+		case TYPE_AES_TRANSIENT_DESELECT:
+			return new HostAESKey(keyType, keyLength);
+		default:
+			return vKey.buildKey(keyType, keyLength);
+		}
+	}
+
+	public static Key buildKey(byte algorithmicKeyType, byte keyMemoryType, short keyLength, boolean keyEncryption)
+			throws CryptoException {
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+}
@@ -0,0 +1,42 @@
+package javacard.security;
+
+import java.security.SecureRandom;
+
+/**
+ * javacard.security.RandomData on the JVM's SecureRandom. vJCRE's asks the
+ * Bouncy Castle provider for SHA1PRNG, which current versions do not have,
+ * so that applets getting a RandomData at install cannot be installed.
+ */
+public abstract class RandomData {
+
+	public static final byte ALG_PSEUDO_RANDOM = 1;
+	public static final byte ALG_SECURE_RANDOM = 2;
+
+	protected RandomData() {
+	}
+
+	public abstract void generateData(byte[] buffer, short offset, short length) throws CryptoException;
+
+	public abstract void setSeed(byte[] buffer, short offset, short length);
+
+	public static final RandomData getInstance(byte algorithm) throws CryptoException {
+		if (algorithm != ALG_PSEUDO_RANDOM && algorithm != ALG_SECURE_RANDOM)
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		final SecureRandom random = new SecureRandom();
+		return new RandomData() {
+			@Override
+			public void generateData(byte[] buffer, short offset, short length) {
+				byte[] bytes = new byte[length];
+				random.nextBytes(bytes);
+				System.arraycopy(bytes, 0, buffer, offset, length);
+			}
+
+			@Override
+			public void setSeed(byte[] buffer, short offset, short length) {
+				byte[] seed = new byte[length];
+				System.arraycopy(buffer, offset, seed, 0, length);
+				random.setSeed(seed);
+			}
+		};
+	}
+}
@@ -0,0 +1,190 @@
+package javacard.security;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import pro.javacard.vre.vSignature;
+
+/**
+ * javacard.security.Signature with ECDSA over a prime field, which vJCRE does
+ * not have. Signatures are DER encoded as the specification has them. Other
+ * algorithms are vJCRE's.
+ */
+public abstract class Signature {
+
+	public static final byte ALG_ECDSA_SHA = 17;
+	public static final byte ALG_ECDSA_SHA_256 = 33;
+	public static final byte MODE_SIGN = 1;
+	public static final byte MODE_VERIFY = 2;
+
+	protected Signature() {
+	}
+
+	public abstract void init(Key theKey, byte theMode) throws CryptoException;
+
+	public abstract void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen)
+			throws CryptoException;
+
+	public abstract short getLength() throws CryptoException;
+
+	public abstract byte getAlgorithm();
+
+	public abstract void update(byte[] inBuff, short inOffset, short inLength) throws CryptoException;
+
+	public abstract short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset)
+			throws CryptoException;
+
+	public abstract boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset,
+			short sigLength) throws CryptoException;
+
+	public static final Signature getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+		if (externalAccess)
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		if (algorithm == ALG_ECDSA_SHA)
+			return new ECDSA(algorithm, "SHA-1");
+		if (algorithm == ALG_ECDSA_SHA_256)
+			return new ECDSA(algorithm, "SHA-256");
+		return new vSignature(algorithm);
+	}
+
+	public static final Signature getInstance(byte messageDigestAlgorithm, byte cipherAlgorithm, byte paddingAlgorithm,
+			boolean externalAccess) throws CryptoException {
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+
+	private static final class ECDSA extends Signature {
+
+		private static final SecureRandom RANDOM = new SecureRandom();
+
+		private final byte algorithm;
+		private final java.security.MessageDigest digest;
+		private HostECKey key;
+		private byte mode;
+
+		ECDSA(byte algorithm, String digest) {
+			this.algorithm = algorithm;
+			try {
+				this.digest = java.security.MessageDigest.getInstance(digest);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void init(Key theKey, byte theMode) {
+			if (!(theMode == MODE_SIGN ? theKey instanceof HostECPrivateKey
+					: theMode == MODE_VERIFY && theKey instanceof HostECPublicKey))
+				CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+			if (!theKey.isInitialized())
+				CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+			key = (HostECKey) theKey;
+			mode = theMode;
+			digest.reset();
+		}
+
+		@Override
+		public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		}
+
+		@Override
+		public short getLength() {
+			if (key == null)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			// SEQUENCE of two INTEGERs, each possibly with a leading zero
+			return (short) (2 + 2 * (2 + 1 + key.getFieldLength()));
+		}
+
+		@Override
+		public byte getAlgorithm() {
+			return algorithm;
+		}
+
+		@Override
+		public void update(byte[] inBuff, short inOffset, short inLength) {
+			if (key == null)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			digest.update(inBuff, inOffset, inLength);
+		}
+
+		@Override
+		public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+			if (key == null || mode != MODE_SIGN)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			BigInteger e = hash(inBuff, inOffset, inLength);
+			BigInteger n = key.getOrder();
+			BigInteger d = ((HostECPrivateKey) key).getS();
+			BigInteger r, s;
+			do {
+				BigInteger k = new BigInteger(n.bitLength(), RANDOM).mod(n);
+				if (k.signum() == 0)
+					continue;
+				r = key.multiply(k, key.getGenerator())[0].mod(n);
+				s = k.modInverse(n).multiply(e.add(r.multiply(d))).mod(n);
+				if (r.signum() != 0 && s.signum() != 0)
+					break;
+			} while (true);
+			byte[] der = encode(r, s);
+			System.arraycopy(der, 0, sigBuff, sigOffset, der.length);
+			return (short) der.length;
+		}
+
+		@Override
+		public boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset,
+				short sigLength) {
+			if (key == null || mode != MODE_VERIFY)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			BigInteger e = hash(inBuff, inOffset, inLength);
+			BigInteger[] rs = decode(Arrays.copyOfRange(sigBuff, sigOffset, sigOffset + sigLength));
+			BigInteger n = key.getOrder();
+			if (rs == null || rs[0].signum() <= 0 || rs[0].compareTo(n) >= 0 || rs[1].signum() <= 0
+					|| rs[1].compareTo(n) >= 0)
+				return false;
+			BigInteger w = rs[1].modInverse(n);
+			BigInteger[] point = key.add(key.multiply(e.multiply(w).mod(n), key.getGenerator()),
+					key.multiply(rs[0].multiply(w).mod(n), ((HostECPublicKey) key).getW()));
+			return point != null && point[0].mod(n).equals(rs[0]);
+		}
+
+		/** The digest as an integer, cut to the length of the order */
+		private BigInteger hash(byte[] inBuff, short inOffset, short inLength) {
+			digest.update(inBuff, inOffset, inLength);
+			byte[] h = digest.digest();
+			BigInteger e = new BigInteger(1, h);
+			int excess = 8 * h.length - key.getOrder().bitLength();
+			return excess > 0 ? e.shiftRight(excess) : e;
+		}
+
+		private static byte[] encode(BigInteger r, BigInteger s) {
+			byte[] rb = r.toByteArray();
+			byte[] sb = s.toByteArray();
+			ByteArrayOutputStream der = new ByteArrayOutputStream();
+			der.write(0x30);
+			der.write(2 + rb.length + 2 + sb.length);
+			der.write(0x02);
+			der.write(rb.length);
+			der.write(rb, 0, rb.length);
+			der.write(0x02);
+			der.write(sb.length);
+			der.write(sb, 0, sb.length);
+			return der.toByteArray();
+		}
+
+		/** @return r and s, or null if sig is not a SEQUENCE of two INTEGERs */
+		private static BigInteger[] decode(byte[] sig) {
+			if (sig.length < 8 || sig[0] != 0x30 || (sig[1] & 0xFF) != sig.length - 2 || sig[2] != 0x02)
+				return null;
+			int rLen = sig[3] & 0xFF;
+			int sAt = 4 + rLen;
+			if (rLen == 0 || sAt + 2 >= sig.length || sig[sAt] != 0x02
+					|| sAt + 2 + (sig[sAt + 1] & 0xFF) != sig.length)
+				return null;
+			return new BigInteger[] { new BigInteger(Arrays.copyOfRange(sig, 4, sAt)),
+					new BigInteger(Arrays.copyOfRange(sig, sAt + 2, sig.length)) };
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package javacardx.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.RSAPrivateKey;
+import javacard.security.RSAPublicKey;
+import pro.javacard.vre.vCipher;
+
+/**
+ * javacardx.crypto.Cipher with AES in ECB and CBC without padding, which
+ * vJCRE does not have, and RSA without padding on BigInteger: vJCRE's goes
+ * through Bouncy Castle, which wants an odd modulus, and SatoChip computes
+ * modulo p with the modulus p*2^768. Other algorithms are vJCRE's.
+ */
+public abstract class Cipher {
+
+	public static final byte ALG_RSA_NOPAD = 12;
+	public static final byte ALG_AES_BLOCK_128_CBC_NOPAD = 13;
+	public static final byte ALG_AES_BLOCK_128_ECB_NOPAD = 14;
+	public static final byte MODE_DECRYPT = 1;
+	public static final byte MODE_ENCRYPT = 2;
+
+	protected Cipher() {
+	}
+
+	public abstract void init(Key theKey, byte theMode) throws CryptoException;
+
+	public abstract void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen)
+			throws CryptoException;
+
+	public abstract byte getAlgorithm();
+
+	public abstract short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset)
+			throws CryptoException;
+
+	public abstract short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset)
+			throws CryptoException;
+
+	public static final Cipher getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+		if (externalAccess)
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		if (algorithm == ALG_AES_BLOCK_128_CBC_NOPAD || algorithm == ALG_AES_BLOCK_128_ECB_NOPAD)
+			return new AES(algorithm);
+		if (algorithm == ALG_RSA_NOPAD)
+			return new RSA();
+		return new vCipher(algorithm);
+	}
+
+	private static short copy(byte[] out, byte[] outBuff, short outOffset) {
+		if (out == null)
+			return 0;
+		System.arraycopy(out, 0, outBuff, outOffset, out.length);
+		return (short) out.length;
+	}
+
+	private static final class AES extends Cipher {
+
+		private final byte algorithm;
+		private javax.crypto.Cipher cipher;
+
+		AES(byte algorithm) {
+			this.algorithm = algorithm;
+		}
+
+		@Override
+		public void init(Key theKey, byte theMode) {
+			start(theKey, theMode, new byte[16]);
+		}
+
+		@Override
+		public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+			if (algorithm != ALG_AES_BLOCK_128_CBC_NOPAD || bLen != 16)
+				CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+			start(theKey, theMode, Arrays.copyOfRange(bArray, bOff, bOff + bLen));
+		}
+
+		private void start(Key theKey, byte theMode, byte[] iv) {
+			if (!(theKey instanceof AESKey) || (theMode != MODE_DECRYPT && theMode != MODE_ENCRYPT))
+				CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+			if (!theKey.isInitialized())
+				CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+			byte[] key = new byte[theKey.getSize() / 8];
+			((AESKey) theKey).getKey(key, (short) 0);
+			int mode = theMode == MODE_ENCRYPT ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE;
+			try {
+				if (algorithm == ALG_AES_BLOCK_128_CBC_NOPAD) {
+					cipher = javax.crypto.Cipher.getInstance("AES/CBC/NoPadding");
+					cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+				} else {
+					cipher = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+					cipher.init(mode, new SecretKeySpec(key, "AES"));
+				}
+			} catch (GeneralSecurityException e) {
+				CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+			}
+		}
+
+		@Override
+		public byte getAlgorithm() {
+			return algorithm;
+		}
+
+		@Override
+		public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+			if (cipher == null)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			try {
+				return copy(cipher.doFinal(inBuff, inOffset, inLength), outBuff, outOffset);
+			} catch (GeneralSecurityException e) {
+				CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+				return 0;
+			}
+		}
+
+		@Override
+		public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+			if (cipher == null)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			return copy(cipher.update(inBuff, inOffset, inLength), outBuff, outOffset);
+		}
+	}
+
+	private static final class RSA extends Cipher {
+
+		private BigInteger modulus;
+		private BigInteger exponent;
+		private int length;
+		private final ByteArrayOutputStream input = new ByteArrayOutputStream();
+
+		@Override
+		public void init(Key theKey, byte theMode) {
+			if (theMode != MODE_DECRYPT && theMode != MODE_ENCRYPT)
+				CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+			if (!theKey.isInitialized())
+				CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+			byte[] buffer = new byte[theKey.getSize() / 8 + 1];
+			short n = 0;
+			short e = 0;
+			byte[] ebuffer = new byte[buffer.length];
+			if (theKey instanceof RSAPublicKey) {
+				n = ((RSAPublicKey) theKey).getModulus(buffer, (short) 0);
+				e = ((RSAPublicKey) theKey).getExponent(ebuffer, (short) 0);
+			} else if (theKey instanceof RSAPrivateKey) {
+				n = ((RSAPrivateKey) theKey).getModulus(buffer, (short) 0);
+				e = ((RSAPrivateKey) theKey).getExponent(ebuffer, (short) 0);
+			} else {
+				CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+			}
+			modulus = new BigInteger(1, Arrays.copyOf(buffer, n));
+			exponent = new BigInteger(1, Arrays.copyOf(ebuffer, e));
+			length = theKey.getSize() / 8;
+			input.reset();
+		}
+
+		@Override
+		public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		}
+
+		@Override
+		public byte getAlgorithm() {
+			return ALG_RSA_NOPAD;
+		}
+
+		@Override
+		public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+			update(inBuff, inOffset, inLength, outBuff, outOffset);
+			byte[] in = input.toByteArray();
+			input.reset();
+			if (in.length != length)
+				CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+			byte[] out = new BigInteger(1, in).modPow(exponent, modulus).toByteArray();
+			// on the length of the modulus
+			byte[] result = new byte[length];
+			int skip = Math.max(out.length - length, 0);
+			System.arraycopy(out, skip, result, length - (out.length - skip), out.length - skip);
+			return copy(result, outBuff, outOffset);
+		}
+
+		@Override
+		public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+			if (modulus == null)
+				CryptoException.throwIt(CryptoException.INVALID_INIT);
+			input.write(inBuff, inOffset, inLength);
+			return 0;
+		}
+	}
+}
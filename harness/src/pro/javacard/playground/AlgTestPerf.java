@@ -0,0 +1,208 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Host side of AlgTest's performance mode (INS 0x78): times N iterations of
+ * an operation on the card, repeated a number of times, and subtracts the
+ * TestIOSpeed (INS 0x76) round trip of a command of the same size to get the
+ * net latency of one operation.
+ *
+ * <pre>
+ * java pro.javacard.playground.AlgTestPerf [-reader name | -sim] [-iterations n] [-reps n] [-case spec ...]
+ * </pre>
+ *
+ * A case is <code>name:P1:P2:keyType:keyLength:keyPairAlg:dataLength</code>
+ * (numbers in decimal or 0x hex), with P1 as in AlgTest's
+ * TestSupportedModeSingle: 0x11 Cipher, 0x12 Signature, 0x15 MessageDigest,
+ * 0x18/0x19/0x1C KeyPair. Without -case a set of common algorithms is run.
+ */
+public final class AlgTestPerf {
+
+	private static final byte[] ALGTEST_AID = Hex.decode("6D7970616330303031");
+	private static final byte CLA = (byte) 0xB0;
+	private static final byte INS_TESTIOSPEED = 0x76;
+	private static final byte INS_PERFORMANCE = 0x78;
+
+	private static final String[] DEFAULT_CASES = {
+			// Cipher.doFinal()
+			"DES3-CBC-NOPAD-256B:0x11:1:3:192:0:256",
+			"AES128-CBC-NOPAD-256B:0x11:13:15:128:0:256",
+			"RSA1024-PKCS1-ENCRYPT-64B:0x11:10:0:1024:2:64",
+			// Signature.sign()
+			"DES3-MAC8-ISO9797-M2-ALG3-256B:0x12:20:3:192:0:256",
+			"AES128-MAC-NOPAD-256B:0x12:18:15:128:0:256",
+			"HMAC-SHA1-256B:0x12:24:21:64:0:256",
+			"RSA1024-SHA-PKCS1-SIGN-64B:0x12:10:0:1024:2:64",
+			"RSA2048-SHA-PKCS1-SIGN-64B:0x12:10:0:2048:2:64",
+			// MessageDigest.doFinal()
+			"SHA1-256B:0x15:1:0:0:0:256",
+			"SHA256-256B:0x15:4:0:0:0:256",
+			// KeyPair.genKeyPair()
+			"RSA1024-CRT-KEYGEN:0x19:2:0:1024:0:0", };
+
+	private static final class Case {
+		final String name;
+		final byte[] command;
+
+		Case(String spec) {
+			String[] f = spec.split(":");
+			if (f.length != 7)
+				throw new IllegalArgumentException("Bad case: " + spec);
+			name = f[0];
+			int keyLength = Integer.decode(f[4]);
+			int dataLength = Integer.decode(f[6]);
+			command = new byte[] { CLA, INS_PERFORMANCE, Integer.decode(f[1]).byteValue(),
+					Integer.decode(f[2]).byteValue(), 8, Integer.decode(f[3]).byteValue(), (byte) (keyLength >> 8),
+					(byte) keyLength, Integer.decode(f[5]).byteValue(), 0, 0, (byte) (dataLength >> 8),
+					(byte) dataLength };
+		}
+
+		byte[] withIterations(int n) {
+			byte[] c = command.clone();
+			c[9] = (byte) (n >> 8);
+			c[10] = (byte) n;
+			return c;
+		}
+	}
+
+	private CardLink card;
+	private int iterations = 10;
+	private int reps = 5;
+
+	private static void usage() {
+		System.err.println("Usage: AlgTestPerf [-reader name | -sim] [-iterations n] [-reps n] [-case spec ...]");
+		System.err.println("       spec: name:P1:P2:keyType:keyLength:keyPairAlg:dataLength");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		AlgTestPerf perf = new AlgTestPerf();
+		String reader = null;
+		boolean sim = false;
+		List<Case> cases = new ArrayList<Case>();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-sim")) {
+				sim = true;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-reader"))
+				reader = args[++i];
+			else if (a.equals("-iterations"))
+				perf.iterations = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else if (a.equals("-case"))
+				cases.add(new Case(args[++i]));
+			else
+				usage();
+		}
+		if (perf.iterations < 1 || perf.iterations > 0x7FFF || perf.reps < 1)
+			usage();
+		if (cases.isEmpty()) {
+			for (String spec : DEFAULT_CASES)
+				cases.add(new Case(spec));
+		}
+
+		PrintStream out = System.out;
+		if (sim) {
+			// vJCRE prints the applet on every command
+			System.setOut(Simulator.DISCARD);
+			Simulator s = new Simulator();
+			AppletCatalog.Applet applet = AppletCatalog.load(new java.io.File("build.xml")).find("AlgTest");
+			s.install(applet, new byte[0], true);
+			s.connect();
+			perf.card = s;
+		} else {
+			perf.card = Readers.open(reader);
+		}
+		Json json;
+		try {
+			json = perf.run(cases);
+		} finally {
+			System.setOut(out);
+		}
+		System.out.println(json);
+	}
+
+	private static int sw(byte[] response) {
+		return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+	}
+
+	/** Sends a command, returning its round trip time in nanoseconds */
+	private long timed(byte[] apdu) throws CardException {
+		long start = System.nanoTime();
+		byte[] response = card.transmit(apdu);
+		long elapsed = System.nanoTime() - start;
+		if (sw(response) != 0x9000)
+			throw new CardException(String.format("%s returned %04X", Hex.encode(apdu), sw(response)));
+		return elapsed;
+	}
+
+	private Json run(List<Case> cases) throws CardException {
+		byte[] select = new byte[5 + ALGTEST_AID.length];
+		select[1] = (byte) 0xA4;
+		select[2] = 0x04;
+		select[4] = (byte) ALGTEST_AID.length;
+		System.arraycopy(ALGTEST_AID, 0, select, 5, ALGTEST_AID.length);
+		timed(select);
+
+		// TestIOSpeed echoes the data, so send as much as the performance
+		// command carries; the response is two bytes longer than that one's
+		byte[] echo = new byte[5 + 8];
+		echo[0] = CLA;
+		echo[1] = INS_TESTIOSPEED;
+		echo[4] = 8;
+		LatencyStats baseline = new LatencyStats();
+		timed(echo);
+		for (int r = 0; r < reps; r++)
+			baseline.add(timed(echo), echo.length, 10, true);
+		double baseMs = baseline.getTotalNanos() / 1e6 / baseline.getCount();
+
+		Json json = new Json();
+		json.beginObject();
+		json.field("iterations", iterations);
+		json.field("reps", reps);
+		json.field("baseline_ms", baseMs);
+		json.name("cases");
+		json.beginArray();
+		for (Case c : cases) {
+			json.beginObject();
+			json.field("name", c.name);
+			byte[] prepare = c.withIterations(0);
+			byte[] response = card.transmit(prepare);
+			if (sw(response) != 0x9000) {
+				// unsupported algorithm or key length; 6Fxx carries the CryptoException reason
+				json.field("sw", String.format("%04X", sw(response)));
+				json.endObject();
+				continue;
+			}
+			byte[] command = c.withIterations(iterations);
+			LatencyStats stats = new LatencyStats();
+			try {
+				for (int r = 0; r < reps; r++)
+					stats.add(timed(command), command.length, 4, true);
+			} catch (CardException e) {
+				json.field("error", e.getMessage());
+				json.endObject();
+				continue;
+			}
+			double meanMs = stats.getTotalNanos() / 1e6 / stats.getCount();
+			double minMs = stats.percentile(0) / 1e6;
+			json.field("mean_command_ms", meanMs);
+			json.field("op_ms", Math.max(0, meanMs - baseMs) / iterations);
+			json.field("min_op_ms", Math.max(0, minMs - baseline.percentile(0) / 1e6) / iterations);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+}
@@ -0,0 +1,178 @@
+package pro.javacard.playground;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded APDU script.
+ * <p>
+ * One command per line, in hex (spaces allowed), optionally followed by the
+ * expected status word: <code>B0 56 00 00 09 ... =&gt; 9000</code>. The status
+ * word may use <code>XX</code> for "any byte", or be <code>any</code>.
+ * Without an expectation 9000 and 61XX are accepted.
+ * <p>
+ * Other lines:
+ * <ul>
+ * <li><code># comment</code> and blank lines are ignored</li>
+ * <li><code>select &lt;aid&gt;</code> is a short form of SELECT by AID</li>
+ * <li><code>repeat &lt;n&gt;</code> ... <code>end</code> repeats the enclosed
+ * lines; inside, <code>{i}</code> and <code>{ii}</code> are replaced with the
+ * innermost iteration number as one or two hex bytes</li>
+ * </ul>
+ * Repeats are expanded when the script is loaded, so replaying it costs no
+ * parsing.
+ */
+public final class ApduScript {
+
+	/** One command with its accepted status words */
+	public static final class Command {
+		public final byte[] apdu;
+		private final int sw;
+		private final int swMask;
+
+		Command(byte[] apdu, int sw, int swMask) {
+			this.apdu = apdu;
+			this.sw = sw;
+			this.swMask = swMask;
+		}
+
+		public byte getIns() {
+			return apdu[1];
+		}
+
+		public boolean accepts(int actual) {
+			if (swMask == -1)
+				return (actual == 0x9000) || ((actual & 0xFF00) == 0x6100);
+			return (actual & swMask) == sw;
+		}
+	}
+
+	private final String name;
+	private final List<Command> commands;
+
+	private ApduScript(String name, List<Command> commands) {
+		this.name = name;
+		this.commands = commands;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Command> getCommands() {
+		return Collections.unmodifiableList(commands);
+	}
+
+	public static ApduScript load(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		List<Command> commands = new ArrayList<Command>();
+		int end = expand(lines, 0, -1, commands, file.getName());
+		if (end != lines.size())
+			throw new IOException(file.getName() + ":" + (end + 1) + ": unexpected 'end'");
+		return new ApduScript(file.getName(), commands);
+	}
+
+	/**
+	 * Expands lines starting at index "from" until a matching "end" or the end
+	 * of the script.
+	 *
+	 * @return the index of the "end" line, or lines.size()
+	 */
+	private static int expand(List<String> lines, int from, int counter, List<Command> out, String where)
+			throws IOException {
+		int i = from;
+		while (i < lines.size()) {
+			String line = lines.get(i);
+			int hash = line.indexOf('#');
+			if (hash >= 0)
+				line = line.substring(0, hash);
+			line = line.trim();
+			if (line.isEmpty()) {
+				i++;
+				continue;
+			}
+			String lower = line.toLowerCase();
+			if (lower.equals("end"))
+				return i;
+			try {
+				if (lower.startsWith("repeat ")) {
+					int n = Integer.parseInt(line.substring(7).trim());
+					int blockEnd = i;
+					for (int k = 0; k < n; k++) {
+						blockEnd = expand(lines, i + 1, k, out, where);
+					}
+					if (n == 0)
+						blockEnd = expand(lines, i + 1, 0, new ArrayList<Command>(), where);
+					if (blockEnd >= lines.size())
+						throw new IOException(where + ":" + (i + 1) + ": 'repeat' without 'end'");
+					i = blockEnd + 1;
+					continue;
+				}
+				out.add(parseCommand(line, counter));
+			} catch (IllegalArgumentException e) {
+				throw new IOException(where + ":" + (i + 1) + ": " + e.getMessage());
+			}
+			i++;
+		}
+		return i;
+	}
+
+	private static Command parseCommand(String line, int counter) {
+		String apdu = line;
+		String expect = null;
+		int arrow = line.indexOf("=>");
+		if (arrow >= 0) {
+			apdu = line.substring(0, arrow).trim();
+			expect = line.substring(arrow + 2).trim();
+		}
+		if (counter >= 0) {
+			apdu = apdu.replace("{ii}", String.format("%04X", counter & 0xFFFF));
+			apdu = apdu.replace("{i}", String.format("%02X", counter & 0xFF));
+		}
+		byte[] bytes;
+		if (apdu.toLowerCase().startsWith("select ")) {
+			byte[] aid = Hex.decode(apdu.substring(7));
+			bytes = new byte[5 + aid.length];
+			bytes[1] = (byte) 0xA4;
+			bytes[2] = 0x04;
+			bytes[4] = (byte) aid.length;
+			System.arraycopy(aid, 0, bytes, 5, aid.length);
+		} else {
+			bytes = Hex.decode(apdu);
+		}
+		if (bytes.length < 4)
+			throw new IllegalArgumentException("APDU too short: " + apdu);
+		if (expect == null)
+			return new Command(bytes, 0, -1);
+		if (expect.equalsIgnoreCase("any"))
+			return new Command(bytes, 0, 0);
+		if (expect.length() != 4)
+			throw new IllegalArgumentException("Bad status word: " + expect);
+		int sw = 0;
+		int mask = 0;
+		for (int k = 0; k < 2; k++) {
+			String b = expect.substring(k * 2, k * 2 + 2);
+			sw <<= 8;
+			mask <<= 8;
+			if (!b.equalsIgnoreCase("XX")) {
+				sw |= Integer.parseInt(b, 16);
+				mask |= 0xFF;
+			}
+		}
+		return new Command(bytes, sw, mask);
+	}
+}
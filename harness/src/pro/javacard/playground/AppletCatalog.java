@@ -0,0 +1,114 @@
+package pro.javacard.playground;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The applets known to the build, as listed by the &lt;cap&gt; elements of
+ * build.xml.
+ */
+public final class AppletCatalog {
+
+	/** One &lt;cap&gt; element: a package with one or more applets */
+	public static final class Cap {
+		public final String name;
+		public final String sources;
+		public final List<Applet> applets = new ArrayList<Applet>();
+
+		Cap(String name, String sources) {
+			this.name = name;
+			this.sources = sources;
+		}
+	}
+
+	/** One &lt;applet&gt; element */
+	public static final class Applet {
+		public final Cap cap;
+		public final String className;
+		public final byte[] aid;
+
+		Applet(Cap cap, String className, byte[] aid) {
+			this.cap = cap;
+			this.className = className;
+			this.aid = aid;
+		}
+
+		@Override
+		public String toString() {
+			return className + " (" + Hex.encode(aid) + ")";
+		}
+	}
+
+	private final List<Cap> caps = new ArrayList<Cap>();
+
+	private AppletCatalog() {
+	}
+
+	/**
+	 * Reads the applet definitions from an ant-javacard build file.
+	 */
+	public static AppletCatalog load(File buildXml) throws IOException {
+		Document doc;
+		try {
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(buildXml);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch (SAXException e) {
+			throw new IOException("Can not parse " + buildXml, e);
+		}
+		AppletCatalog catalog = new AppletCatalog();
+		NodeList capNodes = doc.getElementsByTagName("cap");
+		for (int i = 0; i < capNodes.getLength(); i++) {
+			Element capElement = (Element) capNodes.item(i);
+			String output = capElement.getAttribute("output");
+			String name = output.endsWith(".cap") ? output.substring(0, output.length() - 4) : output;
+			Cap cap = new Cap(name, capElement.getAttribute("sources"));
+			NodeList appletNodes = capElement.getElementsByTagName("applet");
+			for (int j = 0; j < appletNodes.getLength(); j++) {
+				Element appletElement = (Element) appletNodes.item(j);
+				cap.applets.add(new Applet(cap, appletElement.getAttribute("class"),
+						Hex.decode(appletElement.getAttribute("aid"))));
+			}
+			catalog.caps.add(cap);
+		}
+		return catalog;
+	}
+
+	public List<Cap> getCaps() {
+		return Collections.unmodifiableList(caps);
+	}
+
+	/**
+	 * Finds an applet by CAP name (first applet of the CAP), by fully
+	 * qualified or simple class name, or by AID in hex.
+	 *
+	 * @return the applet or null if nothing matches
+	 */
+	public Applet find(String spec) {
+		for (Cap cap : caps) {
+			if (cap.name.equalsIgnoreCase(spec) && !cap.applets.isEmpty())
+				return cap.applets.get(0);
+		}
+		for (Cap cap : caps) {
+			for (Applet applet : cap.applets) {
+				String simple = applet.className.substring(applet.className.lastIndexOf('.') + 1);
+				if (applet.className.equals(spec) || simple.equals(spec))
+					return applet;
+				if (spec.replace(":", "").equalsIgnoreCase(Hex.encode(applet.aid)))
+					return applet;
+			}
+		}
+		return null;
+	}
+}
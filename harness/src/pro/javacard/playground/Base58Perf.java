@@ -0,0 +1,168 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.btchip.applet.poc.Base58;
+
+/**
+ * Times BTChip's Base58 encoding and decoding in vJCRE, for the 25 bytes of
+ * an address and the 82 of an extended key.
+ *
+ * <pre>
+ * java pro.javacard.playground.Base58Perf [-checks n] [-iterations n] [-reps n]
+ * </pre>
+ *
+ * Before timing, random payloads of up to 100 bytes, some with leading
+ * zeros, are encoded and decoded and compared with a BigInteger reference.
+ * The class is driven directly, the applet needs a personalized wallet and
+ * EC keys that vJCRE does not have.
+ */
+public final class Base58Perf {
+
+	private static final String ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+	private static final BigInteger BASE = BigInteger.valueOf(58);
+
+	private int checks = 2000;
+	private int iterations = 200;
+	private int reps = 5;
+
+	// as in the applet the scratch area starts at 100, the input of encode()
+	// and the output of decode() are kept apart from it here so that the
+	// longer payloads fit
+	private final byte[] text = new byte[256];
+	private final byte[] scratch = new byte[255];
+
+	private static void usage() {
+		System.err.println("Usage: Base58Perf [-checks n] [-iterations n] [-reps n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Base58Perf perf = new Base58Perf();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-checks"))
+				perf.checks = Integer.parseInt(args[++i]);
+			else if (a.equals("-iterations"))
+				perf.iterations = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		if (perf.checks < 0 || perf.iterations < 1 || perf.reps < 1)
+			usage();
+
+		PrintStream out = System.out;
+		Json json;
+		// vJCRE traces some framework calls
+		System.setOut(Simulator.DISCARD);
+		try {
+			perf.check();
+			json = perf.run();
+		} finally {
+			System.setOut(out);
+		}
+		System.out.println(json);
+	}
+
+	private static String reference(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		BigInteger n = new BigInteger(1, data);
+		while (n.signum() > 0) {
+			BigInteger[] qr = n.divideAndRemainder(BASE);
+			sb.append(ALPHABET.charAt(qr[1].intValue()));
+			n = qr[0];
+		}
+		for (int i = 0; i < data.length && data[i] == 0; i++)
+			sb.append('1');
+		return sb.reverse().toString();
+	}
+
+	private String encode(byte[] data) {
+		System.arraycopy(data, 0, scratch, 0, data.length);
+		short end = Base58.encode(scratch, (short) 0, (short) data.length, text, (short) 0, scratch, (short) 100);
+		return new String(text, 0, end, StandardCharsets.US_ASCII);
+	}
+
+	private byte[] decode(String encoded) {
+		byte[] in = encoded.getBytes(StandardCharsets.US_ASCII);
+		short length = Base58.decode(in, (short) 0, (short) in.length, text, (short) 0, scratch, (short) 100);
+		return length < 0 ? null : Arrays.copyOf(text, length);
+	}
+
+	private void check() {
+		Random random = new Random(58);
+		for (int i = 0; i < checks; i++) {
+			byte[] data = new byte[random.nextInt(101)];
+			random.nextBytes(data);
+			for (int z = random.nextInt(4); z > 0 && z <= data.length; z--)
+				data[z - 1] = 0;
+			// the decoded bytes of leading '1's must be written, not left over
+			Arrays.fill(text, (byte) 0x5A);
+			String expected = reference(data);
+			String encoded = encode(data);
+			if (!encoded.equals(expected))
+				throw new IllegalStateException("Encoding " + Hex.encode(data) + " gave " + encoded + ", expected "
+						+ expected);
+			if (!Arrays.equals(decode(encoded), data))
+				throw new IllegalStateException("Decoding " + encoded + " did not give " + Hex.encode(data));
+		}
+		for (String bad : new String[] { "0", "O", "I", "l", "1+1" }) {
+			if (decode(bad) != null)
+				throw new IllegalStateException("Decoded invalid " + bad);
+		}
+	}
+
+	private Json run() {
+		Json json = new Json();
+		json.beginObject();
+		json.field("checks", checks);
+		json.field("iterations", iterations);
+		json.field("reps", reps);
+		json.name("payloads");
+		json.beginArray();
+		for (int length : new int[] { 25, 82 }) {
+			byte[] data = new byte[length];
+			new Random(length).nextBytes(data);
+			// versions 0x00 and 0x0488B21E: the '1' of an address, "xpub"
+			if (length == 25)
+				data[0] = 0;
+			else
+				System.arraycopy(Hex.decode("0488B21E"), 0, data, 0, 4);
+			String encoded = encode(data);
+			LatencyStats encodeStats = new LatencyStats();
+			LatencyStats decodeStats = new LatencyStats();
+			for (int r = 0; r < reps + 1; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					encode(data);
+				long encodeNanos = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					decode(encoded);
+				long decodeNanos = System.nanoTime() - start;
+				// the first round warms up the JIT
+				if (r > 0) {
+					encodeStats.add(encodeNanos, 0, 0, true);
+					decodeStats.add(decodeNanos, 0, 0, true);
+				}
+			}
+			json.beginObject();
+			json.field("bytes", length);
+			json.field("chars", encoded.length());
+			json.field("encode_us", encodeStats.getTotalNanos() / 1e3 / encodeStats.getCount() / iterations);
+			json.field("decode_us", decodeStats.getTotalNanos() / 1e3 / decodeStats.getCount() / iterations);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+}
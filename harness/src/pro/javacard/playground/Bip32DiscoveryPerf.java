@@ -0,0 +1,346 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardException;
+
+/**
+ * Times SatoChip's address discovery in vJCRE: the public keys of the first
+ * children of an account chain, asked one INS_BIP32_GET_EXTENDED_KEY (0x6D)
+ * per index or with INS_BIP32_GET_CHILD_PUBKEYS (0x74), in short APDUs of 5
+ * keys or in one extended APDU.
+ *
+ * <pre>
+ * java pro.javacard.playground.Bip32DiscoveryPerf [-count n] [-reps n]
+ * </pre>
+ *
+ * The seed is that of the first BIP32 test vector and the chain m/0'/1, whose
+ * public key the vector gives. Every case runs on a fresh card. Each key
+ * returned is checked against a derivation on the host, the batches'
+ * authentikey signatures are verified, and after the batches the last
+ * extended key (that of the chain, from a 0x6D) must still sign short
+ * messages. vJCRE has neither EC nor AES, so the classes of
+ * build/harness/profile must come ahead of vjcre.jar.
+ */
+public final class Bip32DiscoveryPerf {
+
+	private static final byte[] SEED = Hex.decode("000102030405060708090A0B0C0D0E0F");
+	// m/0'/1 in the first test vector of BIP32
+	private static final int[] CHAIN = { 0x80000000, 1 };
+	private static final String CHAIN_PUBKEY = "03501E454BF00751F24B1B489AA925215D66AF2234E3891C3B21A52BEDB3CD711C";
+	// PIN 0 "Muscle00" to "1234", with the object, key and PIN ACLs open
+	private static final String SETUP = "B02A000028084D7573636C6530300503043132333404313233340503043132333404"
+			+ "3132333410001000000000";
+	private static final byte[] MESSAGE_HEADER = "\u0018Bitcoin Signed Message:\n".getBytes();
+	private static final String[] CASES = { "get_extended_key", "child_pubkeys_short", "child_pubkeys_extended" };
+
+	// secp256k1
+	private static final BigInteger P = new BigInteger(
+			"FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+	private static final BigInteger N = new BigInteger(
+			"FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+	private static final BigInteger[] G = {
+			new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16),
+			new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16) };
+
+	private int count = 20;
+	private int reps = 3;
+	private Simulator card;
+	private AppletCatalog.Applet applet;
+	private byte[][] expected;
+	private BigInteger[] authentikey;
+	// APDUs of the last discovery
+	private int apdus;
+
+	private static void usage() {
+		System.err.println("Usage: Bip32DiscoveryPerf [-count n] [-reps n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Bip32DiscoveryPerf perf = new Bip32DiscoveryPerf();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-count"))
+				perf.count = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		if (perf.count < 1 || perf.count > 255 || perf.reps < 1)
+			usage();
+
+		PrintStream out = System.out;
+		Json json;
+		// vJCRE prints the applet on every command
+		System.setOut(Simulator.DISCARD);
+		try {
+			perf.applet = AppletCatalog.load(new java.io.File("build.xml")).find("org.satochip.applet.CardEdge");
+			json = perf.run();
+		} finally {
+			System.setOut(out);
+		}
+		System.out.println(json);
+	}
+
+	private Json run() throws Exception {
+		byte[] chain = derive(CHAIN);
+		if (!Arrays.equals(compressed(new BigInteger(1, Arrays.copyOf(chain, 32))), Hex.decode(CHAIN_PUBKEY)))
+			throw new IllegalStateException("Host derivation does not match the BIP32 test vector");
+		expected = new byte[count][];
+		for (int i = 0; i < count; i++)
+			expected[i] = compressed(new BigInteger(1, Arrays.copyOf(derive(CHAIN[0], CHAIN[1], i), 32)));
+		authentikey = multiply(new BigInteger(1, Arrays.copyOf(hmac("Bitcoin seed2".getBytes(), SEED), 32)), G);
+
+		Json json = new Json();
+		json.beginObject();
+		json.field("count", count);
+		json.field("reps", reps);
+		json.name("cases");
+		json.beginArray();
+		LatencyStats[] stats = new LatencyStats[CASES.length];
+		int[] caseApdus = new int[CASES.length];
+		for (int c = 0; c < CASES.length; c++)
+			stats[c] = new LatencyStats();
+		// the cases alternate so that neither gets all of the JIT warm-up
+		for (int r = 0; r < reps + 1; r++) {
+			for (int c = 0; c < CASES.length; c++) {
+				newCard();
+				long nanos = discover(c);
+				// the first round warms up the JIT
+				if (r > 0)
+					stats[c].add(nanos, 0, 0, true);
+				caseApdus[c] = apdus;
+			}
+		}
+		for (int c = 0; c < CASES.length; c++) {
+			double ms = stats[c].getTotalNanos() / 1e6 / stats[c].getCount();
+			json.beginObject();
+			json.field("case", CASES[c]);
+			json.field("apdus", caseApdus[c]);
+			json.field("ms", ms);
+			json.field("keys_per_sec", count * 1e3 / ms);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+
+	private void newCard() throws Exception {
+		card = new Simulator();
+		card.install(applet, new byte[0], true);
+		card.connect();
+		check(card.transmit(Hex.decode(SETUP)), "SETUP");
+		byte[] data = new byte[6 + 1 + SEED.length];
+		data[6] = (byte) SEED.length;
+		System.arraycopy(SEED, 0, data, 7, SEED.length);
+		check(card.transmit(apdu(0x6C, 0, 0, data, false)), "IMPORT SEED");
+	}
+
+	/**
+	 * Gets the public keys of the first children of the chain as case c does
+	 * it, and checks them.
+	 *
+	 * @return the time taken in nanoseconds
+	 */
+	private long discover(int c) throws Exception {
+		byte[][] keys = new byte[count][];
+		if (c == 0) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				keys[i] = check(card.transmit(apdu(0x6D, 3, 0, path(CHAIN[0], CHAIN[1], i), false)), "GET EXTENDED KEY");
+			long elapsed = System.nanoTime() - start;
+			apdus = count;
+			for (int i = 0; i < count; i++) {
+				// [coordx_size(2b) | coordx | ...]
+				if (!Arrays.equals(Arrays.copyOfRange(keys[i], 2, 34), Arrays.copyOfRange(expected[i], 1, 33)))
+					throw new IllegalStateException("Wrong coord x from GET EXTENDED KEY at index " + i);
+			}
+			return elapsed;
+		}
+
+		// the chain becomes the last extended key, which the batches must keep
+		check(card.transmit(apdu(0x6D, 2, 0, path(CHAIN), false)), "GET EXTENDED KEY");
+		boolean extended = c == 2;
+		byte[] parent = path(CHAIN);
+		byte[][] responses = new byte[count][];
+		int batches = 0;
+		long start = System.nanoTime();
+		for (int got = 0; got < count; batches++) {
+			byte[] data = Arrays.copyOf(parent, parent.length + 4);
+			ByteBuffer.wrap(data, parent.length, 4).putInt(got);
+			responses[batches] = check(card.transmit(apdu(0x74, CHAIN.length, Math.min(count - got, 255), data,
+					extended)), "GET CHILD PUBKEYS");
+			// [first_index(4b) | nb_keys(1b) | ...]
+			got += responses[batches][4] & 0xFF;
+		}
+		long elapsed = System.nanoTime() - start;
+		apdus = batches;
+
+		int index = 0;
+		for (int b = 0; b < batches; b++) {
+			byte[] response = responses[b];
+			int nb = response[4] & 0xFF;
+			if (ByteBuffer.wrap(response).getInt() != index || nb == 0)
+				throw new IllegalStateException("Batch " + b + " does not start at index " + index);
+			int pos = 5;
+			for (int k = 0; k < nb; k++, index++, pos += 33) {
+				if (!Arrays.equals(Arrays.copyOfRange(response, pos, pos + 33), expected[index]))
+					throw new IllegalStateException("Wrong public key from GET CHILD PUBKEYS at index " + index);
+			}
+			int sigSize = ((response[pos] & 0xFF) << 8) | (response[pos + 1] & 0xFF);
+			byte[] signed = new byte[parent.length + pos];
+			System.arraycopy(parent, 0, signed, 0, parent.length);
+			System.arraycopy(response, 0, signed, parent.length, pos);
+			if (pos + 2 + sigSize != response.length
+					|| !verify(authentikey, signed, Arrays.copyOfRange(response, pos + 2, response.length)))
+				throw new IllegalStateException("Bad authentikey signature on batch " + b);
+		}
+		if (extended && batches != 1)
+			throw new IllegalStateException(batches + " extended APDUs for " + count + " keys");
+
+		byte[] message = "discovery".getBytes();
+		byte[] data = new byte[2 + message.length];
+		data[1] = (byte) message.length;
+		System.arraycopy(message, 0, data, 2, message.length);
+		byte[] sig = check(card.transmit(apdu(0x72, 0xFF, 0, data, false)), "SIGN SHORT MESSAGE");
+		byte[] chain = derive(CHAIN);
+		byte[] signed = new byte[MESSAGE_HEADER.length + 1 + message.length];
+		System.arraycopy(MESSAGE_HEADER, 0, signed, 0, MESSAGE_HEADER.length);
+		signed[MESSAGE_HEADER.length] = (byte) message.length;
+		System.arraycopy(message, 0, signed, MESSAGE_HEADER.length + 1, message.length);
+		if (!verify(multiply(new BigInteger(1, Arrays.copyOf(chain, 32)), G), sha256(signed), sig))
+			throw new IllegalStateException("The last extended key changed during GET CHILD PUBKEYS");
+		return elapsed;
+	}
+
+	private static byte[] apdu(int ins, int p1, int p2, byte[] data, boolean extended) {
+		byte[] apdu;
+		if (extended) {
+			// Lc and Le on 3 and 2 bytes, Le 0000 for as much as fits
+			apdu = new byte[7 + data.length + 2];
+			apdu[5] = (byte) (data.length >> 8);
+			apdu[6] = (byte) data.length;
+			System.arraycopy(data, 0, apdu, 7, data.length);
+		} else {
+			apdu = new byte[5 + data.length + 1];
+			apdu[4] = (byte) data.length;
+			System.arraycopy(data, 0, apdu, 5, data.length);
+		}
+		apdu[0] = (byte) 0xB0;
+		apdu[1] = (byte) ins;
+		apdu[2] = (byte) p1;
+		apdu[3] = (byte) p2;
+		return apdu;
+	}
+
+	private static byte[] check(byte[] response, String what) throws CardException {
+		int sw = ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+		if (sw != 0x9000)
+			throw new CardException(String.format("%s returned %04X", what, sw));
+		return Arrays.copyOf(response, response.length - 2);
+	}
+
+	private static byte[] path(int... indexes) {
+		ByteBuffer path = ByteBuffer.allocate(4 * indexes.length);
+		for (int i : indexes)
+			path.putInt(i);
+		return path.array();
+	}
+
+	/** @return the private key and chain code at path, from SEED */
+	private static byte[] derive(int... indexes) throws Exception {
+		byte[] key = hmac("Bitcoin seed".getBytes(), SEED);
+		for (int i : indexes) {
+			BigInteger k = new BigInteger(1, Arrays.copyOf(key, 32));
+			ByteBuffer data = ByteBuffer.allocate(37);
+			if (i < 0)
+				data.put((byte) 0).put(Arrays.copyOf(key, 32));
+			else
+				data.put(compressed(k));
+			data.putInt(i);
+			byte[] mac = hmac(Arrays.copyOfRange(key, 32, 64), data.array());
+			BigInteger child = new BigInteger(1, Arrays.copyOf(mac, 32)).add(k).mod(N);
+			key = Arrays.copyOf(bytes32(child), 64);
+			System.arraycopy(mac, 32, key, 32, 32);
+		}
+		return key;
+	}
+
+	private static byte[] hmac(byte[] key, byte[] data) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA512");
+		mac.init(new SecretKeySpec(key, "HmacSHA512"));
+		return mac.doFinal(data);
+	}
+
+	private static byte[] sha256(byte[] data) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(data);
+	}
+
+	private static byte[] bytes32(BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		byte[] r = new byte[32];
+		int n = Math.min(bytes.length, 32);
+		System.arraycopy(bytes, bytes.length - n, r, 32 - n, n);
+		return r;
+	}
+
+	private static byte[] compressed(BigInteger k) {
+		BigInteger[] point = multiply(k, G);
+		byte[] r = new byte[33];
+		r[0] = (byte) (point[1].testBit(0) ? 0x03 : 0x02);
+		System.arraycopy(bytes32(point[0]), 0, r, 1, 32);
+		return r;
+	}
+
+	/** Verifies a DER encoded ECDSA signature of the SHA-256 of message */
+	private static boolean verify(BigInteger[] pub, byte[] message, byte[] der) throws Exception {
+		if (der.length < 8 || der[0] != 0x30 || der[2] != 0x02)
+			return false;
+		int sAt = 4 + der[3];
+		BigInteger r = new BigInteger(Arrays.copyOfRange(der, 4, sAt));
+		BigInteger s = new BigInteger(Arrays.copyOfRange(der, sAt + 2, der.length));
+		BigInteger e = new BigInteger(1, sha256(message));
+		BigInteger w = s.modInverse(N);
+		BigInteger[] point = add(multiply(e.multiply(w).mod(N), G), multiply(r.multiply(w).mod(N), pub));
+		return point != null && point[0].mod(N).equals(r);
+	}
+
+	private static BigInteger[] add(BigInteger[] p, BigInteger[] q) {
+		if (p == null)
+			return q;
+		if (q == null)
+			return p;
+		BigInteger lambda;
+		if (p[0].equals(q[0])) {
+			if (p[1].add(q[1]).mod(P).signum() == 0)
+				return null;
+			lambda = p[0].pow(2).multiply(BigInteger.valueOf(3)).multiply(p[1].shiftLeft(1).modInverse(P));
+		} else {
+			lambda = q[1].subtract(p[1]).multiply(q[0].subtract(p[0]).modInverse(P));
+		}
+		lambda = lambda.mod(P);
+		BigInteger x = lambda.pow(2).subtract(p[0]).subtract(q[0]).mod(P);
+		return new BigInteger[] { x, lambda.multiply(p[0].subtract(x)).subtract(p[1]).mod(P) };
+	}
+
+	private static BigInteger[] multiply(BigInteger k, BigInteger[] point) {
+		BigInteger[] result = null;
+		for (int i = k.bitLength() - 1; i >= 0; i--) {
+			result = add(result, result);
+			if (k.testBit(i))
+				result = add(result, point);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,167 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.satochip.applet.HmacSha512;
+import org.satochip.applet.Sha512;
+
+/**
+ * Times the HMAC-SHA512 of a BIP32 child step as SatoChip computes it in
+ * software, and its SHA-512 for a few message lengths, in vJCRE.
+ *
+ * <pre>
+ * java pro.javacard.playground.Bip32Perf [-steps n] [-reps n]
+ * </pre>
+ *
+ * "siblings" derives consecutive children of one parent, so the HMAC key
+ * (the parent chain code) repeats and its midstates are reused; "new_parent"
+ * changes the chain code at every step, which costs the two extra
+ * compressions of the ipad and opad blocks. The point multiplication of a
+ * step is not included. The classes are driven directly, as SatoChip itself
+ * only runs in vJCRE with build/harness/profile (see Bip32DiscoveryPerf).
+ * Every result is checked against the JCE. vJCRE traces every
+ * Util.arrayCompare, which the key check of a cached HMAC pays for; on a
+ * card that comparison is native and the gap between the cases is wider.
+ */
+public final class Bip32Perf {
+
+	private int steps = 200;
+	private int reps = 5;
+
+	private static void usage() {
+		System.err.println("Usage: Bip32Perf [-steps n] [-reps n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Bip32Perf perf = new Bip32Perf();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-steps"))
+				perf.steps = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		// the MACs of all steps are kept in one array, addressed with shorts
+		if (perf.steps < 1 || perf.steps > 500 || perf.reps < 1)
+			usage();
+
+		PrintStream out = System.out;
+		Json json;
+		// vJCRE traces some framework calls
+		System.setOut(Simulator.DISCARD);
+		try {
+			Sha512.init();
+			HmacSha512.init(new byte[256]);
+			json = perf.run();
+		} finally {
+			System.setOut(out);
+		}
+		System.out.println(json);
+	}
+
+	private Json run() throws Exception {
+		Json json = new Json();
+		json.beginObject();
+		json.field("steps", steps);
+		json.field("reps", reps);
+		json.name("hmac");
+		json.beginArray();
+		boolean[] cases = { true, false };
+		LatencyStats[] hmac = { new LatencyStats(), new LatencyStats() };
+		// the cases alternate so that neither gets all of the JIT warm-up
+		for (int r = 0; r < reps + 1; r++) {
+			for (int c = 0; c < cases.length; c++) {
+				long nanos = derive(cases[c], r);
+				// the first round warms up the JIT
+				if (r > 0)
+					hmac[c].add(nanos, 0, 0, true);
+			}
+		}
+		for (int c = 0; c < cases.length; c++) {
+			double stepUs = hmac[c].getTotalNanos() / 1e3 / hmac[c].getCount() / steps;
+			json.beginObject();
+			json.field("case", cases[c] ? "siblings" : "new_parent");
+			json.field("step_us", stepUs);
+			json.field("steps_per_sec", 1e6 / stepUs);
+			json.endObject();
+		}
+		json.endArray();
+
+		json.name("sha512");
+		json.beginArray();
+		for (int length : new int[] { 37, 111, 112, 128, 256, 1024 }) {
+			byte[] message = new byte[length];
+			new Random(length).nextBytes(message);
+			byte[] digest = new byte[64];
+			LatencyStats stats = new LatencyStats();
+			for (int r = 0; r < reps + 1; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < steps; i++)
+					Sha512.resetUpdateDoFinal(message, (short) 0, (short) length, digest, (short) 0);
+				if (r > 0)
+					stats.add(System.nanoTime() - start, 0, 0, true);
+			}
+			if (!Arrays.equals(digest, java.security.MessageDigest.getInstance("SHA-512").digest(message)))
+				throw new IllegalStateException("SHA-512 mismatch for " + length + " bytes");
+			double us = stats.getTotalNanos() / 1e3 / stats.getCount() / steps;
+			json.beginObject();
+			json.field("bytes", length);
+			json.field("us", us);
+			json.field("kb_per_sec", length / 1.024 / us * 1e3);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+
+	/**
+	 * Runs the HMACs of "steps" normal child derivations, laid out as in
+	 * CardEdge: the key is the chain code, the message the parent's compressed
+	 * public key followed by the index.
+	 *
+	 * @return the time taken in nanoseconds
+	 */
+	private long derive(boolean siblings, int seed) throws Exception {
+		Random random = new Random(seed);
+		byte[] chainCodes = new byte[32 * steps];
+		random.nextBytes(chainCodes);
+		byte[] message = new byte[37];
+		random.nextBytes(message);
+		message[0] = 0x02;
+		byte[] macs = new byte[64 * steps];
+		// as in CardEdge the key sits in a small array of its own
+		byte[] chainCode = new byte[32];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < steps; i++) {
+			System.arraycopy(chainCodes, siblings ? 0 : 32 * i, chainCode, 0, 32);
+			message[36] = (byte) i;
+			message[35] = (byte) (i >> 8);
+			HmacSha512.computeHmacSha512(chainCode, (short) 0, (short) 32, message, (short) 0, (short) 37, macs,
+					(short) (64 * i));
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Mac mac = Mac.getInstance("HmacSHA512");
+		for (int i = 0; i < steps; i++) {
+			int key = siblings ? 0 : 32 * i;
+			mac.init(new SecretKeySpec(chainCodes, key, 32, "HmacSHA512"));
+			message[36] = (byte) i;
+			message[35] = (byte) (i >> 8);
+			if (!Arrays.equals(mac.doFinal(message), Arrays.copyOfRange(macs, 64 * i, 64 * i + 64)))
+				throw new IllegalStateException("HMAC-SHA512 mismatch at step " + i);
+		}
+		return elapsed;
+	}
+}
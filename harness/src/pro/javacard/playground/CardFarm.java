@@ -0,0 +1,321 @@
+package pro.javacard.playground;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+import javax.smartcardio.TerminalFactorySpi;
+
+/**
+ * Independent virtual cards, each a {@link Simulator} with its own applet
+ * install, reachable as the terminals of one javax.smartcardio
+ * TerminalFactory.
+ * <p>
+ * vJCRE keeps its runtime in static fields, so every card loads vJCRE, the
+ * applets and this harness in a class loader of its own, from the class path
+ * of the JVM. Cards share nothing and may be driven from different threads;
+ * one card must not be used by two threads at once, as a card reader would
+ * not allow either.
+ *
+ * <pre>
+ * CardFarm farm = new CardFarm(new File("build.xml"));
+ * farm.add("MuscleApplet", new byte[0]);
+ * farm.add("YkneoOath", new byte[0]);
+ * for (CardTerminal t : farm.getTerminalFactory().terminals().list())
+ *     t.connect("*").getBasicChannel().transmit(...);
+ * </pre>
+ */
+public final class CardFarm {
+
+	private static final byte[] ATR_BYTES = Hex.decode("3B80800101");
+
+	private final File buildXml;
+	private final URL[] classPath;
+	private final List<VirtualCard> cards = new ArrayList<VirtualCard>();
+
+	/** One card: the Simulator of its class loader and the applet on it */
+	private static final class VirtualCard {
+		final String name;
+		final String applet;
+		final Object simulator;
+		final Method transmit;
+
+		VirtualCard(String name, String applet, Object simulator) throws NoSuchMethodException {
+			this.name = name;
+			this.applet = applet;
+			this.simulator = simulator;
+			transmit = simulator.getClass().getMethod("transmit", byte[].class);
+		}
+
+		byte[] transmit(byte[] apdu) throws CardException {
+			try {
+				return (byte[]) transmit.invoke(simulator, (Object) apdu);
+			} catch (InvocationTargetException e) {
+				// the exceptions of the other class loader are copied, as
+				// a reader would report them
+				Throwable cause = e.getCause();
+				throw new CardException(cause.getClass().getName() + ": " + cause.getMessage());
+			} catch (IllegalAccessException e) {
+				throw new CardException(e);
+			}
+		}
+	}
+
+	public CardFarm(File buildXml) throws Exception {
+		this.buildXml = buildXml;
+		String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+		classPath = new URL[entries.length];
+		for (int i = 0; i < entries.length; i++)
+			classPath[i] = new File(entries[i]).toURI().toURL();
+	}
+
+	/**
+	 * Starts a card with an applet (and the other applets of its CAP)
+	 * installed and selected by default.
+	 *
+	 * @param applet
+	 *            CAP name, applet class or AID, as in build.xml
+	 * @param params
+	 *            install parameters of the applet
+	 * @return the name of the card's terminal
+	 */
+	public synchronized String add(String applet, byte[] params) throws Exception {
+		// parent of the system class loader, so that nothing of the class
+		// path is shared
+		ClassLoader loader = new URLClassLoader(classPath, ClassLoader.getSystemClassLoader().getParent());
+		Method boot = loader.loadClass(CardFarm.class.getName()).getDeclaredMethod("boot", String.class,
+				String.class, byte[].class);
+		boot.setAccessible(true);
+		Object simulator;
+		try {
+			simulator = boot.invoke(null, buildXml.getPath(), applet, params);
+		} catch (InvocationTargetException e) {
+			throw new Exception("Cannot start a card with " + applet, e.getCause());
+		}
+		String name = "vJCRE farm " + cards.size();
+		cards.add(new VirtualCard(name, applet, simulator));
+		return name;
+	}
+
+	/** Runs in the class loader of a card */
+	private static Object boot(String buildXml, String spec, byte[] params) throws Exception {
+		AppletCatalog.Applet applet = AppletCatalog.load(new File(buildXml)).find(spec);
+		if (applet == null)
+			throw new IllegalArgumentException("No applet matching " + spec + " in " + buildXml);
+		Simulator sim = new Simulator();
+		for (AppletCatalog.Applet a : applet.cap.applets)
+			sim.install(a, a == applet ? params : new byte[0], a == applet);
+		sim.connect();
+		return sim;
+	}
+
+	/** @return the number of cards */
+	public synchronized int size() {
+		return cards.size();
+	}
+
+	/** @return the applet the card of a terminal was started with */
+	public synchronized String getApplet(String terminal) {
+		for (VirtualCard c : cards) {
+			if (c.name.equals(terminal))
+				return c.applet;
+		}
+		return null;
+	}
+
+	/** @return a TerminalFactory listing a terminal for every card */
+	public TerminalFactory getTerminalFactory() throws NoSuchAlgorithmException {
+		return TerminalFactory.getInstance("PC/SC", this, new FarmProvider());
+	}
+
+	private synchronized List<CardTerminal> terminals() {
+		List<CardTerminal> list = new ArrayList<CardTerminal>();
+		for (VirtualCard c : cards)
+			list.add(new FarmTerminal(c));
+		return list;
+	}
+
+	/** Makes the farm available to TerminalFactory.getInstance() */
+	private static final class FarmProvider extends Provider {
+		private static final long serialVersionUID = 1L;
+
+		// Provider(String, String, String) is Java 9; the harness targets 1.7
+		@SuppressWarnings("deprecation")
+		FarmProvider() {
+			super("CardFarm", 1.0, "vJCRE card farm");
+			put("TerminalFactory.PC/SC", FactorySpi.class.getName());
+		}
+	}
+
+	/** Instantiated by TerminalFactory with the farm as parameter */
+	public static final class FactorySpi extends TerminalFactorySpi {
+		private final CardFarm farm;
+
+		public FactorySpi(Object parameter) {
+			farm = (CardFarm) parameter;
+		}
+
+		@Override
+		protected CardTerminals engineTerminals() {
+			return new CardTerminals() {
+				@Override
+				public List<CardTerminal> list(State state) throws CardException {
+					// a card is always present and never changes
+					if (state == State.CARD_REMOVAL || state == State.CARD_ABSENT)
+						return Collections.emptyList();
+					return farm.terminals();
+				}
+
+				@Override
+				public boolean waitForChange(long timeout) throws CardException {
+					return false;
+				}
+			};
+		}
+	}
+
+	private static final class FarmTerminal extends CardTerminal {
+		private final VirtualCard card;
+
+		FarmTerminal(VirtualCard card) {
+			this.card = card;
+		}
+
+		@Override
+		public String getName() {
+			return card.name;
+		}
+
+		@Override
+		public Card connect(String protocol) throws CardException {
+			if (!protocol.equals("*") && !protocol.equals("T=1"))
+				throw new CardException("Protocol " + protocol + " not supported");
+			return new FarmCard(card);
+		}
+
+		@Override
+		public boolean isCardPresent() {
+			return true;
+		}
+
+		@Override
+		public boolean waitForCardPresent(long timeout) {
+			return true;
+		}
+
+		@Override
+		public boolean waitForCardAbsent(long timeout) {
+			return false;
+		}
+	}
+
+	private static final class FarmCard extends Card {
+		private final VirtualCard card;
+		private final CardChannel basic;
+		private boolean connected = true;
+
+		FarmCard(VirtualCard card) {
+			this.card = card;
+			basic = new FarmChannel(this);
+		}
+
+		@Override
+		public ATR getATR() {
+			return new ATR(ATR_BYTES);
+		}
+
+		@Override
+		public String getProtocol() {
+			return "T=1";
+		}
+
+		@Override
+		public CardChannel getBasicChannel() {
+			return basic;
+		}
+
+		@Override
+		public CardChannel openLogicalChannel() throws CardException {
+			throw new CardException("Logical channels not supported");
+		}
+
+		@Override
+		public void beginExclusive() {
+		}
+
+		@Override
+		public void endExclusive() {
+		}
+
+		@Override
+		public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+			throw new CardException("Control commands not supported");
+		}
+
+		@Override
+		public void disconnect(boolean reset) {
+			connected = false;
+		}
+
+		byte[] transmit(byte[] apdu) throws CardException {
+			if (!connected)
+				throw new IllegalStateException("Card disconnected");
+			return card.transmit(apdu);
+		}
+	}
+
+	private static final class FarmChannel extends CardChannel {
+		private final FarmCard card;
+
+		FarmChannel(FarmCard card) {
+			this.card = card;
+		}
+
+		@Override
+		public Card getCard() {
+			return card;
+		}
+
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return new ResponseAPDU(card.transmit(command.getBytes()));
+		}
+
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			byte[] apdu = new byte[command.remaining()];
+			command.get(apdu);
+			byte[] r = card.transmit(apdu);
+			response.put(r);
+			return r.length;
+		}
+
+		@Override
+		public void close() throws CardException {
+			throw new IllegalStateException("Cannot close the basic channel");
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package pro.javacard.playground;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Something APDUs can be sent to: a virtual card or a reader.
+ */
+public interface CardLink {
+
+	/**
+	 * @return the response APDU, status word included
+	 */
+	byte[] transmit(byte[] apdu) throws CardException;
+}
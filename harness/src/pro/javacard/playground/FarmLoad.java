@@ -0,0 +1,439 @@
+package pro.javacard.playground;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.crypto.Cipher;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import javacard.framework.JCSystem;
+
+/**
+ * Load test of a {@link CardFarm}: every card is driven by a thread of its
+ * own, through javax.smartcardio, with the operation of one workload in a
+ * loop. Reports throughput and operation latency per workload as JSON.
+ *
+ * <pre>
+ * java pro.javacard.playground.FarmLoad [-cards n] [-workload sign,cert,otp] [-seconds s] [-warmup s] [-json out.json]
+ * </pre>
+ *
+ * The workloads are given to the cards in turn:
+ * <ul>
+ * <li>sign: VERIFY PIN and a 2048 bit RSA signature in the APDU on
+ * MuscleApplet, with a key imported at setup
+ * <li>cert: SELECT and READ BINARY of a 2 KB certificate EF on IsoApplet, in
+ * 256 byte pieces
+ * <li>otp: CALCULATE of a TOTP credential on YkneoOath
+ * </ul>
+ * An operation counts if it starts after the warm-up and ends within the
+ * measured seconds. vJCRE's OwnerPIN cannot be verified and its RandomData
+ * needs a SHA1PRNG of Bouncy Castle, so the framework classes of
+ * build/harness/profile must come first on the class path, as
+ * <code>ant farm</code> puts them.
+ */
+public final class FarmLoad {
+
+	private File buildXml = new File("build.xml");
+	private int cards = 4;
+	private final List<String> workloads = new ArrayList<String>();
+	private double seconds = 10;
+	private double warmup = 2;
+	private File jsonOut;
+
+	private KeyPair signingKey;
+
+	private static void usage() {
+		System.err.println("Usage: FarmLoad [-cards n] [-workload sign,cert,otp] [-seconds s] [-warmup s]");
+		System.err.println("                [-build build.xml] [-json out.json]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		FarmLoad load = new FarmLoad();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-build"))
+				load.buildXml = new File(args[++i]);
+			else if (a.equals("-cards"))
+				load.cards = Integer.parseInt(args[++i]);
+			else if (a.equals("-workload"))
+				load.workloads.addAll(Arrays.asList(args[++i].split(",")));
+			else if (a.equals("-seconds"))
+				load.seconds = Double.parseDouble(args[++i]);
+			else if (a.equals("-warmup"))
+				load.warmup = Double.parseDouble(args[++i]);
+			else if (a.equals("-json"))
+				load.jsonOut = new File(args[++i]);
+			else
+				usage();
+		}
+		if (load.workloads.isEmpty())
+			load.workloads.addAll(Arrays.asList("sign", "cert", "otp"));
+		for (String w : load.workloads) {
+			if (!w.equals("sign") && !w.equals("cert") && !w.equals("otp"))
+				usage();
+		}
+		if (load.cards < load.workloads.size() || load.seconds <= 0 || load.warmup < 0)
+			usage();
+		try {
+			// only the profiling JCSystem declares its own transaction methods
+			JCSystem.class.getDeclaredMethod("beginTransaction");
+		} catch (NoSuchMethodException e) {
+			System.err.println("javacard.framework is loaded from vjcre.jar, put build/harness/profile first on the class path");
+			System.exit(2);
+		}
+		System.exit(load.run() ? 0 : 1);
+	}
+
+	/** One card under load and what it measured */
+	private abstract static class Worker extends Thread {
+		final String workload;
+		final CardChannel channel;
+		final LatencyStats stats = new LatencyStats();
+		int apdus;
+		int apdusPerOp;
+		// command and response bytes of the operation running
+		int bytesIn;
+		int bytesOut;
+		Exception error;
+
+		CountDownLatch ready;
+		CountDownLatch go;
+		long from;
+		long to;
+
+		Worker(String workload, CardTerminal terminal) throws CardException {
+			super(terminal.getName());
+			this.workload = workload;
+			channel = terminal.connect("*").getBasicChannel();
+		}
+
+		/** Prepares the card, outside of the measurement */
+		abstract void setup() throws Exception;
+
+		/** One operation; returns false if a status word was not 9000 */
+		abstract boolean op() throws CardException;
+
+		ResponseAPDU transmit(byte[] apdu) throws CardException {
+			apdus++;
+			ResponseAPDU r = channel.transmit(new CommandAPDU(apdu));
+			bytesIn += apdu.length;
+			bytesOut += r.getBytes().length;
+			return r;
+		}
+
+		byte[] check(byte[] apdu) throws CardException {
+			ResponseAPDU r = transmit(apdu);
+			if (r.getSW() != 0x9000)
+				throw new CardException(String.format("%s returned %04X", Hex.encode(apdu), r.getSW()));
+			return r.getData();
+		}
+
+		@Override
+		public void run() {
+			try {
+				setup();
+				apdus = 0;
+				op();
+				apdusPerOp = apdus;
+			} catch (Exception e) {
+				error = e;
+			}
+			ready.countDown();
+			try {
+				go.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			while (error == null) {
+				long start = System.nanoTime();
+				if (start >= to)
+					break;
+				boolean ok;
+				bytesIn = 0;
+				bytesOut = 0;
+				try {
+					ok = op();
+				} catch (CardException e) {
+					error = e;
+					break;
+				}
+				long end = System.nanoTime();
+				if (start >= from && end <= to)
+					stats.add(end - start, bytesIn, bytesOut, ok);
+			}
+		}
+	}
+
+	private static byte[] apdu(int cla, int ins, int p1, int p2, byte[] data) {
+		byte[] apdu = new byte[5 + data.length];
+		apdu[0] = (byte) cla;
+		apdu[1] = (byte) ins;
+		apdu[2] = (byte) p1;
+		apdu[3] = (byte) p2;
+		apdu[4] = (byte) data.length;
+		System.arraycopy(data, 0, apdu, 5, data.length);
+		return apdu;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int len = 0;
+		for (byte[] p : parts)
+			len += p.length;
+		byte[] r = new byte[len];
+		int off = 0;
+		for (byte[] p : parts) {
+			System.arraycopy(p, 0, r, off, p.length);
+			off += p.length;
+		}
+		return r;
+	}
+
+	/** VERIFY PIN and sign on MuscleApplet, as in MuscleSignPerf */
+	private final class Sign extends Worker {
+		// as in harness/scripts/musclecard-objects.apdu, PIN 0 is 1234
+		private final byte[] setup = Hex.decode("B02A000028084D7573636C65303005030431323334043132333405030431323334"
+				+ "043132333400002000000000");
+		private final byte[] verify = Hex.decode("B04200000431323334");
+		private final byte[] digestInfo = Hex.decode("3031300D060960864801650304020105000420"
+				+ "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
+		// ComputeCrypt of key 0: OP_INIT with RSA PKCS#1, encrypt, data in
+		// the APDU; OP_FINALIZE with an extended Le for the 258 byte result
+		private final byte[] init = Hex.decode("B036000105010301" + "0000");
+		private final byte[] finalize = concat(Hex.decode("B03600030000360100" + "33"), digestInfo, new byte[2]);
+
+		Sign(CardTerminal terminal) throws CardException {
+			super("sign", terminal);
+		}
+
+		@Override
+		void setup() throws Exception {
+			check(setup);
+			RSAPrivateKey prv = (RSAPrivateKey) signingKey.getPrivate();
+			byte[] blob = concat(new byte[] { 0x00, 0x02, 0x08, 0x00 }, component(prv.getModulus()),
+					component(prv.getPrivateExponent()));
+			byte[] in = Hex.decode("FFFFFFFE");
+			check(apdu(0xB0, 0x5A, 0, 0, concat(in, new byte[] { 0, 0, (byte) (blob.length >> 8),
+					(byte) blob.length }, new byte[6])));
+			for (int offset = 0; offset < blob.length; offset += 200) {
+				int len = Math.min(200, blob.length - offset);
+				check(apdu(0xB0, 0x54, 0, 0, concat(in, new byte[] { 0, 0, (byte) (offset >> 8), (byte) offset,
+						(byte) len }, Arrays.copyOfRange(blob, offset, offset + len))));
+			}
+			// key 0; ImportKey ignores the ACL, so the key is usable by all
+			// and the PIN is verified as middleware would, not enforced
+			check(apdu(0xB0, 0x32, 0, 0, new byte[6]));
+			check(verify);
+			check(init);
+			byte[] sig = check(finalize);
+			Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+			rsa.init(Cipher.DECRYPT_MODE, signingKey.getPublic());
+			if (!Arrays.equals(rsa.doFinal(Arrays.copyOfRange(sig, 2, sig.length)), digestInfo))
+				throw new CardException("Signature does not verify");
+		}
+
+		@Override
+		boolean op() throws CardException {
+			return transmit(verify).getSW() == 0x9000 && transmit(init).getSW() == 0x9000
+					&& transmit(finalize).getSW() == 0x9000;
+		}
+	}
+
+	private static byte[] component(BigInteger value) {
+		byte[] v = value.toByteArray();
+		if (v[0] == 0)
+			v = Arrays.copyOfRange(v, 1, v.length);
+		return concat(new byte[] { (byte) (v.length >> 8), (byte) v.length }, v);
+	}
+
+	/** A certificate read on IsoApplet, as in harness/scripts/isoapplet-cert-short.apdu */
+	private static final class Cert extends Worker {
+		private final byte[] cert = new byte[2048];
+		private final byte[] select = Hex.decode("00A40000025015");
+
+		Cert(CardTerminal terminal) throws CardException {
+			super("cert", terminal);
+			for (int i = 0; i < cert.length; i++)
+				cert[i] = (byte) (i * 7 + (i >> 8));
+		}
+
+		@Override
+		void setup() throws Exception {
+			// transparent EF 5015 of 2048 bytes in the MF
+			check(Hex.decode("00E000000D620B820101830250158102" + "0800"));
+			// extended UPDATE BINARY; vJCRE reads its Lc as 0, so the EF
+			// stays zero there
+			for (int p = 0; p < 8; p++)
+				check(concat(new byte[] { 0x00, (byte) 0xD6, (byte) p, 0x00, 0x00, 0x01, 0x00 },
+						Arrays.copyOfRange(cert, p * 256, p * 256 + 256)));
+			check(select);
+			byte[] read = new byte[0];
+			for (int p = 0; p < 8; p++)
+				read = concat(read, check(new byte[] { 0x00, (byte) 0xB0, (byte) p, 0x00, 0x00 }));
+			if (read.length != cert.length)
+				throw new CardException("Certificate read back has " + read.length + " bytes");
+		}
+
+		@Override
+		boolean op() throws CardException {
+			boolean ok = transmit(select).getSW() == 0x9000;
+			for (int p = 0; p < 8; p++)
+				ok &= transmit(new byte[] { 0x00, (byte) 0xB0, (byte) p, 0x00, 0x00 }).getSW() == 0x9000;
+			return ok;
+		}
+	}
+
+	/** CALCULATE of one TOTP credential on YkneoOath, as in OathPerf */
+	private static final class Otp extends Worker {
+		private final byte[] name = concat(new byte[] { 0x71, 4 }, "farm".getBytes(StandardCharsets.US_ASCII));
+
+		Otp(CardTerminal terminal) throws CardException {
+			super("otp", terminal);
+		}
+
+		@Override
+		void setup() throws Exception {
+			byte[] key = new byte[20];
+			Arrays.fill(key, (byte) 0x31);
+			// SHA-1 TOTP, 6 digits
+			check(apdu(0x00, 0x01, 0, 0, concat(name, new byte[] { 0x73, 22, 0x21, 6 }, key)));
+		}
+
+		@Override
+		boolean op() throws CardException {
+			long step = System.currentTimeMillis() / 30000;
+			byte[] challenge = new byte[10];
+			challenge[0] = 0x74;
+			challenge[1] = 8;
+			for (int i = 0; i < 8; i++)
+				challenge[9 - i] = (byte) (step >> (8 * i));
+			return transmit(apdu(0x00, 0xA2, 0, 1, concat(name, challenge))).getSW() == 0x9000;
+		}
+	}
+
+	private static String applet(String workload) {
+		if (workload.equals("sign"))
+			return "MuscleApplet";
+		if (workload.equals("cert"))
+			return "IsoApplet";
+		return "YkneoOath";
+	}
+
+	/** Starts the cards, runs the load, prints the report; returns false on failures */
+	private boolean run() throws Exception {
+		if (workloads.contains("sign")) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(2048);
+			signingKey = generator.generateKeyPair();
+		}
+
+		List<Worker> workers = new ArrayList<Worker>();
+		PrintStream out = System.out;
+		// vJCRE prints the applet on every command
+		System.setOut(Simulator.DISCARD);
+		try {
+			CardFarm farm = new CardFarm(buildXml);
+			for (int i = 0; i < cards; i++)
+				farm.add(applet(workloads.get(i % workloads.size())), new byte[0]);
+			List<CardTerminal> terminals = farm.getTerminalFactory().terminals().list();
+			CountDownLatch ready = new CountDownLatch(cards);
+			CountDownLatch go = new CountDownLatch(1);
+			for (int i = 0; i < cards; i++) {
+				String w = workloads.get(i % workloads.size());
+				CardTerminal t = terminals.get(i);
+				Worker worker = w.equals("sign") ? new Sign(t) : w.equals("cert") ? new Cert(t) : new Otp(t);
+				worker.ready = ready;
+				worker.go = go;
+				workers.add(worker);
+				worker.start();
+			}
+			ready.await();
+			long start = System.nanoTime();
+			for (Worker w : workers) {
+				w.from = start + (long) (warmup * 1e9);
+				w.to = w.from + (long) (seconds * 1e9);
+			}
+			go.countDown();
+			for (Worker w : workers)
+				w.join();
+		} finally {
+			System.setOut(out);
+		}
+
+		boolean ok = true;
+		Map<String, List<Worker>> byWorkload = new LinkedHashMap<String, List<Worker>>();
+		for (Worker w : workers) {
+			if (w.error != null) {
+				System.err.println(w.getName() + " (" + w.workload + "): " + w.error);
+				ok = false;
+			}
+			if (!byWorkload.containsKey(w.workload))
+				byWorkload.put(w.workload, new ArrayList<Worker>());
+			byWorkload.get(w.workload).add(w);
+		}
+
+		Json json = new Json();
+		json.beginObject();
+		json.field("cards", cards);
+		json.field("seconds", seconds);
+		json.field("warmup_seconds", warmup);
+		json.field("cpus", Runtime.getRuntime().availableProcessors());
+		long totalOps = 0;
+		json.name("workloads");
+		json.beginArray();
+		for (Map.Entry<String, List<Worker>> e : byWorkload.entrySet()) {
+			LatencyStats total = new LatencyStats();
+			for (Worker w : e.getValue())
+				total.addAll(w.stats);
+			if (total.getFailures() > 0)
+				ok = false;
+			totalOps += total.getCount();
+			json.beginObject();
+			json.field("workload", e.getKey());
+			json.field("applet", applet(e.getKey()));
+			json.field("cards", e.getValue().size());
+			json.field("apdus_per_op", e.getValue().get(0).apdusPerOp);
+			json.field("ops_per_sec", total.getCount() / seconds);
+			json.field("ops_per_sec_per_card", total.getCount() / seconds / e.getValue().size());
+			json.name("op");
+			total.toJson(json);
+			json.endObject();
+		}
+		json.endArray();
+		json.field("ops_per_sec", totalOps / seconds);
+		json.endObject();
+
+		if (jsonOut != null) {
+			Writer w = new OutputStreamWriter(new FileOutputStream(jsonOut), "UTF-8");
+			try {
+				w.write(json.toString());
+				w.write('\n');
+			} finally {
+				w.close();
+			}
+		} else {
+			System.out.println(json);
+		}
+		return ok;
+	}
+}
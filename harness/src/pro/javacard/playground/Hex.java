@@ -0,0 +1,41 @@
+package pro.javacard.playground;
+
+/**
+ * Hex helpers. Separators (spaces and colons) are ignored when decoding.
+ */
+public final class Hex {
+
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private Hex() {
+	}
+
+	public static String encode(byte[] data) {
+		return encode(data, 0, data.length);
+	}
+
+	public static String encode(byte[] data, int offset, int length) {
+		char[] out = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			int b = data[offset + i] & 0xFF;
+			out[i * 2] = DIGITS[b >> 4];
+			out[i * 2 + 1] = DIGITS[b & 0x0F];
+		}
+		return new String(out);
+	}
+
+	public static byte[] decode(String hex) {
+		String s = hex.replace(" ", "").replace(":", "").replace("\t", "");
+		if ((s.length() & 1) != 0)
+			throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+		byte[] out = new byte[s.length() / 2];
+		for (int i = 0; i < out.length; i++) {
+			int hi = Character.digit(s.charAt(i * 2), 16);
+			int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+			if (hi < 0 || lo < 0)
+				throw new IllegalArgumentException("Not a hex string: " + hex);
+			out[i] = (byte) ((hi << 4) | lo);
+		}
+		return out;
+	}
+}
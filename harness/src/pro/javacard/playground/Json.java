@@ -0,0 +1,139 @@
+package pro.javacard.playground;
+
+/**
+ * A minimal streaming JSON writer, so the harness needs nothing beyond the JDK
+ * and vJCRE. Output is indented with two spaces.
+ */
+public final class Json {
+
+	private final StringBuilder out = new StringBuilder();
+	private int depth;
+	private boolean first = true;
+	private boolean afterName;
+
+	private void separator() {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (!first)
+			out.append(',');
+		if (depth > 0) {
+			out.append('\n');
+			for (int i = 0; i < depth; i++)
+				out.append("  ");
+		}
+		first = false;
+	}
+
+	private void open(char c) {
+		separator();
+		out.append(c);
+		depth++;
+		first = true;
+	}
+
+	private void close(char c) {
+		depth--;
+		if (!first) {
+			out.append('\n');
+			for (int i = 0; i < depth; i++)
+				out.append("  ");
+		}
+		out.append(c);
+		first = false;
+	}
+
+	public Json beginObject() {
+		open('{');
+		return this;
+	}
+
+	public Json endObject() {
+		close('}');
+		return this;
+	}
+
+	public Json beginArray() {
+		open('[');
+		return this;
+	}
+
+	public Json endArray() {
+		close(']');
+		return this;
+	}
+
+	public Json name(String name) {
+		separator();
+		string(name);
+		out.append(": ");
+		afterName = true;
+		return this;
+	}
+
+	public Json value(String value) {
+		separator();
+		if (value == null)
+			out.append("null");
+		else
+			string(value);
+		return this;
+	}
+
+	public Json value(long value) {
+		separator();
+		out.append(value);
+		return this;
+	}
+
+	public Json value(double value) {
+		separator();
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			out.append("null");
+		else
+			out.append(String.format(java.util.Locale.ROOT, "%.3f", value));
+		return this;
+	}
+
+	public Json field(String name, String value) {
+		return name(name).value(value);
+	}
+
+	public Json field(String name, long value) {
+		return name(name).value(value);
+	}
+
+	public Json field(String name, double value) {
+		return name(name).value(value);
+	}
+
+	private void string(String s) {
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			default:
+				if (c < 0x20)
+					out.append(String.format("\\u%04x", (int) c));
+				else
+					out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return out.toString();
+	}
+}
@@ -0,0 +1,123 @@
+package pro.javacard.playground;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples of one kind of command, with a power-of-two microsecond
+ * histogram.
+ */
+public final class LatencyStats {
+
+	private static final int BUCKETS = 32;
+
+	private long[] samples = new long[64];
+	private int count;
+	private int failures;
+	private long bytesIn;
+	private long bytesOut;
+	private final long[] histogram = new long[BUCKETS];
+
+	/**
+	 * Records one command.
+	 *
+	 * @param nanos
+	 *            elapsed time
+	 * @param in
+	 *            command length
+	 * @param out
+	 *            response length, status word included
+	 * @param ok
+	 *            whether the status word was the expected one
+	 */
+	public void add(long nanos, int in, int out, boolean ok) {
+		if (count == samples.length)
+			samples = Arrays.copyOf(samples, count * 2);
+		samples[count++] = nanos;
+		bytesIn += in;
+		bytesOut += out;
+		if (!ok)
+			failures++;
+		long micros = nanos / 1000;
+		int bucket = 0;
+		while ((1L << bucket) < micros && bucket < BUCKETS - 1)
+			bucket++;
+		histogram[bucket]++;
+	}
+
+	public void addAll(LatencyStats other) {
+		for (int i = 0; i < other.count; i++) {
+			if (count == samples.length)
+				samples = Arrays.copyOf(samples, count * 2);
+			samples[count++] = other.samples[i];
+		}
+		failures += other.failures;
+		bytesIn += other.bytesIn;
+		bytesOut += other.bytesOut;
+		for (int i = 0; i < BUCKETS; i++)
+			histogram[i] += other.histogram[i];
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getTotalNanos() {
+		long total = 0;
+		for (int i = 0; i < count; i++)
+			total += samples[i];
+		return total;
+	}
+
+	/**
+	 * @param p
+	 *            percentile, 0..100
+	 * @return the sample at that percentile (nearest rank), in nanoseconds
+	 */
+	public long percentile(double p) {
+		if (count == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(p / 100.0 * count);
+		return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+	}
+
+	/** Writes this object's fields as a JSON object */
+	public void toJson(Json json) {
+		json.beginObject();
+		json.field("count", count);
+		json.field("failures", failures);
+		json.field("bytes_in", bytesIn);
+		json.field("bytes_out", bytesOut);
+		json.field("min_us", percentile(0) / 1000.0);
+		json.field("mean_us", count == 0 ? 0 : getTotalNanos() / 1000.0 / count);
+		json.field("p50_us", percentile(50) / 1000.0);
+		json.field("p90_us", percentile(90) / 1000.0);
+		json.field("p99_us", percentile(99) / 1000.0);
+		json.field("max_us", percentile(100) / 1000.0);
+		json.name("histogram_us");
+		json.beginArray();
+		for (int i = 0; i < BUCKETS; i++) {
+			if (histogram[i] == 0)
+				continue;
+			json.beginObject();
+			json.field("le", 1L << i);
+			json.field("count", histogram[i]);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+	}
+}
@@ -0,0 +1,306 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.smartcardio.CardException;
+
+/**
+ * Times a 2048 bit RSA signature of MuscleApplet's ComputeCrypt for each data
+ * location: in the APDU, through the IO objects in EEPROM, and in the RAM
+ * buffer of DL_TRANSIENT.
+ *
+ * <pre>
+ * java pro.javacard.playground.MuscleSignPerf [-reader name [-pin ascii] | -sim] [-key n] [-reps n]
+ * </pre>
+ *
+ * A signature is a PKCS#1 encryption of a SHA-256 DigestInfo with the private
+ * key, as the MUSCLE middleware does it. "object" counts the whole exchange:
+ * creating and writing the input object, the two ComputeCrypt commands,
+ * reading the output object and deleting both. A key generated on the host
+ * is imported into slot n (0 by default), overwriting what is there. -sim
+ * installs and sets up the applet in vJCRE; on a card it must be set up, and
+ * -pin verifies PIN 0 if key import needs it. The signatures of all
+ * locations, and of the input sent in two chunks with OP_PROCESS, must agree
+ * and verify with the JCE.
+ */
+public final class MuscleSignPerf {
+
+	private static final byte[] MUSCLE_AID = Hex.decode("A00000000102");
+	// as in harness/scripts/musclecard-objects.apdu
+	private static final String SETUP = "B02A000028084D7573636C65303005030431323334043132333405030431323334"
+			+ "043132333400002000000000";
+	private static final byte[] DIGEST_INFO = Hex.decode("3031300D060960864801650304020105000420"
+			+ "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
+
+	private static final int DL_APDU = 0x01;
+	private static final int DL_OBJECT = 0x02;
+	private static final int DL_TRANSIENT = 0x03;
+	private static final String[] LOCATIONS = { null, "apdu", "object", "transient" };
+
+	private static final int CM_RSA_PAD_PKCS1 = 0x01;
+	private static final int CD_ENCRYPT = 0x03;
+	// vJCRE cannot use CRT keys
+	private static final int KEY_RSA_PRIVATE = 0x02;
+	private static final int OP_INIT = 0x01;
+	private static final int OP_PROCESS = 0x02;
+	private static final int OP_FINALIZE = 0x03;
+
+	private static final byte[] IN_OBJECT = Hex.decode("FFFFFFFE");
+	private static final byte[] OUT_OBJECT = Hex.decode("FFFFFFFF");
+
+	private CardLink card;
+	private int key;
+	private int reps = 20;
+	private int apdus;
+
+	private static void usage() {
+		System.err.println("Usage: MuscleSignPerf [-reader name [-pin ascii] | -sim] [-key n] [-reps n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		MuscleSignPerf perf = new MuscleSignPerf();
+		String reader = null;
+		String pin = null;
+		boolean sim = false;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-sim")) {
+				sim = true;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-reader"))
+				reader = args[++i];
+			else if (a.equals("-pin"))
+				pin = args[++i];
+			else if (a.equals("-key"))
+				perf.key = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		if (perf.key < 0 || perf.key > 7 || perf.reps < 1 || (sim && pin != null))
+			usage();
+
+		Json json;
+		if (sim) {
+			PrintStream out = System.out;
+			// vJCRE prints the applet on every command
+			System.setOut(Simulator.DISCARD);
+			try {
+				Simulator s = new Simulator();
+				s.install(AppletCatalog.load(new java.io.File("build.xml")).find("MuscleApplet"), new byte[0], true);
+				s.connect();
+				perf.card = s;
+				perf.check(s.transmit(Hex.decode(SETUP)), "SETUP");
+				json = perf.run();
+			} finally {
+				System.setOut(out);
+			}
+		} else {
+			perf.card = Readers.open(reader);
+			perf.select();
+			if (pin != null)
+				perf.transmit(0x42, 0, 0, pin.getBytes("US-ASCII"));
+			json = perf.run();
+		}
+		System.out.println(json);
+	}
+
+	private static int sw(byte[] response) {
+		return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+	}
+
+	private byte[] check(byte[] response, String what) throws CardException {
+		if (sw(response) != 0x9000)
+			throw new CardException(String.format("%s returned %04X", what, sw(response)));
+		return Arrays.copyOf(response, response.length - 2);
+	}
+
+	private void select() throws CardException {
+		byte[] select = new byte[5 + MUSCLE_AID.length];
+		select[1] = (byte) 0xA4;
+		select[2] = 0x04;
+		select[4] = (byte) MUSCLE_AID.length;
+		System.arraycopy(MUSCLE_AID, 0, select, 5, MUSCLE_AID.length);
+		check(card.transmit(select), "SELECT");
+	}
+
+	/** Sends a MUSCLE command, extended if its data or response do not fit */
+	private byte[] transmit(int ins, int p1, int p2, byte[] data) throws CardException {
+		byte[] apdu;
+		if (data.length < 250) {
+			apdu = new byte[5 + data.length];
+			apdu[4] = (byte) data.length;
+			System.arraycopy(data, 0, apdu, 5, data.length);
+		} else {
+			apdu = new byte[7 + data.length + 2];
+			apdu[5] = (byte) (data.length >> 8);
+			apdu[6] = (byte) data.length;
+			System.arraycopy(data, 0, apdu, 7, data.length);
+		}
+		apdu[0] = (byte) 0xB0;
+		apdu[1] = (byte) ins;
+		apdu[2] = (byte) p1;
+		apdu[3] = (byte) p2;
+		apdus++;
+		return check(card.transmit(apdu), Hex.encode(Arrays.copyOf(apdu, 4)));
+	}
+
+	/** ComputeCrypt with an extended Le, as the 258 byte result needs one */
+	private byte[] computeCrypt(int keyNb, int op, byte[] data) throws CardException {
+		byte[] apdu = new byte[7 + data.length + 2];
+		apdu[0] = (byte) 0xB0;
+		apdu[1] = 0x36;
+		apdu[2] = (byte) keyNb;
+		apdu[3] = (byte) op;
+		apdu[5] = (byte) (data.length >> 8);
+		apdu[6] = (byte) data.length;
+		System.arraycopy(data, 0, apdu, 7, data.length);
+		apdus++;
+		return check(card.transmit(apdu), "ComputeCrypt " + op);
+	}
+
+	private static byte[] chunk(int location, byte[] data, int from, int to) {
+		byte[] r = new byte[3 + to - from];
+		r[0] = (byte) location;
+		r[1] = (byte) ((to - from) >> 8);
+		r[2] = (byte) (to - from);
+		System.arraycopy(data, from, r, 3, to - from);
+		return r;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int len = 0;
+		for (byte[] p : parts)
+			len += p.length;
+		byte[] r = new byte[len];
+		int off = 0;
+		for (byte[] p : parts) {
+			System.arraycopy(p, 0, r, off, p.length);
+			off += p.length;
+		}
+		return r;
+	}
+
+	private static byte[] unwrap(byte[] sized) throws CardException {
+		int len = ((sized[0] & 0xFF) << 8) | (sized[1] & 0xFF);
+		if (len != sized.length - 2)
+			throw new CardException("Result of " + len + " bytes in " + sized.length);
+		return Arrays.copyOfRange(sized, 2, sized.length);
+	}
+
+	private void init(int keyNb, int dir, int location) throws CardException {
+		computeCrypt(keyNb, OP_INIT, new byte[] { CM_RSA_PAD_PKCS1, (byte) dir, (byte) location, 0, 0 });
+	}
+
+	private byte[] sign(int location) throws CardException {
+		init(key, CD_ENCRYPT, location == DL_OBJECT ? DL_APDU : location);
+		if (location != DL_OBJECT)
+			return unwrap(computeCrypt(key, OP_FINALIZE, chunk(location, DIGEST_INFO, 0, DIGEST_INFO.length)));
+
+		byte[] in = chunk(0, DIGEST_INFO, 0, DIGEST_INFO.length);
+		in = Arrays.copyOfRange(in, 1, in.length);
+		transmit(0x5A, 0, 0, concat(IN_OBJECT, new byte[] { 0, 0, 0, (byte) in.length }, new byte[6]));
+		transmit(0x54, 0, 0, concat(IN_OBJECT, new byte[4], new byte[] { (byte) in.length }, in));
+		computeCrypt(key, OP_FINALIZE, new byte[] { DL_OBJECT });
+		byte[] out = new byte[0];
+		for (int offset = 0; offset < 258; offset += 255) {
+			int len = Math.min(255, 258 - offset);
+			out = concat(out, transmit(0x56, 0, 0, concat(OUT_OBJECT, new byte[] { 0, 0, (byte) (offset >> 8),
+					(byte) offset, (byte) len })));
+		}
+		transmit(0x52, 0, 0, IN_OBJECT);
+		transmit(0x52, 0, 0, OUT_OBJECT);
+		return unwrap(out);
+	}
+
+	private static byte[] component(BigInteger value) {
+		byte[] v = value.toByteArray();
+		if (v[0] == 0)
+			v = Arrays.copyOfRange(v, 1, v.length);
+		return concat(new byte[] { (byte) (v.length >> 8), (byte) v.length }, v);
+	}
+
+	/** Imports a private key through the input object */
+	private void importKey(RSAPrivateKey prv) throws CardException {
+		byte[] blob = concat(new byte[] { 0x00, KEY_RSA_PRIVATE, 0x08, 0x00 }, component(prv.getModulus()),
+				component(prv.getPrivateExponent()));
+		transmit(0x5A, 0, 0, concat(IN_OBJECT, new byte[] { 0, 0, (byte) (blob.length >> 8), (byte) blob.length },
+				new byte[6]));
+		for (int offset = 0; offset < blob.length; offset += 200) {
+			int len = Math.min(200, blob.length - offset);
+			transmit(0x54, 0, 0, concat(IN_OBJECT, new byte[] { 0, 0, (byte) (offset >> 8), (byte) offset,
+					(byte) len }, Arrays.copyOfRange(blob, offset, offset + len)));
+		}
+		// everything allowed to everyone; the applet deletes the object
+		transmit(0x32, key, 0, new byte[6]);
+	}
+
+	private Json run() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair pair = generator.generateKeyPair();
+		importKey((RSAPrivateKey) pair.getPrivate());
+
+		byte[] expected = sign(DL_APDU);
+		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		rsa.init(Cipher.DECRYPT_MODE, pair.getPublic());
+		if (!Arrays.equals(rsa.doFinal(expected), DIGEST_INFO))
+			throw new CardException("Signature does not verify");
+		for (int location = DL_OBJECT; location <= DL_TRANSIENT; location++) {
+			if (!Arrays.equals(sign(location), expected))
+				throw new CardException("Signature with location " + LOCATIONS[location] + " differs");
+		}
+		init(key, CD_ENCRYPT, DL_TRANSIENT);
+		computeCrypt(key, OP_PROCESS, chunk(DL_TRANSIENT, DIGEST_INFO, 0, 19));
+		byte[] chunked = unwrap(computeCrypt(key, OP_FINALIZE, chunk(DL_TRANSIENT, DIGEST_INFO, 19,
+				DIGEST_INFO.length)));
+		if (!Arrays.equals(chunked, expected))
+			throw new CardException("Signature of the input in two chunks differs");
+
+		Json json = new Json();
+		json.beginObject();
+		json.field("key_bits", 2048);
+		json.field("reps", reps);
+		json.name("locations");
+		json.beginArray();
+		LatencyStats[] stats = new LatencyStats[LOCATIONS.length];
+		int[] apduCount = new int[LOCATIONS.length];
+		// the locations alternate so that drift hits them all alike; the
+		// first round warms up the JIT
+		for (int r = 0; r < reps + 1; r++) {
+			for (int location = DL_APDU; location <= DL_TRANSIENT; location++) {
+				if (stats[location] == null)
+					stats[location] = new LatencyStats();
+				apdus = 0;
+				long start = System.nanoTime();
+				sign(location);
+				long nanos = System.nanoTime() - start;
+				if (r > 0)
+					stats[location].add(nanos, 0, 0, true);
+				apduCount[location] = apdus;
+			}
+		}
+		for (int location = DL_APDU; location <= DL_TRANSIENT; location++) {
+			json.beginObject();
+			json.field("location", LOCATIONS[location]);
+			json.field("apdus", apduCount[location]);
+			json.field("sign_ms", stats[location].getTotalNanos() / 1e6 / stats[location].getCount());
+			json.field("min_sign_ms", stats[location].percentile(0) / 1e6);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+}
@@ -0,0 +1,193 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Times TOTP codes of the YKOATH applet: CALCULATE of one credential, for
+ * SHA-1 and SHA-256 keys, and CALCULATE ALL over all of them.
+ *
+ * <pre>
+ * java pro.javacard.playground.OathPerf [-reader name | -sim] [-credentials n] [-reps n]
+ * </pre>
+ *
+ * The applet uses the card's HMAC when it has one, unless installed with
+ * parameters 01. On a card, install it both ways to compare; -sim runs both
+ * installs, although vJCRE has no HMAC and does both in software. The
+ * credentials are named <code>oathperf-*</code> and deleted at the end, the
+ * applet must not have an authentication code set.
+ */
+public final class OathPerf {
+
+	private static final byte[] OATH_AID = Hex.decode("A0000005272101");
+	private static final byte NAME_TAG = 0x71;
+	private static final byte KEY_TAG = 0x73;
+	private static final byte CHALLENGE_TAG = 0x74;
+	private static final byte TOTP_SHA1 = 0x21;
+	private static final byte TOTP_SHA256 = 0x22;
+
+	private CardLink card;
+	private int credentials = 20;
+	private int reps = 10;
+
+	private static void usage() {
+		System.err.println("Usage: OathPerf [-reader name | -sim] [-credentials n] [-reps n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		OathPerf perf = new OathPerf();
+		String reader = null;
+		boolean sim = false;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-sim")) {
+				sim = true;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-reader"))
+				reader = args[++i];
+			else if (a.equals("-credentials"))
+				perf.credentials = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		if (perf.credentials < 1 || perf.credentials > 32 || perf.reps < 1)
+			usage();
+
+		Json json = new Json();
+		json.beginArray();
+		if (sim) {
+			AppletCatalog.Applet applet = AppletCatalog.load(new java.io.File("build.xml")).find("YkneoOath");
+			for (String params : new String[] { "", "01" }) {
+				PrintStream out = System.out;
+				// vJCRE prints the applet on every command
+				System.setOut(Simulator.DISCARD);
+				try {
+					Simulator s = new Simulator();
+					s.install(applet, Hex.decode(params), true);
+					s.connect();
+					perf.card = s;
+					perf.run(json, params);
+				} finally {
+					System.setOut(out);
+				}
+			}
+		} else {
+			perf.card = Readers.open(reader);
+			perf.run(json, null);
+		}
+		json.endArray();
+		System.out.println(json);
+	}
+
+	private static int sw(byte[] response) {
+		return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+	}
+
+	private byte[] transmit(int ins, int p1, int p2, byte[] data) throws CardException {
+		byte[] apdu = new byte[5 + data.length];
+		apdu[1] = (byte) ins;
+		apdu[2] = (byte) p1;
+		apdu[3] = (byte) p2;
+		apdu[4] = (byte) data.length;
+		System.arraycopy(data, 0, apdu, 5, data.length);
+		byte[] response = card.transmit(apdu);
+		// CALCULATE ALL continues with SEND REMAINING
+		while ((sw(response) >> 8) == 0x61)
+			response = card.transmit(new byte[] { 0x00, (byte) 0xA5, 0x00, 0x00, 0x00 });
+		if (sw(response) != 0x9000)
+			throw new CardException(String.format("%s returned %04X", Hex.encode(apdu), sw(response)));
+		return response;
+	}
+
+	private static byte[] name(int i) {
+		return String.format("oathperf-%02d", i).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] tlv(byte tag, byte[]... parts) {
+		int len = 0;
+		for (byte[] p : parts)
+			len += p.length;
+		byte[] r = new byte[2 + len];
+		r[0] = tag;
+		r[1] = (byte) len;
+		int off = 2;
+		for (byte[] p : parts) {
+			System.arraycopy(p, 0, r, off, p.length);
+			off += p.length;
+		}
+		return r;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] r = new byte[a.length + b.length];
+		System.arraycopy(a, 0, r, 0, a.length);
+		System.arraycopy(b, 0, r, a.length, b.length);
+		return r;
+	}
+
+	private void run(Json json, String params) throws CardException {
+		byte[] select = new byte[5 + OATH_AID.length];
+		select[1] = (byte) 0xA4;
+		select[2] = 0x04;
+		select[4] = (byte) OATH_AID.length;
+		System.arraycopy(OATH_AID, 0, select, 5, OATH_AID.length);
+		if (sw(card.transmit(select)) != 0x9000)
+			throw new CardException("Cannot select the OATH applet");
+
+		// even credentials are SHA-1, odd ones SHA-256
+		Random random = new Random(1);
+		for (int i = 0; i < credentials; i++) {
+			byte[] key = new byte[i % 2 == 0 ? 20 : 32];
+			random.nextBytes(key);
+			byte type = i % 2 == 0 ? TOTP_SHA1 : TOTP_SHA256;
+			transmit(0x01, 0, 0, concat(tlv(NAME_TAG, name(i)), tlv(KEY_TAG, new byte[] { type, 6 }, key)));
+		}
+
+		LatencyStats[] calculate = { new LatencyStats(), new LatencyStats() };
+		LatencyStats calculateAll = new LatencyStats();
+		try {
+			byte[] challenge = new byte[8];
+			for (int r = 0; r < reps; r++) {
+				random.nextBytes(challenge);
+				for (int i = 0; i < credentials; i++) {
+					byte[] data = concat(tlv(NAME_TAG, name(i)), tlv(CHALLENGE_TAG, challenge));
+					long start = System.nanoTime();
+					byte[] response = transmit(0xA2, 0, 1, data);
+					calculate[i % 2].add(System.nanoTime() - start, data.length + 5, response.length, true);
+				}
+				byte[] data = tlv(CHALLENGE_TAG, challenge);
+				long start = System.nanoTime();
+				byte[] response = transmit(0xA4, 0, 1, data);
+				calculateAll.add(System.nanoTime() - start, data.length + 5, response.length, true);
+			}
+		} finally {
+			for (int i = 0; i < credentials; i++)
+				transmit(0x02, 0, 0, tlv(NAME_TAG, name(i)));
+		}
+
+		json.beginObject();
+		if (params != null)
+			json.field("install_params", params);
+		json.field("credentials", credentials);
+		json.field("reps", reps);
+		json.field("sha1_calculate_ms", calculate[0].getTotalNanos() / 1e6 / calculate[0].getCount());
+		json.field("sha1_min_calculate_ms", calculate[0].percentile(0) / 1e6);
+		if (calculate[1].getCount() > 0) {
+			json.field("sha256_calculate_ms", calculate[1].getTotalNanos() / 1e6 / calculate[1].getCount());
+			json.field("sha256_min_calculate_ms", calculate[1].percentile(0) / 1e6);
+		}
+		json.field("calculate_all_ms", calculateAll.getTotalNanos() / 1e6 / calculateAll.getCount());
+		json.field("calculate_all_per_credential_ms", calculateAll.getTotalNanos() / 1e6 / calculateAll.getCount()
+				/ credentials);
+		json.endObject();
+	}
+}
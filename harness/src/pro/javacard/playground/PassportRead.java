@@ -0,0 +1,169 @@
+package pro.javacard.playground;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times reading passport files (by default DG1, DG2 and the SOD) over BAC
+ * secure messaging, with short READ BINARY commands or extended length ones
+ * carrying several KB each.
+ *
+ * <pre>
+ * java pro.javacard.playground.PassportRead -reader name -doc L898902C -dob 690806 -doe 940623 [-chunk n] [-short] [-reps n] [-file fid ...]
+ * </pre>
+ *
+ * The passport applet needs DES, EC keys and a RandomData vJCRE lacks, so
+ * this runs against a personalized applet on a real card.
+ */
+public final class PassportRead {
+
+	private static final byte[] PASSPORT_AID = Hex.decode("A0000002471001");
+
+	private CardLink card;
+	private String documentNumber;
+	private String dateOfBirth;
+	private String dateOfExpiry;
+	private int chunk = 0x7FF0;
+	private boolean extended = true;
+	private int reps = 5;
+	private final List<Integer> files = new ArrayList<Integer>();
+
+	private static void usage() {
+		System.err.println("Usage: PassportRead [-reader name] -doc number -dob YYMMDD -doe YYMMDD");
+		System.err.println("                    [-chunk n] [-short] [-reps n] [-file fid ...]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		PassportRead read = new PassportRead();
+		String reader = null;
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-short")) {
+				read.extended = false;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-reader"))
+				reader = args[++i];
+			else if (a.equals("-doc"))
+				read.documentNumber = args[++i];
+			else if (a.equals("-dob"))
+				read.dateOfBirth = args[++i];
+			else if (a.equals("-doe"))
+				read.dateOfExpiry = args[++i];
+			else if (a.equals("-chunk"))
+				read.chunk = Integer.decode(args[++i]);
+			else if (a.equals("-reps"))
+				read.reps = Integer.parseInt(args[++i]);
+			else if (a.equals("-file"))
+				read.files.add(Integer.parseInt(args[++i], 16));
+			else
+				usage();
+		}
+		if (read.documentNumber == null || read.dateOfBirth == null || read.dateOfExpiry == null || read.reps < 1)
+			usage();
+		// a short response holds the DO87 header, padding, DO99 and DO8E too
+		if (!read.extended && read.chunk > 0xE7)
+			read.chunk = 0xE7;
+		if (read.chunk < 1 || read.chunk > 0x7FF0)
+			usage();
+		if (read.files.isEmpty()) {
+			read.files.add(0x0101);
+			read.files.add(0x0102);
+			read.files.add(0x011D);
+		}
+		read.card = Readers.open(reader);
+		System.out.println(read.run());
+	}
+
+	private Json run() throws Exception {
+		List<LatencyStats> perFile = new ArrayList<LatencyStats>();
+		for (int i = 0; i < files.size(); i++)
+			perFile.add(new LatencyStats());
+		LatencyStats total = new LatencyStats();
+		LatencyStats bac = new LatencyStats();
+		int[] apdus = new int[files.size()];
+		int[] sizes = new int[files.size()];
+		for (int r = 0; r < reps; r++) {
+			byte[] select = new byte[5 + PASSPORT_AID.length];
+			select[1] = (byte) 0xA4;
+			select[2] = 0x04;
+			select[3] = 0x0C;
+			select[4] = (byte) PASSPORT_AID.length;
+			System.arraycopy(PASSPORT_AID, 0, select, 5, PASSPORT_AID.length);
+			card.transmit(select);
+			long start = System.nanoTime();
+			SecureMessaging sm = SecureMessaging.bac(card, documentNumber, dateOfBirth, dateOfExpiry);
+			long bacNanos = System.nanoTime() - start;
+			bac.add(bacNanos, 0, 0, true);
+			long readNanos = 0;
+			for (int f = 0; f < files.size(); f++) {
+				int[] count = new int[1];
+				long t = System.nanoTime();
+				byte[] content = readFile(sm, files.get(f), count);
+				long elapsed = System.nanoTime() - t;
+				perFile.get(f).add(elapsed, 0, content.length, true);
+				readNanos += elapsed;
+				apdus[f] = count[0];
+				sizes[f] = content.length;
+			}
+			total.add(readNanos, 0, 0, true);
+		}
+
+		Json json = new Json();
+		json.beginObject();
+		json.field("mode", extended ? "extended" : "short");
+		json.field("chunk", chunk);
+		json.field("reps", reps);
+		json.field("bac_ms", bac.getTotalNanos() / 1e6 / bac.getCount());
+		json.field("read_ms", total.getTotalNanos() / 1e6 / total.getCount());
+		json.field("min_read_ms", total.percentile(0) / 1e6);
+		json.name("files");
+		json.beginArray();
+		for (int f = 0; f < files.size(); f++) {
+			LatencyStats s = perFile.get(f);
+			json.beginObject();
+			json.field("fid", String.format("%04X", files.get(f)));
+			json.field("bytes", sizes[f]);
+			json.field("apdus", apdus[f]);
+			json.field("mean_ms", s.getTotalNanos() / 1e6 / s.getCount());
+			json.field("kb_per_sec", s.getTotalNanos() == 0 ? 0 : s.getBytesOut() / 1.024 / (s.getTotalNanos() / 1e6));
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+
+	/** Selects and reads a whole file, whose length comes from its outer TLV */
+	private byte[] readFile(SecureMessaging sm, int fid, int[] count) throws Exception {
+		sm.transmit(0xA4, 0x02, 0x0C, new byte[] { (byte) (fid >> 8), (byte) fid }, -1, false);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] head = sm.transmit(0xB0, 0, 0, null, 4, false);
+		count[0]++;
+		out.write(head, 0, head.length);
+		int len = head[1] & 0xFF;
+		int headerLength = 2;
+		if (len == 0x81) {
+			len = head[2] & 0xFF;
+			headerLength = 3;
+		} else if (len == 0x82) {
+			len = ((head[2] & 0xFF) << 8) | (head[3] & 0xFF);
+			headerLength = 4;
+		}
+		int size = headerLength + len;
+		while (out.size() < size) {
+			int offset = out.size();
+			int n = Math.min(chunk, size - offset);
+			byte[] data = sm.transmit(0xB0, offset >> 8, offset, null, n, extended);
+			count[0]++;
+			if (data.length == 0)
+				throw new IllegalStateException(String.format("Empty READ BINARY at %04X of %04X", offset, fid));
+			out.write(data, 0, data.length);
+		}
+		return out.toByteArray();
+	}
+}
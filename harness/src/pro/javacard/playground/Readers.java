@@ -0,0 +1,40 @@
+package pro.javacard.playground;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * PC/SC readers as {@link CardLink}s.
+ */
+public final class Readers {
+
+	private Readers() {
+	}
+
+	/**
+	 * Connects to the first reader with a card whose name contains
+	 * <code>name</code> (ignoring case), or to the first one with a card if
+	 * name is null.
+	 */
+	public static CardLink open(String name) throws CardException {
+		for (CardTerminal t : TerminalFactory.getDefault().terminals().list()) {
+			if (name != null && !t.getName().toLowerCase().contains(name.toLowerCase()))
+				continue;
+			if (!t.isCardPresent())
+				continue;
+			Card c = t.connect("*");
+			final CardChannel channel = c.getBasicChannel();
+			return new CardLink() {
+				@Override
+				public byte[] transmit(byte[] apdu) throws CardException {
+					return channel.transmit(new CommandAPDU(apdu)).getBytes();
+				}
+			};
+		}
+		throw new CardException("No reader with a card" + (name == null ? "" : " matching " + name));
+	}
+}
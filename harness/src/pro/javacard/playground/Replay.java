@@ -0,0 +1,191 @@
+package pro.javacard.playground;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays recorded APDU scripts against an applet running in vJCRE and
+ * reports throughput and per-instruction latency as JSON.
+ * <p>
+ * Every run starts from a freshly installed applet, so runs are independent;
+ * the first <code>-warmup</code> runs are executed but not reported.
+ *
+ * <pre>
+ * java pro.javacard.playground.Replay -applet MuscleApplet -script harness/scripts/musclecard-objects.apdu -runs 20
+ * </pre>
+ */
+public final class Replay {
+
+	private File buildXml = new File("build.xml");
+	private String appletSpec;
+	private final List<File> scripts = new ArrayList<File>();
+	private int runs = 10;
+	private int warmup = 2;
+	private byte[] params = new byte[0];
+	private File jsonOut;
+	private boolean verbose;
+
+	private static void usage() {
+		System.err.println("Usage: Replay -applet <cap|class|aid> -script <file> [-script <file> ...]");
+		System.err.println("              [-runs n] [-warmup n] [-params hex] [-build build.xml] [-json out.json] [-v]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Replay replay = new Replay();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length && !a.equals("-v"))
+				usage();
+			if (a.equals("-build"))
+				replay.buildXml = new File(args[++i]);
+			else if (a.equals("-applet"))
+				replay.appletSpec = args[++i];
+			else if (a.equals("-script"))
+				replay.scripts.add(new File(args[++i]));
+			else if (a.equals("-runs"))
+				replay.runs = Integer.parseInt(args[++i]);
+			else if (a.equals("-warmup"))
+				replay.warmup = Integer.parseInt(args[++i]);
+			else if (a.equals("-params"))
+				replay.params = Hex.decode(args[++i]);
+			else if (a.equals("-json"))
+				replay.jsonOut = new File(args[++i]);
+			else if (a.equals("-v"))
+				replay.verbose = true;
+			else
+				usage();
+		}
+		if (replay.appletSpec == null || replay.scripts.isEmpty())
+			usage();
+		System.exit(replay.run() ? 0 : 1);
+	}
+
+	/** Executes all scripts, prints the report; returns false on unexpected status words */
+	private boolean run() throws Exception {
+		AppletCatalog catalog = AppletCatalog.load(buildXml);
+		AppletCatalog.Applet applet = catalog.find(appletSpec);
+		if (applet == null)
+			throw new IllegalArgumentException("No applet matching " + appletSpec + " in " + buildXml);
+
+		boolean ok = true;
+		Json json = new Json();
+		json.beginObject();
+		json.field("applet", applet.className);
+		json.field("aid", Hex.encode(applet.aid));
+		json.field("runs", runs);
+		json.field("warmup", warmup);
+		json.name("scripts");
+		json.beginArray();
+		for (File file : scripts) {
+			ApduScript script = ApduScript.load(file);
+			Map<String, LatencyStats> perIns = new TreeMap<String, LatencyStats>();
+			LatencyStats total = new LatencyStats();
+			long wallNanos = 0;
+			for (int r = 0; r < warmup + runs; r++) {
+				boolean measured = r >= warmup;
+				Map<String, LatencyStats> runStats = new TreeMap<String, LatencyStats>();
+				long start = System.nanoTime();
+				if (!replay(applet, script, runStats))
+					ok = false;
+				long elapsed = System.nanoTime() - start;
+				if (!measured)
+					continue;
+				wallNanos += elapsed;
+				for (Map.Entry<String, LatencyStats> e : runStats.entrySet()) {
+					LatencyStats s = perIns.get(e.getKey());
+					if (s == null) {
+						s = new LatencyStats();
+						perIns.put(e.getKey(), s);
+					}
+					s.addAll(e.getValue());
+					total.addAll(e.getValue());
+				}
+			}
+			double apduSeconds = total.getTotalNanos() / 1e9;
+			json.beginObject();
+			json.field("script", script.getName());
+			json.field("apdus_per_run", script.getCommands().size());
+			json.field("wall_seconds", wallNanos / 1e9);
+			json.field("apdu_seconds", apduSeconds);
+			json.field("apdus_per_sec", apduSeconds == 0 ? 0 : total.getCount() / apduSeconds);
+			json.field("bytes_per_sec",
+					apduSeconds == 0 ? 0 : (total.getBytesIn() + total.getBytesOut()) / apduSeconds);
+			json.name("total");
+			total.toJson(json);
+			json.name("ins");
+			json.beginObject();
+			for (Map.Entry<String, LatencyStats> e : perIns.entrySet()) {
+				json.name(e.getKey());
+				e.getValue().toJson(json);
+			}
+			json.endObject();
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+
+		if (jsonOut != null) {
+			Writer w = new OutputStreamWriter(new FileOutputStream(jsonOut), "UTF-8");
+			try {
+				w.write(json.toString());
+				w.write('\n');
+			} finally {
+				w.close();
+			}
+		} else {
+			System.out.println(json);
+		}
+		return ok;
+	}
+
+	/**
+	 * Installs the applet (and the other applets of its CAP) on a fresh card
+	 * and plays the script once.
+	 */
+	private boolean replay(AppletCatalog.Applet applet, ApduScript script, Map<String, LatencyStats> stats)
+			throws Exception {
+		boolean ok = true;
+		PrintStream out = System.out;
+		if (!verbose)
+			System.setOut(Simulator.DISCARD);
+		try {
+			Simulator sim = new Simulator();
+			for (AppletCatalog.Applet a : applet.cap.applets)
+				sim.install(a, a == applet ? params : new byte[0], a == applet);
+			sim.connect();
+			int line = 0;
+			for (ApduScript.Command cmd : script.getCommands()) {
+				line++;
+				long start = System.nanoTime();
+				byte[] resp = sim.transmit(cmd.apdu);
+				long elapsed = System.nanoTime() - start;
+				int sw = ((resp[resp.length - 2] & 0xFF) << 8) | (resp[resp.length - 1] & 0xFF);
+				boolean accepted = cmd.accepts(sw);
+				if (!accepted) {
+					if (ok)
+						System.err.printf("%s: command %d (%s) returned %04X%n", script.getName(), line,
+								Hex.encode(cmd.apdu), sw);
+					ok = false;
+				}
+				String ins = String.format("%02X", cmd.getIns() & 0xFF);
+				LatencyStats s = stats.get(ins);
+				if (s == null) {
+					s = new LatencyStats();
+					stats.put(ins, s);
+				}
+				s.add(elapsed, cmd.apdu.length, resp.length, accepted);
+			}
+		} finally {
+			System.setOut(out);
+		}
+		return ok;
+	}
+}
@@ -0,0 +1,157 @@
+package pro.javacard.playground;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.btchip.applet.poc.Ripemd160;
+
+/**
+ * Times BTChip's software RIPEMD-160 in vJCRE: the unrolled 32 byte hash of
+ * a change address and the streaming engine over the lengths of a SHA-256,
+ * a public key and a few redeem scripts.
+ *
+ * <pre>
+ * java pro.javacard.playground.Ripemd160Perf [-iterations n] [-reps n]
+ * </pre>
+ *
+ * Both are first checked against the test vectors of the RIPEMD-160 paper,
+ * and against each other on random 32 byte inputs. The class is driven
+ * directly, as cards with a native RIPEMD-160 do not use it.
+ */
+public final class Ripemd160Perf {
+
+	private static final String[][] VECTORS = {
+			{ "", "9c1185a5c5e9fc54612808977ee8f548b2258d31" },
+			{ "a", "0bdc9d2d256b3ee9daae347be6f4dc835a467ffe" },
+			{ "abc", "8eb208f7e05d987a9b044a8e98c6b087f15a0bfc" },
+			{ "message digest", "5d0689ef49d2fae572b881b123a85ffa21595f36" },
+			{ "abcdefghijklmnopqrstuvwxyz", "f71c27109c692c1b56bbdceb5b9d2865b3708dbc" },
+			{ "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", "12a053384a9c0c88e405a06c27dcf49ada62eb2b" },
+			{ "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789",
+					"b0e20b6e3116640286ed3a87a5713079b21f5189" },
+			{ "12345678901234567890123456789012345678901234567890123456789012345678901234567890",
+					"9b752e45573d4b39f4dbd3323cab82bf63326bfb" } };
+	private static final String MILLION_A = "52783243c1697bdbe16d37f97f68f08325dc1528";
+
+	private int iterations = 200;
+	private int reps = 5;
+
+	private final byte[] digest = new byte[20];
+
+	private static void usage() {
+		System.err.println("Usage: Ripemd160Perf [-iterations n] [-reps n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Ripemd160Perf perf = new Ripemd160Perf();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-iterations"))
+				perf.iterations = Integer.parseInt(args[++i]);
+			else if (a.equals("-reps"))
+				perf.reps = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		if (perf.iterations < 1 || perf.reps < 1)
+			usage();
+
+		PrintStream out = System.out;
+		Json json;
+		// vJCRE traces some framework calls
+		System.setOut(Simulator.DISCARD);
+		try {
+			Ripemd160.init();
+			perf.check();
+			json = perf.run();
+		} finally {
+			System.setOut(out);
+		}
+		System.out.println(json);
+	}
+
+	private byte[] stream(byte[] data) {
+		Ripemd160.reset();
+		Ripemd160.doFinal(data, (short) 0, (short) data.length, digest, (short) 0);
+		return digest;
+	}
+
+	private byte[] hash32(byte[] data) {
+		Ripemd160.hash32(data, (short) 0, digest, (short) 0);
+		return digest;
+	}
+
+	private void check() {
+		for (String[] v : VECTORS) {
+			String got = Hex.encode(stream(v[0].getBytes(StandardCharsets.US_ASCII)));
+			if (!got.equalsIgnoreCase(v[1]))
+				throw new IllegalStateException("RIPEMD-160 of \"" + v[0] + "\" gave " + got);
+		}
+		// a million 'a' in uneven pieces
+		byte[] a = new byte[1000];
+		Arrays.fill(a, (byte) 'a');
+		Ripemd160.reset();
+		for (int done = 0, piece = 1; done < 1000000; done += piece, piece = piece % 999 + 1)
+			Ripemd160.update(a, (short) 0, (short) Math.min(piece, 1000000 - done));
+		Ripemd160.doFinal(a, (short) 0, (short) 0, digest, (short) 0);
+		if (!Hex.encode(digest).equalsIgnoreCase(MILLION_A))
+			throw new IllegalStateException("RIPEMD-160 of a million 'a' gave " + Hex.encode(digest));
+
+		Random random = new Random(160);
+		byte[] data = new byte[32];
+		for (int i = 0; i < 100; i++) {
+			random.nextBytes(data);
+			byte[] expected = stream(data).clone();
+			if (!Arrays.equals(hash32(data), expected))
+				throw new IllegalStateException("hash32 of " + Hex.encode(data) + " differs");
+		}
+	}
+
+	private double time(byte[] data, boolean fast) {
+		LatencyStats stats = new LatencyStats();
+		for (int r = 0; r < reps + 1; r++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				if (fast)
+					hash32(data);
+				else
+					stream(data);
+			}
+			// the first round warms up the JIT
+			if (r > 0)
+				stats.add(System.nanoTime() - start, 0, 0, true);
+		}
+		return stats.getTotalNanos() / 1e3 / stats.getCount() / iterations;
+	}
+
+	private Json run() {
+		Json json = new Json();
+		json.beginObject();
+		json.field("iterations", iterations);
+		json.field("reps", reps);
+		byte[] data = new byte[32];
+		new Random(32).nextBytes(data);
+		json.field("hash32_us", time(data, true));
+		json.name("stream");
+		json.beginArray();
+		// SHA-256, compressed and uncompressed keys, 2-of-2 and 2-of-3 multisig
+		// scripts and the largest redeem script
+		for (int length : new int[] { 32, 33, 65, 71, 105, 520 }) {
+			data = new byte[length];
+			new Random(length).nextBytes(data);
+			double us = time(data, false);
+			json.beginObject();
+			json.field("bytes", length);
+			json.field("us", us);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		return json;
+	}
+}
@@ -0,0 +1,276 @@
+package pro.javacard.playground;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardException;
+
+/**
+ * Terminal side of ICAO 9303 Basic Access Control and the 3DES secure
+ * messaging it sets up, as spoken by the passport and driving license
+ * applets.
+ */
+public final class SecureMessaging {
+
+	private static final byte[] ZERO_IV = new byte[8];
+
+	private final CardLink card;
+	private byte[] kEnc;
+	private byte[] kMac;
+	private final byte[] ssc = new byte[8];
+
+	private SecureMessaging(CardLink card) {
+		this.card = card;
+	}
+
+	/**
+	 * Runs BAC: GET CHALLENGE and a mutual EXTERNAL AUTHENTICATE with keys
+	 * derived from the MRZ fields.
+	 *
+	 * @param documentNumber
+	 *            document number, padded with '&lt;' to 9 characters
+	 * @param dateOfBirth
+	 *            YYMMDD
+	 * @param dateOfExpiry
+	 *            YYMMDD
+	 */
+	public static SecureMessaging bac(CardLink card, String documentNumber, String dateOfBirth, String dateOfExpiry)
+			throws CardException, GeneralSecurityException {
+		while (documentNumber.length() < 9)
+			documentNumber += "<";
+		String mrzInfo = documentNumber + checkDigit(documentNumber) + dateOfBirth + checkDigit(dateOfBirth)
+				+ dateOfExpiry + checkDigit(dateOfExpiry);
+		byte[] seed = Arrays.copyOf(MessageDigest.getInstance("SHA-1").digest(mrzInfo.getBytes(StandardCharsets.US_ASCII)), 16);
+		SecureMessaging sm = new SecureMessaging(card);
+		byte[] encKey = deriveKey(seed, 1);
+		byte[] macKey = deriveKey(seed, 2);
+
+		byte[] rndIcc = data(card.transmit(Hex.decode("0084000008")));
+		byte[] rndIfd = new byte[8];
+		byte[] kIfd = new byte[16];
+		SecureRandom random = new SecureRandom();
+		random.nextBytes(rndIfd);
+		random.nextBytes(kIfd);
+		byte[] s = concat(rndIfd, rndIcc, kIfd);
+		byte[] eIfd = tdes(Cipher.ENCRYPT_MODE, encKey, s);
+		byte[] command = concat(Hex.decode("0082000028"), eIfd, mac(macKey, pad(eIfd)), new byte[] { 0x28 });
+		byte[] resp = data(card.transmit(command));
+		if (resp.length != 40)
+			throw new CardException("Bad EXTERNAL AUTHENTICATE response length " + resp.length);
+		byte[] eIcc = Arrays.copyOf(resp, 32);
+		if (!Arrays.equals(mac(macKey, pad(eIcc)), Arrays.copyOfRange(resp, 32, 40)))
+			throw new CardException("EXTERNAL AUTHENTICATE response MAC mismatch");
+		byte[] r = tdes(Cipher.DECRYPT_MODE, encKey, eIcc);
+		if (!Arrays.equals(Arrays.copyOfRange(r, 8, 16), rndIfd))
+			throw new CardException("Card did not return our challenge");
+		byte[] sessionSeed = new byte[16];
+		for (int i = 0; i < 16; i++)
+			sessionSeed[i] = (byte) (kIfd[i] ^ r[16 + i]);
+		sm.kEnc = deriveKey(sessionSeed, 1);
+		sm.kMac = deriveKey(sessionSeed, 2);
+		System.arraycopy(rndIcc, 4, sm.ssc, 0, 4);
+		System.arraycopy(rndIfd, 4, sm.ssc, 4, 4);
+		return sm;
+	}
+
+	/**
+	 * Sends a protected command and returns the unprotected response data.
+	 *
+	 * @param data
+	 *            command data, sent in a DO87, or null
+	 * @param le
+	 *            expected response length for the DO97, or -1 for none
+	 * @param extended
+	 *            whether to use an extended length APDU (and a two byte
+	 *            DO97)
+	 */
+	public byte[] transmit(int ins, int p1, int p2, byte[] data, int le, boolean extended)
+			throws CardException, GeneralSecurityException {
+		increment(ssc);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (data != null) {
+			byte[] c = tdes(Cipher.ENCRYPT_MODE, kEnc, pad(data));
+			body.write(0x87);
+			writeLength(body, c.length + 1);
+			body.write(0x01);
+			body.write(c, 0, c.length);
+		}
+		if (le >= 0) {
+			body.write(0x97);
+			if (extended) {
+				body.write(2);
+				body.write(le >> 8);
+				body.write(le);
+			} else {
+				body.write(1);
+				body.write(le);
+			}
+		}
+		byte[] header = { 0x0C, (byte) ins, (byte) p1, (byte) p2 };
+		byte[] objects = body.toByteArray();
+		byte[] macInput = objects.length == 0 ? concat(ssc, pad(header)) : concat(ssc, pad(header), pad(objects));
+		body.write(0x8E);
+		body.write(8);
+		byte[] m = mac(kMac, macInput);
+		body.write(m, 0, m.length);
+
+		byte[] b = body.toByteArray();
+		ByteArrayOutputStream apdu = new ByteArrayOutputStream();
+		apdu.write(header, 0, 4);
+		if (extended) {
+			apdu.write(0);
+			apdu.write(b.length >> 8);
+			apdu.write(b.length);
+			apdu.write(b, 0, b.length);
+			apdu.write(0);
+			apdu.write(0);
+		} else {
+			apdu.write(b.length);
+			apdu.write(b, 0, b.length);
+			apdu.write(0);
+		}
+		return unwrap(data(card.transmit(apdu.toByteArray())));
+	}
+
+	private byte[] unwrap(byte[] resp) throws CardException, GeneralSecurityException {
+		increment(ssc);
+		byte[] plaintext = new byte[0];
+		byte[] do99 = null;
+		boolean macOk = false;
+		// objects before the DO8E are MACed
+		int p = 0;
+		int macd = 0;
+		while (p < resp.length && !macOk) {
+			int tag = resp[p++] & 0xFF;
+			int len = resp[p++] & 0xFF;
+			if (len == 0x81) {
+				len = resp[p++] & 0xFF;
+			} else if (len == 0x82) {
+				len = ((resp[p] & 0xFF) << 8) | (resp[p + 1] & 0xFF);
+				p += 2;
+			}
+			if (tag == 0x87) {
+				byte[] c = Arrays.copyOfRange(resp, p + 1, p + len);
+				plaintext = unpad(tdes(Cipher.DECRYPT_MODE, kEnc, c));
+			} else if (tag == 0x99) {
+				do99 = Arrays.copyOfRange(resp, p, p + len);
+			} else if (tag == 0x8E) {
+				byte[] expected = mac(kMac, concat(ssc, pad(Arrays.copyOf(resp, macd))));
+				if (!Arrays.equals(expected, Arrays.copyOfRange(resp, p, p + len)))
+					throw new CardException("Response MAC mismatch");
+				macOk = true;
+			}
+			p += len;
+			macd = p;
+		}
+		if (!macOk)
+			throw new CardException("Response without DO8E");
+		if (do99 == null || do99.length != 2 || do99[0] != (byte) 0x90 || do99[1] != 0)
+			throw new CardException("Protected status " + (do99 == null ? "missing" : Hex.encode(do99)));
+		return plaintext;
+	}
+
+	/** Data of a response, which must end with 9000 */
+	private static byte[] data(byte[] resp) throws CardException {
+		int sw = ((resp[resp.length - 2] & 0xFF) << 8) | (resp[resp.length - 1] & 0xFF);
+		if (sw != 0x9000)
+			throw new CardException(String.format("Card returned %04X", sw));
+		return Arrays.copyOf(resp, resp.length - 2);
+	}
+
+	private static void writeLength(ByteArrayOutputStream out, int len) {
+		if (len < 0x80) {
+			out.write(len);
+		} else if (len <= 0xFF) {
+			out.write(0x81);
+			out.write(len);
+		} else {
+			out.write(0x82);
+			out.write(len >> 8);
+			out.write(len);
+		}
+	}
+
+	private static byte[] deriveKey(byte[] seed, int counter) throws GeneralSecurityException {
+		byte[] h = MessageDigest.getInstance("SHA-1").digest(concat(seed, new byte[] { 0, 0, 0, (byte) counter }));
+		byte[] key = Arrays.copyOf(h, 16);
+		for (int i = 0; i < key.length; i++) {
+			if (Integer.bitCount(key[i] & 0xFF) % 2 == 0)
+				key[i] ^= 1;
+		}
+		return key;
+	}
+
+	private static byte[] tdes(int mode, byte[] key, byte[] data) throws GeneralSecurityException {
+		byte[] k = concat(key, Arrays.copyOf(key, 8));
+		Cipher c = Cipher.getInstance("DESede/CBC/NoPadding");
+		c.init(mode, new SecretKeySpec(k, "DESede"), new IvParameterSpec(ZERO_IV));
+		return c.doFinal(data);
+	}
+
+	/** ISO 9797-1 MAC algorithm 3 of already padded data */
+	private static byte[] mac(byte[] key, byte[] padded) throws GeneralSecurityException {
+		Cipher des = Cipher.getInstance("DES/CBC/NoPadding");
+		des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(ZERO_IV));
+		byte[] cbc = des.doFinal(padded);
+		byte[] last = Arrays.copyOfRange(cbc, cbc.length - 8, cbc.length);
+		Cipher ecb = Cipher.getInstance("DES/ECB/NoPadding");
+		ecb.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, 8, 8, "DES"));
+		last = ecb.doFinal(last);
+		ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"));
+		return ecb.doFinal(last);
+	}
+
+	private static byte[] pad(byte[] data) {
+		byte[] p = Arrays.copyOf(data, (data.length / 8 + 1) * 8);
+		p[data.length] = (byte) 0x80;
+		return p;
+	}
+
+	private static byte[] unpad(byte[] data) throws CardException {
+		int i = data.length - 1;
+		while (i >= 0 && data[i] == 0)
+			i--;
+		if (i < 0 || data[i] != (byte) 0x80)
+			throw new CardException("Bad padding");
+		return Arrays.copyOf(data, i);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] p : parts)
+			out.write(p, 0, p.length);
+		return out.toByteArray();
+	}
+
+	private static void increment(byte[] counter) {
+		for (int i = counter.length - 1; i >= 0; i--) {
+			if (++counter[i] != 0)
+				break;
+		}
+	}
+
+	private static int checkDigit(String s) {
+		int[] weights = { 7, 3, 1 };
+		int sum = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			int v;
+			if (c >= '0' && c <= '9')
+				v = c - '0';
+			else if (c >= 'A' && c <= 'Z')
+				v = c - 'A' + 10;
+			else
+				v = 0;
+			sum += v * weights[i % 3];
+		}
+		return sum % 10;
+	}
+}
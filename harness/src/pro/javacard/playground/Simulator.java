@@ -0,0 +1,167 @@
+package pro.javacard.playground;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javacard.framework.AID;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.TerminalFactory;
+
+import pro.javacard.vre.VJCREProvider;
+import pro.javacard.vre.VRE;
+
+/**
+ * One virtual card: a fresh vJCRE instance with applets installed from the
+ * catalog, reachable through javax.smartcardio.
+ * <p>
+ * vJCRE does not route SELECT by AID itself (and its selectingApplet() is
+ * always false), so SELECT commands naming an installed applet are answered
+ * here with 9000 after the applet has been selected; every other command goes
+ * to the selected applet's process(). Response data longer than Ne is cut, as
+ * vJCRE does not pass Le to the applet.
+ */
+public final class Simulator implements CardLink {
+
+	private static final byte[] SW_OK = { (byte) 0x90, 0x00 };
+	private static final byte[] SW_FILE_NOT_FOUND = { 0x6A, (byte) 0x82 };
+
+	/**
+	 * vJCRE prints the applet on every command; setting this as System.out
+	 * keeps that out of timings. The println() calls are dropped before
+	 * PrintStream locks and encodes, which would serialize the cards of a
+	 * CardFarm.
+	 */
+	static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}) {
+		@Override
+		public void print(String s) {
+		}
+
+		@Override
+		public void print(Object obj) {
+		}
+
+		@Override
+		public void println(String x) {
+		}
+
+		@Override
+		public void println(Object x) {
+		}
+	};
+
+	private final VRE vre;
+	private final List<AID> installed = new ArrayList<AID>();
+	private Card card;
+	private CardChannel channel;
+
+	public Simulator() {
+		// The constructor also makes this instance the one JCSystem talks to
+		vre = new VRE();
+	}
+
+	public VRE getRuntime() {
+		return vre;
+	}
+
+	/**
+	 * Installs an applet, passing GlobalPlatform style install parameters
+	 * (AID, empty privileges, application parameters) to its install() method.
+	 */
+	public void install(AppletCatalog.Applet applet, byte[] params, boolean makeDefault) throws Exception {
+		Class<?> cls = Class.forName(applet.className);
+		byte[] aid = applet.aid;
+		byte[] bArray = new byte[1 + aid.length + 2 + 1 + params.length];
+		int off = 0;
+		bArray[off++] = (byte) aid.length;
+		System.arraycopy(aid, 0, bArray, off, aid.length);
+		off += aid.length;
+		bArray[off++] = 1; // privileges
+		bArray[off++] = 0;
+		bArray[off++] = (byte) params.length;
+		System.arraycopy(params, 0, bArray, off, params.length);
+
+		AID jcAid = new AID(aid, (short) 0, (byte) aid.length);
+		// Applets calling register() without arguments are registered
+		// under the current applet AID
+		Field current = VRE.class.getDeclaredField("currentApplet");
+		current.setAccessible(true);
+		current.set(vre, jcAid);
+		try {
+			Method install = cls.getMethod("install", byte[].class, short.class, byte.class);
+			install.invoke(null, bArray, (short) 0, (byte) bArray.length);
+		} catch (InvocationTargetException e) {
+			throw new Exception("install() of " + applet + " failed", e.getCause());
+		} finally {
+			current.set(vre, null);
+		}
+		installed.add(jcAid);
+		if (makeDefault) {
+			Field def = VRE.class.getDeclaredField("defaultApplet");
+			def.setAccessible(true);
+			def.set(vre, jcAid);
+		}
+	}
+
+	/** Connects to the virtual card, selecting the default applet */
+	public void connect() throws CardException {
+		TerminalFactory tf;
+		try {
+			tf = TerminalFactory.getInstance("PC/SC", vre, new VJCREProvider());
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new CardException(e);
+		}
+		card = tf.terminals().list().get(0).connect("*");
+		channel = card.getBasicChannel();
+	}
+
+	/**
+	 * Sends a command APDU to the card.
+	 *
+	 * @return the response APDU, status word included
+	 */
+	@Override
+	public byte[] transmit(byte[] apdu) throws CardException {
+		if (isSelectByName(apdu)) {
+			int len = apdu[4] & 0xFF;
+			byte[] name = Arrays.copyOfRange(apdu, 5, 5 + len);
+			for (AID aid : installed) {
+				if (aid.partialEquals(name, (short) 0, (byte) name.length))
+					return vre.select(aid) ? SW_OK : SW_FILE_NOT_FOUND;
+			}
+		}
+		CommandAPDU command = new CommandAPDU(apdu);
+		byte[] response = channel.transmit(command).getBytes();
+		// vJCRE's setOutgoing() ignores Le (always 256, or 32767 for
+		// ExtendedLength applets), so cut the data to what was asked for
+		int ne = command.getNe();
+		if (ne > 0 && response.length - 2 > ne) {
+			byte[] clipped = new byte[ne + 2];
+			System.arraycopy(response, 0, clipped, 0, ne);
+			System.arraycopy(response, response.length - 2, clipped, ne, 2);
+			response = clipped;
+		}
+		return response;
+	}
+
+	private static boolean isSelectByName(byte[] apdu) {
+		return apdu.length > 5 && (apdu[0] & 0xFC) == 0x00 && apdu[1] == (byte) 0xA4 && apdu[2] == 0x04
+				&& (apdu[4] & 0xFF) <= apdu.length - 5;
+	}
+}
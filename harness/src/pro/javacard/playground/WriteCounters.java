@@ -0,0 +1,144 @@
+package pro.javacard.playground;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javacard.framework.JCSystem;
+
+/**
+ * Counts the memory writes and transactions of the applets running in vJCRE,
+ * for WriteProfile. The javacard.framework classes compiled from
+ * harness/profile report here when they come before vjcre.jar on the class
+ * path; vJCRE's own classes do not.
+ * <p>
+ * A write goes to persistent memory unless its array was made with
+ * JCSystem.makeTransient*() or is the APDU buffer. Persistent bytes written
+ * inside a transaction, or by the atomic Util.arrayCopy(), are also counted as
+ * journaled, as a card copies them to its commit buffer first. Plain bytecode
+ * stores into arrays and fields are not seen, only the framework calls.
+ * Nothing is counted outside of start() and finish(), so the classes can also
+ * stand in for vJCRE's where only a working OwnerPIN or RandomData is wanted.
+ */
+public final class WriteCounters {
+
+	/** Counts of an instruction, an applet or a call site */
+	public static final class Counts {
+		public long persistentBytes;
+		public long persistentWrites;
+		public long transientBytes;
+		public long transientWrites;
+		public long journaledBytes;
+		public long pinWrites;
+		public long commits;
+		public long aborts;
+
+		public void addAll(Counts c) {
+			persistentBytes += c.persistentBytes;
+			persistentWrites += c.persistentWrites;
+			transientBytes += c.transientBytes;
+			transientWrites += c.transientWrites;
+			journaledBytes += c.journaledBytes;
+			pinWrites += c.pinWrites;
+			commits += c.commits;
+			aborts += c.aborts;
+		}
+	}
+
+	private static Counts current;
+	private static Map<String, Counts> sites = new HashMap<String, Counts>();
+	private static byte[] apduBuffer;
+	private static int depth;
+
+	private WriteCounters() {
+	}
+
+	/** Starts counting a command, whose APDU buffer is not persistent */
+	static void start(byte[] buffer) {
+		current = new Counts();
+		sites = new HashMap<String, Counts>();
+		apduBuffer = buffer;
+		depth = 0;
+	}
+
+	/**
+	 * Ends the command; a transaction left open is aborted, as the JCRE does.
+	 *
+	 * @return the counts of the command
+	 */
+	static Counts finish() {
+		if (depth > 0)
+			abortTransaction();
+		Counts done = current;
+		current = null;
+		return done;
+	}
+
+	/** @return the persistent write counts of the command by call site */
+	static Map<String, Counts> getSites() {
+		return sites;
+	}
+
+	/** Reported by Util for every write of length bytes into array */
+	public static void write(Object array, int length, boolean atomic) {
+		if (current == null)
+			return;
+		if (array == apduBuffer || JCSystem.isTransient(array) != JCSystem.NOT_A_TRANSIENT_OBJECT) {
+			current.transientBytes += length;
+			current.transientWrites++;
+		} else
+			persistent(length, atomic || depth > 0, false);
+	}
+
+	/** Reported by OwnerPIN for its try counter and value */
+	public static void pinWrite(int length) {
+		if (current != null)
+			persistent(length, true, true);
+	}
+
+	private static void persistent(int length, boolean journaled, boolean pin) {
+		String at = site();
+		Counts site = sites.get(at);
+		if (site == null) {
+			site = new Counts();
+			sites.put(at, site);
+		}
+		for (Counts c : new Counts[] { current, site }) {
+			c.persistentBytes += length;
+			c.persistentWrites++;
+			if (journaled)
+				c.journaledBytes += length;
+			if (pin)
+				c.pinWrites++;
+		}
+	}
+
+	/** The innermost applet frame of the current stack */
+	private static String site() {
+		for (StackTraceElement e : new Throwable().getStackTrace()) {
+			String cls = e.getClassName();
+			if (!cls.startsWith("javacard.") && !cls.startsWith("javacardx.") && !cls.startsWith("pro.javacard."))
+				return e.toString();
+		}
+		return "(framework)";
+	}
+
+	public static int getTransactionDepth() {
+		return depth;
+	}
+
+	public static void beginTransaction() {
+		depth++;
+	}
+
+	public static void commitTransaction() {
+		depth--;
+		if (current != null)
+			current.commits++;
+	}
+
+	public static void abortTransaction() {
+		depth--;
+		if (current != null)
+			current.aborts++;
+	}
+}
@@ -0,0 +1,263 @@
+package pro.javacard.playground;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javacard.framework.APDU;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import javacard.framework.JCSystem;
+
+import pro.javacard.vre.VRE;
+
+/**
+ * Replays APDU scripts once against an applet running in vJCRE and reports,
+ * per applet and instruction, the bytes it wrote to persistent and transient
+ * memory, what a card would journal, and its PIN updates and transactions;
+ * with the call sites writing most to persistent memory. See WriteCounters
+ * for what is seen.
+ *
+ * <pre>
+ * java pro.javacard.playground.WriteProfile -applet MuscleApplet -script harness/scripts/musclecard-objects.apdu
+ * </pre>
+ *
+ * build/harness/profile must come before vjcre.jar on the class path, as
+ * <code>ant profile</code> does.
+ */
+public final class WriteProfile {
+
+	private File buildXml = new File("build.xml");
+	private String appletSpec;
+	private final List<File> scripts = new ArrayList<File>();
+	private byte[] params = new byte[0];
+	private File jsonOut;
+	private int top = 10;
+
+	/** Counts of one applet in a script */
+	private static final class AppletCounts {
+		final WriteCounters.Counts total = new WriteCounters.Counts();
+		final Map<String, WriteCounters.Counts> ins = new TreeMap<String, WriteCounters.Counts>();
+		final Map<String, Integer> apdus = new TreeMap<String, Integer>();
+		final Map<String, WriteCounters.Counts> sites = new TreeMap<String, WriteCounters.Counts>();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: WriteProfile -applet <cap|class|aid> -script <file> [-script <file> ...]");
+		System.err.println("                    [-params hex] [-top n] [-build build.xml] [-json out.json]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		WriteProfile profile = new WriteProfile();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 >= args.length)
+				usage();
+			if (a.equals("-build"))
+				profile.buildXml = new File(args[++i]);
+			else if (a.equals("-applet"))
+				profile.appletSpec = args[++i];
+			else if (a.equals("-script"))
+				profile.scripts.add(new File(args[++i]));
+			else if (a.equals("-params"))
+				profile.params = Hex.decode(args[++i]);
+			else if (a.equals("-json"))
+				profile.jsonOut = new File(args[++i]);
+			else if (a.equals("-top"))
+				profile.top = Integer.parseInt(args[++i]);
+			else
+				usage();
+		}
+		if (profile.appletSpec == null || profile.scripts.isEmpty() || profile.top < 0)
+			usage();
+		try {
+			// only the profiling JCSystem declares its own transaction methods
+			JCSystem.class.getDeclaredMethod("beginTransaction");
+		} catch (NoSuchMethodException e) {
+			System.err.println("javacard.framework is loaded from vjcre.jar, put build/harness/profile first on the class path");
+			System.exit(2);
+		}
+		System.exit(profile.run() ? 0 : 1);
+	}
+
+	/** Executes all scripts, prints the report; returns false on unexpected status words */
+	private boolean run() throws Exception {
+		AppletCatalog catalog = AppletCatalog.load(buildXml);
+		AppletCatalog.Applet applet = catalog.find(appletSpec);
+		if (applet == null)
+			throw new IllegalArgumentException("No applet matching " + appletSpec + " in " + buildXml);
+
+		boolean ok = true;
+		Json json = new Json();
+		json.beginObject();
+		json.field("applet", applet.className);
+		json.field("aid", Hex.encode(applet.aid));
+		json.name("scripts");
+		json.beginArray();
+		for (File file : scripts) {
+			ApduScript script = ApduScript.load(file);
+			Map<String, AppletCounts> counts = new TreeMap<String, AppletCounts>();
+			if (!replay(applet, script, counts))
+				ok = false;
+			json.beginObject();
+			json.field("script", script.getName());
+			json.field("apdus", script.getCommands().size());
+			json.name("applets");
+			json.beginObject();
+			for (Map.Entry<String, AppletCounts> e : counts.entrySet()) {
+				json.name(e.getKey());
+				report(json, e.getValue());
+			}
+			json.endObject();
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+
+		if (jsonOut != null) {
+			Writer w = new OutputStreamWriter(new FileOutputStream(jsonOut), "UTF-8");
+			try {
+				w.write(json.toString());
+				w.write('\n');
+			} finally {
+				w.close();
+			}
+		} else {
+			System.out.println(json);
+		}
+		return ok;
+	}
+
+	/**
+	 * Installs the applet (and the other applets of its CAP) on a fresh card
+	 * and plays the script once, counting the writes of every command.
+	 */
+	private boolean replay(AppletCatalog.Applet applet, ApduScript script, Map<String, AppletCounts> counts)
+			throws Exception {
+		boolean ok = true;
+		PrintStream out = System.out;
+		System.setOut(Simulator.DISCARD);
+		try {
+			Simulator sim = new Simulator();
+			for (AppletCatalog.Applet a : applet.cap.applets)
+				sim.install(a, a == applet ? params : new byte[0], a == applet);
+			sim.connect();
+			VRE vre = sim.getRuntime();
+			Field apduField = VRE.class.getDeclaredField("apdu");
+			apduField.setAccessible(true);
+			byte[] buffer = ((APDU) apduField.get(vre)).getBuffer();
+			Field currentField = VRE.class.getDeclaredField("currentApplet");
+			currentField.setAccessible(true);
+			Field installedField = VRE.class.getDeclaredField("installed");
+			installedField.setAccessible(true);
+			Map<?, ?> installed = (Map<?, ?>) installedField.get(vre);
+
+			int line = 0;
+			for (ApduScript.Command cmd : script.getCommands()) {
+				line++;
+				WriteCounters.start(buffer);
+				byte[] resp = sim.transmit(cmd.apdu);
+				WriteCounters.Counts c = WriteCounters.finish();
+				int sw = ((resp[resp.length - 2] & 0xFF) << 8) | (resp[resp.length - 1] & 0xFF);
+				if (!cmd.accepts(sw)) {
+					if (ok)
+						System.err.printf("%s: command %d (%s) returned %04X%n", script.getName(), line,
+								Hex.encode(cmd.apdu), sw);
+					ok = false;
+				}
+
+				AID current = (AID) currentField.get(vre);
+				Applet target = current == null ? null : (Applet) installed.get(current);
+				String name = target == null ? "(none)" : target.getClass().getName();
+				AppletCounts a = counts.get(name);
+				if (a == null) {
+					a = new AppletCounts();
+					counts.put(name, a);
+				}
+				String ins = String.format("%02X", cmd.getIns() & 0xFF);
+				a.total.addAll(c);
+				get(a.ins, ins).addAll(c);
+				Integer n = a.apdus.get(ins);
+				a.apdus.put(ins, n == null ? 1 : n + 1);
+				for (Map.Entry<String, WriteCounters.Counts> e : WriteCounters.getSites().entrySet())
+					get(a.sites, e.getKey()).addAll(e.getValue());
+			}
+		} finally {
+			System.setOut(out);
+		}
+		return ok;
+	}
+
+	private static WriteCounters.Counts get(Map<String, WriteCounters.Counts> map, String key) {
+		WriteCounters.Counts c = map.get(key);
+		if (c == null) {
+			c = new WriteCounters.Counts();
+			map.put(key, c);
+		}
+		return c;
+	}
+
+	private void report(Json json, AppletCounts a) {
+		json.beginObject();
+		json.name("total");
+		counts(json, a.total);
+		json.name("ins");
+		json.beginObject();
+		for (Map.Entry<String, WriteCounters.Counts> e : a.ins.entrySet()) {
+			int apdus = a.apdus.get(e.getKey());
+			WriteCounters.Counts c = e.getValue();
+			json.name(e.getKey());
+			json.beginObject();
+			json.field("apdus", apdus);
+			json.field("persistent_bytes_per_apdu", (double) c.persistentBytes / apdus);
+			json.field("persistent_writes_per_apdu", (double) c.persistentWrites / apdus);
+			json.name("counts");
+			counts(json, c);
+			json.endObject();
+		}
+		json.endObject();
+
+		List<Map.Entry<String, WriteCounters.Counts>> sites = new ArrayList<Map.Entry<String, WriteCounters.Counts>>(
+				a.sites.entrySet());
+		Collections.sort(sites, new Comparator<Map.Entry<String, WriteCounters.Counts>>() {
+			@Override
+			public int compare(Map.Entry<String, WriteCounters.Counts> x, Map.Entry<String, WriteCounters.Counts> y) {
+				return Long.compare(y.getValue().persistentBytes, x.getValue().persistentBytes);
+			}
+		});
+		json.name("top_persistent_sites");
+		json.beginArray();
+		for (Map.Entry<String, WriteCounters.Counts> e : sites.subList(0, Math.min(top, sites.size()))) {
+			json.beginObject();
+			json.field("site", e.getKey());
+			json.field("bytes", e.getValue().persistentBytes);
+			json.field("writes", e.getValue().persistentWrites);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+	}
+
+	private static void counts(Json json, WriteCounters.Counts c) {
+		json.beginObject();
+		json.field("persistent_bytes", c.persistentBytes);
+		json.field("persistent_writes", c.persistentWrites);
+		json.field("journaled_bytes", c.journaledBytes);
+		json.field("transient_bytes", c.transientBytes);
+		json.field("transient_writes", c.transientWrites);
+		json.field("pin_writes", c.pinWrites);
+		json.field("commits", c.commits);
+		json.field("aborts", c.aborts);
+		json.endObject();
+	}
+}
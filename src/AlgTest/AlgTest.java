@@ -90,6 +90,7 @@ public class AlgTest extends javacard.framework.Applet
     final static byte INS_CARD_TESTSUPPORTEDMODES_SINGLE    = (byte) 0x75;
     final static byte INS_CARD_TESTIOSPEED          = (byte) 0x76;
     final static byte INS_CARD_GETRSAKEY            = (byte) 0x77;
+    final static byte INS_CARD_PERFORMANCE          = (byte) 0x78;
 
 
     //
@@ -336,9 +337,26 @@ public class AlgTest extends javacard.framework.Applet
     private   RSAPublicKey     rsa_PublicKey = null;
     private   RSAPrivateCrtKey rsa_PrivateKey = null;
 
+    // PerformanceTests() state, kept between commands so that only the measured operation is repeated
+    private   byte[]           m_perfBuffer = null;
+    private   byte[]           m_perfConfig = null;
+    private   Object           m_perfEngine = null;
+    private   Key              m_perfKey = null;
+
     final static short EXPONENT_LENGTH = (short) 128;
     final static short MODULUS_LENGTH = (short) 128;
     final static short ADDITIONAL_ARGUMENTS_LENGTH = (short) (ISO7816.OFFSET_CDATA + 4); // two short arguments
+
+    // PerformanceTests() command data: key type, key length, key pair algorithm, iterations, data length
+    final static short PERF_OFFSET_KEYTYPE = (short) 0;
+    final static short PERF_OFFSET_KEYLENGTH = (short) 1;
+    final static short PERF_OFFSET_KEYPAIR = (short) 3;
+    final static short PERF_OFFSET_ITERATIONS = (short) 4;
+    final static short PERF_OFFSET_DATALENGTH = (short) 6;
+    final static short PERF_CONFIG_LENGTH = (short) 6; // P1, P2, key type, key length and key pair algorithm
+    final static short PERF_DATA_LENGTH = (short) 8;
+    final static short PERF_MAX_DATA = (short) 256;
+    final static short PERF_BUFFER_LENGTH = (short) (2 * PERF_MAX_DATA);
     
     final static byte SUPP_ALG_UNTOUCHED = (byte) 0xf0;
     final static byte SUPP_ALG_SUPPORTED = (byte) 0x00;
@@ -441,6 +459,7 @@ public class AlgTest extends javacard.framework.Applet
                 case INS_CARD_TESTSUPPORTEDMODES_SINGLE: TestSupportedModeSingle(apdu); break;
                 case INS_CARD_TESTIOSPEED: TestIOSpeed(apdu); break;
                 case INS_CARD_GETRSAKEY: GetRSAKey(apdu); break;
+                case INS_CARD_PERFORMANCE: PerformanceTests(apdu); break;
 
                 default : {
                     // The INS code is not supported by the dispatcher
@@ -2010,17 +2029,129 @@ public class AlgTest extends javacard.framework.Applet
     apdu.setOutgoingAndSend((byte) 0, offset);
 */   }
 
+   /**
+    * Runs one operation repeatedly, so the host can time it (see TestIOSpeed() for the
+    * round-trip baseline to subtract).
+    * P1 selects the class, using the same codes as TestSupportedModeSingle():
+    *   0x11 Cipher.doFinal(), 0x12 Signature.sign(), 0x15 MessageDigest.doFinal(),
+    *   0x18, 0x19, 0x1C KeyPair.genKeyPair()
+    * P2 is the algorithm (Cipher, Signature, MessageDigest or KeyPair ALG_ constant).
+    * Data: key type (1B, KeyBuilder TYPE_ constant for a secret key), key length (2B, as for KeyBuilder),
+    * key pair algorithm (1B, KeyPair ALG_ constant, 0 when a secret key is used),
+    * iterations (2B), data length (2B, at most 256).
+    * Objects and keys are created only when P1, P2 or the key parameters change; a command
+    * with 0 iterations just prepares them. Returns the number of iterations performed.
+    */
    void PerformanceTests(APDU apdu) {
        byte[]    apdubuf = apdu.getBuffer();
        short     dataLen = apdu.setIncomingAndReceive();
-       short     offset = (short) 0;
 
-       // TODO:
+       if (dataLen != PERF_DATA_LENGTH) { ISOException.throwIt(ISO7816.SW_WRONG_LENGTH); }
+
+       short     iterations = Util.getShort(apdubuf, (short) (ISO7816.OFFSET_CDATA + PERF_OFFSET_ITERATIONS));
+       short     dataLength = Util.getShort(apdubuf, (short) (ISO7816.OFFSET_CDATA + PERF_OFFSET_DATALENGTH));
+       if (iterations < 0 || dataLength < 0 || dataLength > PERF_MAX_DATA) { ISOException.throwIt(ISO7816.SW_WRONG_DATA); }
+
+       if (m_perfBuffer == null) {
+           // allocated on first use only, so that TestAvailableMemory() is not affected
+           m_perfBuffer = JCSystem.makeTransientByteArray(PERF_BUFFER_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+           m_perfConfig = new byte[PERF_CONFIG_LENGTH];
+       }
+
+       if (m_perfEngine == null || m_perfConfig[0] != apdubuf[ISO7816.OFFSET_P1] || m_perfConfig[1] != apdubuf[ISO7816.OFFSET_P2]
+           || Util.arrayCompare(apdubuf, ISO7816.OFFSET_CDATA, m_perfConfig, (short) 2, (short) (PERF_CONFIG_LENGTH - 2)) != 0) {
+           m_perfEngine = null;
+           try { PreparePerformanceTest(apdubuf); }
+           catch (CryptoException e) { ISOException.throwIt((short) (ISO7816.SW_UNKNOWN | e.getReason())); }
+           m_perfConfig[0] = apdubuf[ISO7816.OFFSET_P1];
+           m_perfConfig[1] = apdubuf[ISO7816.OFFSET_P2];
+           Util.arrayCopyNonAtomic(apdubuf, ISO7816.OFFSET_CDATA, m_perfConfig, (short) 2, (short) (PERF_CONFIG_LENGTH - 2));
+       }
+
+       short     i = 0;
+       try {
+           switch (apdubuf[ISO7816.OFFSET_P1]) {
+               case (byte) 0x11: {
+                   Cipher cipher = (Cipher) m_perfEngine;
+                   for (i = 0; i < iterations; i++) { cipher.doFinal(m_perfBuffer, (short) 0, dataLength, m_perfBuffer, PERF_MAX_DATA); }
+                   break;
+               }
+               case (byte) 0x12: {
+                   Signature sign = (Signature) m_perfEngine;
+                   for (i = 0; i < iterations; i++) { sign.sign(m_perfBuffer, (short) 0, dataLength, m_perfBuffer, PERF_MAX_DATA); }
+                   break;
+               }
+               case (byte) 0x15: {
+                   MessageDigest digest = (MessageDigest) m_perfEngine;
+                   for (i = 0; i < iterations; i++) { digest.doFinal(m_perfBuffer, (short) 0, dataLength, m_perfBuffer, PERF_MAX_DATA); }
+                   break;
+               }
+               case (byte) 0x18: // no break
+               case (byte) 0x19: // no break
+               case (byte) 0x1C: {
+                   KeyPair keyPair = (KeyPair) m_perfEngine;
+                   for (i = 0; i < iterations; i++) { keyPair.genKeyPair(); }
+                   break;
+               }
+           }
+       }
+       catch (CryptoException e) { ISOException.throwIt((short) (ISO7816.SW_UNKNOWN | e.getReason())); }
+
+       Util.setShort(apdubuf, (short) 0, i);
+       apdu.setOutgoingAndSend((short) 0, (short) 2);
+   }
+
+   /**
+    * Creates the engine and key for PerformanceTests() from the command in apdubuf.
+    */
+   void PreparePerformanceTest(byte[] apdubuf) {
+       byte      algorithm = apdubuf[ISO7816.OFFSET_P2];
+       byte      keyType = apdubuf[(short) (ISO7816.OFFSET_CDATA + PERF_OFFSET_KEYTYPE)];
+       short     keyLength = Util.getShort(apdubuf, (short) (ISO7816.OFFSET_CDATA + PERF_OFFSET_KEYLENGTH));
+       byte      keyPairAlg = apdubuf[(short) (ISO7816.OFFSET_CDATA + PERF_OFFSET_KEYPAIR)];
+
+       // any fixed input will do; the top byte below 0x80 keeps raw RSA input smaller than the modulus
+       Util.arrayFillNonAtomic(m_perfBuffer, (short) 0, PERF_BUFFER_LENGTH, (byte) 0x5A);
+
+       KeyPair   keyPair = null;
+       m_perfKey = null;
+       if (keyPairAlg != 0) {
+           keyPair = new KeyPair(keyPairAlg, keyLength);
+           keyPair.genKeyPair();
+       }
+       else if (keyType != 0) {
+           m_perfKey = KeyBuilder.buildKey(keyType, keyLength, false);
+           if (m_perfKey instanceof DESKey) { ((DESKey) m_perfKey).setKey(m_perfBuffer, (short) 0); }
+           else if (m_perfKey instanceof AESKey) { ((AESKey) m_perfKey).setKey(m_perfBuffer, (short) 0); }
+           // HMAC key lengths are given in bytes
+           else if (m_perfKey instanceof HMACKey && keyLength <= PERF_BUFFER_LENGTH) { ((HMACKey) m_perfKey).setKey(m_perfBuffer, (short) 0, keyLength); }
+           else { CryptoException.throwIt(CryptoException.ILLEGAL_VALUE); }
+       }
 
        switch (apdubuf[ISO7816.OFFSET_P1]) {
-         case 1: {
-           break;
-         }
+           case (byte) 0x11: {
+               Cipher cipher = Cipher.getInstance(algorithm, false);
+               cipher.init(keyPair != null ? keyPair.getPublic() : m_perfKey, Cipher.MODE_ENCRYPT);
+               m_perfEngine = cipher;
+               break;
+           }
+           case (byte) 0x12: {
+               Signature sign = Signature.getInstance(algorithm, false);
+               sign.init(keyPair != null ? keyPair.getPrivate() : m_perfKey, Signature.MODE_SIGN);
+               m_perfEngine = sign;
+               break;
+           }
+           case (byte) 0x15: {
+               m_perfEngine = MessageDigest.getInstance(algorithm, false);
+               break;
+           }
+           case (byte) 0x18: // no break
+           case (byte) 0x19: // no break
+           case (byte) 0x1C: {
+               m_perfEngine = new KeyPair(algorithm, keyLength);
+               break;
+           }
+           default: ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
        }
    }
 
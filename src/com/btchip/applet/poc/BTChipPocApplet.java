@@ -456,7 +456,7 @@ public class BTChipPocApplet extends Applet {
                 // Compute the change address - significant performance hit if not using a native RIPEMD160
                 Crypto.digestScratch.doFinal(scratch255, OFFSET_PUBLIC_KEY_IN_PRIVATE_BLOB, PUBLIC_KEY_W_LENGTH, scratch255, (short)0);
                 TC.ctx[TC.TX_A_AUTH_CHANGE_ADDRESS] = KEY_VERSION; // force main net
-                Crypto.hashRipemd32(scratch255, (short)0, TC.ctx, (short)(TC.TX_A_AUTH_CHANGE_ADDRESS + 1));
+                Crypto.hashRipemd(scratch255, (short)0, TC.SIZEOF_SHA256, TC.ctx, (short)(TC.TX_A_AUTH_CHANGE_ADDRESS + 1));
             }            
             if (TC.ctxP[TC.P_TX_Z_USED] == TC.TRUE) {
                 Util.arrayCopy(TC.ctx, TC.TX_A_AUTH_NONCE, TC.ctxP, TC.P_TX_A_AUTH_NONCE, TC.TX_AUTH_CONTEXT_SIZE);
@@ -24,6 +24,13 @@ import javacard.framework.Util;
 
 /**
  * Base 58 encoding and decoding
+ * 
+ * Both directions are a repeated long division with short arithmetic: by 58
+ * over the bytes when encoding, by 256 over the base 58 digits when decoding.
+ * A pass over the buffer chains two such divisions, whose first quotients
+ * always fit a digit of the next, and so yields two digits at once. It halves
+ * the passes and their array accesses, and the encoder gets each remainder
+ * back from its quotient instead of dividing a second time.
  * @author BTChip
  *
  */
@@ -38,24 +45,29 @@ public class Base58 {
         j = (short)(2 * inLength);
         startAt = zeroCount;
         while(startAt < inLength) {
-            short remainder = 0;
+            // Divide by 58 * 58, the remainders are the next two digits
+            short remainder = 0, remainder2 = 0;
             short divLoop;
             for (divLoop = startAt ; divLoop < inLength; divLoop++) {
-                short digit256 = (short)(scratch[(short)(scratchOffset + divLoop)] & 0xff);
-                short tmpDiv = (short)(remainder * 256 + digit256);
-                scratch[(short)(scratchOffset + divLoop)] = (byte)(tmpDiv / 58);
-                remainder = (short)(tmpDiv % 58);
+                short tmpDiv = (short)((short)(remainder << 8) | (scratch[(short)(scratchOffset + divLoop)] & 0xff));
+                short quotient = (short)(tmpDiv / 58);
+                remainder = (short)(tmpDiv - (short)(quotient * 58));
+                tmpDiv = (short)((short)(remainder2 << 8) | quotient);
+                quotient = (short)(tmpDiv / 58);
+                remainder2 = (short)(tmpDiv - (short)(quotient * 58));
+                scratch[(short)(scratchOffset + divLoop)] = (byte)quotient;
             }
-            if (scratch[(short)(scratchOffset + startAt)] == 0) {
+            while ((startAt < inLength) && (scratch[(short)(scratchOffset + startAt)] == 0)) {
                 ++startAt;
             }
-            out[(short)(outOffset + --j)] = (byte)ALPHABET[remainder];            
-        }
-        while ((j < ((short)(2 * inLength))) && (out[(short)(outOffset + j)] == ALPHABET[0])) {
-            ++j;
+            out[(short)(outOffset + --j)] = ALPHABET[remainder];
+            // No leading zero digit when the number ran out
+            if ((startAt < inLength) || (remainder2 != 0)) {
+                out[(short)(outOffset + --j)] = ALPHABET[remainder2];
+            }
         }
         while (--zeroCount >= 0) {
-            out[(short)(outOffset + --j)] = (byte)ALPHABET[0];
+            out[(short)(outOffset + --j)] = ALPHABET[0];
         }
         short resultLength = (short)((2 * inLength) - j);
         Util.arrayCopyNonAtomic(out, (short)(outOffset + j), out, outOffset, resultLength);
@@ -82,24 +94,31 @@ public class Base58 {
         j = inLength;
         startAt = zeroCount;
         while (startAt < inLength) {
-            short remainder = 0;
+            // Divide by 256 * 256, the remainders are the next two bytes
+            short remainder = 0, remainder2 = 0;
             short divLoop;
             for (divLoop = startAt ; divLoop < inLength; divLoop++) {
-                short digit256 = (short)(scratch[(short)(scratchOffset + divLoop)] & 0xff);
-                short tmpDiv = (short)(remainder * 58 + digit256);
-                scratch[(short)(scratchOffset + divLoop)] = (byte)(tmpDiv / 256);
-                remainder = (short)(tmpDiv % 256);
+                short tmpDiv = (short)(remainder * 58 + scratch[(short)(scratchOffset + divLoop)]);
+                short quotient = (short)(tmpDiv >> 8);
+                remainder = (short)(tmpDiv & 0xff);
+                tmpDiv = (short)(remainder2 * 58 + quotient);
+                remainder2 = (short)(tmpDiv & 0xff);
+                scratch[(short)(scratchOffset + divLoop)] = (byte)(tmpDiv >> 8);
             }
-            if (scratch[(short)(scratchOffset + startAt)] == 0) {
+            while ((startAt < inLength) && (scratch[(short)(scratchOffset + startAt)] == 0)) {
                 ++startAt;
             }
             out[(short)(outOffset + --j)] = (byte)remainder;
+            if ((startAt < inLength) || (remainder2 != 0)) {
+                out[(short)(outOffset + --j)] = (byte)remainder2;
+            }
         }
-        while ((j < inLength) && (out[(short)(outOffset + j)] == 0)) {
-            j++;
+        // Leading '1's stand for zero bytes
+        while (--zeroCount >= 0) {
+            out[(short)(outOffset + --j)] = 0;
         }
-        short resultLength = (short)(inLength - (j - zeroCount));
-        Util.arrayCopyNonAtomic(out, (short)(outOffset + j - zeroCount), out, outOffset, resultLength);
+        short resultLength = (short)(inLength - j);
+        Util.arrayCopyNonAtomic(out, (short)(outOffset + j), out, outOffset, resultLength);
         return resultLength;
       }
       catch(Throwable t) {
@@ -89,13 +89,21 @@ public class Crypto {
         key.setK(SECP256K1_K);
     }
     
-    public static void hashRipemd32(byte[] buffer, short offset, byte[] target, short targetOffset) {
+    /**
+     * RIPEMD-160 of any length. Without a native digest, 32 bytes (a SHA-256
+     * digest, as in every hash160) go to the unrolled fast path.
+     */
+    public static void hashRipemd(byte[] buffer, short offset, short length, byte[] target, short targetOffset) {
         if (digestRipemd != null) {
-            digestRipemd.doFinal(buffer, offset, (short)32, target, targetOffset);
+            digestRipemd.doFinal(buffer, offset, length, target, targetOffset);
         }
-        else {
+        else if (length == (short)32) {
             Ripemd160.hash32(buffer, offset, target, targetOffset);
         }
+        else {
+            Ripemd160.reset();
+            Ripemd160.doFinal(buffer, offset, length, target, targetOffset);
+        }
     }
     
     public static void signTransientPrivate(byte[] keyBuffer, short keyOffset, byte[] dataBuffer, short dataOffset, byte[] targetBuffer, short targetOffset) {
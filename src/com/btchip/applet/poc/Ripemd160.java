@@ -4,7 +4,14 @@ import javacard.framework.Util;
 public class Ripemd160 {
     public static void init() {
         scratch = JCSystem.makeTransientByteArray((short)BLOCK_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        state = JCSystem.makeTransientShortArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        words = JCSystem.makeTransientShortArray((short)32, JCSystem.CLEAR_ON_DESELECT);
+        work = JCSystem.makeTransientShortArray((short)20, JCSystem.CLEAR_ON_DESELECT);
     }
+    /**
+     * Exactly 32 bytes, unrolled. Shares the block buffer with the streaming
+     * functions below, so it abandons a hash in progress.
+     */
     public static void hash32(byte[] buffer, short offset, byte[] target, short targetOffset)
     {
       byte i;
@@ -19,8 +26,10 @@ public class Ripemd160 {
       H3HIGH = (short)0x1032; H3LOW = (short)0x5476;
       H4HIGH = (short)0xC3D2; H4LOW = (short)0xE1F0;
       Util.arrayCopyNonAtomic(buffer, offset, scratch, (short)0, (short)32);
+      Util.arrayFillNonAtomic(scratch, (short)32, (short)32, (byte)0x00);
       scratch[32] = (byte)0x80;
       scratch[64 - 7] = (byte)0x01;
+      offset = (short)0;
       for (i = 0; i < 16; i++) {
         short low = (short)((scratch[offset++] & 0xff) | ((scratch[offset++] & 0xff) << 8));
         short high = (short)((scratch[offset++] & 0xff) | ((scratch[offset++] & 0xff) << 8));
@@ -204,6 +213,174 @@ public class Ripemd160 {
       target[targetOffset++] = (byte)(H3LOW); target[targetOffset++] = (byte)(H3LOW >>> 8); target[targetOffset++] = (byte)(H3HIGH); target[targetOffset++] = (byte)(H3HIGH >>> 8);
       target[targetOffset++] = (byte)(H4LOW); target[targetOffset++] = (byte)(H4LOW >>> 8); target[targetOffset++] = (byte)(H4HIGH); target[targetOffset++] = (byte)(H4HIGH >>> 8);
     }
+    /**
+     * Starts a hash of any length, fed with update() and finished with
+     * doFinal().
+     */
+    public static void reset() {
+        for (short i = 0; i < (short)10; i++) {
+            state[i] = IV[i];
+        }
+        state[COUNT_HIGH] = (short)0;
+        state[COUNT_LOW] = (short)0;
+    }
+    public static void update(byte[] in, short inOffset, short length) {
+        short buffered = (short)(state[COUNT_LOW] & (short)(BLOCK_SIZE - 1));
+        short count = (short)(state[COUNT_LOW] + length);
+        if ((short)(count ^ (short)0x8000) < (short)(state[COUNT_LOW] ^ (short)0x8000)) {
+            state[COUNT_HIGH]++;
+        }
+        state[COUNT_LOW] = count;
+        while (length > 0) {
+            // whole blocks are compressed where they are
+            if ((buffered == 0) && (length >= BLOCK_SIZE)) {
+                compress(in, inOffset);
+                inOffset += BLOCK_SIZE;
+                length -= BLOCK_SIZE;
+                continue;
+            }
+            short chunk = (short)(BLOCK_SIZE - buffered);
+            if (chunk > length) {
+                chunk = length;
+            }
+            Util.arrayCopyNonAtomic(in, inOffset, scratch, buffered, chunk);
+            inOffset += chunk;
+            length -= chunk;
+            buffered += chunk;
+            if (buffered == BLOCK_SIZE) {
+                compress(scratch, (short)0);
+                buffered = (short)0;
+            }
+        }
+    }
+    public static void doFinal(byte[] in, short inOffset, short length, byte[] target, short targetOffset) {
+        update(in, inOffset, length);
+        short buffered = (short)(state[COUNT_LOW] & (short)(BLOCK_SIZE - 1));
+        scratch[buffered++] = (byte)0x80;
+        if (buffered > (short)(BLOCK_SIZE - 8)) {
+            Util.arrayFillNonAtomic(scratch, buffered, (short)(BLOCK_SIZE - buffered), (byte)0x00);
+            compress(scratch, (short)0);
+            buffered = (short)0;
+        }
+        Util.arrayFillNonAtomic(scratch, buffered, (short)(BLOCK_SIZE - buffered), (byte)0x00);
+        // length in bits, little endian
+        short low = state[COUNT_LOW], high = state[COUNT_HIGH];
+        scratch[56] = (byte)(low << 3);
+        scratch[57] = (byte)(low >> 5);
+        scratch[58] = (byte)(((low >> 13) & 0x07) | (high << 3));
+        scratch[59] = (byte)(high >> 5);
+        scratch[60] = (byte)((high >> 13) & 0x07);
+        compress(scratch, (short)0);
+        for (short i = 0; i < (short)10; i += 2) {
+            target[targetOffset++] = (byte)(state[(short)(i + 1)]);
+            target[targetOffset++] = (byte)(state[(short)(i + 1)] >> 8);
+            target[targetOffset++] = (byte)(state[i]);
+            target[targetOffset++] = (byte)(state[i] >> 8);
+        }
+        reset();
+    }
+    private static void compress(byte[] block, short offset) {
+        short i;
+        // words as high, low
+        for (i = 0; i < (short)32; i += 2) {
+            words[(short)(i + 1)] = (short)((block[offset] & 0xff) | ((block[(short)(offset + 1)] & 0xff) << 8));
+            words[i] = (short)((block[(short)(offset + 2)] & 0xff) | ((block[(short)(offset + 3)] & 0xff) << 8));
+            offset += 4;
+        }
+        for (i = 0; i < (short)10; i++) {
+            work[i] = state[i];
+            work[(short)(i + 10)] = state[i];
+        }
+        line((short)0, R, S, false);
+        line((short)10, Rp, Sp, true);
+        // H0 = H1 + C + D', H1 = H2 + D + E', ..., H4 = H0 + B + C'
+        short h0High = state[0], h0Low = state[1];
+        for (i = 0; i < (short)10; i += 2) {
+            short left = (short)((short)(i + 4) % 10), right = (short)(10 + (short)((short)(i + 6) % 10));
+            short high, low;
+            if (i == (short)8) {
+                high = h0High;
+                low = h0Low;
+            }
+            else {
+                high = state[(short)(i + 2)];
+                low = state[(short)(i + 3)];
+            }
+            short sumLow = (short)(low + work[(short)(left + 1)]);
+            high += work[left];
+            if ((short)(sumLow ^ (short)0x8000) < (short)(low ^ (short)0x8000)) {
+                high++;
+            }
+            low = (short)(sumLow + work[(short)(right + 1)]);
+            high += work[right];
+            if ((short)(low ^ (short)0x8000) < (short)(sumLow ^ (short)0x8000)) {
+                high++;
+            }
+            state[i] = high;
+            state[(short)(i + 1)] = low;
+        }
+    }
+    /**
+     * The 80 steps of one line on the A to E at work[w], the round function
+     * and constant picked from the step.
+     */
+    private static void line(short w, short[] r, short[] s, boolean right) {
+        short aH = work[w], aL = work[(short)(w + 1)], bH = work[(short)(w + 2)], bL = work[(short)(w + 3)];
+        short cH = work[(short)(w + 4)], cL = work[(short)(w + 5)], dH = work[(short)(w + 6)], dL = work[(short)(w + 7)];
+        short eH = work[(short)(w + 8)], eL = work[(short)(w + 9)];
+        short tH, tL, xH, xL, kH, kL, sum, rot, msk;
+        for (short i = 0; i < (short)80; i++) {
+            short round = (short)(i >> 4);
+            if (right) {
+                round = (short)(4 - round);
+            }
+            switch(round) {
+                case 0:
+                    tH = (short)(bH ^ cH ^ dH); tL = (short)(bL ^ cL ^ dL);
+                    break;
+                case 1:
+                    tH = (short)((bH & cH) | (~bH & dH)); tL = (short)((bL & cL) | (~bL & dL));
+                    break;
+                case 2:
+                    tH = (short)((bH | ~cH) ^ dH); tL = (short)((bL | ~cL) ^ dL);
+                    break;
+                case 3:
+                    tH = (short)((bH & dH) | (cH & ~dH)); tL = (short)((bL & dL) | (cL & ~dL));
+                    break;
+                default:
+                    tH = (short)(bH ^ (cH | ~dH)); tL = (short)(bL ^ (cL | ~dL));
+                    break;
+            }
+            // T + A + X + K, the low halves summed a byte at a time for the carry
+            xH = words[(short)(r[i] << 1)]; xL = words[(short)((r[i] << 1) + 1)];
+            kH = (short)((right ? 10 : 0) + (round << 1));
+            kL = K[(short)(kH + 1)]; kH = K[kH];
+            sum = (short)((tL & 0xff) + (aL & 0xff) + (xL & 0xff) + (kL & 0xff));
+            tL = (short)(((tL >> 8) & 0xff) + ((aL >> 8) & 0xff) + ((xL >> 8) & 0xff) + ((kL >> 8) & 0xff) + ((sum >> 8) & 0xff));
+            tH = (short)(tH + aH + xH + kH + ((tL >> 8) & 0xff));
+            tL = (short)((tL << 8) | (sum & 0xff));
+            // rotate left and add E
+            rot = s[i]; msk = mask[rot];
+            sum = (short)((tH << rot) | (msk & (short)(tL >>> (short)(16 - rot))));
+            tL = (short)((tL << rot) | (msk & (short)(tH >>> (short)(16 - rot))));
+            tH = (short)(sum + eH);
+            sum = (short)(tL + eL);
+            if ((short)(sum ^ (short)0x8000) < (short)(tL ^ (short)0x8000)) {
+                tH++;
+            }
+            tL = sum;
+            aH = eH; aL = eL;
+            eH = dH; eL = dL;
+            msk = mask[10];
+            dH = (short)((cH << 10) | (msk & (short)(cL >>> 6)));
+            dL = (short)((cL << 10) | (msk & (short)(cH >>> 6)));
+            cH = bH; cL = bL;
+            bH = tH; bL = tL;
+        }
+        work[w] = aH; work[(short)(w + 1)] = aL; work[(short)(w + 2)] = bH; work[(short)(w + 3)] = bL;
+        work[(short)(w + 4)] = cH; work[(short)(w + 5)] = cL; work[(short)(w + 6)] = dH; work[(short)(w + 7)] = dL;
+        work[(short)(w + 8)] = eH; work[(short)(w + 9)] = eL;
+    }
     private static final short[] R = {
         0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
         7, 4, 13, 1, 10, 6, 15, 3, 12, 0, 9, 5, 2, 14, 11, 8,
@@ -235,5 +412,21 @@ public class Ripemd160 {
         (short)0x00FF, (short)0x01FF, (short)0x03FF, (short)0x07FF,
         (short)0x0FFF, (short)0x1FFF, (short)0x3FFF, (short)0x7FFF,
     };
+    private static final short[] IV = {
+        (short)0x6745, (short)0x2301, (short)0xEFCD, (short)0xAB89, (short)0x98BA,
+        (short)0xDCFE, (short)0x1032, (short)0x5476, (short)0xC3D2, (short)0xE1F0 };
+    // left line constants, then the right line ones in reverse order
+    private static final short[] K = {
+        (short)0x0000, (short)0x0000, (short)0x5A82, (short)0x7999, (short)0x6ED9,
+        (short)0xEBA1, (short)0x8F1B, (short)0xBCDC, (short)0xA953, (short)0xFD4E,
+        (short)0x0000, (short)0x0000, (short)0x7A6D, (short)0x76E9, (short)0x6D70,
+        (short)0x3EF3, (short)0x5C4D, (short)0xD124, (short)0x50A2, (short)0x8BE6 };
+    // H0 to H4 as high, low, then the byte count
+    private static short[] state;
+    private static short[] words;
+    private static short[] work;
+    private static final short COUNT_HIGH = (short)10;
+    private static final short COUNT_LOW = (short)11;
+    private static final short STATE_SIZE = (short)12;
     private static final byte BLOCK_SIZE = 64;
 }
@@ -73,6 +73,10 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	// = 268 bytes
 	private final static short EXT_APDU_BUFFER_SIZE = (short) 268;
 
+	// Default size of the DL_TRANSIENT buffer of ComputeCrypt(): the input
+	// and the output of a 2048 bit key, with the output size field
+	private final static short CRYPT_BUFFER_SIZE = (short) (256 + 2 + 256);
+
 	// Minimum PIN size
 	private final static byte PIN_MIN_SIZE = (byte) 4;
 	// Maximum PIN size
@@ -129,6 +133,7 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	private final static byte INS_DELETE_OBJ = (byte) 0x52;
 	private final static byte INS_READ_OBJ = (byte) 0x56;
 	private final static byte INS_WRITE_OBJ = (byte) 0x54;
+	private final static byte INS_COMPACT_MEM = (byte) 0x5E;
 
 	// Status information
 	private final static byte INS_LIST_OBJECTS = (byte) 0x58;
@@ -212,8 +217,11 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	private final static byte CM_DES_ECB_NOPAD = (byte) 0x21;
 	private final static byte DL_APDU = (byte) 0x01;
 	private final static byte DL_OBJECT = (byte) 0x02;
+	private final static byte DL_TRANSIENT = (byte) 0x03;
 	private final static byte LIST_OPT_RESET = (byte) 0x00;
 	private final static byte LIST_OPT_NEXT = (byte) 0x01;
+	// P2 of ListObjects() and ListKeys(): as many records as fit in Le
+	private final static byte LIST_OPT_BULK = (byte) 0x01;
 
 	private final static byte OPT_DEFAULT = (byte) 0x00; // Use JC defaults
 	private final static byte OPT_RSA_PUB_EXP = (byte) 0x01; // RSA: provide public exponent
@@ -267,6 +275,13 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	// Buffer for storing extended APDUs
 	private byte[] recvBuffer;
 
+	// RAM data location of ComputeCrypt(), null if not available
+	private byte[] cryptBuffer;
+	// Bytes of input in cryptBuffer and the key they are for
+	private short[] cryptState;
+	private final static byte CRYPT_FILL = (byte) 0;
+	private final static byte CRYPT_KEY = (byte) 1;
+
 	/*
 	 * Logged identities: this is used for faster access control, so we don't
 	 * have to ping each PIN object
@@ -286,6 +301,24 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	private CardEdge(byte[] bArray, short bOffset, byte bLength) {
 	        ublk_pins = new OwnerPIN[MAX_NUM_PINS];
 	        pins = new OwnerPIN[MAX_NUM_PINS];
+		// Application parameters: size of the DL_TRANSIENT buffer (2 bytes,
+		// 0 for none)
+		short size = CRYPT_BUFFER_SIZE;
+		short end = (short) (bOffset + bLength);
+		short offset = (short) (bOffset + bArray[bOffset] + 1);
+		if (offset < end) {
+			offset += (short) (bArray[offset] + 1);
+			if ((offset < end) && (bArray[offset] >= (byte) 2))
+				size = Util.getShort(bArray, (short) (offset + 1));
+		}
+		if (size > (short) 0) {
+			try {
+				cryptBuffer = JCSystem.makeTransientByteArray(size, JCSystem.CLEAR_ON_DESELECT);
+			} catch (SystemException e) {
+				// Not enough RAM: DL_TRANSIENT is not supported
+			}
+		}
+		cryptState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
 		// FIXME: something should be done already here, not only with setup APDU
 	}
 
@@ -305,6 +338,7 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 
 		// Destroy the IO objects (if they exist)
 		if (setupDone) {
+			om.finishMove();
 			om.destroyObject(IN_OBJECT_CLA, IN_OBJECT_ID, true);
 			om.destroyObject(OUT_OBJECT_CLA, OUT_OBJECT_ID, true);
 		}
@@ -315,6 +349,7 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	public void deselect() {
 		// Destroy the IO objects (if they exist)
 		if (setupDone) {
+			om.finishMove();
 			om.destroyObject(IN_OBJECT_CLA, IN_OBJECT_ID, true);
 			om.destroyObject(OUT_OBJECT_CLA, OUT_OBJECT_ID, true);
 		}
@@ -340,6 +375,9 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		// check SELECT APDU command
 		if ((buffer[ISO7816.OFFSET_CLA] == 0) && (buffer[ISO7816.OFFSET_INS] == (byte) 0xA4))
 			return;
+		// memory is not usable while a compaction move is pending
+		if (setupDone)
+			om.finishMove();
 		// verify the rest of commands have the
 		// correct CLA byte, which specifies the
 		// command structure
@@ -402,6 +440,9 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		case INS_WRITE_OBJ:
 			WriteObject(apdu, buffer);
 			break;
+		case INS_COMPACT_MEM:
+			CompactMemory(apdu, buffer);
+			break;
 		case INS_LIST_PINS:
 			ListPINs(apdu, buffer);
 			break;
@@ -788,8 +829,11 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 			ciph_dir = buffer[(short) (dataOffset + 1)];
 			byte ciph_alg_id;
 			data_location = buffer[(short) (dataOffset + 2)];
+			cryptState[CRYPT_FILL] = (short) 0;
+			cryptState[CRYPT_KEY] = key_nb;
 			switch (data_location) {
 			case DL_APDU:
+			case DL_TRANSIENT:
 				src_buff = buffer;
 				src_base = (short) (dataOffset + 3);
 				src_avail = (short) (bytesLeft - 3);
@@ -890,6 +934,10 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		case OP_PROCESS:
 		case OP_FINALIZE:
 			ciph_dir = ciph_dirs[key_nb];
+			if (buffer[dataOffset] == DL_TRANSIENT) {
+				ComputeCryptTransient(apdu, buffer, dataOffset, bytesLeft, key_nb, op, ciph_dir);
+				break;
+			}
 			switch (ciph_dir) {
 			case CD_SIGN:
 			case CD_VERIFY:
@@ -995,24 +1043,31 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 				size = Util.getShort(src_buff, src_base);
 				if (src_avail < (short) (2 + size))
 					ISOException.throwIt(SW_INVALID_PARAMETER);
+				// RSA gives a block of the key size, DES as much as it gets
+				short out_max = (short) ((short) (key.getSize() + 7) / 8);
+				if (out_max < size)
+					out_max = size;
 				// TODO: Don't destroy the out obj every time, but keep it
 				om.destroyObject(OUT_OBJECT_CLA, OUT_OBJECT_ID, true);
 				// Create object with 2 more bytes for DataChunk Size field
-				short dst_base = om.createObject(OUT_OBJECT_CLA, OUT_OBJECT_ID, (short) (size + 2), getCurrentACL(),
-						(short) 0);
+				short dst_base = om.createObject(OUT_OBJECT_CLA, OUT_OBJECT_ID, (short) (out_max + 2),
+						getCurrentACL(), (short) 0);
 				if (dst_base == MemoryManager.NULL_OFFSET)
 					ISOException.throwIt(SW_NO_MEMORY_LEFT);
-				mem.setShort(dst_base, size);
+				short out_size;
 				if (op == OP_PROCESS)
-					ciph.update(src_buff, (short) (src_base + 2), size, mem.getBuffer(), (short) (dst_base + 2));
+					out_size = ciph.update(src_buff, (short) (src_base + 2), size, mem.getBuffer(),
+							(short) (dst_base + 2));
 				else
 					/* op == OP_FINAL */
-					ciph.doFinal(src_buff, (short) (src_base + 2), size, mem.getBuffer(), (short) (dst_base + 2));
+					out_size = ciph.doFinal(src_buff, (short) (src_base + 2), size, mem.getBuffer(),
+							(short) (dst_base + 2));
+				mem.setShort(dst_base, out_size);
 				if (data_location == DL_APDU) {
 					// Also copies the Short size information
-					Util.arrayCopyNonAtomic(mem.getBuffer(), dst_base, buffer, (short) 0, (short) (size + 2));
+					Util.arrayCopyNonAtomic(mem.getBuffer(), dst_base, buffer, (short) 0, (short) (out_size + 2));
 					om.destroyObject(OUT_OBJECT_CLA, OUT_OBJECT_ID, true);
-					sendData(apdu, buffer, (short) 0, (short) (size + 2));
+					sendData(apdu, buffer, (short) 0, (short) (out_size + 2));
 				}
 				break;
 			default:
@@ -1025,6 +1080,86 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		}
 	}
 
+	/*
+	 * OP_PROCESS and OP_FINALIZE of ComputeCrypt() with DL_TRANSIENT: the data
+	 * chunk follows the location byte as with DL_APDU. OP_PROCESS only appends
+	 * it to cryptBuffer; OP_FINALIZE appends the last chunk, runs the whole
+	 * input through the cipher or signature and returns the result as DL_APDU
+	 * does, without writing the IO objects to EEPROM. For CD_VERIFY the
+	 * signature size and signature follow the last chunk. Data that does not
+	 * fit in cryptBuffer needs DL_OBJECT.
+	 */
+	private void ComputeCryptTransient(APDU apdu, byte[] buffer, short dataOffset, short bytesLeft, byte key_nb,
+			byte op, byte ciph_dir) {
+		if (cryptBuffer == null)
+			ISOException.throwIt(SW_UNSUPPORTED_FEATURE);
+		if (cryptState[CRYPT_KEY] != key_nb)
+			ISOException.throwIt(SW_INVALID_PARAMETER);
+		// Skip Data Location byte.
+		short src_base = (short) (dataOffset + 1);
+		short src_avail = (short) (bytesLeft - 1);
+		if (src_avail < 2)
+			ISOException.throwIt(SW_INVALID_PARAMETER);
+		short size = Util.getShort(buffer, src_base);
+		if (src_avail < (short) (2 + size))
+			ISOException.throwIt(SW_INVALID_PARAMETER);
+		short fill = cryptState[CRYPT_FILL];
+		if (size > (short) (cryptBuffer.length - fill))
+			ISOException.throwIt(SW_NO_MEMORY_LEFT);
+		Util.arrayCopyNonAtomic(buffer, (short) (src_base + 2), cryptBuffer, fill, size);
+		fill += size;
+		if (op == OP_PROCESS) {
+			cryptState[CRYPT_FILL] = fill;
+			return;
+		}
+		cryptState[CRYPT_FILL] = (short) 0;
+		// The output goes after the input, preceded by its size
+		short dst_base = fill;
+		short out_size = (short) 0;
+		switch (ciph_dir) {
+		case CD_SIGN:
+		case CD_VERIFY:
+			Signature sign = signatures[key_nb];
+			if (sign == null)
+				ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			if (ciph_dir == CD_VERIFY) {
+				short sign_base = (short) (src_base + 2 + size);
+				if (src_avail < (short) (2 + size + 2))
+					ISOException.throwIt(SW_INVALID_PARAMETER);
+				short sign_size = Util.getShort(buffer, sign_base);
+				if (src_avail < (short) (2 + size + 2 + sign_size))
+					ISOException.throwIt(SW_INVALID_PARAMETER);
+				if (sign_size != sign.getLength())
+					ISOException.throwIt(SW_INVALID_PARAMETER);
+				if (!sign.verify(cryptBuffer, (short) 0, fill, buffer, (short) (sign_base + 2), sign_size))
+					ISOException.throwIt(SW_SIGNATURE_INVALID);
+				return;
+			}
+			if ((short) (dst_base + 2 + sign.getLength()) > (short) cryptBuffer.length)
+				ISOException.throwIt(SW_NO_MEMORY_LEFT);
+			out_size = sign.sign(cryptBuffer, (short) 0, fill, cryptBuffer, (short) (dst_base + 2));
+			break;
+		case CD_ENCRYPT:
+		case CD_DECRYPT:
+			Cipher ciph = ciphers[key_nb];
+			if (ciph == null)
+				ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			// as for the output object in ComputeCrypt()
+			short out_max = (short) ((short) (keys[key_nb].getSize() + 7) / 8);
+			if (out_max < fill)
+				out_max = fill;
+			if ((short) (dst_base + 2 + out_max) > (short) cryptBuffer.length)
+				ISOException.throwIt(SW_NO_MEMORY_LEFT);
+			out_size = ciph.doFinal(cryptBuffer, (short) 0, fill, cryptBuffer, (short) (dst_base + 2));
+			break;
+		default:
+			// Internal error because it should have been checked on INIT
+			ISOException.throwIt(SW_INTERNAL_ERROR);
+		}
+		Util.setShort(cryptBuffer, dst_base, out_size);
+		sendData(apdu, cryptBuffer, dst_base, (short) (out_size + 2));
+	}
+
 	private void GenerateKeyPair(APDU apdu, byte[] buffer) {
 		short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
 		if (bytesLeft != apdu.setIncomingAndReceive())
@@ -1852,6 +1987,25 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		mem.setBytes(base, offset, buffer, (short) (ISO7816.OFFSET_CDATA + 9), size);
 	}
 
+	/*
+	 * Defragments the object memory. Requires the same identities as
+	 * CreateObject(). Returns the size of the greatest free chunk before and
+	 * after compaction.
+	 */
+	private void CompactMemory(APDU apdu, byte[] buffer) {
+		if (buffer[ISO7816.OFFSET_P1] != (byte) 0x00)
+			ISOException.throwIt(SW_INCORRECT_P1);
+		if (buffer[ISO7816.OFFSET_P2] != (byte) 0x00)
+			ISOException.throwIt(SW_INCORRECT_P2);
+		if ((create_object_ACL == (byte) 0xFF)
+				|| (((logged_ids & create_object_ACL) == (short) 0x0000) && (create_object_ACL != (byte) 0x00)))
+			ISOException.throwIt(SW_UNAUTHORIZED);
+		Util.setShort(buffer, (short) 0, mem.getMaxSize());
+		om.compact();
+		Util.setShort(buffer, (short) 2, mem.getMaxSize());
+		apdu.setOutgoingAndSend((short) 0, (short) 4);
+	}
+
 	private void LogOutAll() {
 		logged_ids = (short) 0x0000; // Nobody is logged in
 		byte i;
@@ -1883,6 +2037,10 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 
 	private void ListObjects(APDU apdu, byte[] buffer) {
 		// Checking P1 & P2
+		if (buffer[ISO7816.OFFSET_P2] == LIST_OPT_BULK) {
+			ListObjectsBulk(apdu, buffer);
+			return;
+		}
 		if (buffer[ISO7816.OFFSET_P2] != (byte) 0x00)
 			ISOException.throwIt(SW_INCORRECT_P2);
 		byte expectedBytes = (byte) (buffer[ISO7816.OFFSET_LC]);
@@ -1901,8 +2059,46 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 			ISOException.throwIt(SW_SEQUENCE_END);
 	}
 
+	/*
+	 * Bulk ListObjects(): returns the records of as many objects as fit in Le,
+	 * all of them with an extended Le, sent from the APDU buffer a few at a
+	 * time. P1 resets or continues the iterator as for single records; a
+	 * response with fewer records than fit in Le ends the list.
+	 */
+	private void ListObjectsBulk(APDU apdu, byte[] buffer) {
+		if (buffer[ISO7816.OFFSET_P1] == LIST_OPT_RESET)
+			om.resetIterator();
+		else if (buffer[ISO7816.OFFSET_P1] != LIST_OPT_NEXT)
+			ISOException.throwIt(SW_INCORRECT_P1);
+		short count = om.getRecordsLeft();
+		if (count == (short) 0)
+			ISOException.throwIt(SW_SEQUENCE_END);
+		short le = apdu.setOutgoing();
+		// a short Le is at most 256
+		if ((apdu.getOffsetCdata() == ISO7816.OFFSET_CDATA) && (le > (short) 256))
+			le = (short) 256;
+		short max = (short) (le / ObjectManager.RECORD_SIZE);
+		if (max == (short) 0)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		if (count > max)
+			count = max;
+		apdu.setOutgoingLength((short) (count * ObjectManager.RECORD_SIZE));
+		short chunk = (short) (buffer.length / ObjectManager.RECORD_SIZE);
+		while (count > (short) 0) {
+			short n = count < chunk ? count : chunk;
+			for (short i = (short) 0; i < n; i++)
+				om.getNextRecord(buffer, (short) (i * ObjectManager.RECORD_SIZE));
+			apdu.sendBytes((short) 0, (short) (n * ObjectManager.RECORD_SIZE));
+			count -= n;
+		}
+	}
+
 	private void ListKeys(APDU apdu, byte[] buffer) {
 		// Checking P2
+		if (buffer[ISO7816.OFFSET_P2] == LIST_OPT_BULK) {
+			ListKeysBulk(apdu, buffer);
+			return;
+		}
 		if (buffer[ISO7816.OFFSET_P2] != (byte) 0x00)
 			ISOException.throwIt(SW_INCORRECT_P2);
 		short expectedBytes = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
@@ -1927,6 +2123,37 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		}
 	}
 
+	/*
+	 * Bulk ListKeys(): the entries of as many keys as fit in Le, one after the
+	 * other. All keys fit in a short response. Past the last key the status
+	 * is SW_SEQUENCE_END, as for ListObjectsBulk().
+	 */
+	private void ListKeysBulk(APDU apdu, byte[] buffer) {
+		if (buffer[ISO7816.OFFSET_P1] == LIST_OPT_RESET)
+			key_it = (byte) 0;
+		else if (buffer[ISO7816.OFFSET_P1] != LIST_OPT_NEXT)
+			ISOException.throwIt(SW_INCORRECT_P1);
+		short le = apdu.setOutgoing();
+		short len = (short) 0;
+		byte it = key_it;
+		for (; it < MAX_NUM_KEYS && (short) (len + 5 + KEY_ACL_SIZE) <= le; it++) {
+			Key key = keys[it];
+			if ((key == null) || !key.isInitialized())
+				continue;
+			buffer[len] = it;
+			buffer[(short) (len + 1)] = getKeyType(key);
+			buffer[(short) (len + 2)] = (byte) 0xFF; // No partner information available
+			Util.setShort(buffer, (short) (len + 3), key.getSize());
+			Util.arrayCopyNonAtomic(keyACLs, (short) (it * KEY_ACL_SIZE), buffer, (short) (len + 5), KEY_ACL_SIZE);
+			len += (short) (5 + KEY_ACL_SIZE);
+		}
+		key_it = it;
+		if (len == (short) 0)
+			ISOException.throwIt(SW_SEQUENCE_END);
+		apdu.setOutgoingLength(len);
+		apdu.sendBytes((short) 0, len);
+	}
+
 	private void GetChallenge(APDU apdu, byte[] buffer) {
 		if (buffer[ISO7816.OFFSET_P1] != (byte) 0x00)
 			ISOException.throwIt(SW_INCORRECT_P1);
@@ -1,5 +1,6 @@
 package com.musclecard.CardEdge;
 
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 /**
@@ -14,10 +15,14 @@ import javacard.framework.Util;
  * array on demand.
  * <p>
  * 
- * No defragmentation is done, actually.
+ * Allocation is best-fit over the free list, which is kept sorted by offset.
  * <p>
  * Consecutive freed memory chunks are recompacted.
  * <p>
+ * Defragmentation is only done on demand, one block at a time, through
+ * compactStep() and endMove(): the owner of the allocated blocks is
+ * responsible for fixing up the offsets it holds (see ObjectManager.compact()).
+ * <p>
  * 
  * Every allocation takes 2 more bytes to store the allocated block size, just
  * before the allocated offset.
@@ -41,6 +46,18 @@ public class MemoryManager {
 	private byte ptr[] = null;
 	// Free memory list
 	private short free_head = NULL_OFFSET;
+	// Bytes of the commit buffer kept for the journal overhead and the move
+	// record, when copying a chunk of a block in a transaction
+	private final static short COMMIT_MARGIN = (short) 32;
+	// Block being moved by compactStep(), until endMove(): move_size is zero
+	// when there is none, and is written last when a move starts
+	private short move_from = NULL_OFFSET;
+	private short move_to = NULL_OFFSET;
+	private short move_size = (short) 0;
+	private short move_done = (short) 0;
+	// Free chunk following the one the block is moved into, whose node is
+	// overwritten by the move
+	private short move_next = NULL_OFFSET;
 
 	/**
 	 * Constructor for the MemoryManager class
@@ -87,54 +104,159 @@ public class MemoryManager {
 		if (size < NODE_SIZE)
 			size = NODE_SIZE;
 
-		// Search the free mem list for a suitable location
-		// (no special memory management policies, at the moment)
+		// Search the whole free mem list for the smallest suitable location
+		// (best-fit), stopping early on a chunk that leaves no usable node
+		short best = NULL_OFFSET;
+		short best_prev = NULL_OFFSET;
+		short best_size = (short) 0;
 		while (offset != NULL_OFFSET) {
-			// System.out.println(offset);
 			short free_size = Util.getShort(ptr, offset);
+			if ((free_size >= size) && ((best == NULL_OFFSET) || (free_size < best_size))) {
+				best = offset;
+				best_prev = prev;
+				best_size = free_size;
+				if ((short) (free_size - size) < NODE_SIZE)
+					break;
+			}
+			prev = offset;
+			offset = Util.getShort(ptr, (short) (offset + 2));
+		}
+		if (best == NULL_OFFSET)
+			/* No memory found ! */
+			return NULL_OFFSET;
+
+		// We've got it
+		offset = best;
+		short remain = (short) (best_size - size);
+		if (remain >= NODE_SIZE) {
+			/*
+			 * There's enough space for a new free mem node; * - just clamp this
+			 * node (it won't move) * - previous node doesn't change at all
+			 */
+			Util.setShort(ptr, offset, remain);
+		} else {
+			/*
+			 * Not enough space for a new free mem node; * - just allocate all
+			 * the node's space * - previous node must skip to the next one
+			 */
 			short next_offset = Util.getShort(ptr, (short) (offset + 2));
-			// System.out.println(free_size);
-			// System.out.println(next_offset);
-			if (free_size >= size) {
-				// We've got it
-				short remain = (short) (free_size - size);
-				if (remain >= NODE_SIZE) {
-					/*
-					 * There's enough space for a new free mem node; * - just
-					 * clamp this node (it won't move) * - previous node doesn't
-					 * change at all
-					 */
-					Util.setShort(ptr, offset, remain);
-				} else {
-					/*
-					 * Not enough space for a new free mem node; * - just
-					 * allocate all the node's space * - previous node must skip
-					 * to the next one
-					 */
-					size = free_size;
-					remain = (short) 0;
-					if (prev == NULL_OFFSET) {
-						// No previous: it was the 1st
-						free_head = next_offset;
-					} else {
-						// Previous: set it's next offset field
-						Util.setShort(ptr, (short) (prev + 2), next_offset);
-					}
-				}
-				/*
-				 * Write the memory block size and skip it * while returning
-				 * allocated offset (from * the tail of the free space)
-				 */
-				Util.setShort(ptr, (short) (offset + remain), size);
-				return (short) (offset + remain + 2);
+			size = best_size;
+			remain = (short) 0;
+			if (best_prev == NULL_OFFSET) {
+				// No previous: it was the 1st
+				free_head = next_offset;
 			} else {
-				// Go to next list node
-				prev = offset;
-				offset = next_offset;
+				// Previous: set it's next offset field
+				Util.setShort(ptr, (short) (best_prev + 2), next_offset);
 			}
 		}
-		/* No memory found ! */
-		return NULL_OFFSET;
+		/*
+		 * Write the memory block size and skip it * while returning allocated
+		 * offset (from * the tail of the free space)
+		 */
+		Util.setShort(ptr, (short) (offset + remain), size);
+		return (short) (offset + remain + 2);
+	}
+
+	/**
+	 * Performs one defragmentation step
+	 * <p>
+	 * The allocated block which immediately follows the lowest free chunk is
+	 * slid down to the start of that chunk; endMove() then moves the chunk up
+	 * (and recompacts it with the next free chunk, if they become adjacent).
+	 * Repeating this until it returns NULL_OFFSET leaves a single free chunk
+	 * at the end of the memory.
+	 * <p>
+	 * The block is copied in pieces that fit in the unused commit buffer, each
+	 * in its own transaction together with the progress of the move, so blocks
+	 * larger than the commit buffer can be moved. An interrupted move is
+	 * resumed by the next call. Until endMove() the free list is not usable:
+	 * the caller must not allocate or free memory in between, and must call
+	 * this method outside of a transaction.
+	 * <p>
+	 * Every offset previously returned by alloc() for the moved block becomes
+	 * invalid: callers must fix them up, in the same transaction as endMove().
+	 *
+	 * @return The new offset of the moved block (its old offset was higher by
+	 *         getLastShift() bytes), or NULL_OFFSET if memory is already
+	 *         compact
+	 * @see #endMove
+	 * @see #getLastShift
+	 */
+	public short compactStep() {
+		if (move_size == (short) 0) {
+			short hole = free_head;
+			if (hole == NULL_OFFSET)
+				return NULL_OFFSET;
+			short block = (short) (hole + Util.getShort(ptr, hole));
+			if (block == (short) ptr.length)
+				// The only free chunk is already at the end
+				return NULL_OFFSET;
+			// Record the move; it is pending once move_size is set
+			move_from = block;
+			move_to = hole;
+			move_next = Util.getShort(ptr, (short) (hole + 2));
+			move_done = (short) 0;
+			// Free chunks never touch each other: block is an allocated one
+			move_size = Util.getShort(ptr, block);
+		}
+		while (move_done < move_size) {
+			short chunk = (short) (move_size - move_done);
+			short room = (short) (JCSystem.getUnusedCommitCapacity() - COMMIT_MARGIN);
+			if (room < NODE_SIZE)
+				room = NODE_SIZE;
+			if (chunk > room)
+				chunk = room;
+			// Slide a piece down (source and destination may overlap, the
+			// bytes overwritten have all been copied already)
+			JCSystem.beginTransaction();
+			Util.arrayCopy(ptr, (short) (move_from + move_done), ptr, (short) (move_to + move_done), chunk);
+			move_done += chunk;
+			JCSystem.commitTransaction();
+		}
+		return (short) (move_to + 2);
+	}
+
+	/**
+	 * Completes the move of compactStep(): puts the free chunk after the moved
+	 * block. To be called in a transaction, with the fix ups of the offsets of
+	 * the moved block.
+	 *
+	 * @see #compactStep
+	 */
+	public void endMove() {
+		short hole = (short) (move_to + move_size);
+		short hole_size = (short) (move_from - move_to);
+		short next = move_next;
+		if ((short) (hole + hole_size) == next) {
+			// Recompact with next
+			hole_size += Util.getShort(ptr, next);
+			next = Util.getShort(ptr, (short) (next + 2));
+		}
+		Util.setShort(ptr, hole, hole_size);
+		Util.setShort(ptr, (short) (hole + 2), next);
+		free_head = hole;
+		move_size = (short) 0;
+	}
+
+	/**
+	 * Tells whether a move started by compactStep() is waiting for endMove()
+	 *
+	 * @return True if compactStep() must be called again before using the
+	 *         memory
+	 */
+	public boolean isMoving() {
+		return move_size != (short) 0;
+	}
+
+	/**
+	 * Gets the distance the block of compactStep() is moved by
+	 *
+	 * @return The number of bytes the block is moved down by
+	 * @see #compactStep
+	 */
+	public short getLastShift() {
+		return (short) (move_from - move_to);
 	}
 
 	/**
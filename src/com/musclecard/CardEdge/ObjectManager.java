@@ -4,13 +4,15 @@ import com.musclecard.CardEdge.MemoryManager;
 
 import javacard.framework.Util;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 
 /**
  * Object Manager Class
  * <p>
  * 
- * Objects are linked in a list in the dynamic memory. No smart search is done
- * at the moment.
+ * Objects are linked in a list in the dynamic memory. The list keeps the
+ * iteration order, while lookups by (type, id) go through an ObjectMap hash
+ * table allocated in the same memory.
  * <p>
  * 
  * Object fields:
@@ -50,16 +52,17 @@ public class ObjectManager {
 	public final static short RECORD_SIZE = (short) (4 + 4 + OBJ_ACL_SIZE);
 
 	/**
-	 * Iterator on objects. Stores the offset of the last retrieved object's
-	 * record.
+	 * Iterator on objects. Stores the offset of the next object's record plus
+	 * one, in RAM so that listing does not write to EEPROM; the array cleared
+	 * on deselect reads as the end of the list.
 	 */
-	private short it;
+	private short[] it;
 
 	/** The Memory Manager object */
 	private MemoryManager mem = null;
 
-	/** Map for fast search of objects (unimplemented) */
-	// static Map map;
+	/** Map for fast search of objects */
+	private ObjectMap map = null;
 
 	/** Head of the objects' list */
 	private short obj_list_head = MemoryManager.NULL_OFFSET;
@@ -73,8 +76,9 @@ public class ObjectManager {
 	 */
 	public ObjectManager(MemoryManager mem_ref) {
 		mem = mem_ref;
-		// map = new Map();
+		map = new ObjectMap(mem, (short) mem.getBuffer().length, OBJ_H_CLASS, OBJ_H_ID);
 		obj_list_head = MemoryManager.NULL_OFFSET;
+		it = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
 	}
 
 	/**
@@ -106,7 +110,7 @@ public class ObjectManager {
 		obj_list_head = base;
 
 		/* Add to the map */
-		// map.addEntry(type, id, base);
+		map.addEntry(base);
 
 		// Return base address
 		return (short) (base + OBJ_HEADER_SIZE);
@@ -234,11 +238,15 @@ public class ObjectManager {
 	 *            If true, object memory is zeroed before being released.
 	 */
 	public void destroyObject(short type, short id, boolean secure) {
+		short target = getEntry(type, id);
+		if (target == MemoryManager.NULL_OFFSET)
+			return;
+		// The list is singly linked: we still need the previous node
 		short base = obj_list_head;
 		short prev = MemoryManager.NULL_OFFSET;
 		boolean found = false;
 		while ((!found) && (base != MemoryManager.NULL_OFFSET)) {
-			if ((mem.getShort(base, OBJ_H_CLASS) == type) && (mem.getShort(base, OBJ_H_ID) == id))
+			if (base == target)
 				found = true;
 			else {
 				prev = base;
@@ -246,6 +254,7 @@ public class ObjectManager {
 			}
 		}
 		if (found) {
+			map.removeEntry(base);
 			// Unlink object from the list
 			if (prev != MemoryManager.NULL_OFFSET) {
 				mem.setShort(prev, OBJ_H_NEXT, mem.getShort(base, OBJ_H_NEXT));
@@ -262,14 +271,76 @@ public class ObjectManager {
 		}
 	}
 
+	/**
+	 * Defragments the object memory
+	 * <p>
+	 * Live blocks are slid down one at a time until all the free memory forms
+	 * a single chunk. A block is copied by MemoryManager.compactStep() in
+	 * transactions no larger than the commit buffer; the end of its move,
+	 * together with the fix up of the list link, map entry and iterator
+	 * pointing to it, is done in one more transaction. An interrupted
+	 * compaction leaves at most one move pending, to be completed by
+	 * finishMove() before the memory is used again.
+	 * <p>
+	 * All object base addresses obtained before this call are invalidated:
+	 * callers must look them up again.
+	 */
+	public void compact() {
+		while (compactStep())
+			;
+	}
+
+	/**
+	 * Completes a move left pending by an interrupted compaction, if any
+	 */
+	public void finishMove() {
+		if (mem.isMoving())
+			compactStep();
+	}
+
+	/** Moves one block; returns false if memory is already compact */
+	private boolean compactStep() {
+		short moved = mem.compactStep();
+		if (moved == MemoryManager.NULL_OFFSET)
+			return false;
+		JCSystem.beginTransaction();
+		relocate((short) (moved + mem.getLastShift()), moved);
+		mem.endMove();
+		JCSystem.commitTransaction();
+		return true;
+	}
+
+	/** Fixes up every reference to a block moved from "from" to "to" */
+	private void relocate(short from, short to) {
+		if (map.relocate(from, to))
+			return;
+		// The block is an object header: fix the link pointing to it
+		if (obj_list_head == from)
+			obj_list_head = to;
+		else {
+			short base = obj_list_head;
+			while (base != MemoryManager.NULL_OFFSET) {
+				short next = mem.getShort(base, OBJ_H_NEXT);
+				if (next == from) {
+					mem.setShort(base, OBJ_H_NEXT, to);
+					break;
+				}
+				base = next;
+			}
+		}
+		if (it[0] == (short) (from + 1))
+			it[0] = (short) (to + 1);
+	}
+
 	/**
 	 * Returns the header base address (offset) for the specified object
 	 * <p>
 	 * Object header is found at the returned offset, while object data starts
 	 * right after the header
 	 * <p>
-	 * This performs a linear search, so performance issues could arise as the
-	 * number of objects grows If object is not found, then returns NULL_OFFSET
+	 * This performs a hash lookup; the linear search over the list is only
+	 * needed when the map is full. If object is not found, then returns
+	 * NULL_OFFSET
 	 * 
 	 * @param type
 	 *            Object Type
@@ -279,11 +350,11 @@ public class ObjectManager {
 	 *         not found.
 	 */
 	private short getEntry(short type, short id) {
-		/*
-		 * This is a stupid linear search. It's fine for a few objects. TODO:
-		 * Use a map for high number of objects
-		 */
-		short base = obj_list_head;
+		short base = map.getEntry(type, id);
+		if ((base != MemoryManager.NULL_OFFSET) || !map.isPartial())
+			return base;
+		/* Some objects did not fit in the map: fall back to a linear search */
+		base = obj_list_head;
 		while (base != MemoryManager.NULL_OFFSET) {
 			if ((mem.getShort(base, OBJ_H_CLASS) == type) && (mem.getShort(base, OBJ_H_ID) == id))
 				return base;
@@ -348,10 +419,33 @@ public class ObjectManager {
 	 * @see #getNextRecord
 	 */
 	public boolean getFirstRecord(byte[] buffer, short offset) {
-		it = obj_list_head;
+		resetIterator();
 		return getNextRecord(buffer, offset);
 	}
 
+	/**
+	 * Resets the objects iterator to the first object, without retrieving
+	 * its record.
+	 * 
+	 * @see #getNextRecord
+	 */
+	public void resetIterator() {
+		it[0] = (short) (obj_list_head + 1);
+	}
+
+	/**
+	 * Counts the objects that getNextRecord() has yet to return.
+	 * 
+	 * @return The number of records left
+	 */
+	public short getRecordsLeft() {
+		short count = (short) 0;
+		for (short base = (short) (it[0] - 1); base != MemoryManager.NULL_OFFSET; base = mem.getShort(base,
+				OBJ_H_NEXT))
+			count++;
+		return count;
+	}
+
 	/**
 	 * Retrieves the information record of the next object, if any.
 	 * <p>
@@ -365,6 +459,7 @@ public class ObjectManager {
 	 * @see #getFirstRecord
 	 */
 	public boolean getNextRecord(byte[] buffer, short offset) {
+		short it = (short) (this.it[0] - 1);
 		if (it == MemoryManager.NULL_OFFSET)
 			return false;
 		// Setting Object Class
@@ -378,7 +473,7 @@ public class ObjectManager {
 		// Setting ACL
 		Util.arrayCopyNonAtomic(mem.getBuffer(), (short) (it + OBJ_H_ACL), buffer, (short) (offset + 8), OBJ_ACL_SIZE);
 		// Advance iterator
-		it = mem.getShort(it, OBJ_H_NEXT);
+		this.it[0] = (short) (mem.getShort(it, OBJ_H_NEXT) + 1);
 		return true;
 	}
 
@@ -29,14 +29,30 @@ import javacard.framework.Util;
 
 /**
  * \brief class used to store DO
+ *
+ * The DO are kept in slots of a few size classes (see slotSize()). A DO
+ * written again with another length stays in its slot as long as the size
+ * class does not change, and slots freed by deleted or grown DO are reused,
+ * so that the repeated PUT DATA of the minidriver's files (cmapfile in
+ * particular) does not allocate EEPROM each time.
  */
 public class BerTlvFile extends ElementaryFile {
 
     private static final short ELEMENT_COUNT_START = 10;
     private static final short ELEMENT_COUNT_MAX = 30; // set to max. 16383
+    // slots are powers of two from SLOT_SIZE_MIN up to SLOT_SIZE_STEP, and
+    // multiples of SLOT_SIZE_STEP above
+    private static final short SLOT_SIZE_MIN = 32;
+    private static final short SLOT_SIZE_STEP = 256;
+    private static final short FREE_SLOT_COUNT = 4;
 
     private Record[] children;
+    // first two bytes of the tag of each children, to find a DO without
+    // parsing all the TLV
+    private short[] tags;
     private byte currentNumChildren;
+    private Record[] freeSlots;
+    private byte currentNumFreeSlots;
 
     /**
     * \brief Instantiate a new BER-TLV EF. No data is being added at this point.
@@ -57,7 +73,10 @@ public class BerTlvFile extends ElementaryFile {
     public BerTlvFile(short fileID, byte[] fileControlInformation) {
         super(fileID, fileControlInformation);
         this.children = new Record[ELEMENT_COUNT_START];
+        this.tags = new short[ELEMENT_COUNT_MAX];
         this.currentNumChildren = 0;
+        this.freeSlots = new Record[FREE_SLOT_COUNT];
+        this.currentNumFreeSlots = 0;
     }
 
     void clearContents() {
@@ -67,35 +86,123 @@ public class BerTlvFile extends ElementaryFile {
             children[i].clearContents();
             children[i] = null;
         }
+        for(i = 0; i < currentNumFreeSlots; i++) {
+            freeSlots[i].clearContents();
+            freeSlots[i] = null;
+        }
 
     }
 
     /**
-     * \brief Delete a DO
+     * \brief Size of the slot for a DO
      *
-     * This method requests garbage collection.
+     * \param length The length of the whole TLV.
+     *
+     * \return The length of the array to allocate.
+     */
+    private static short slotSize(short length) {
+        short size = SLOT_SIZE_MIN;
+        if(length <= SLOT_SIZE_STEP) {
+            while(size < length) {
+                size <<= 1;
+            }
+            return size;
+        }
+        size = (short) ((short) (length + (short) (SLOT_SIZE_STEP - 1)) & (short) ~(SLOT_SIZE_STEP - 1));
+        // no room to round up just below 32K
+        return size > 0 ? size : length;
+    }
+
+    /**
+     * \brief Get a record for a DO, from the free slots if one of the right size class is left
+     *
+     * \param length The length of the whole TLV.
+     */
+    private Record takeSlot(short length) {
+        short size = slotSize(length);
+        Record record = null;
+        short i;
+
+        for(i = 0; i < currentNumFreeSlots; i++) {
+            if((short) freeSlots[i].data.length == size) {
+                record = freeSlots[i];
+                currentNumFreeSlots--;
+                freeSlots[i] = freeSlots[currentNumFreeSlots];
+                freeSlots[currentNumFreeSlots] = null;
+                break;
+            }
+        }
+        if(record == null) {
+            record = new Record(size);
+        }
+        record.length = length;
+        return record;
+    }
+
+    /**
+     * \brief Keep the slot of a record no longer used for the next DO, or let it be garbage collected
+     *
+     * The DO is wiped first, so that no key or certificate data is left in a
+     * free slot or in an array waiting for garbage collection.
+     * This method may request garbage collection.
+     */
+    private void releaseSlot(Record record) {
+        record.clearContents();
+        record.length = 0;
+        if(currentNumFreeSlots < FREE_SLOT_COUNT) {
+            freeSlots[currentNumFreeSlots++] = record;
+            return;
+        }
+        if(JCSystem.isObjectDeletionSupported()) {
+            JCSystem.requestObjectDeletion();
+        }
+    }
+
+    /**
+     * \brief The first two bytes of a tag, the whole tag for the usual one and two byte tags.
+     */
+    private static short tagKey(byte[] buffer, short offset, short end) {
+        if((buffer[offset] & 0x1F) == 0x1F && (short) (offset + 1) < end) {
+            return Util.getShort(buffer, offset);
+        }
+        return (short) (buffer[offset] & 0xFF);
+    }
+
+    /**
+     * \brief Find a DO by its tag
+     *
+     * \return The internal index or -1.
+     */
+    private short findChildren(byte[] buffer, short offset, short end) {
+        short key = tagKey(buffer, offset, end);
+        short i;
+
+        for(i = 0; i < currentNumChildren; i++) {
+            if(tags[i] == key && UtilTLV.IsBERTLVTagEqual(buffer, offset, end, children[i].GetData())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * \brief Delete a DO
      *
      * \param childNum internal index
      */
     protected void deleteChildren(short childNum) {
 
-        // Fill up empty field in children array.
-        if(!JCSystem.isObjectDeletionSupported()) {
-            children[childNum].clearContents();
-        }
+        releaseSlot(children[childNum]);
 
         children[childNum] = null;
         currentNumChildren--; // We have one less children now.
 
-
+        // Fill up empty field in children array.
         // The last children is one ahead, so it is at currentNumChildren.
         if(childNum < currentNumChildren) {
             children[childNum] = children[currentNumChildren];
-        }
-
-        // Clean up the old file object.
-        if(JCSystem.isObjectDeletionSupported()) {
-            JCSystem.requestObjectDeletion();
+            tags[childNum] = tags[currentNumChildren];
+            children[currentNumChildren] = null;
         }
     }
 
@@ -109,39 +216,37 @@ public class BerTlvFile extends ElementaryFile {
      * @param offset_cdata
      */
     public Record addChildren(byte[] buffer, short offset, short wholelength, short lengthavailable) throws NotEnoughSpaceException {
-        // try to find a previous TLV
-        short i;
         short lengthToCopy = (lengthavailable > wholelength ? wholelength: lengthavailable);
-        for(i = 0; i < currentNumChildren; i++) {
-            byte[] value = children[i].GetData();
-
-            if (UtilTLV.IsBERTLVTagEqual(buffer, offset, (short) (offset + lengthavailable), value)) {
-                // found => replace or erase ?
-
-                // erase if empty DO pushed and already empty DO stored
-                short oldlen = UtilTLV.GetBERTLVDataLen(value, (short) 0, (short) value.length);
-                short newlen = UtilTLV.GetBERTLVDataLen(buffer, offset, (short) (offset + lengthavailable));
-                if (oldlen == 0) {
-                    if (newlen == 0) {
-                        deleteChildren(i);
-                        return null;
-                    }
-                }
-                // replace
-                if (oldlen == newlen) {
-                    // no need to add / remove data, just replace the buffer
-                    Util.arrayCopyNonAtomic(buffer, offset, value, (short) 0, lengthToCopy);
-                } else {
-                    // remove previous data, add new
-                    byte[] data = new byte[wholelength];
-                    Record record = new Record(data);
-                    Util.arrayCopyNonAtomic(buffer, offset, data, (short) 0, lengthToCopy);
+        Record record;
+        // try to find a previous TLV
+        short i = findChildren(buffer, offset, (short) (offset + lengthavailable));
+        if(i >= 0) {
+            // found => replace or erase ?
+            record = children[i];
+
+            // erase if empty DO pushed and already empty DO stored
+            short oldlen = UtilTLV.GetBERTLVDataLen(record.GetData(), (short) 0, record.GetLength());
+            short newlen = UtilTLV.GetBERTLVDataLen(buffer, offset, (short) (offset + lengthavailable));
+            if (oldlen == 0) {
+                if (newlen == 0) {
                     deleteChildren(i);
-                    children[currentNumChildren++] = record;
+                    return null;
                 }
-                return children[i];
             }
-
+            // replace, in place if the size class does not change
+            if(slotSize(wholelength) == (short) record.GetData().length) {
+                // wipe what a longer previous DO left past the new one
+                if(wholelength < record.length) {
+                    Util.arrayFillNonAtomic(record.GetData(), wholelength, (short) (record.length - wholelength), (byte) 0);
+                }
+                record.length = wholelength;
+            } else {
+                releaseSlot(record);
+                record = takeSlot(wholelength);
+                children[i] = record;
+            }
+            Util.arrayCopyNonAtomic(buffer, offset, record.GetData(), (short) 0, lengthToCopy);
+            return record;
         }
 
 
@@ -168,10 +273,11 @@ public class BerTlvFile extends ElementaryFile {
                 JCSystem.requestObjectDeletion();
             }
         } // We have enough space (now).
-        byte[] data = new byte[wholelength];
-        Util.arrayCopyNonAtomic(buffer, offset, data, (short) 0, lengthToCopy);
-        children[currentNumChildren++] = new Record(data);
-        return children[(short) (currentNumChildren-1)];
+        record = takeSlot(wholelength);
+        Util.arrayCopyNonAtomic(buffer, offset, record.GetData(), (short) 0, lengthToCopy);
+        tags[currentNumChildren] = tagKey(buffer, offset, (short) (offset + lengthavailable));
+        children[currentNumChildren++] = record;
+        return record;
     }
 
     /**
@@ -195,16 +301,11 @@ public class BerTlvFile extends ElementaryFile {
     }
 
     public Record getData(byte[] tag, short offset, short len) throws NotFoundException {
-        short i;
-
-        for(i = 0; i < currentNumChildren; i++) {
-            byte[] value = children[i].GetData();
-            if(UtilTLV.IsBERTLVTagEqual(tag, offset, len, value)) {
-                return children[i];
-            }
+        short i = findChildren(tag, offset, len);
+        if(i < 0) {
+            throw NotFoundException.getInstance();
         }
-
-        throw NotFoundException.getInstance();
+        return children[i];
     }
 
     public Record[] getAllData() {
@@ -37,6 +37,10 @@ import javacard.framework.*;
  * The initial size of the array storing the references to the children can be set before compilation.
  * This class tries to increase the size until a maximum value. If you do not want that kind of behavior,
  * set CHILDREN_COUNT_MAX to the same value as CHILDREN_COUNT_START.
+ *
+ * Children are found by their file ID through an index kept with the children array, so that selecting a file
+ * does not compare the IDs of all its siblings. File IDs are unique in the file system (see
+ * GidsFileSystem.getSafeFile()).
  */
 public class DedicatedFile extends File {
     private static final short CHILDREN_COUNT_START = 10;
@@ -48,6 +52,10 @@ public class DedicatedFile extends File {
 
     private byte currentNumChildren;
     private File[] children;
+    // Open addressed table from the file IDs of the children to their position in children[]:
+    // a slot holds the position + 1, or 0 if it is empty. It has at least twice the slots of children[].
+    private byte[] fidIndex;
+    private byte currentNumDFChildren;
 
 
     /**
@@ -70,6 +78,8 @@ public class DedicatedFile extends File {
         super(fileID, fileControlInformation);
         this.currentNumChildren = 0;
         this.children = new File[CHILDREN_COUNT_START];
+        this.fidIndex = new byte[fidIndexSize(CHILDREN_COUNT_START)];
+        this.currentNumDFChildren = 0;
     }
 
     /**
@@ -138,15 +148,7 @@ public class DedicatedFile extends File {
      * \throw NotFoundException It no children has the given fileID.
      */
     public void deleteChildren(short fileID) throws NotFoundException {
-        short childNum = -1;
-        short i;
-
-        for(i = 0; i < currentNumChildren; i++) {
-            if(fileID == children[i].getFileID()) {
-                childNum = i;
-                break;
-            }
-        }
+        short childNum = findChildIndex(fileID);
 
         if(childNum == -1) {
             throw NotFoundException.getInstance();
@@ -157,14 +159,22 @@ public class DedicatedFile extends File {
             children[childNum].clearContents();
         }
 
+        JCSystem.beginTransaction();
+        unindexFileID(fileID);
+        if(children[childNum] instanceof DedicatedFile) {
+            currentNumDFChildren--;
+        }
+
         children[childNum] = null;
         currentNumChildren--; // We have one less children now.
 
         // Fill up empty field in children array.
         // The last children is one ahead, so it is at currentNumChildren.
         if(childNum < currentNumChildren) {
+            fidIndex[findFidSlot(children[currentNumChildren].getFileID())] = (byte)(childNum + 1);
             children[childNum] = children[currentNumChildren];
         }
+        JCSystem.commitTransaction();
 
         // Clean up the old file object.
         if(JCSystem.isObjectDeletionSupported()) {
@@ -198,12 +208,25 @@ public class DedicatedFile extends File {
                     throw NotEnoughSpaceException.getInstance();
                 }
             }
+            // The index is rebuilt for the new size before it replaces the old one.
+            byte[] newFidIndex = new byte[fidIndexSize((short)newChildren.length)];
+            short i;
+            for(i = 0; i < currentNumChildren; i++) {
+                indexFileID(newFidIndex, children[i].getFileID(), i);
+            }
             children = newChildren; // Initial children array is now garbage.
+            fidIndex = newFidIndex;
             if(JCSystem.isObjectDeletionSupported()) {
                 JCSystem.requestObjectDeletion();
             }
         } // We have enough space (now).
+        JCSystem.beginTransaction();
+        indexFileID(fidIndex, childFile.getFileID(), currentNumChildren);
+        if(childFile instanceof DedicatedFile) {
+            currentNumDFChildren++;
+        }
         children[currentNumChildren++] = childFile;
+        JCSystem.commitTransaction();
         return;
     }
 
@@ -228,6 +251,88 @@ public class DedicatedFile extends File {
     }
 
 
+    /**
+     * \brief The size of the FID index for a children array: a power of two, at least twice as large.
+     */
+    private static short fidIndexSize(short childrenLength) {
+        short size = 8;
+        while(size < (short)(childrenLength * 2)) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * \brief The first slot to probe in a FID index.
+     */
+    private static short fidHash(byte[] index, short fileID) {
+        return (short)((short)(fileID ^ (short)(fileID >> 8)) & (short)(index.length - 1));
+    }
+
+    /**
+     * \brief Add a file ID to a FID index, in the first free slot from its hash.
+     *
+     * \param num The position of the file in the children array.
+     */
+    private static void indexFileID(byte[] index, short fileID, short num) {
+        short mask = (short)(index.length - 1);
+        short slot = fidHash(index, fileID);
+        while(index[slot] != 0) {
+            slot = (short)((short)(slot + 1) & mask);
+        }
+        index[slot] = (byte)(num + 1);
+    }
+
+    /**
+     * \brief Find the slot of the FID index for a file ID.
+     *
+     * \return The slot, or the empty slot ending the probe sequence if no children has this file ID.
+     */
+    private short findFidSlot(short fileID) {
+        short mask = (short)(fidIndex.length - 1);
+        short slot = fidHash(fidIndex, fileID);
+        while(fidIndex[slot] != 0
+                && children[(short)(fidIndex[slot] - 1)].getFileID() != fileID) {
+            slot = (short)((short)(slot + 1) & mask);
+        }
+        return slot;
+    }
+
+    /**
+     * \brief Find the position of a direct children through the FID index.
+     *
+     * \return The position in the children array, -1 if no children has this file ID.
+     */
+    private short findChildIndex(short fileID) {
+        return (short)(fidIndex[findFidSlot(fileID)] - 1);
+    }
+
+    /**
+     * \brief Remove a file ID from the FID index.
+     *
+     * The following entries of the probe sequence are moved back, so that no
+     * entry is ever separated from its hash by an empty slot.
+     */
+    private void unindexFileID(short fileID) {
+        short mask = (short)(fidIndex.length - 1);
+        short slot = findFidSlot(fileID);
+        short next = slot;
+        short home;
+        while(true) {
+            next = (short)((short)(next + 1) & mask);
+            if(fidIndex[next] == 0) {
+                break;
+            }
+            home = fidHash(fidIndex, children[(short)(fidIndex[next] - 1)].getFileID());
+            // The entry may fill the hole if its hash is not between the hole and itself.
+            if(slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+                fidIndex[slot] = fidIndex[next];
+                slot = next;
+            }
+        }
+        fidIndex[slot] = 0;
+    }
+
     /**
      * \brief Recursively search the children of this file using the DedicatedFile name.
      *
@@ -242,20 +347,29 @@ public class DedicatedFile extends File {
      * \return A reference to the DedicatedFile if found.
      */
     public DedicatedFile findDedicatedFileByNameRec(byte[] name, short nameOffset, short nameLength) throws NotFoundException {
-        short i;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i] instanceof DedicatedFile) {
-                if(((DedicatedFile)children[i]).isName(name, nameOffset, nameLength)) {
-                    return (DedicatedFile) children[i];
+        // Depth-first, in the order of the former recursive search, but walking back up
+        // through the parent links instead of the (small) Java Card stack.
+        DedicatedFile df = this;
+        short i = 0;
+        while(true) {
+            if(i < df.currentNumChildren) {
+                if(df.children[i] instanceof DedicatedFile) {
+                    if(((DedicatedFile)df.children[i]).isName(name, nameOffset, nameLength)) {
+                        return (DedicatedFile) df.children[i];
+                    }
+                    df = (DedicatedFile) df.children[i];
+                    i = 0;
+                } else {
+                    i++;
                 }
-                try {
-                    return ((DedicatedFile)children[i]).findDedicatedFileByNameRec(name, nameOffset, nameLength);
-                } catch(NotFoundException e) {
-                    // Ignore this exception until the last children has unsuccessfully been visited.
+            } else {
+                if(df == this) {
+                    throw NotFoundException.getInstance();
                 }
+                i = (short)(df.getParentDF().getChildIndex(df) + 1);
+                df = df.getParentDF();
             }
         }
-        throw NotFoundException.getInstance();
     }
 
     /**
@@ -268,27 +382,53 @@ public class DedicatedFile extends File {
      * \return A reference to the File if found.
      */
     public File findChildrenRec(short fileID, byte flag) throws NotFoundException {
-        short i;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i].getFileID() == fileID) {
+        // Depth-first, in the order of the former recursive search: the sub-DFs before the child
+        // with the file ID (found through the index) first, then that child.
+        DedicatedFile df = this;
+        short match = findChildIndex(fileID);
+        short i = 0;
+        while(true) {
+            short end = match < 0 ? df.currentNumChildren : match;
+            if(df.currentNumDFChildren == 0) {
+                i = end;
+            }
+            while(i < end && !(df.children[i] instanceof DedicatedFile)) {
+                i++;
+            }
+            if(i < end) {
+                df = (DedicatedFile) df.children[i];
+                match = df.findChildIndex(fileID);
+                i = 0;
+                continue;
+            }
+            if(match >= 0) {
+                File child = df.children[match];
                 if((flag == SPECIFY_ANY)
-                        || (flag == SPECIFY_DF && children[i] instanceof DedicatedFile)
-                        || (flag == SPECIFY_EF && children[i] instanceof ElementaryFile)) {
-                    return children[i];
-                } else {
-                    // File with specified FID and requested file type do not match.
-                    throw NotFoundException.getInstance();
+                        || (flag == SPECIFY_DF && child instanceof DedicatedFile)
+                        || (flag == SPECIFY_EF && child instanceof ElementaryFile)) {
+                    return child;
                 }
+                // File with specified FID and requested file type do not match.
+                // Skip the rest of this DF, as the recursive search did.
             }
-            if(children[i] instanceof DedicatedFile) {
-                try {
-                    return ((DedicatedFile)children[i]).findChildrenRec(fileID, flag);
-                } catch(NotFoundException e) {
-                    // Ignore this exception until the last children has unsuccessfully been visited.
-                }
+            if(df == this) {
+                throw NotFoundException.getInstance();
             }
+            i = (short)(df.getParentDF().getChildIndex(df) + 1);
+            df = df.getParentDF();
+            match = df.findChildIndex(fileID);
         }
-        throw NotFoundException.getInstance();
+    }
+
+    /**
+     * \brief Get the position of a direct children of this DF.
+     *
+     * \param child The children.
+     *
+     * \return Its index in the children array, -1 if it is not a children of this DF.
+     */
+    private short getChildIndex(File child) {
+        return findChildIndex(child.getFileID());
     }
 }
 
@@ -38,6 +38,7 @@ import javacard.security.PublicKey;
 import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPublicKey;
 import javacardx.crypto.Cipher;
+import javacardx.apdu.ExtendedLength;
 import javacard.security.CryptoException;
 
 /**
@@ -45,7 +46,7 @@ import javacard.security.CryptoException;
  *
  *
  */
-public class GidsApplet extends Applet {
+public class GidsApplet extends Applet implements ExtendedLength {
     /* API Version */
     public static final byte API_VERSION_MAJOR = (byte) 0x00;
     public static final byte API_VERSION_MINOR = (byte) 0x06;
@@ -176,6 +177,13 @@ public class GidsApplet extends Applet {
             ISOException.throwIt(ISO7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
         }
 
+        // Extended APDUs are only accepted to get all the DO of a file in a few responses,
+        // the other commands are parsed at the short APDU offsets.
+        if(apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA
+                && ins != INS_GET_DATA && ins != INS_GET_RESPONSE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
         transmitManager.processChainInitialization(apdu);
 
         if((buffer[ISO7816.OFFSET_CLA] & 0xE0) == 0) {
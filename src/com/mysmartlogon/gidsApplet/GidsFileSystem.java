@@ -559,7 +559,7 @@ public class GidsFileSystem extends ApplicationFile {
         byte ins = buf[ISO7816.OFFSET_INS];
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
-        short lc, pos = 0, len = 0, fileID;
+        short lc, offset_cdata, pos = 0, len = 0, fileID;
         File file = null;
         BerTlvFile bertlvfile = null;
 
@@ -569,6 +569,8 @@ public class GidsFileSystem extends ApplicationFile {
 
         // Bytes received must be Lc.
         lc = apdu.setIncomingAndReceive();
+        // GET DATA may come as an extended APDU
+        offset_cdata = apdu.getOffsetCdata();
 
         if (p1 == 0x3F && p2 == (byte) 0xFF) {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -601,7 +603,7 @@ public class GidsFileSystem extends ApplicationFile {
         try {
             // Extract the FID from the FCI which is passed to the FileXXX contructor and saved
             // separately for performance reasons.
-            pos = UtilTLV.findTag(buf, ISO7816.OFFSET_CDATA, (byte) lc, (byte) 0x5C);
+            pos = UtilTLV.findTag(buf, offset_cdata, (byte) lc, (byte) 0x5C);
             if (buf[(short)(pos+(short)1)] == (byte) 0) {
                 len = (short) 0;
             } else {
@@ -615,7 +617,7 @@ public class GidsFileSystem extends ApplicationFile {
             transmitManager.sendRecords(apdu, bertlvfile.getAllData());
         } else {
             try {
-                Record record = bertlvfile.getData(buf, (short)(pos+1+UtilTLV.getLengthFieldLength(buf, (short)(pos+1))), (short) (ISO7816.OFFSET_CDATA + lc));
+                Record record = bertlvfile.getData(buf, (short)(pos+1+UtilTLV.getLengthFieldLength(buf, (short)(pos+1))), (short) (offset_cdata + lc));
                 transmitManager.sendRecord(apdu,record);
             } catch (NotFoundException e) {
                 ISOException.throwIt(ErrorCode.SW_REFERENCE_DATA_NOT_FOUND);
@@ -684,13 +686,13 @@ public class GidsFileSystem extends ApplicationFile {
             // handle next chained APDU
             short offset = transmitManager.returnCachedOffset();
             byte[] data = record.GetData();
-            if ((short) (offset + lc) > data.length) {
+            if ((short) (offset + lc) > record.GetLength()) {
                 transmitManager.clearCachedRecord();
                 ISOException.throwIt(ISO7816.SW_DATA_INVALID);
             }
             Util.arrayCopyNonAtomic(buf, ISO7816.OFFSET_CDATA, data, offset, lc);
             transmitManager.setCachedOffset((short) (offset + lc));
-            if ((short) (offset + lc) == data.length) {
+            if ((short) (offset + lc) == record.GetLength()) {
                 transmitManager.clearCachedRecord();
             } else if (!TransmitManager.isCommandChainingCLA(apdu)) {
                 // the data sent is too short
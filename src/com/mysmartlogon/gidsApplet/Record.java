@@ -33,6 +33,8 @@ import javacard.framework.Util;
  */
 public class Record {
     byte[] data;
+    // the stored data may be shorter than the array (see BerTlvFile)
+    short length;
 
     /**
      * \brief Constructor.
@@ -41,6 +43,7 @@ public class Record {
      */
     Record(byte[] data) {
         this.data = data;
+        this.length = (short) data.length;
     }
 
     /**
@@ -52,12 +55,20 @@ public class Record {
      */
     Record(short size) {
         this.data = new byte[size];
+        this.length = size;
     }
 
     byte[] GetData() {
         return this.data;
     }
 
+    /**
+     * \brief Length of the stored data, from the start of GetData().
+     */
+    short GetLength() {
+        return this.length;
+    }
+
     public void clearContents() {
         Util.arrayFillNonAtomic(data, (short)0, (short)data.length, (byte)0);
     }
@@ -34,7 +34,6 @@ import javacard.framework.Util;
 public class TransmitManager {
 
     // a ram buffer for public key export (no need to allocate flash !)
-    // memory buffer size is determined by copyRecordsToRamBuf=min 512
     private static final short RAM_BUF_SIZE = (short) 530;
     private static final short FLASH_BUF_SIZE = (short) 1220;
     private byte[] ram_buf = null;
@@ -246,40 +245,55 @@ public class TransmitManager {
         sendData(apdu);
     }
 
-    private short copyRecordsToRamBuf(short le) {
+    /**
+     * \brief The number of bytes of the Record[] being sent that are left, from the cursor.
+     */
+    private short getRecordsRemainingLength() {
         short index = chaining_cache[CHAINING_OBJECT_INDEX];
         Record[] records = (Record[]) (chaining_object[CHAINING_OBJECT]);
-        short dataCopied = 0;
+        short remaining = (short) -chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS];
+
+        while (index < (short) records.length && records[index] != null) {
+            remaining += records[index].GetLength();
+            index++;
+        }
+        return remaining;
+    }
 
+    /**
+     * \brief Send len bytes of the Record[] being sent straight from the records, and move the cursor.
+     *
+     * \param apdu The APDU object, setOutgoingLength() must have been called.
+     *
+     * \param len The number of bytes to send, at most getRecordsRemainingLength().
+     */
+    private void sendRecordsLong(APDU apdu, short len) {
+        short index = chaining_cache[CHAINING_OBJECT_INDEX];
+        Record[] records = (Record[]) (chaining_object[CHAINING_OBJECT]);
         short pos = chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS];
-        while (records[index] != null) {
-            byte[] data = records[index].GetData();
-            short dataToCopy = (short)(data.length - pos);
-            if ((short)(dataToCopy + dataCopied) > 512) {
-                dataToCopy = (short) (512 - dataCopied);
-            }
-            Util.arrayCopyNonAtomic(data, pos, ram_buf, dataCopied, dataToCopy);
-            if ((short) (dataCopied + dataToCopy) == le) {
-                chaining_cache[CHAINING_OBJECT_INDEX] = (short) (index + (short) 1);
-                chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = 0;
-            } else if (dataCopied < le && ((short) (dataCopied + dataToCopy)) > le) {
-                chaining_cache[CHAINING_OBJECT_INDEX] = index;
-                chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = (short) (pos + le - dataCopied);
+
+        while (len > 0) {
+            short dataToSend = (short) (records[index].GetLength() - pos);
+            if (dataToSend > len) {
+                dataToSend = len;
             }
-            index++;
-            pos = 0;
-            dataCopied += dataToCopy;
-            if (dataCopied >= 512) {
-                // no need to copy more data.
-                return dataCopied;
+            apdu.sendBytesLong(records[index].GetData(), pos, dataToSend);
+            len -= dataToSend;
+            pos += dataToSend;
+            if (pos == records[index].GetLength()) {
+                index++;
+                pos = 0;
             }
         }
-        // if we are here, we have less than 512 bytes of data
-        return dataCopied;
+        chaining_cache[CHAINING_OBJECT_INDEX] = index;
+        chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = pos;
     }
 
     /**
-     * \brief Send the data from ram_buf, using either extended APDUs or GET RESPONSE.
+     * \brief Send the data from ram_buf or from the records, using either extended APDUs or GET RESPONSE.
+     *
+     * Records are sent from their own arrays, the position to continue from
+     * with the next GET RESPONSE is the only state kept.
      *
      * \param apdu The APDU object, in STATE_OUTGOING state.
      *
@@ -304,6 +318,9 @@ public class TransmitManager {
             } else {
                 le = 0;
             }
+        } else if(le > 256 && apdu.getOffsetCdata() != ISO7816.OFFSET_EXT_CDATA) {
+            // a short Le of 00 reported as the extended maximum
+            le = 256;
         }
 
         if (chaining_object[CHAINING_OBJECT] == null) {
@@ -312,18 +329,20 @@ public class TransmitManager {
         } else if (chaining_object[CHAINING_OBJECT] instanceof Record) {
             Record record = (Record) (chaining_object[CHAINING_OBJECT]);
             data = record.GetData();
-            remaininglen = (short) (((short) data.length) - pos);
+            remaininglen = (short) (record.GetLength() - pos);
         } else if (chaining_object[CHAINING_OBJECT] instanceof Record[]) {
-            data = ram_buf;
-            remaininglen = copyRecordsToRamBuf(le);
-            pos = 0;
+            remaininglen = getRecordsRemainingLength();
         }
 
-        // We have 256 Bytes send-capacity per APDU.
+        // We have 256 Bytes send-capacity per APDU, more with an extended Le.
         short sendLen = remaininglen > le ? le : remaininglen;
         apdu.setOutgoingLength(sendLen);
-        apdu.sendBytesLong(data, pos, sendLen);
-        // the position when using Record[] is maintened by copyRecordsToRamBuf
+        if (chaining_object[CHAINING_OBJECT] instanceof Record[]) {
+            sendRecordsLong(apdu, sendLen);
+        } else {
+            apdu.sendBytesLong(data, pos, sendLen);
+        }
+        // the position when using Record[] is maintened by sendRecordsLong
         if (chaining_object[CHAINING_OBJECT] == null || !(chaining_object[CHAINING_OBJECT] instanceof Record[])) {
             chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS]+= sendLen;
         }
@@ -381,6 +381,10 @@ public class CardEdge extends Applet
      */
     private static final byte LIST_OPT_RESET = 0;
     private static final byte LIST_OPT_NEXT  = 1;
+    /**
+     * P2 of ListObjects and ListKeys: as many records as fit in Le
+     */
+    private static final byte LIST_OPT_BULK  = 1;
 
     private static final byte OPT_DEFAULT     = 0;
     private static final byte OPT_RSA_PUB_EXP = 1;
@@ -1722,6 +1726,10 @@ public class CardEdge extends Applet
 
     private void ListKeys(APDU apdu, byte buffer[])
     {
+	if (buffer[ISO7816.OFFSET_P2] == LIST_OPT_BULK) {
+	    ListKeysBulk(apdu, buffer);
+	    return;
+	}
 	if (buffer[ISO7816.OFFSET_P2] != 0)
 	    ISOException.throwIt(SW_INCORRECT_P2);
 	short expectedBytes = Util.makeShort(ZEROB, buffer[ISO7816.OFFSET_LC]);
@@ -1748,8 +1756,45 @@ public class CardEdge extends Applet
 	}
     }
 
+    // The entries of as many keys as fit in Le, one after the other;
+    // SW_SEQUENCE_END past the last key, as for ListObjectsBulk()
+    private void ListKeysBulk(APDU apdu, byte buffer[])
+    {
+	if (buffer[ISO7816.OFFSET_P1] == LIST_OPT_RESET)
+	    key_it = 0;
+	else
+	if (buffer[ISO7816.OFFSET_P1] != LIST_OPT_NEXT)
+	    ISOException.throwIt(SW_INCORRECT_P1);
+	short le = apdu.setOutgoing();
+	short len = 0;
+	// the persistent key_it is only stored once
+	byte it = key_it;
+	for(; it < MAX_NUM_KEYS && (short)(len + 11) <= le; it++)
+	{
+	    Key key = keys[it];
+	    if (key == null || !key.isInitialized())
+		continue;
+	    buffer[len] = it;
+	    buffer[(short)(len + 1)] = getKeyType(key);
+	    buffer[(short)(len + 2)] = keyMate[it];
+	    Util.setShort(buffer, (short)(len + 3), key.getSize());
+	    Util.arrayCopyNonAtomic(keyACLs, (short)(it * KEY_ACL_SIZE),
+		    buffer, (short)(len + 5), (short)KEY_ACL_SIZE);
+	    len += 11;
+	}
+	key_it = it;
+	if (len == 0)
+	    ISOException.throwIt(SW_SEQUENCE_END);
+	apdu.setOutgoingLength(len);
+	apdu.sendBytes(ZEROS, len);
+    }
+
     private void ListObjects(APDU apdu, byte buffer[])
     {
+	if (buffer[ISO7816.OFFSET_P2] == LIST_OPT_BULK) {
+	    ListObjectsBulk(apdu, buffer);
+	    return;
+	}
 	if (buffer[ISO7816.OFFSET_P2] != 0)
 	    ISOException.throwIt(SW_INCORRECT_P2);
 	
@@ -1773,6 +1818,35 @@ public class CardEdge extends Applet
 	    ISOException.throwIt(SW_SEQUENCE_END);
     }
 
+    /**
+     * ListObjects with P2 = LIST_OPT_BULK: the records of as many objects
+     * as fit in Le. P1 resets or continues the iterator as for single
+     * records; a response with fewer records than fit in Le ends the list.
+     */
+    private void ListObjectsBulk(APDU apdu, byte buffer[])
+    {
+	if (buffer[ISO7816.OFFSET_P1] == LIST_OPT_RESET)
+	    om.resetIterator();
+	else
+	if (buffer[ISO7816.OFFSET_P1] != LIST_OPT_NEXT)
+	    ISOException.throwIt(SW_INCORRECT_P1);
+	short count = om.getRecordsLeft();
+	if (count == 0)
+	    ISOException.throwIt(SW_SEQUENCE_END);
+	short max = (short)(apdu.setOutgoing() / ObjectManager.RECORD_SIZE);
+	if (max > (short)(buffer.length / ObjectManager.RECORD_SIZE))
+	    max = (short)(buffer.length / ObjectManager.RECORD_SIZE);
+	if (max == 0)
+	    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	if (count > max)
+	    count = max;
+	for (short i = 0; i < count; i++)
+	    om.getNextRecord(buffer, (short)(i * ObjectManager.RECORD_SIZE));
+	short len = (short)(count * ObjectManager.RECORD_SIZE);
+	apdu.setOutgoingLength(len);
+	apdu.sendBytes(ZEROS, len);
+    }
+
     private void ListPINs(APDU apdu, byte buffer[])
     {
 	if (buffer[ISO7816.OFFSET_P1] != 0)
@@ -60,6 +60,7 @@
 package com.redhat.ckey.applet;
 
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 // Referenced classes of package com.redhat.ckey.applet:
@@ -68,8 +69,9 @@ import javacard.framework.Util;
 /**
  * Object Manager Class
  *
- * <p>Objects are linked in a list in the dynamic memory. No smart search
- * is done at the moment.</p>
+ * <p>Objects are linked in a list in the dynamic memory. The list keeps
+ * the iteration order, while lookups by (type, id) go through an
+ * ObjectMap hash table allocated in the same memory.</p>
  *
  * <p>TODO - Could we definitively avoid a map enforcing the ID (equal to
  * the memory address, i.e.) - security implications ?</p>
@@ -118,15 +120,22 @@ public class ObjectManager
 	public static final short RECORD_SIZE = 14;
 
 	/**
-	 * Iterator on objects.
+	 * Iterator on objects: the offset of the next object plus one, in RAM
+	 * so that listing does not write to EEPROM. The array cleared on
+	 * deselect reads as the end of the list.
 	 */
-	private short it;
+	private short it[];
 
 	/**
 	 * The Memory Manager object
 	 */
 	private MemoryManager mem;
 
+	/**
+	 * Map for fast search of objects
+	 */
+	private ObjectMap map;
+
 	/**
 	 * Head of the objects' list
 	 */
@@ -143,7 +152,11 @@ public class ObjectManager
 		mem = null;
 		obj_list_head = -1;
 		mem = mem_ref;
+		map = new ObjectMap(mem, (short)mem.getBuffer().length, 
+		                    OBJ_H_CLASS, OBJ_H_ID);
 		obj_list_head = -1;
+		it = JCSystem.makeTransientShortArray((short)1,
+		                    JCSystem.CLEAR_ON_DESELECT);
 	}
 
 	/**
@@ -270,6 +283,7 @@ public class ObjectManager
 		mem.setBytes(base, (short)OBJ_H_ACL, acl_buf, acl_offset, 
 		             (short)OBJ_ACL_SIZE);
 		obj_list_head = base;
+		map.addEntry(base);
 		return (short)(base + OBJ_H_DATA);
 	}
 
@@ -299,12 +313,12 @@ public class ObjectManager
 	{
 		boolean found;
 		do {
+			short target = getEntry(type, id);
 			short curr = obj_list_head;
 			short prev = -1;
 
-			for (found = false; !found && curr != -1; ) {
-				if(mem.getShort(curr, (short)OBJ_H_CLASS) == type && 
-				   mem.getShort(curr, (short)OBJ_H_ID)    == id) {
+			for (found = false; target != -1 && !found && curr != -1; ) {
+				if(curr == target) {
 					found = true;
 				} else {
 					prev = curr;
@@ -316,6 +330,7 @@ public class ObjectManager
 					mem.setShort(prev, (short)0, mem.getShort(curr, (short)0));
 				else
 					obj_list_head = mem.getShort(curr, (short)0);
+				map.removeEntry(curr);
 				if(secure) {
 					Util.arrayFillNonAtomic(mem.getBuffer(), 
 						(short)(curr + OBJ_H_DATA), 
@@ -372,8 +387,8 @@ public class ObjectManager
 	 * <p>Object header is found at the returned offset, while object
 	 * data starts right after the header.</p>
 	 *
-	 * <p>This performs a linear search, so performance issues could
-	 * arise as the number of objects grows If object is not found,
+	 * <p>This performs a hash lookup; the linear search over the list
+	 * is only needed when the map is full. If object is not found,
 	 * then returns NULL_OFFSET.</p>
 	 *
 	 * @param type Object Type
@@ -385,6 +400,10 @@ public class ObjectManager
 	 */
 	private short getEntry(short type, short id)
 	{
+		short found = map.getEntry(type, id);
+		if(found != -1 || !map.isPartial())
+			return found;
+		// Some objects did not fit in the map: fall back to a linear search
 		for(short base = obj_list_head; base != -1; 
 		    base = mem.getShort(base, (short)0)) {
 			if(mem.getShort(base, (short)OBJ_H_CLASS) == type && 
@@ -409,10 +428,35 @@ public class ObjectManager
 	 */
 	public boolean getFirstRecord(byte buffer[], short offset)
 	{
-		it = obj_list_head;
+		resetIterator();
 		return getNextRecord(buffer, offset);
 	}
 
+	/**
+	 * Resets the objects iterator to the first object, without
+	 * retrieving its record.
+	 *
+	 * @see #getNextRecord(byte[], short)
+	 */
+	public void resetIterator()
+	{
+		it[0] = (short)(obj_list_head + 1);
+	}
+
+	/**
+	 * Counts the objects that getNextRecord() has yet to return.
+	 *
+	 * @return The number of records left
+	 */
+	public short getRecordsLeft()
+	{
+		short count = 0;
+		for(short base = (short)(it[0] - 1); base != -1; 
+				base = mem.getShort(base, (short)0))
+			count++;
+		return count;
+	}
+
 	/**
 	 * Retrieves the information record of the next object, if any.
 	 *
@@ -427,6 +471,7 @@ public class ObjectManager
 	 */
 	public boolean getNextRecord(byte buffer[], short offset)
 	{
+		short it = (short)(this.it[0] - 1);
 		if(it == -1)
 		{
 			return false;
@@ -442,7 +487,7 @@ public class ObjectManager
 					(short)(it + OBJ_H_ACL), buffer, 
 					(short)(offset + 8), 
 					(short)OBJ_ACL_SIZE);
-			it = mem.getShort(it, (short)0);
+			this.it[0] = (short)(mem.getShort(it, (short)0) + 1);
 			return true;
 		}
 	}
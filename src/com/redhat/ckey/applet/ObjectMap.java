@@ -0,0 +1,244 @@
+//  MUSCLE SmartCard Development
+//      Authors:          Tommaso Cucinotta <cucinotta@sssup.it>
+//                        David Corcoran    <corcoran@linuxnet.com>
+//                        Ludovic Rousseau  <ludovic.rousseau@free.fr>
+//                        Jamie Nicolson    <nicolson@netscape.com>
+//      Package:          CardEdgeApplet
+//      Description:      CardEdge implementation with JavaCard
+//      Protocol Authors: Tommaso Cucinotta <cucinotta@sssup.it>
+//                        David Corcoran <corcoran@linuxnet.com>
+//      Modified:
+//                        Eirik Herskedal <ehersked@cs.purdue.edu>
+//
+// BEGIN LICENSE BLOCK
+// Copyright (c) 1999-2002 David Corcoran <corcoran@linuxnet.com>
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// 1. Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright
+//    notice, this list of conditions and the following disclaimer in the
+//    documentation and/or other materials provided with the distribution.
+// 3. The name of the author may not be used to endorse or promote products
+//    derived from this software without specific prior written permission.
+//
+// Changes to this license can be made only by the copyright author with
+// explicit written consent.
+//
+// THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+// IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+// OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+// IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+// NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+// THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+// Alternatively, the contents of this file may be used under the terms of
+// the GNU Lesser General Public License Version 2.1 (the "LGPL"), in which
+// case the provisions of the LGPL are applicable instead of those above. If
+// you wish to allow use of your version of this file only under the terms
+// of the LGPL, and not to allow others to use your version of this file
+// under the terms of the BSD license, indicate your decision by deleting
+// the provisions above and replace them with the notice and other
+// provisions required by the LGPL. If you do not delete the provisions
+// above, a recipient may use your version of this file under the terms of
+// either the BSD license or the LGPL.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+// END LICENSE_BLOCK
+
+package com.redhat.ckey.applet;
+
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * Object Map class.
+ *
+ * <p>A fixed-size open-addressed hash table which indexes the objects
+ * handled by the ObjectManager by their (type, id) identifier. The
+ * table is allocated once inside the MemoryManager arena, when the
+ * ObjectManager is created.</p>
+ *
+ * <p>Each slot holds the header base address of an object, or
+ * NULL_OFFSET if the slot is empty. Keys are read back from the object
+ * header. Collisions are resolved with linear probing and removal uses
+ * backward shifting, so no tombstones ever accumulate.</p>
+ *
+ * <p>When the table is full, new objects are simply not indexed; the
+ * number of such objects is tracked so that the ObjectManager knows
+ * when it still has to fall back to a list walk.</p>
+ */
+public class ObjectMap
+{
+	private static final short MIN_SLOTS = 16;
+	private static final short MAX_SLOTS = 512;
+
+	private MemoryManager mem;
+	private short table;
+	private short slots;
+	private short mask;
+	private byte shift;
+	private byte h_class;
+	private byte h_id;
+
+	/**
+	 * Number of indexed objects
+	 */
+	private short count;
+
+	/**
+	 * Number of live objects which could not be indexed
+	 */
+	private short unindexed;
+
+	/**
+	 * Constructor for the ObjectMap class. The table gets one slot
+	 * every 64 bytes of memory, within MIN_SLOTS and MAX_SLOTS.
+	 *
+	 * @param mem_ref The MemoryManager object the table is allocated from
+	 * @param mem_size The size of the memory arena
+	 * @param class_offset Offset of the object type in the object header
+	 * @param id_offset Offset of the object ID in the object header
+	 */
+	public ObjectMap(MemoryManager mem_ref, short mem_size, 
+	                 byte class_offset, byte id_offset)
+	{
+		mem = mem_ref;
+		h_class = class_offset;
+		h_id = id_offset;
+		short wanted = (short)((mem_size >> 6) & 0x03FF);
+		for(slots = MIN_SLOTS; slots < wanted && slots < MAX_SLOTS; )
+			slots = (short)(slots << 1);
+		mask = (short)(slots - 1);
+		// shift brings the top bits of a 16 bit hash down to a slot number
+		shift = 16;
+		for(short s = slots; s > 1; s = (short)(s >> 1))
+			shift--;
+		table = mem.alloc((short)(slots * 2));
+		if(table == -1)
+			ISOException.throwIt(ObjectManager.SW_NO_MEMORY_LEFT);
+		// NULL_OFFSET is -1: an all-ones table is an empty table
+		Util.arrayFillNonAtomic(mem.getBuffer(), table, 
+		                        (short)(slots * 2), (byte)0xFF);
+		count = 0;
+		unindexed = 0;
+	}
+
+	private short hash(short type, short id)
+	{
+		short h = (short)((short)(type * 31) ^ id);
+		// Multiplicative hashing, taking the top bits: consecutive IDs
+		// are spread over the table instead of filling a run of slots
+		h = (short)(h * (short)0x9E37);
+		return (short)((h >> shift) & mask);
+	}
+
+	private short getSlot(short slot)
+	{
+		return mem.getShort(table, (short)(slot * 2));
+	}
+
+	private void setSlot(short slot, short base)
+	{
+		mem.setShort(table, (short)(slot * 2), base);
+	}
+
+	/**
+	 * Adds an object to the map. The object header must already
+	 * contain its type and ID.
+	 *
+	 * @param base The object header base address
+	 */
+	public void addEntry(short base)
+	{
+		// Keep one slot empty so that probe sequences always terminate
+		if(count >= mask) {
+			unindexed++;
+			return;
+		}
+		short slot = hash(mem.getShort(base, (short)h_class), 
+		                  mem.getShort(base, (short)h_id));
+		while(getSlot(slot) != -1)
+			slot = (short)((short)(slot + 1) & mask);
+		setSlot(slot, base);
+		count++;
+	}
+
+	/**
+	 * Removes an object from the map.
+	 *
+	 * @param base The object header base address
+	 */
+	public void removeEntry(short base)
+	{
+		short i = hash(mem.getShort(base, (short)h_class), 
+		               mem.getShort(base, (short)h_id));
+		short cur;
+		while((cur = getSlot(i)) != base) {
+			if(cur == -1) {
+				// Object was not indexed
+				unindexed--;
+				return;
+			}
+			i = (short)((short)(i + 1) & mask);
+		}
+		count--;
+		// Backward shift: move up every following entry of the cluster
+		// whose home slot does not lie cyclically in (i, j]
+		for(short j = i; ; ) {
+			j = (short)((short)(j + 1) & mask);
+			cur = getSlot(j);
+			if(cur == -1)
+				break;
+			short k = hash(mem.getShort(cur, (short)h_class), 
+			               mem.getShort(cur, (short)h_id));
+			if(i <= j ? (i < k && k <= j) : (i < k || k <= j))
+				continue;
+			setSlot(i, cur);
+			i = j;
+		}
+		setSlot(i, (short)-1);
+	}
+
+	/**
+	 * Looks up an object in the map.
+	 *
+	 * @param type Object Type
+	 * @param id Object ID
+	 *
+	 * @return The object header base address or NULL_OFFSET if the
+	 * object is not indexed
+	 */
+	public short getEntry(short type, short id)
+	{
+		short base;
+		for(short slot = hash(type, id); (base = getSlot(slot)) != -1; 
+		    slot = (short)((short)(slot + 1) & mask)) {
+			if(mem.getShort(base, (short)h_class) == type && 
+			   mem.getShort(base, (short)h_id) == id)
+				return base;
+		}
+		return -1;
+	}
+
+	/**
+	 * Tells whether a miss in getEntry() is authoritative.
+	 *
+	 * @return True if some live objects could not be indexed and a full
+	 * search is needed to prove an object does not exist
+	 */
+	public boolean isPartial()
+	{
+		return unindexed != 0;
+	}
+}
@@ -33,6 +33,10 @@ import net.pwendland.javacard.pki.isoapplet.UtilTLV;
  * The size of the array storing the references to the children can be set before compilation.
  * Also, this class tries to increase the size until a maximum value. If you do not want that kind of behavior,
  * set CHILDREN_COUNT_MAX to the same value as CHILDREN_COUNT_START.
+ *
+ * Children are found by their file ID through an index kept with the children array, and by their
+ * short EF identifier through a table of the first EF having each SFI, so that selecting a file does not
+ * compare the IDs of all its siblings. File IDs are unique in the file system (see IsoFileSystem.getSafeFile()).
  */
 public class DedicatedFile extends File {
     private static final short CHILDREN_COUNT_START = 10;
@@ -42,8 +46,16 @@ public class DedicatedFile extends File {
     public static final byte SPECIFY_DF = 0x02;
     public static final byte SPECIFY_ANY = 0x03;
 
+    private static final byte SFI_COUNT = 32;
+
     private byte currentNumChildren;
     private File[] children;
+    // Open addressed table from the file IDs of the children to their position in children[]:
+    // a slot holds the position + 1, or 0 if it is empty. It has at least twice the slots of children[].
+    private byte[] fidIndex;
+    // The position + 1 of the first EF children with each SFI, 0 if there is none.
+    private byte[] sfiIndex;
+    private byte currentNumDFChildren;
 
 
     /**
@@ -66,6 +78,9 @@ public class DedicatedFile extends File {
         super(fileID, fileControlInformation);
         this.currentNumChildren = 0;
         this.children = new File[CHILDREN_COUNT_START];
+        this.fidIndex = new byte[fidIndexSize(CHILDREN_COUNT_START)];
+        this.sfiIndex = new byte[SFI_COUNT];
+        this.currentNumDFChildren = 0;
     }
 
     /**
@@ -137,28 +152,35 @@ public class DedicatedFile extends File {
      * \throw FileNotFoundException It no children has the given fileID.
      */
     public void deleteChildren(short fileID) throws FileNotFoundException {
-        short childNum = -1;
-        short i;
-
-        for(i = 0; i < currentNumChildren; i++) {
-            if(fileID == children[i].getFileID()) {
-                childNum = i;
-                break;
-            }
-        }
+        short childNum = findChildIndex(fileID);
 
         if(childNum == -1) {
             throw FileNotFoundException.getInstance();
         }
 
+        File child = children[childNum];
+        JCSystem.beginTransaction();
+        unindexFileID(fileID);
+        if(child instanceof DedicatedFile) {
+            currentNumDFChildren--;
+        }
+
         children[childNum] = null;
         currentNumChildren--; // We have one less children now.
 
         // Fill up empty field in children array.
         // The last children is one ahead, so it is at currentNumChildren.
         if(childNum < currentNumChildren) {
+            fidIndex[findFidSlot(children[currentNumChildren].getFileID())] = (byte)(childNum + 1);
             children[childNum] = children[currentNumChildren];
+            if(children[childNum] instanceof ElementaryFile) {
+                updateSfiIndex(((ElementaryFile)children[childNum]).getShortFileID());
+            }
+        }
+        if(child instanceof ElementaryFile) {
+            updateSfiIndex(((ElementaryFile)child).getShortFileID());
         }
+        JCSystem.commitTransaction();
 
         // Clean up the old file object.
         JCSystem.requestObjectDeletion();
@@ -190,10 +212,28 @@ public class DedicatedFile extends File {
                     throw NotEnoughSpaceException.getInstance();
                 }
             }
+            // The index is rebuilt for the new size before it replaces the old one.
+            byte[] newFidIndex = new byte[fidIndexSize((short)newChildren.length)];
+            short i;
+            for(i = 0; i < currentNumChildren; i++) {
+                indexFileID(newFidIndex, children[i].getFileID(), i);
+            }
             children = newChildren; // Initial children array is now garbage.
+            fidIndex = newFidIndex;
             JCSystem.requestObjectDeletion();
         } // We have enough space (now).
+        JCSystem.beginTransaction();
+        indexFileID(fidIndex, childFile.getFileID(), currentNumChildren);
+        if(childFile instanceof DedicatedFile) {
+            currentNumDFChildren++;
+        } else if(childFile instanceof ElementaryFile) {
+            byte sfi = ((ElementaryFile)childFile).getShortFileID();
+            if(sfiIndex[sfi] == 0) {
+                sfiIndex[sfi] = (byte)(currentNumChildren + 1);
+            }
+        }
         children[currentNumChildren++] = childFile;
+        JCSystem.commitTransaction();
         return;
     }
 
@@ -218,6 +258,102 @@ public class DedicatedFile extends File {
     }
 
 
+    /**
+     * \brief The size of the FID index for a children array: a power of two, at least twice as large.
+     */
+    private static short fidIndexSize(short childrenLength) {
+        short size = 8;
+        while(size < (short)(childrenLength * 2)) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * \brief The first slot to probe in a FID index.
+     */
+    private static short fidHash(byte[] index, short fileID) {
+        return (short)((short)(fileID ^ (short)(fileID >> 8)) & (short)(index.length - 1));
+    }
+
+    /**
+     * \brief Add a file ID to a FID index, in the first free slot from its hash.
+     *
+     * \param num The position of the file in the children array.
+     */
+    private static void indexFileID(byte[] index, short fileID, short num) {
+        short mask = (short)(index.length - 1);
+        short slot = fidHash(index, fileID);
+        while(index[slot] != 0) {
+            slot = (short)((short)(slot + 1) & mask);
+        }
+        index[slot] = (byte)(num + 1);
+    }
+
+    /**
+     * \brief Find the slot of the FID index for a file ID.
+     *
+     * \return The slot, or the empty slot ending the probe sequence if no children has this file ID.
+     */
+    private short findFidSlot(short fileID) {
+        short mask = (short)(fidIndex.length - 1);
+        short slot = fidHash(fidIndex, fileID);
+        while(fidIndex[slot] != 0
+                && children[(short)(fidIndex[slot] - 1)].getFileID() != fileID) {
+            slot = (short)((short)(slot + 1) & mask);
+        }
+        return slot;
+    }
+
+    /**
+     * \brief Find the position of a direct children through the FID index.
+     *
+     * \return The position in the children array, -1 if no children has this file ID.
+     */
+    private short findChildIndex(short fileID) {
+        return (short)(fidIndex[findFidSlot(fileID)] - 1);
+    }
+
+    /**
+     * \brief Remove a file ID from the FID index.
+     *
+     * The following entries of the probe sequence are moved back, so that no
+     * entry is ever separated from its hash by an empty slot.
+     */
+    private void unindexFileID(short fileID) {
+        short mask = (short)(fidIndex.length - 1);
+        short slot = findFidSlot(fileID);
+        short next = slot;
+        short home;
+        while(true) {
+            next = (short)((short)(next + 1) & mask);
+            if(fidIndex[next] == 0) {
+                break;
+            }
+            home = fidHash(fidIndex, children[(short)(fidIndex[next] - 1)].getFileID());
+            // The entry may fill the hole if its hash is not between the hole and itself.
+            if(slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+                fidIndex[slot] = fidIndex[next];
+                slot = next;
+            }
+        }
+        fidIndex[slot] = 0;
+    }
+
+    /**
+     * \brief Set the SFI table entry of a short EF identifier to the first EF children having it.
+     */
+    private void updateSfiIndex(byte sfi) {
+        short i;
+        for(i = 0; i < currentNumChildren; i++) {
+            if(children[i] instanceof ElementaryFile
+                    && ((ElementaryFile)children[i]).getShortFileID() == sfi) {
+                break;
+            }
+        }
+        sfiIndex[sfi] = (byte)(i < currentNumChildren ? i + 1 : 0);
+    }
+
     /**
      * \brief Find the Elementary File directly under this DF with the specified file ID.
      *
@@ -230,18 +366,12 @@ public class DedicatedFile extends File {
      * \return The file if it was found.
      */
     public ElementaryFile findChildElementaryFile (short fileID) throws FileNotFoundException {
-        short i = 0;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i].getFileID() == fileID) {
-                // File ID is matching, perform a type check and return
-                if(children[i] instanceof ElementaryFile) {
-                    return (ElementaryFile) children[i];
-                }
-                // Should not happen: The elementary file that is being searched for is not a elementary file.
-                // (i.e. the fileID points to a DF.)
-                throw FileNotFoundException.getInstance();
-            }
+        short i = findChildIndex(fileID);
+        // File ID is matching, perform a type check and return
+        if(i >= 0 && children[i] instanceof ElementaryFile) {
+            return (ElementaryFile) children[i];
         }
+        // Not found, or the fileID points to a DF.
         throw FileNotFoundException.getInstance();
     }
 
@@ -258,14 +388,10 @@ public class DedicatedFile extends File {
         if((sfi & 0xE0) > (byte) 0) {
             throw FileNotFoundException.getInstance();
         }
-        short i;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i] instanceof ElementaryFile &&
-                    ((ElementaryFile)children[i]).getShortFileID() == sfi) {
-                return (ElementaryFile) children[i];
-            }
+        if(sfiIndex[sfi] == 0) {
+            throw FileNotFoundException.getInstance();
         }
-        throw FileNotFoundException.getInstance();
+        return (ElementaryFile) children[(short)(sfiIndex[sfi] - 1)];
     }
 
     /**
@@ -280,18 +406,12 @@ public class DedicatedFile extends File {
      * \return The file if it was found.
      */
     public DedicatedFile findChildDedicatedFile(short fileID) throws FileNotFoundException {
-        short i;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i].getFileID() == fileID) {
-                // File ID is matching, perform a type check and return
-                if(children[i] instanceof DedicatedFile) {
-                    return (DedicatedFile) children[i];
-                }
-                // Should not happen: The dedicated file that is being searched for is not a dedicated file.
-                // (i.e. the fileID points to a EF.)
-                throw FileNotFoundException.getInstance();
-            }
+        short i = findChildIndex(fileID);
+        // File ID is matching, perform a type check and return
+        if(i >= 0 && children[i] instanceof DedicatedFile) {
+            return (DedicatedFile) children[i];
         }
+        // Not found, or the fileID points to an EF.
         throw FileNotFoundException.getInstance();
     }
 
@@ -309,20 +429,29 @@ public class DedicatedFile extends File {
      * \return A reference to the DedicatedFile if found.
      */
     public DedicatedFile findDedicatedFileByNameRec(byte[] name, short nameOffset, short nameLength) throws FileNotFoundException {
-        short i;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i] instanceof DedicatedFile) {
-                if(((DedicatedFile)children[i]).isName(name, nameOffset, nameLength)) {
-                    return (DedicatedFile) children[i];
+        // Depth-first, in the order of the former recursive search, but walking back up
+        // through the parent links instead of the (small) Java Card stack.
+        DedicatedFile df = this;
+        short i = 0;
+        while(true) {
+            if(i < df.currentNumChildren) {
+                if(df.children[i] instanceof DedicatedFile) {
+                    if(((DedicatedFile)df.children[i]).isName(name, nameOffset, nameLength)) {
+                        return (DedicatedFile) df.children[i];
+                    }
+                    df = (DedicatedFile) df.children[i];
+                    i = 0;
+                } else {
+                    i++;
                 }
-                try {
-                    return ((DedicatedFile)children[i]).findDedicatedFileByNameRec(name, nameOffset, nameLength);
-                } catch(FileNotFoundException e) {
-                    // Ignore this exception until the last children has unsuccessfully been visited.
+            } else {
+                if(df == this) {
+                    throw FileNotFoundException.getInstance();
                 }
+                i = (short)(df.getParentDF().getChildIndex(df) + 1);
+                df = df.getParentDF();
             }
         }
-        throw FileNotFoundException.getInstance();
     }
 
     /**
@@ -335,27 +464,53 @@ public class DedicatedFile extends File {
      * \return A reference to the File if found.
      */
     public File findChildrenRec(short fileID, byte flag) throws FileNotFoundException {
-        short i;
-        for(i=0; i < currentNumChildren; i++) {
-            if(children[i].getFileID() == fileID) {
+        // Depth-first, in the order of the former recursive search: the sub-DFs before the child
+        // with the file ID (found through the index) first, then that child.
+        DedicatedFile df = this;
+        short match = findChildIndex(fileID);
+        short i = 0;
+        while(true) {
+            short end = match < 0 ? df.currentNumChildren : match;
+            if(df.currentNumDFChildren == 0) {
+                i = end;
+            }
+            while(i < end && !(df.children[i] instanceof DedicatedFile)) {
+                i++;
+            }
+            if(i < end) {
+                df = (DedicatedFile) df.children[i];
+                match = df.findChildIndex(fileID);
+                i = 0;
+                continue;
+            }
+            if(match >= 0) {
+                File child = df.children[match];
                 if((flag == SPECIFY_ANY)
-                        || (flag == SPECIFY_DF && children[i] instanceof DedicatedFile)
-                        || (flag == SPECIFY_EF && children[i] instanceof ElementaryFile)) {
-                    return children[i];
-                } else {
-                    // File with specified FID and requested file type do not match.
-                    throw FileNotFoundException.getInstance();
+                        || (flag == SPECIFY_DF && child instanceof DedicatedFile)
+                        || (flag == SPECIFY_EF && child instanceof ElementaryFile)) {
+                    return child;
                 }
+                // File with specified FID and requested file type do not match.
+                // Skip the rest of this DF, as the recursive search did.
             }
-            if(children[i] instanceof DedicatedFile) {
-                try {
-                    return ((DedicatedFile)children[i]).findChildrenRec(fileID, flag);
-                } catch(FileNotFoundException e) {
-                    // Ignore this exception until the last children has unsuccessfully been visited.
-                }
+            if(df == this) {
+                throw FileNotFoundException.getInstance();
             }
+            i = (short)(df.getParentDF().getChildIndex(df) + 1);
+            df = df.getParentDF();
+            match = df.findChildIndex(fileID);
         }
-        throw FileNotFoundException.getInstance();
+    }
+
+    /**
+     * \brief Get the position of a direct children of this DF.
+     *
+     * \param child The children.
+     *
+     * \return Its index in the children array, -1 if it is not a children of this DF.
+     */
+    private short getChildIndex(File child) {
+        return findChildIndex(child.getFileID());
     }
 
     /**
@@ -372,31 +527,29 @@ public class DedicatedFile extends File {
      * \return The File if found.
      */
     public File findChildrenByPath(byte[] path, short pathOffset, short pathLength) throws FileNotFoundException {
-        byte childPos;
+        short childPos;
         short pathPos;
-        short nextFileID;
 
         DedicatedFile df = this;
         for(pathPos=pathOffset; pathPos < (short) ((pathLength+pathOffset)-1); pathPos+=2) {
-            nextFileID = Util.getShort(path, pathPos);
-            for(childPos=0; childPos < df.getChildrenCount(); childPos++) {
-                if(nextFileID == df.getChildren( childPos ).getFileID()) {
-                    // We found the next node in the path.
-                    if(pathPos == (short) (pathOffset+pathLength-2)) {
-                        // It is the last File in the path with a matching FID.
-                        // We are done.
-                        return df.getChildren(childPos);
-                    } else if(df.getChildren( childPos ) instanceof DedicatedFile) {
-                        // We still have to search for children.
-                        // Luckily, the last file we found is a DF. :-)
-                        df = (DedicatedFile) df.getChildren( childPos);
-                        break;
-                    } else {
-                        // Matching file ID, has children according to path, but is no DF.
-                        // Something really bad happened or the path was invalid!
-                        throw FileNotFoundException.getInstance();
-                    }
-                }
+            childPos = df.findChildIndex(Util.getShort(path, pathPos));
+            if(childPos < 0) {
+                // The path does not lead to a file.
+                break;
+            }
+            // We found the next node in the path.
+            if(pathPos == (short) (pathOffset+pathLength-2)) {
+                // It is the last File in the path with a matching FID.
+                // We are done.
+                return df.children[childPos];
+            } else if(df.children[childPos] instanceof DedicatedFile) {
+                // We still have to search for children.
+                // Luckily, the last file we found is a DF. :-)
+                df = (DedicatedFile) df.children[childPos];
+            } else {
+                // Matching file ID, has children according to path, but is no DF.
+                // Something really bad happened or the path was invalid!
+                throw FileNotFoundException.getInstance();
             }
         }
         // We could not find the file with that path.
@@ -19,10 +19,14 @@
 
 package net.pwendland.javacard.pki.isoapplet;
 
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
 /**
  * \brief The ElementaryFileCyclicFixed class.
  *
  * It stores records of a fixed size and overwrites the oldest record if the maximum number of records is exceeded.
+ * As specified by ISO 7816-4, record number 0 (1 in APDUs) is the most recently added record.
  */
 public class ElementaryFileCyclicFixed extends ElementaryFileLinearFixed {
     byte currentRecordPos;
@@ -80,4 +84,55 @@ public class ElementaryFileCyclicFixed extends ElementaryFileLinearFixed {
         return false;
     }
 
+    /**
+     * \brief Get the position in the records array of a record.
+     *
+     * \param recordNum The number of the record, starting at 0 with the most recently added one.
+     *
+     * \return The index of the record in the records array.
+     */
+    @Override
+    short getRecordIndex(byte recordNum) {
+        short index = (short)(currentRecordPos - 1 - recordNum);
+        if(index < 0) {
+            index += (short) records.length;
+        }
+        return index;
+    }
+
+    /**
+     * \brief Add a record to this cyclic EF (fixed record size), copying the data.
+     *
+     * Once the file is full, the data array of the oldest record is overwritten in place,
+     * so no memory is allocated. The record and the position are updated in one transaction.
+     *
+     * \return 	true 	If the record had been added.
+     *			false	An error occurred (wrong record length), no record had been added.
+     */
+    @Override
+    public boolean appendRecord(byte[] buf, short offset, short length) {
+        if(length != super.getRecordLength()) {
+            return false;
+        }
+        Record newRecord = null;
+        if(records[currentRecordPos] == null) {
+            // The new array is not reachable before the record is stored, no need for an atomic copy.
+            byte[] data = new byte[length];
+            Util.arrayCopyNonAtomic(buf, offset, data, (short) 0, length);
+            newRecord = new Record(data);
+        }
+        // The oldest record, the position and the count change together: a tear must not leave
+        // the new data in the slot that is still reported as the oldest record.
+        JCSystem.beginTransaction();
+        if(newRecord != null) {
+            records[currentRecordPos] = newRecord;
+        } else {
+            Util.arrayCopy(buf, offset, records[currentRecordPos].data, (short) 0, length);
+        }
+        currentRecordPos = (byte)((currentRecordPos + (byte) 1) % (byte) records.length);
+        currentRecordCount = currentRecordCount == (byte) records.length ? currentRecordCount : (byte) (currentRecordCount + 1);
+        JCSystem.commitTransaction();
+        return true;
+    }
+
 }
@@ -89,5 +89,33 @@ public class ElementaryFileLinearFixed extends ElementaryFileLinearVariable {
         }
     }
 
+    /**
+     * \brief Add a record to this EF (fixed record size), copying the data.
+     *
+     * \return 	true 	If the record had been added.
+     *			false	An error occurred (no space left or wrong record length), no record had been added.
+     */
+    @Override
+    public boolean appendRecord(byte[] buf, short offset, short length) {
+        if(length != recordLength) {
+            return false;
+        }
+        return super.appendRecord(buf, offset, length);
+    }
+
+    /**
+     * \brief Overwrite a record of this EF (fixed record size) in place.
+     *
+     * \return 	true 	If the record had been updated.
+     *			false	An error occurred (no such record or wrong record length), the record had not been changed.
+     */
+    @Override
+    public boolean updateRecord(byte recordNum, byte[] buf, short offset, short length) {
+        if(length != recordLength) {
+            return false;
+        }
+        return super.updateRecord(recordNum, buf, offset, length);
+    }
+
 }
 
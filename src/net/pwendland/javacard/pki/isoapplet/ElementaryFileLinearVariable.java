@@ -19,6 +19,9 @@
 
 package net.pwendland.javacard.pki.isoapplet;
 
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
 /**
  * \brief The ElementaryFileLinearVariable class.
  *
@@ -78,19 +81,91 @@ public class ElementaryFileLinearVariable extends ElementaryFile {
         return true;
     }
 
+    /**
+     * \brief Get the position in the records array of a record.
+     *
+     * \param recordNum The number of the record, starting at 0. This relates to the order in which
+     *			records have been added.
+     *
+     * \return The index of the record in the records array.
+     */
+    short getRecordIndex(byte recordNum) {
+        return recordNum;
+    }
+
     /**
      * \brief Get the byte representation (data) of the record.
      *
-     * \param The number of the record. This relates to the order in which records have been added.
+     * \param The number of the record, starting at 0. This relates to the order in which records have been added.
      *
-     * \return The byte representation of the specified record.
+     * \return The byte representation of the specified record, null if there is no such record.
      */
     public byte[] getRecordData (byte recordNum) {
-        if((recordNum < 0) || (recordNum > currentRecordCount)) {
+        if((recordNum < 0) || (recordNum >= currentRecordCount)) {
             return null;
         }
-        return this.records[recordNum].data;
+        return this.records[getRecordIndex(recordNum)].data;
     }
 
-}
+    /**
+     * \brief Add a record, copying the data.
+     *
+     * Only the new record is written.
+     *
+     * \param buf The buffer containing the record data (e.g. the apdu buffer).
+     *
+     * \param offset The offset of the record data in buf.
+     *
+     * \param length The length of the record.
+     *
+     * \return 	true 	If the record had been added.
+     *			false	An error occurred, no record had been added.
+     */
+    public boolean appendRecord(byte[] buf, short offset, short length) {
+        if(records.length == currentRecordCount) {
+            return false;
+        }
+        // The new array is not reachable before the record is stored, no need for an atomic copy.
+        byte[] data = new byte[length];
+        Util.arrayCopyNonAtomic(buf, offset, data, (short) 0, length);
+        records[currentRecordCount] = new Record(data);
+        currentRecordCount++;
+        return true;
+    }
+
+    /**
+     * \brief Replace the data of a record.
+     *
+     * If the length does not change, the record is overwritten in place. Otherwise a new
+     * data array is allocated and the old one is left to the garbage collector.
+     *
+     * \param recordNum The number of the record, starting at 0 (see getRecordData()).
+     *
+     * \param buf The buffer containing the new record data (e.g. the apdu buffer).
+     *
+     * \param offset The offset of the record data in buf.
+     *
+     * \param length The length of the new record data.
+     *
+     * \return 	true 	If the record had been updated.
+     *			false	An error occurred, the record had not been changed.
+     */
+    public boolean updateRecord(byte recordNum, byte[] buf, short offset, short length) {
+        if((recordNum < 0) || (recordNum >= currentRecordCount)) {
+            return false;
+        }
+        Record record = records[getRecordIndex(recordNum)];
+        if(record.data.length == length) {
+            Util.arrayCopy(buf, offset, record.data, (short) 0, length);
+        } else {
+            byte[] data = new byte[length];
+            Util.arrayCopyNonAtomic(buf, offset, data, (short) 0, length);
+            record.data = data;
+            if(JCSystem.isObjectDeletionSupported()) {
+                JCSystem.requestObjectDeletion();
+            }
+        }
+        return true;
+    }
 
+}
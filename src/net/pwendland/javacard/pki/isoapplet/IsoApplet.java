@@ -65,6 +65,10 @@ public class IsoApplet extends Applet implements ExtendedLength {
     public static final byte INS_CREATE_FILE = (byte) 0xE0;
     public static final byte INS_UPDATE_BINARY = (byte) 0xD6;
     public static final byte INS_READ_BINARY = (byte) 0xB0;
+    public static final byte INS_READ_RECORD = (byte) 0xB2;
+    public static final byte INS_UPDATE_RECORD = (byte) 0xDC;
+    public static final byte INS_APPEND_RECORD = (byte) 0xE2;
+    public static final byte INS_SEARCH_RECORD = (byte) 0xA2;
     public static final byte INS_DELETE_FILE = (byte) 0xE4;
     // Other INS:
     public static final byte INS_VERIFY = (byte) 0x20;
@@ -284,6 +288,18 @@ public class IsoApplet extends Applet implements ExtendedLength {
             case INS_READ_BINARY:
                 fs.processReadBinary(apdu);
                 break;
+            case INS_READ_RECORD:
+                fs.processReadRecord(apdu);
+                break;
+            case INS_UPDATE_RECORD:
+                fs.processUpdateRecord(apdu);
+                break;
+            case INS_APPEND_RECORD:
+                fs.processAppendRecord(apdu);
+                break;
+            case INS_SEARCH_RECORD:
+                fs.processSearchRecord(apdu);
+                break;
             case INS_VERIFY:
                 processVerify(apdu);
                 break;
@@ -45,7 +45,7 @@ public class IsoFileSystem extends DedicatedFile {
     public static final byte OFFSET_CURRENT_EF = 1;
 
     private Object[] currentlySelectedFiles = null;
-    short currentRecordNum;
+    private short[] currentRecordNum = null;
     private boolean[] isUserAuthenticated = null;
 
 
@@ -64,7 +64,7 @@ public class IsoFileSystem extends DedicatedFile {
      */
     public IsoFileSystem(short fileID, byte[] fileControlInformation) {
         super(fileID, fileControlInformation);
-        this.currentRecordNum = 0;
+        this.currentRecordNum = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
         this.isUserAuthenticated = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
         this.currentlySelectedFiles = JCSystem.makeTransientObjectArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
         this.currentlySelectedFiles[OFFSET_CURRENT_DF] = this;
@@ -128,10 +128,12 @@ public class IsoFileSystem extends DedicatedFile {
     /**
      * \brief Get the number of the current record for the currently selected EF.
      *
-     * \return The record number.
+     * The record pointer is kept in RAM and reset to the first record when an EF is selected.
+     *
+     * \return The record number, starting at 0.
      */
     public short getCurrentRecordNumber() {
-        return currentRecordNum;
+        return currentRecordNum[0];
     }
 
     /**
@@ -145,7 +147,7 @@ public class IsoFileSystem extends DedicatedFile {
         if ((getCurrentlySelectedEF() instanceof ElementaryFileLinearVariable)
                 &&(((ElementaryFileLinearVariable)getCurrentlySelectedEF()).getCurrentRecordCount() > recordID)
                 && (recordID >= 0)) {
-            currentRecordNum = recordID;
+            currentRecordNum[0] = recordID;
         }
     }
 
@@ -258,7 +260,7 @@ public class IsoFileSystem extends DedicatedFile {
         } else if (file instanceof ElementaryFile) {
             currentlySelectedFiles[OFFSET_CURRENT_EF] = file;
             currentlySelectedFiles[OFFSET_CURRENT_DF] = ((ElementaryFile)currentlySelectedFiles[OFFSET_CURRENT_EF]).getParentDF();
-            this.currentRecordNum = 0;
+            this.currentRecordNum[0] = 0;
         }
         return;
     }
@@ -394,7 +396,7 @@ public class IsoFileSystem extends DedicatedFile {
             switch(fci[(short)(pos+1)]) { // switch on the length: see ISO 7816-4 Table 12, Tag 82.
             case 0x03:
                 // max record size is 1 byte long.
-                recordSize = fci[(short)(pos+4)];
+                recordSize = (short)(fci[(short)(pos+4)] & 0x00FF);
                 break;
 
             case 0x04:
@@ -405,7 +407,7 @@ public class IsoFileSystem extends DedicatedFile {
             case 0x05:
                 // max record size is 2 bytes long, number of records is 1 byte long.
                 recordSize = Util.getShort(fci, (short)(pos+4));
-                maxRecords = fci[(short)(pos+2)];
+                maxRecords = fci[(short)(pos+6)];
                 break;
 
             case 0x06:
@@ -633,6 +635,9 @@ public class IsoFileSystem extends DedicatedFile {
     /**
      * \brief Process the READ BINARY APDU.
      *
+     * Le may be extended (up to 32767 bytes); the data is sent straight from the EF's data
+     * array without being copied to the APDU buffer first.
+     *
      * \param apdu The APDU (INS=B0).
      *
      * \throw ISOException SW_FUNC_NOT_SUPPORTED, SW_SECURITY_STATUS_NOT_SATISFIED, SW_INCORRECT_P1P2
@@ -648,17 +653,12 @@ public class IsoFileSystem extends DedicatedFile {
             ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
         }
 
-        // We expect a case 2 APDU (CLA|INS|P1|P2|Le)
-        if(apdu.setIncomingAndReceive() != (short) 0) {
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-        }
-
         // Check P1 and P2.
         short offset = -1; // offset in data in EF
         ElementaryFile ef = null;
         if((p1 & 0xE0) == 0x80) {
             byte sfi = (byte)(p1 & 0x1F);
-            offset = p2;
+            offset = (short)(p2 & 0x00FF);
             try {
                 ef = getCurrentlySelectedDF().findChildElementaryFileBySFI(sfi);
             } catch(FileNotFoundException e) {
@@ -685,33 +685,29 @@ public class IsoFileSystem extends DedicatedFile {
             ISOException.throwIt(SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE);
         }
 
-        // Le: Length of expected data (i.e. max length of data to read).
-        short le = (short)(buf[(short)4] & 0x00FF);
-        if(le == 0) {
-            le = 256;
-        }
-
         // Offset in bounds?
         if( ((offset) >= efTr.getData().length)
                 || (offset < 0) ) {
             ISOException.throwIt(SW_OFFSET_OUTSIDE_EF);
         }
 
+        // Le: Length of expected data (i.e. max length of data to read).
+        // Short Le=00 means 256, extended Le=0000 is reported as 32767 by setOutgoing().
+        short le = apdu.setOutgoing();
+
         /*
          * Adjust Le: If it is longer than the actual data, set it to the legnth of the actual data.
          *
-         * The host may request all the data (up to 256 Bytes) with Le=00, but the data might be smaller.
-         * This is a valid request; we have to send all the data (even if less than 256 Bytes).
+         * The host may request all the data with Le=00 (or 0000), but the data might be smaller.
+         * This is a valid request; we have to send all the data (even if less than Le Bytes).
          */
-        if((short) (le+offset) >= (short) efTr.getData().length) {
-            le = (short)((short)(efTr.getData().length) - offset);
+        if(le > (short)((short) efTr.getData().length - offset)) {
+            le = (short)((short) efTr.getData().length - offset);
         }
 
-        // Read.
-        Util.arrayCopy(efTr.getData(), offset, buf, (short) 0, le);
-
-        // Send.
-        apdu.setOutgoingAndSend((short) 0, le);
+        // Send, directly from the EF.
+        apdu.setOutgoingLength(le);
+        apdu.sendBytesLong(efTr.getData(), offset, le);
     }
 
 
@@ -725,6 +721,10 @@ public class IsoFileSystem extends DedicatedFile {
      * bits 100) or an EF specified by a short EF identifier (SFI) under the current DF are
      * altered. At the moment, only INS=D6 APDUs are supported.
      *
+     * Lc may be extended. The data is written to the EF as it is received, each received
+     * block atomically. An interrupted update therefore leaves the preceding blocks written,
+     * just like the equivalent sequence of short UPDATE BINARY commands would.
+     *
      * \param apdu The APDU (INS=D6).
      *
      * \throw ISOException SW_FUNC_NOT_SUPPORTED, SW_SECURITY_STATUS_NOT_SATISFIED, SW_INCORRECT_P1P2
@@ -735,6 +735,7 @@ public class IsoFileSystem extends DedicatedFile {
         byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
         short lc;
+        short recvLen;
         short offset_cdata;
 
         // Check INS: We only support INS=D6 at the moment.
@@ -742,11 +743,9 @@ public class IsoFileSystem extends DedicatedFile {
             ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
         }
 
-        // Bytes received must be Lc.
-        lc = apdu.setIncomingAndReceive();
-        if(lc != apdu.getIncomingLength()) {
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-        }
+        // Receive the first block. The rest (of an extended APDU) is received while writing.
+        recvLen = apdu.setIncomingAndReceive();
+        lc = apdu.getIncomingLength();
         offset_cdata = apdu.getOffsetCdata();
 
         // Check P1 and P2.
@@ -754,7 +753,7 @@ public class IsoFileSystem extends DedicatedFile {
         ElementaryFile ef = null;
         if((p1 & 0xE0) == 0x80) {
             byte sfi = (byte)(p1 & 0x1F);
-            offset = p2;
+            offset = (short)(p2 & 0x00FF);
             try {
                 ef = getCurrentlySelectedDF().findChildElementaryFileBySFI(sfi);
             } catch(FileNotFoundException e) {
@@ -782,25 +781,303 @@ public class IsoFileSystem extends DedicatedFile {
         }
 
         // The data field should contain the new data.
-        if(((short) efTr.getData().length >= (short) (offset+lc)) // Check for data array overflow/out-of-bounds.
-                && ((short) ((short)32767-offset) >= lc)) { // Check for possible short overflow.
-            Util.arrayCopy(buf, offset_cdata, efTr.getData(), offset, lc);
-            selectFile(ef);
-        } else {
+        if(((short) efTr.getData().length < (short) (offset+lc)) // Check for data array overflow/out-of-bounds.
+                || ((short) ((short)32767-offset) < lc)) { // Check for possible short overflow.
             ISOException.throwIt(SW_OFFSET_OUTSIDE_EF);
         }
+        while(recvLen > 0) {
+            Util.arrayCopy(buf, offset_cdata, efTr.getData(), offset, recvLen);
+            offset += recvLen;
+            recvLen = apdu.receiveBytes(offset_cdata);
+        }
+        selectFile(ef);
     }
 
 
 // TODO SEARCH BINARY A0 A1
 // TODO ERASE BINARY 0E 0F
 
+    /**
+     * \brief Get the record EF a record command refers to.
+     *
+     * If P2 contains a short EF identifier (SFI), the referenced EF under the current DF
+     * becomes the currently selected EF. Otherwise the currently selected EF is used.
+     *
+     * \param p2 P2 of the record command (b8-b4: SFI or 00000).
+     *
+     * \throw ISOException SW_FILE_NOT_FOUND and SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE.
+     *
+     * \return The record EF.
+     */
+    private ElementaryFileLinearVariable getRecordEF(byte p2) throws ISOException {
+        byte sfi = (byte)((p2 >> 3) & 0x1F);
+        ElementaryFile ef = null;
+        if(sfi == 0) {
+            ef = getCurrentlySelectedEF();
+        } else {
+            try {
+                ef = getCurrentlySelectedDF().findChildElementaryFileBySFI(sfi);
+            } catch(FileNotFoundException e) {
+                ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+            }
+            if(ef != getCurrentlySelectedEF()) {
+                selectFile(ef);
+            }
+        }
+        if(ef == null) {
+            ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+        }
+        if(!(ef instanceof ElementaryFileLinearVariable)) {
+            ISOException.throwIt(SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE);
+        }
+        return (ElementaryFileLinearVariable) ef;
+    }
+
+    /**
+     * \brief Get the record a record command refers to by P1.
+     *
+     * \param efRec The record EF.
+     *
+     * \param p1 P1 of the command: the record number (starting at 1), or 00 for the current record.
+     *
+     * \throw ISOException SW_RECORD_NOT_FOUND.
+     *
+     * \return The record number, starting at 0.
+     */
+    private byte getRecordNumber(ElementaryFileLinearVariable efRec, byte p1) throws ISOException {
+        short recordNum = (p1 == 0) ? currentRecordNum[0] : (short)((short)(p1 & 0x00FF) - 1);
+        if(recordNum >= efRec.getCurrentRecordCount()) {
+            ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+        }
+        return (byte) recordNum;
+    }
+
+    /**
+     * \brief Process the READ RECORD(S) apdu.
+     *
+     * P2 (b3-b1) 100 reads record P1, 101 all records from P1 up to the last and 110 all records
+     * from the last up to P1. Multiple records are sent concatenated and as they were stored (only
+     * complete records, as many as fit in Le); this is unambiguous for fixed size records and for
+     * TLV structured records. The record pointer is not changed.
+     *
+     * \param apdu The apdu (INS=B2).
+     *
+     * \throw ISOException SW_FUNC_NOT_SUPPORTED, SW_WRONG_LENGTH, SW_INCORRECT_P1P2, SW_FILE_NOT_FOUND,
+     *			SW_RECORD_NOT_FOUND, SW_SECURITY_STATUS_NOT_SATISFIED and SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE.
+     */
+    public void processReadRecord(APDU apdu) throws ISOException {
+        byte[] buf = apdu.getBuffer();
+        byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        byte mode = (byte)(p2 & 0x07);
+        byte first, last, step, i;
+        short le, len;
+        byte[] data;
+
+        // Check INS: We only support INS=B2 at the moment.
+        if(buf[ISO7816.OFFSET_INS] == (byte) 0xB3) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        if(mode != 0x04 && mode != 0x05 && mode != 0x06) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        ElementaryFileLinearVariable efRec = getRecordEF(p2);
+        authenticateAction(efRec, ACL_OP_READ_SEARCH);
+        first = getRecordNumber(efRec, p1);
+        last = first;
+        step = 1;
+        if(mode == 0x05) {
+            last = (byte)(efRec.getCurrentRecordCount() - 1);
+        } else if(mode == 0x06) {
+            first = (byte)(efRec.getCurrentRecordCount() - 1);
+            step = -1;
+        }
+
+        le = apdu.setOutgoing();
+
+        // Count the complete records that fit.
+        len = 0;
+        for(i = first; ; i += step) {
+            short recLen = (short) efRec.getRecordData(i).length;
+            if((short)(le - len) < recLen) {
+                if(len == 0) {
+                    // Not even the first record fits: tell the host the right Le.
+                    ISOException.throwIt(recLen < 256 ? (short)(ISO7816.SW_CORRECT_LENGTH_00 | recLen) : ISO7816.SW_WRONG_LENGTH);
+                }
+                last = (byte)(i - step);
+                break;
+            }
+            len += recLen;
+            if(i == last) {
+                break;
+            }
+        }
+
+        // Send, directly from the records.
+        apdu.setOutgoingLength(len);
+        for(i = first; ; i += step) {
+            data = efRec.getRecordData(i);
+            apdu.sendBytesLong(data, (short) 0, (short) data.length);
+            if(i == last) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * \brief Process the UPDATE RECORD apdu.
+     *
+     * Replaces record P1 (00: the current record) with the data field. Records of a fixed
+     * size are overwritten in place, the new data must have the record size.
+     *
+     * \param apdu The apdu (INS=DC).
+     *
+     * \throw ISOException SW_FUNC_NOT_SUPPORTED, SW_WRONG_LENGTH, SW_INCORRECT_P1P2, SW_FILE_NOT_FOUND,
+     *			SW_RECORD_NOT_FOUND, SW_SECURITY_STATUS_NOT_SATISFIED and SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE.
+     */
+    public void processUpdateRecord(APDU apdu) throws ISOException {
+        byte[] buf = apdu.getBuffer();
+        byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        short lc;
+        short offset_cdata;
+
+        // Check INS: We only support INS=DC at the moment.
+        if(buf[ISO7816.OFFSET_INS] == (byte) 0xDD) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        // Only "record number in P1" is supported.
+        if((p2 & 0x07) != 0x04) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        // Bytes received must be Lc.
+        lc = apdu.setIncomingAndReceive();
+        if(lc != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        offset_cdata = apdu.getOffsetCdata();
+
+        ElementaryFileLinearVariable efRec = getRecordEF(p2);
+        authenticateAction(efRec, ACL_OP_UPDATE_ERASE);
+
+        if(!efRec.updateRecord(getRecordNumber(efRec, p1), buf, offset_cdata, lc)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+    }
+
+    /**
+     * \brief Process the APPEND RECORD apdu.
+     *
+     * Adds the data field as a new record; only this record is written. The new record becomes
+     * the current record. In a cyclic EF the oldest record is overwritten once the file is full.
+     *
+     * \param apdu The apdu (INS=E2).
+     *
+     * \throw ISOException SW_WRONG_LENGTH, SW_INCORRECT_P1P2, SW_FILE_NOT_FOUND, SW_FILE_FULL,
+     *			SW_SECURITY_STATUS_NOT_SATISFIED and SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE.
+     */
+    public void processAppendRecord(APDU apdu) throws ISOException {
+        byte[] buf = apdu.getBuffer();
+        byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        short lc;
+        short offset_cdata;
+
+        if(p1 != 0x00 || (p2 & 0x07) != 0x00) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        // Bytes received must be Lc.
+        lc = apdu.setIncomingAndReceive();
+        if(lc != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        offset_cdata = apdu.getOffsetCdata();
+
+        ElementaryFileLinearVariable efRec = getRecordEF(p2);
+        authenticateAction(efRec, ACL_OP_WRITE);
+
+        if(efRec instanceof ElementaryFileLinearFixed
+                && lc != ((ElementaryFileLinearFixed) efRec).getRecordLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        if(!efRec.appendRecord(buf, offset_cdata, lc)) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        currentRecordNum[0] = (efRec instanceof ElementaryFileCyclicFixed) ? 0 : (short)(efRec.getCurrentRecordCount() - 1);
+    }
+
+    /**
+     * \brief Process the SEARCH RECORD apdu (simple search).
+     *
+     * Searches the records for the string in the data field, at any position within a record.
+     * P2 (b3-b1) 100 searches from record P1 up to the last record, 101 from record P1 down to the
+     * first one. P1 = 00 starts at the current record. The response contains the numbers of the
+     * matching records. The first match becomes the current record.
+     *
+     * \param apdu The apdu (INS=A2).
+     *
+     * \throw ISOException SW_WRONG_LENGTH, SW_INCORRECT_P1P2, SW_FILE_NOT_FOUND, SW_RECORD_NOT_FOUND,
+     *			SW_SECURITY_STATUS_NOT_SATISFIED and SW_COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE.
+     */
+    public void processSearchRecord(APDU apdu) throws ISOException {
+        byte[] buf = apdu.getBuffer();
+        byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        byte mode = (byte)(p2 & 0x07);
+        short lc;
+        short offset_cdata;
+        short pos, resOffset, resLen;
+        byte i, step;
+        byte[] data;
+
+        if(mode != 0x04 && mode != 0x05) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        // Bytes received must be Lc.
+        lc = apdu.setIncomingAndReceive();
+        if(lc != apdu.getIncomingLength() || lc == 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        offset_cdata = apdu.getOffsetCdata();
+
+        ElementaryFileLinearVariable efRec = getRecordEF(p2);
+        authenticateAction(efRec, ACL_OP_READ_SEARCH);
+        i = getRecordNumber(efRec, p1);
+        step = (mode == 0x04) ? (byte) 1 : (byte) -1;
+
+        // The record numbers are written behind the search string.
+        resOffset = (short)(offset_cdata + lc);
+        resLen = 0;
+        for( ; i >= 0 && i < efRec.getCurrentRecordCount(); i += step) {
+            if((short)(resOffset + resLen) >= (short) buf.length) {
+                break;
+            }
+            data = efRec.getRecordData(i);
+            for(pos = 0; (short)(pos + lc) <= (short) data.length; pos++) {
+                if(data[pos] == buf[offset_cdata]
+                        && Util.arrayCompare(data, pos, buf, offset_cdata, lc) == 0) {
+                    if(resLen == 0) {
+                        currentRecordNum[0] = i;
+                    }
+                    buf[(short)(resOffset + resLen)] = (byte)(i + 1);
+                    resLen++;
+                    break;
+                }
+            }
+        }
+
+        if(resLen > 0) {
+            Util.arrayCopyNonAtomic(buf, resOffset, buf, (short) 0, resLen);
+            apdu.setOutgoingAndSend((short) 0, resLen);
+        }
+    }
+
 // TODO If record files are to be used:
-// 		- READ RECORD B2 B3
 // 		- WRITE RECORD D2
-// 		- UPDATE RECORD DC DD
-// 		- APPEND RECORD E2
-// 		- SEARCH RECORD A2
 // 		- ERASE RECORD 0C
 
 
@@ -296,14 +296,14 @@ final class FileSystem {
     private short findEntryPath(short start, byte[] path, short offset,
             short length) throws FileNotFoundException {
         try {
-            if (length == 0) {
-                return start;
+            while (length > 0) {
+                short id = Util.makeShort(path[offset],
+                        path[(short) (offset + 1)]);
+                start = findEntryRelative(start, id);
+                offset += 2;
+                length = (short) (length - 2);
             }
-            short id = Util.makeShort(path[offset], path[(short) (offset + 1)]);
-            start = findEntryRelative(start, id);
-            offset += 2;
-            length = (short) (length - 2);
-            return findEntryPath(start, path, offset, length);
+            return start;
         } catch (ArrayIndexOutOfBoundsException aioobe) {
             throw fnfe;
         }
@@ -322,8 +322,43 @@ final class FileSystem {
      *             when file not found
      */
     short searchId(short start, short id) throws FileNotFoundException {
-        return searchId(this.fileStructure, (short) 0, start,
-                (short) this.fileStructure.length, id);
+        // The same depth first order as the recursive search below, going
+        // back up through the parent indexes instead of recursing
+        short index = start;
+        try {
+            while (true) {
+                if (Util.getShort(fileStructure, (short) (index + 1)) == id) {
+                    return index;
+                }
+                if (fileStructure[index] == DIR
+                        && fileStructure[(short) (index + 4)] > 0) {
+                    index = fileStructure[(short) (index + 5)];
+                    continue;
+                }
+                // no children, continue with the next sibling of the
+                // closest ancestor that has one
+                while (true) {
+                    if (index == start) {
+                        throw fnfe;
+                    }
+                    short parent = fileStructure[(short) (index + 3)];
+                    short childNum = fileStructure[(short) (parent + 4)];
+                    short i = 0;
+                    while (i < childNum
+                            && fileStructure[(short) (parent + (short) (5 + i))] != index) {
+                        i++;
+                    }
+                    i++;
+                    if (i < childNum) {
+                        index = fileStructure[(short) (parent + (short) (5 + i))];
+                        break;
+                    }
+                    index = parent;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException aioobe) {
+            throw fnfe;
+        }
     }
 
     /**
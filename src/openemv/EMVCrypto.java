@@ -54,6 +54,9 @@ public class EMVCrypto implements EMVConstants {
 	/** 3DESKey session keys, derived from Master Key mk */
 	private final DESKey sk;
 
+	/** Transient flag recording that sk holds the key of the current session */
+	private final boolean[] sessionKeySet;
+
 	/** Scratchpad transient byte array for diversification data used to build session key */
 	private final byte[] diversification_data;
 	
@@ -75,8 +78,18 @@ public class EMVCrypto implements EMVConstants {
 		mk.setKey(new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07,
 				0x08, 0x09, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16 },
 				(short) 0);
-		sk = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
+		// the session key lives in RAM, like the session, so setting it
+		// does not write EEPROM
+		sk = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES_TRANSIENT_DESELECT,
 				KeyBuilder.LENGTH_DES3_2KEY, false);
+		sessionKeySet = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/* Forgets the session key, as the ATC it is derived from has changed.
+	 * Called by EMVProtocolState.startNewSession.
+	 */
+	public void clearSessionKey() {
+		sessionKeySet[0] = false;
 	}
 	
 	/* Sets the current 3DES session key, based on the Application Transaction Counter (ATC).
@@ -86,8 +99,14 @@ public class EMVCrypto implements EMVConstants {
 	 *  with the card's 3DES Master Key to obtain the left 8 bytes, and encrypting
 	 *     ATC || OF || 00 || 00 || 00 || 00 || 00  
 	 *  with the card's 3DES Master Key to obtain the right 8 bytes. 
+	 *  
+	 * The ATC only changes with a new session, so the key is derived once per 
+	 * session.
 	 * */
 	private void setSessionKey(){
+		if (sessionKeySet[0]) {
+			return;
+		}
 		// as 8-byte diversification data we take the ATC followed by all zeroes
         Util.setShort(diversification_data, (short)0, theApplet.protocolState.getATC());
         Util.arrayFillNonAtomic(diversification_data, (short)2, (short)6, (byte)0);
@@ -103,6 +122,7 @@ public class EMVCrypto implements EMVConstants {
 		desCipher.doFinal(diversification_data, (short)0, (short)8, sessionkey, (short)0);
 
 		sk.setKey(sessionkey, (short)0);
+		sessionKeySet[0] = true;
 	}
 
 	/*
@@ -96,13 +96,15 @@ public class EMVProtocolState implements EMVConstants {
 	}
 	
 	/* Starts a new session. This resets all session data and increases the ATC,
-	 * but does not generate a session key yet.
+	 * but does not generate a session key yet; the first GENERATE AC of the
+	 * session does.
 	 */
 	public void startNewSession(){
 		setFirstACGenerated(NONE);
 		setSecondACGenerated(NONE);
 		setCVMPerformed(NONE);
 		increaseATC();
+		theApplet.theCrypto.clearSessionKey();
 	}
 	
 	/* 
@@ -19,7 +19,6 @@
 package openemv;
 
 import javacard.framework.ISOException;
-import javacard.framework.Util;
 
 /* Class to record all the static data of an EMV applet, ie. the card details that
  * do not change over time (such as PAN, expiry date, etc.), with the exception
@@ -113,6 +112,18 @@ public class EMVStaticData implements EMVConstants {
 			(byte)0x9F, 0x49, 0x03, (byte)0x9F, 0x37, 0x04, // Dynamic Data Authentication Data Object List (DDOL)
 			};
 	
+	/* The records of the files in the AFL, in AFL order; the length bytes of
+	 * their templates are filled in once, by the constructor.
+	 */
+	private final Object[] records = new Object[]{ record1, record2, record3 };
+
+	public EMVStaticData() {
+		for (short i = 0; i < (short)records.length; i++) {
+			byte[] record = (byte[])records[i];
+			record[1] = (byte)(record.length - 2);
+		}
+	}
+
 	/** Return the length of the data specified in the CDOL1 
 	 * 
 	 */
@@ -137,29 +148,26 @@ public class EMVStaticData implements EMVConstants {
 		return (short)fci.length;
 	}
 	
-	/** Provide the response to INS_READ_RECORD in the response buffer
-	 * 
+	/** Return the record template to send in response to INS_READ_RECORD,
+	 *  looked up through the AFL
 	 */
-	public void readRecord(byte[] apduBuffer, byte[] response){
-		if(apduBuffer[OFFSET_P2] == 0x0C && apduBuffer[OFFSET_P1] == 0x01) { // SFI 1, Record 1
-			Util.arrayCopyNonAtomic(record1, (short)0, 
-					response, (short)0, (short)record1.length);
-			response[1] = (byte)(record1.length - 2); 
-		}
-		else if(apduBuffer[OFFSET_P2] == 0x0C && apduBuffer[OFFSET_P1] == 0x02) { // SFI 1, Record 2
-			Util.arrayCopyNonAtomic(record2, (short)0, 
-					response, (short)0, (short)record2.length);
-			response[1] = (byte)(record2.length - 2); 
-		}
-		else if(apduBuffer[OFFSET_P2] == 0x0C && apduBuffer[OFFSET_P1] == 0x03) { // SFI 1, Record 3
-			Util.arrayCopyNonAtomic(record3, (short)0, 
-					response, (short)0, (short)record3.length);
-			response[1] = (byte)(record3.length - 2); 
-		}
-		else {
-			// File does not exist
-			ISOException.throwIt(SW_FILE_NOT_FOUND);
+	public byte[] readRecord(byte[] apduBuffer){
+		byte p2 = apduBuffer[OFFSET_P2];
+		short number = (short)(apduBuffer[OFFSET_P1] & 0xFF);
+		if ((p2 & 0x07) == 0x04) { // P1 is a record number
+			short index = 0;
+			for (short i = 0; i < (short)theAFL.length; i += 4) {
+				short first = (short)(theAFL[(short)(i+1)] & 0xFF);
+				short last = (short)(theAFL[(short)(i+2)] & 0xFF);
+				if ((p2 & 0xF8) == (theAFL[i] & 0xF8) && number >= first && number <= last) {
+					return (byte[])records[(short)(index + number - first)];
+				}
+				index += (short)(last - first + 1);
+			}
 		}
+		// File does not exist
+		ISOException.throwIt(SW_FILE_NOT_FOUND);
+		return null;
 	}
 	
 
@@ -242,11 +242,11 @@ public class SimpleEMVApplet extends Applet implements EMVConstants {
 	}
 
 	private void readRecord(APDU apdu, byte[] apduBuffer) {
-		staticData.readRecord(apduBuffer, response);
+		byte[] record = staticData.readRecord(apduBuffer);
 		
 		apdu.setOutgoing();
-		apdu.setOutgoingLength((short)(response[1]+2));
-		apdu.sendBytesLong(response, (short)0, (short)(response[1]+2));
+		apdu.setOutgoingLength((short)record.length);
+		apdu.sendBytesLong(record, (short)0, (short)record.length);
 	}
 
 	private void getProcessingOptions(APDU apdu, byte[] apduBuffer) {
@@ -21,6 +21,7 @@ package openpgpcard;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.*;
 
 /**
@@ -34,13 +35,14 @@ import javacardx.crypto.*;
  * 00000001 - Serial number
  * 0000 - RFU
  */
-public class OpenPGPApplet extends Applet implements ISO7816 {
+public class OpenPGPApplet extends Applet implements ISO7816, ExtendedLength {
 	private static final short _0 = 0;
 
 	private static final boolean FORCE_SM_GET_CHALLENGE = true;
 
+	// Card capabilities 73: command chaining and extended Lc and Le
 	private static final byte[] HISTORICAL = { 0x00, 0x73, 0x00, 0x00,
-			(byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+			(byte) 0xC0, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
 			0x00 };
 
 	// returned by vendor specific command f1
@@ -57,8 +59,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			0x00, // Secure messaging using 3DES
 			0x00, (byte) 0xFF, // Maximum length of challenges
 			0x04, (byte) 0xC0, // Maximum length Cardholder Certificate
-			0x00, (byte) 0xFF, // Maximum length command data
-			0x00, (byte) 0xFF  // Maximum length response data
+			0x04, (byte) 0xC5, // Maximum length command data (BUFFER_MAX_LENGTH)
+			0x04, (byte) 0xC5  // Maximum length response data (BUFFER_MAX_LENGTH)
 	};
 
 	private static short RESPONSE_MAX_LENGTH = 255;
@@ -248,7 +250,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		byte p1 = buf[OFFSET_P1];
 		byte p2 = buf[OFFSET_P2];
 		short p1p2 = Util.makeShort(p1, p2);
-		short lc = (short) (buf[OFFSET_LC] & 0xFF);
+		// Le given in DO97 of a secure messaging command
+		short sm_le = 0;
  
 		// Secure messaging
 		//TODO Force SM if contactless is used		
@@ -258,7 +261,12 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			if (FORCE_SM_GET_CHALLENGE && !sm.isSetSSC() && (ins != (byte) 0x84))
 				ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
 
-			lc = sm.unwrapCommandAPDU();
+			// Secure messaging is done in the APDU buffer, with short APDUs
+			apdu.setIncomingAndReceive();
+			if (apdu.getOffsetCdata() != OFFSET_CDATA)
+				ISOException.throwIt(SW_WRONG_LENGTH);
+
+			sm_le = sm.unwrapCommandAPDU();
 			sm_success = true;
 		}
 		
@@ -332,7 +340,7 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 			// GET CHALLENGE
 			case (byte) 0x84:
-				le = getChallenge(apdu, lc);
+				le = getChallenge(apdu, sm_success ? sm_le : getLe(apdu));
 				break;
 
 			// GET DATA
@@ -383,11 +391,10 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 			// SET RETRIES (vendor specific)
 			case (byte) 0xF2:
-				if (lc != 3) {
+				if (in_received != 3) {
 					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 				}
-				short offs = ISO7816.OFFSET_CDATA;
-				setPinRetries(buf[offs++], buf[offs++], buf[offs++]);
+				setPinRetries(buffer[0], buffer[1], buffer[2]);
 				break;
 
 			default:
@@ -435,14 +442,13 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 	/**
 	 * Provide support for command chaining by storing the received data in
-	 * buffer
+	 * buffer. An extended length APDU brings all of its data at once.
 	 * 
 	 * @param apdu
 	 */
 	private void commandChaining(APDU apdu) {
 		byte[] buf = apdu.getBuffer();
 		short p1p2 = Util.makeShort(buf[OFFSET_P1], buf[OFFSET_P2]);
-		short len = (short) (buf[OFFSET_LC] & 0xFF);
 
 		// Reset chaining if it was not yet initiated
 		if (!chain) {
@@ -456,16 +462,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 				ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
 			}
 
-			// Check whether data to be received is larger than size of the
-			// buffer
-			if ((short) (in_received + len) > BUFFER_MAX_LENGTH) {
-				resetChaining();
-				ISOException.throwIt(SW_WRONG_DATA);
-			}
-
 			// Store received data in buffer
-			in_received = Util.arrayCopyNonAtomic(buf, OFFSET_CDATA,
-					buffer, in_received, len);
+			in_received = receiveData(apdu, in_received);
 
 			chain = true;
 			chain_ins = buf[OFFSET_INS];
@@ -477,27 +475,90 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		if (chain && buf[OFFSET_INS] == chain_ins && p1p2 == chain_p1p2) {
 			chain = false;
 
-			// Check whether data to be received is larger than size of the
-			// buffer
-			if ((short) (in_received + len) > BUFFER_MAX_LENGTH) {
-				resetChaining();
-				ISOException.throwIt(SW_WRONG_DATA);
-			}
-
 			// Add received data to the buffer
-			in_received = Util.arrayCopyNonAtomic(buf, OFFSET_CDATA,
-					buffer, in_received, len);
+			in_received = receiveData(apdu, in_received);
 		} else if (chain) {
 			// Chained command expected
 			resetChaining();
 			ISOException.throwIt(SW_UNKNOWN);
 		} else {
 			// No chaining was used, so copy data to buffer
-			in_received = Util.arrayCopyNonAtomic(buf, OFFSET_CDATA,
-					buffer, _0, len);
+			in_received = receiveData(apdu, _0);
 		}
 	}
 
+	/**
+	 * Copy the data of the command to buffer at offset, receiving what did
+	 * not fit the APDU buffer. With secure messaging it was already received
+	 * and unwrapped in the APDU buffer.
+	 * 
+	 * @param apdu
+	 * @param offset
+	 *            Offset in buffer
+	 * @return Offset in buffer after the data
+	 */
+	private short receiveData(APDU apdu, short offset) {
+		byte[] buf = apdu.getBuffer();
+		short len;
+		short cdata;
+		short received;
+		if (sm_success) {
+			len = (short) (buf[OFFSET_LC] & 0xFF);
+			cdata = OFFSET_CDATA;
+			received = len;
+		} else if (!hasCommandData(buf[OFFSET_INS])) {
+			// With T=0 P3 would be taken for Lc
+			return offset;
+		} else {
+			received = apdu.setIncomingAndReceive();
+			len = apdu.getIncomingLength();
+			cdata = apdu.getOffsetCdata();
+		}
+
+		// Check whether data to be received is larger than size of the
+		// buffer, the rest of it is read first so that the status can be sent
+		boolean overflow = (short) (offset + len) > BUFFER_MAX_LENGTH;
+		if (overflow) {
+			resetChaining();
+		}
+
+		short left = len;
+		while (left > 0) {
+			if (!overflow) {
+				offset = Util.arrayCopyNonAtomic(buf, cdata, buffer, offset, received);
+			}
+			left -= received;
+			if (left > 0) {
+				received = apdu.receiveBytes(cdata);
+			}
+		}
+		if (overflow) {
+			ISOException.throwIt(SW_WRONG_DATA);
+		}
+		return offset;
+	}
+
+	/**
+	 * Whether the instruction has a data field: GET RESPONSE, GET CHALLENGE,
+	 * GET DATA and GET VERSION only have Le.
+	 */
+	private static boolean hasCommandData(byte ins) {
+		return ins != (byte) 0xC0 && ins != (byte) 0x84 && ins != (byte) 0xCA
+				&& ins != (byte) 0xF1;
+	}
+
+	/**
+	 * Le of a command without data, read from the header: P3 of a short APDU,
+	 * the two bytes after the 00 of an extended one. setOutgoing() is left to
+	 * sendNext().
+	 */
+	private static short getLe(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (apdu.getOffsetCdata() == OFFSET_EXT_CDATA)
+			return Util.getShort(buf, (short) (OFFSET_LC + 1));
+		return (short) (buf[OFFSET_LC] & 0xFF);
+	}
+
 	private void resetChaining() {
 		chain = false;
 		in_received = 0;
@@ -753,7 +814,7 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 * @return Length of data written in buffer
 	 */
 	private short getChallenge(APDU apdu, short len) {
-		if (len > CHALLENGES_MAX_LENGTH)
+		if (len < 0 || len > CHALLENGES_MAX_LENGTH)
 			ISOException.throwIt(SW_WRONG_DATA);
 
 		random.generateData(buffer, _0, len);
@@ -1405,17 +1466,21 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	/**
 	 * Send next block of data in buffer. Used for sending data in <buffer>
 	 * 
+	 * An extended length command gets as much as its Le asks for, otherwise
+	 * the blocks are of at most RESPONSE_MAX_LENGTH bytes.
+	 * 
 	 * @param apdu
 	 * @param status Status to send
 	 */
 	private void sendNext(APDU apdu, short status) {
-		byte[] buf = APDU.getCurrentAPDUBuffer();
-		apdu.setOutgoing();
+		short le = apdu.setOutgoing();
 		
 		// Determine maximum size of the messages
 		short max_length;
 		if (sm_success) {
 			max_length = RESPONSE_SM_MAX_LENGTH;
+		} else if (apdu.getOffsetCdata() == OFFSET_EXT_CDATA) {
+			max_length = le;
 		} else {
 			max_length = RESPONSE_MAX_LENGTH;
 		}
@@ -1424,8 +1489,7 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			max_length = out_left;
 		}
 
-		Util.arrayCopyNonAtomic(buffer, out_sent, buf, _0, max_length);
-
+		short offset = out_sent;
 		short len = 0;
 		if (out_left > max_length) {
 			len = max_length;
@@ -1434,12 +1498,12 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			out_left -= max_length;
 			out_sent += max_length;
 			
-			// Determine new status word
-			if (out_left > max_length) {
-				status = (short) (SW_BYTES_REMAINING_00 | max_length);
-			} else {
-				status = (short) (SW_BYTES_REMAINING_00 | out_left);
+			// Determine new status word, 6100 for more than 255 bytes
+			short next = out_left > max_length ? max_length : out_left;
+			if (next > 0xFF) {
+				next = 0;
 			}
+			status = (short) (SW_BYTES_REMAINING_00 | next);
 		} else {
 			len = out_left;
 
@@ -1450,12 +1514,14 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		
 		// If SM is used, wrap response
 		if (sm_success) {
-			len = sm.wrapResponseAPDU(buf, _0, len, status);
+			len = sm.wrapResponseAPDU(buffer, offset, len, status);
+			apdu.setOutgoingLength(len);
+			apdu.sendBytes(_0, len);
+		} else {
+			// Send data in buffer
+			apdu.setOutgoingLength(len);
+			apdu.sendBytesLong(buffer, offset, len);
 		}
-				
-		// Send data in buffer
-		apdu.setOutgoingLength(len);
-		apdu.sendBytes(_0, len);
 
 		// Send status word
 		if (status != SW_NO_ERROR)
@@ -971,7 +971,7 @@ public class LicenseApplet extends Applet implements ISO7816 {
      *            where the offset is carried in header bytes p1 and p2.
      * @param le
      *            expected length by terminal
-     * @return length of the return APDU
+     * @return length of the return APDU, 0 if the DO87 has been built
      */
     private short processReadBinary(APDU apdu, short le, boolean protectedApdu) {
         if (hasMutualAuthenticationKeys() && (!protectedApdu || !hasMutuallyAuthenticated())) {
@@ -1014,16 +1014,22 @@ public class LicenseApplet extends Applet implements ISO7816 {
         short len;
         short fileSize = fileSystem.getFileSize(selectedFile);
 
-        len = LicenseUtil.min((short) (buffer.length - 37),
-                (short) (fileSize - offset));
-        // FIXME: 37 magic
-        len = LicenseUtil.min(len, (short) buffer.length);
-        len = LicenseUtil.min(le, len);
-        short bufferOffset = 0;
+        len = LicenseUtil.min(le, (short) (fileSize - offset));
         if (protectedApdu) {
-            bufferOffset = crypto.getApduBufferOffset(len);
+            // what fits the buffer and a short (256 byte) response
+            len = LicenseUtil.min(len, LicenseCrypto
+                    .getMaxWrappedPlaintextLength(LicenseUtil.min(
+                            (short) buffer.length, (short) 256)));
+            if (len > 0) {
+                // encrypted straight from the file, process() only adds DO99
+                // and DO8E
+                crypto.wrapResponseData(ssc, apdu, file, offset, len);
+                return 0;
+            }
+        } else {
+            len = LicenseUtil.min(len, (short) buffer.length);
         }
-        Util.arrayCopyNonAtomic(file, offset, buffer, bufferOffset, len);
+        Util.arrayCopyNonAtomic(file, offset, buffer, (short) 0, len);
 
         return len;
     }
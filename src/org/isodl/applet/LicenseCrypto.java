@@ -60,6 +60,8 @@ public class LicenseCrypto {
     private Cipher ciph;
     private KeyAgreement keyAgreement;
     private boolean[] eapChangeKeys;
+    private boolean[] do87Wrapped;
+    private short[] do87Length;
 
     MessageDigest shaDigest;
     Cipher rsaCiph;
@@ -78,6 +80,10 @@ public class LicenseCrypto {
                 false);
         eapChangeKeys = JCSystem.makeTransientBooleanArray((short) 1,
                 JCSystem.CLEAR_ON_DESELECT);
+        do87Wrapped = JCSystem.makeTransientBooleanArray((short) 1,
+                JCSystem.CLEAR_ON_DESELECT);
+        do87Length = JCSystem.makeTransientShortArray((short) 1,
+                JCSystem.CLEAR_ON_DESELECT);
     }
 
     boolean eapVerifySignature(RSAPublicKey key, byte[] rnd, short rndLength,
@@ -248,11 +254,100 @@ public class LicenseCrypto {
         } else if (do87DataLen <= 0xff) {
             do87Bytes += 2;
         } else {
-            do87Bytes += (short) (plaintextLength > 0xff ? 2 : 1);
+            do87Bytes += 3;
         }
         return do87Bytes;
     }
 
+    /***************************************************************************
+     * Largest plaintext that fits a secure messaging response of the given
+     * length, DO87 header (at most 0x87 0x82 len len 0x01), padding, DO99 and
+     * DO8E included.
+     * 
+     * @param responseLength
+     *            room available for the whole response
+     * @return plaintext length
+     */
+    static short getMaxWrappedPlaintextLength(short responseLength) {
+        return (short) ((short) ((short) (responseLength - 19) / 8 * 8) - 1);
+    }
+
+    private static short writeDo87Header(byte[] buf, short offset,
+            short do87DataLen) {
+        buf[offset++] = (byte) 0x87;
+        if (do87DataLen < 0x80) {
+            buf[offset++] = (byte) do87DataLen;
+        } else if (do87DataLen <= 0xff) {
+            buf[offset++] = (byte) 0x81;
+            buf[offset++] = (byte) do87DataLen;
+        } else {
+            buf[offset++] = (byte) 0x82;
+            offset = Util.setShort(buf, offset, do87DataLen);
+        }
+        buf[offset++] = 0x01;
+        return offset;
+    }
+
+    /***************************************************************************
+     * Builds the DO87 of a secure messaging response at the start of the APDU
+     * buffer in one pass: whole blocks are encrypted straight from
+     * <code>data</code> (a file, usually) and MACed as they are produced,
+     * only the last partial block is copied to be padded. The next
+     * wrapResponseAPDU call appends DO99 and DO8E.
+     * 
+     * Same as PassportCrypto.wrapResponseData, without the streaming.
+     * 
+     * @param ssc
+     *            send sequence counter
+     * @param aapdu
+     *            the APDU
+     * @param data
+     *            plaintext, at most getMaxWrappedPlaintextLength bytes
+     * @param dataOffset
+     *            offset of the plaintext
+     * @param dataLen
+     *            length of the plaintext
+     * @return length of the DO87
+     */
+    short wrapResponseData(byte[] ssc, APDU aapdu, byte[] data,
+            short dataOffset, short dataLen) {
+        byte[] apdu = aapdu.getBuffer();
+        short do87DataLen = (short) (LicenseUtil.lengthWithPadding(dataLen) + 1);
+
+        incrementSSC(ssc);
+        initMac(Signature.MODE_SIGN);
+        updateMac(ssc, (short) 0, (short) ssc.length);
+
+        short apdu_p = writeDo87Header(apdu, (short) 0, do87DataLen);
+        updateMac(apdu, (short) 0, apdu_p);
+
+        short ciphertextLength = 0;
+        short blocks = (short) (dataLen & (short) 0xfff8);
+        encryptInit();
+        if (blocks > 0) {
+            ciphertextLength = encrypt(data, dataOffset, blocks, apdu, apdu_p);
+            updateMac(apdu, apdu_p, ciphertextLength);
+            apdu_p += ciphertextLength;
+            dataOffset += blocks;
+        }
+        short written = (short) (dataLen & 7);
+        Util.arrayCopyNonAtomic(data, dataOffset, apdu, apdu_p, written);
+        written = LicenseUtil.pad(apdu, apdu_p, written);
+        written = encryptFinal(apdu, apdu_p, written, apdu, apdu_p);
+        updateMac(apdu, apdu_p, written);
+        apdu_p += written;
+        ciphertextLength += written;
+
+        // sanity check, the lengths in the DO87 header have been written
+        // already
+        if (ciphertextLength != (short) (do87DataLen - 1)) {
+            ISOException.throwIt((short) 0x6d66);
+        }
+        do87Wrapped[0] = true;
+        do87Length[0] = apdu_p;
+        return apdu_p;
+    }
+
     short wrapResponseAPDU(byte[] ssc, APDU aapdu,
             short plaintextOffset, short plaintextLen, short sw1sw2) {
         byte[] apdu = aapdu.getBuffer();
@@ -261,15 +356,21 @@ public class LicenseCrypto {
         short do87DataLen = LicenseUtil.lengthWithPadding(plaintextLen);
         // for 0x01 marker (indicating padding is used)
         do87DataLen++;
-        short do87DataLenBytes = (short) (do87DataLen > 0xff ? 2 : 1);
         short do87HeaderBytes = getApduBufferOffset(plaintextLen);
         short do87Bytes = (short) (do87HeaderBytes + do87DataLen - 1); // 0x01
                                                                         // is
                                                                         // counted
                                                                         // twice
-        boolean hasDo87 = plaintextLen > 0;
+        // DO87 already built by wrapResponseData, with the MAC updated
+        boolean wrapped = do87Wrapped[0];
+        do87Wrapped[0] = false;
+        boolean hasDo87 = !wrapped && plaintextLen > 0;
 
-        incrementSSC(ssc);
+        if (wrapped) {
+            apdu_p = do87Length[0];
+        } else {
+            incrementSSC(ssc);
+        }
 
         short ciphertextLength = 0;
         short possiblyPaddedPlaintextLength = 0;
@@ -290,19 +391,7 @@ public class LicenseCrypto {
 
         if (hasDo87) {
             // build do87
-            apdu[apdu_p++] = (byte) 0x87;
-            if (do87DataLen < 0x80) {
-                apdu[apdu_p++] = (byte) do87DataLen;
-            } else {
-                apdu[apdu_p++] = (byte) (0x80 + do87DataLenBytes);
-                for (short i = (short) (do87DataLenBytes - 1); i >= 0; i--) {
-                    apdu[apdu_p++] = (byte) ((do87DataLen >>> (i * 8)) & 0xff);
-                }
-            }
-            apdu[apdu_p++] = 0x01;
-        }
-
-        if (hasDo87) {
+            writeDo87Header(apdu, apdu_p, do87DataLen);
             apdu_p = do87Bytes;
         }
 
@@ -313,9 +402,16 @@ public class LicenseCrypto {
         apdu_p += 2;
 
         // calculate and write mac
-        initMac(Signature.MODE_SIGN);
-        updateMac(ssc, (short) 0, (short) ssc.length);
-        createMacFinal(apdu, (short) 0, apdu_p, apdu, (short) (apdu_p + 2));
+        short mac_p = 0;
+        if (wrapped) {
+            // only the DO99 is left to MAC
+            mac_p = do87Length[0];
+        } else {
+            initMac(Signature.MODE_SIGN);
+            updateMac(ssc, (short) 0, (short) ssc.length);
+        }
+        createMacFinal(apdu, mac_p, (short) (apdu_p - mac_p), apdu,
+                (short) (apdu_p + 2));
 
         // write do8e
         apdu[apdu_p++] = (byte) 0x8e;
@@ -220,6 +220,7 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	private final static byte INS_BIP32_IMPORT_SEED= (byte) 0x6C;
 	private final static byte INS_BIP32_GET_AUTHENTIKEY= (byte) 0x73;
 	private final static byte INS_BIP32_GET_EXTENDED_KEY= (byte) 0x6D;
+	private final static byte INS_BIP32_GET_CHILD_PUBKEYS= (byte) 0x74;
 	private final static byte INS_BIP32_SET_EXTENDED_KEY= (byte) 0x70;
 	private final static byte INS_SIGN_MESSAGE= (byte) 0x6E;
 	private final static byte INS_SIGN_SHORT_MESSAGE= (byte) 0x72;
@@ -399,7 +400,6 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	private static final short BIP32_OFFSET_PUBY= (short)(BIP32_OFFSET_PUBX+BIP32_KEY_SIZE);
 	private static final short BIP32_OFFSET_PATH= (short)(BIP32_OFFSET_PUBY+BIP32_KEY_SIZE);
 	private static final short BIP32_OFFSET_END= (short)(BIP32_OFFSET_PATH+4*MAX_BIP32_DEPTH);
-	private static final short BIP32_OFFSET_SIG= (short)(ISO7816.OFFSET_CDATA+4*MAX_BIP32_DEPTH);
 	
 	//   bip32 keys
 	private boolean bip32_seeded= false;
@@ -410,9 +410,27 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	private AESKey bip32_masterchaincode; 
 	private AESKey bip32_encryptkey; // used to encrypt sensitive data in object
 	private ECPrivateKey bip32_extendedkey; // object storing last extended key used
+	private ECPrivateKey bip32_derivekey; // key used to compute the pubkeys needed during derivation
 	private ECPrivateKey bip32_authentikey; // key used to authenticate data
 	private ECPublicKey bip32_pubkey;
 	
+	// RAM cache of the last derived extended keys, in front of the (encrypted) objects in bip32_om
+	// so that siblings of a recently used key cost a single derivation step.
+	// BIP32_cache entry= [ age(1b) | depth(1b) | bip32_path(40b) | base(2b) | extended_key(32b) | chain_code(32b) | compression_byte(1b) | coord_x(32b) ]
+	// depth 0 marks a free entry; compression_byte is 0 until the pubkey coord_x is known
+	private static final byte BIP32_CACHE_ENTRIES= 4;
+	private static final short BIP32_CACHE_OFFSET_AGE= 0;
+	private static final short BIP32_CACHE_OFFSET_DEPTH= 1;
+	private static final short BIP32_CACHE_OFFSET_PATH= 2;
+	private static final short BIP32_CACHE_OFFSET_BASE= (short)(BIP32_CACHE_OFFSET_PATH+4*MAX_BIP32_DEPTH);
+	private static final short BIP32_CACHE_OFFSET_KEY= (short)(BIP32_CACHE_OFFSET_BASE+2);
+	private static final short BIP32_CACHE_OFFSET_CHAINCODE= (short)(BIP32_CACHE_OFFSET_KEY+BIP32_KEY_SIZE);
+	private static final short BIP32_CACHE_OFFSET_COMPBYTE= (short)(BIP32_CACHE_OFFSET_CHAINCODE+BIP32_KEY_SIZE);
+	private static final short BIP32_CACHE_OFFSET_PUBX= (short)(BIP32_CACHE_OFFSET_COMPBYTE+1);
+	private static final short BIP32_CACHE_ENTRY_SIZE= (short)(BIP32_CACHE_OFFSET_PUBX+BIP32_KEY_SIZE);
+	private byte[] bip32_cache; // null if there is no RAM for it
+	private short[] bip32_cache_stats; // [ lookups | hits ] since reset
+	
 	/*********************************************
 	 *        Other data instances               *
 	 *********************************************/
@@ -613,6 +631,9 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		case INS_BIP32_GET_EXTENDED_KEY:
 			getBIP32ExtendedKey(apdu, buffer);
 			break;
+		case INS_BIP32_GET_CHILD_PUBKEYS:
+			getBIP32ChildPubkeys(apdu, buffer);
+			break;
 		case INS_SIGN_MESSAGE:	
 			signMessage(apdu, buffer);
 			break;
@@ -851,6 +872,14 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 			tmpBuffer = new byte[TMP_BUFFER_SIZE];
 		}
 
+		// BIP32 cache holds plain keys, so only in RAM
+		try {
+			bip32_cache = JCSystem.makeTransientByteArray((short)(BIP32_CACHE_ENTRIES*BIP32_CACHE_ENTRY_SIZE), JCSystem.CLEAR_ON_DESELECT);
+		} catch (SystemException e) {
+			bip32_cache = null;
+		}
+		bip32_cache_stats = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+
 		// shared cryptographic objects
 		randomData = null; // Will be created on demand when needed
 		keyAgreement = KeyAgreement.getInstance(ALG_EC_SVDP_DH_PLAIN, false); 
@@ -872,6 +901,9 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		// object containing the current extended key
 		bip32_extendedkey= (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, LENGTH_EC_FP_256, false);
 		Secp256k1.setCommonCurveParameters(bip32_extendedkey);
+		// working key for the pubkeys of parents and children, so that bip32_extendedkey is kept
+		bip32_derivekey= (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, LENGTH_EC_FP_256, false);
+		Secp256k1.setCommonCurveParameters(bip32_derivekey);
 		// key used to authenticate sensitive data from applet
 		bip32_authentikey= (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, LENGTH_EC_FP_256, false);
 		Secp256k1.setCommonCurveParameters(bip32_authentikey);
@@ -2812,7 +2844,7 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 	 *  p1: 0x00 
 	 *  p2: 0x00 
 	 *  data: none
-	 *  return: [versions(4b) | secure_memory(4b) | memory(4b) | nb_PIN(1b) | nb_keys(1b) | logged_id(2b)]
+	 *  return: [versions(4b) | secure_memory(4b) | memory(4b) | nb_PIN(1b) | nb_keys(1b) | logged_id(2b) | bip32_lookups(2b) | bip32_cache_hits(2b)]
 	 */
 	private void GetStatus(APDU apdu, byte[] buffer) {
 		if (buffer[ISO7816.OFFSET_P1] != (byte) 0x00)
@@ -2845,6 +2877,10 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		buffer[pos++] = cnt; // Number of used Keys
 		Util.setShort(buffer, pos, logged_ids); // Logged ids
 		pos += (short) 2;
+		Util.setShort(buffer, pos, bip32_cache_stats[0]); // BIP32 derivations since reset
+		pos += (short) 2;
+		Util.setShort(buffer, pos, bip32_cache_stats[1]); // of which started from a cached key
+		pos += (short) 2;
 		apdu.setOutgoingAndSend((short) 0, pos);
 	}
 	
@@ -3051,6 +3087,49 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		if (!bip32_seeded)
 			ISOException.throwIt(SW_BIP32_UNINITIALIZED_SEED);
 		
+		Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, recvBuffer, BIP32_OFFSET_PATH, (short)(4*bip32_depth));
+		bip32DerivePath(bip32_depth);
+		
+		// at this point, recvBuffer contains a copy of the last extended key 
+		// instantiate elliptic curve with last extended key + copy ACL
+		bip32_extendedkey.setS(recvBuffer, BIP32_OFFSET_PARENT_KEY, BIP32_KEY_SIZE);
+		Util.arrayCopyNonAtomic(bip32_masterACL, (short)0, bip32_extendedACL, (short)0, KEY_ACL_SIZE); 
+		
+		// clear recvBuffer
+		Util.arrayFillNonAtomic(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, BIP32_OFFSET_END, (byte)0);
+				
+		// compute the corresponding partial public key...
+        keyAgreement.init(bip32_extendedkey);
+        short coordx_size = keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, buffer, (short)2); // compute x coordinate of public key as k*G
+        Util.setShort(buffer, (short)0, coordx_size);
+        
+        // self-sign coordx
+        sigECDSA.init(bip32_extendedkey, Signature.MODE_SIGN);
+        short sign_size= sigECDSA.sign(buffer, (short)0, (short)(coordx_size+2), buffer, (short)(coordx_size+4));
+        Util.setShort(buffer, (short)(coordx_size+2), sign_size);
+        
+        // coordx signed by authentikey
+        sigECDSA.init(bip32_authentikey, Signature.MODE_SIGN);
+        short sign_size2= sigECDSA.sign(buffer, (short)0, (short)(coordx_size+sign_size+4), buffer, (short)(coordx_size+sign_size+6));
+        Util.setShort(buffer, (short)(coordx_size+sign_size+4), sign_size2);
+        
+        // return x-coordinate of public key+signatures
+        // the client can recover full public-key by guessing the compression value () and verifying the signature... 
+        // buffer=[coordx_size(2) | coordx | sign_size(2) | self-sign | sign_size(2) | auth_sign]
+        apdu.setOutgoingAndSend((short) 0, (short)(coordx_size+sign_size+sign_size2+6));
+        
+	}// end of getBip32ExtendedKey()	
+	
+	/**
+	 * The function derives the Bip32 extended key of the path at BIP32_OFFSET_PATH in recvBuffer, 
+	 * starting from the longest cached prefix of the path or else from the master key, and leaves  
+	 * the key and chain code at BIP32_OFFSET_PARENT_KEY and BIP32_OFFSET_PARENT_CHAINCODE.
+	 * Missing intermediate keys are created as Bip32 objects in secure memory.
+	 * 
+	 * returns the base address of the Bip32 object of the key (NULL_OFFSET for the master key)
+	 */
+	private short bip32DerivePath(byte bip32_depth){
+		
 		// master key data (usefull as parent's data for key derivation)
 		// The method uses a temporary buffer recvBuffer to store the parent and extended key object data:
 		// recvBuffer=[ parent_chain_code (32b) | 0x00 | parent_key (32b) | hash(address)(32b) | current_extended_key(32b) | current_chain_code(32b) | parent_pubkey(65b) | bip32_path(40b)]
@@ -3060,11 +3139,22 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		bip32_masterchaincode.getKey(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE);
 		bip32_masterkey.getKey(recvBuffer,BIP32_OFFSET_PARENT_KEY); 		
 		recvBuffer[BIP32_OFFSET_PARENT_SEPARATOR]=0x00; // separator, also facilitate HMAC derivation
-		Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, recvBuffer, BIP32_OFFSET_PATH, (short)(4*bip32_depth));
 		short parent_base=MemoryManager.NULL_OFFSET; 
 		
+		// start from the longest cached prefix of the path, if any
+		bip32_cache_stats[0]++;
+		short parent_entry= bip32CacheFind(bip32_depth); // parent's offset in bip32_cache, if cached
+		byte first=1;
+		if (parent_entry>=0){
+			bip32_cache_stats[1]++;
+			first= (byte)(bip32_cache[(short)(parent_entry+BIP32_CACHE_OFFSET_DEPTH)]+1);
+			parent_base= Util.getShort(bip32_cache, (short)(parent_entry+BIP32_CACHE_OFFSET_BASE));
+			Util.arrayCopyNonAtomic(bip32_cache, (short)(parent_entry+BIP32_CACHE_OFFSET_CHAINCODE), recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, BIP32_KEY_SIZE);
+			Util.arrayCopyNonAtomic(bip32_cache, (short)(parent_entry+BIP32_CACHE_OFFSET_KEY), recvBuffer, BIP32_OFFSET_PARENT_KEY, BIP32_KEY_SIZE);
+		}
+		
 		// iterate on indexes provided 
-		for (byte i=1; i<=bip32_depth; i++){
+		for (byte i=first; i<=bip32_depth; i++){
 						
 			//compute SHA of the extended key address up to depth i (only the last bytes are actually used)
 			sha256.reset(); 
@@ -3100,41 +3190,9 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 				byte msb= recvBuffer[(short)(BIP32_OFFSET_PATH+4*(i-1))];
 				if ((msb & 0x80)!=0x80){ // normal child
 					// we must compute parent's compressed pubkey from privkey
-					// check if parent's compression byte is available
-					byte compbyte=0x04;
-					if (parent_base==MemoryManager.NULL_OFFSET)
-						compbyte=bip32_master_compbyte;
-					else
-						compbyte=bip32_mem.getByte(parent_base, (short)(BIP32_OBJECT_SIZE-1));
-					
-					// compute coord x from privkey 
-					bip32_extendedkey.setS(recvBuffer, BIP32_OFFSET_PARENT_KEY, BIP32_KEY_SIZE);
-					keyAgreement.init(bip32_extendedkey);
-			        keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, recvBuffer, BIP32_OFFSET_PUBX); 
-			        
-			        // compute compbyte from coord y if necessary
-			        if (compbyte==0x04){
-				        // coord y= square root of X^3+7 mod p => 2 solutions!
-						EccComputation.SqrtRootOpt(recvBuffer, BIP32_OFFSET_PUBX, recvBuffer, BIP32_OFFSET_PUBY);
-						recvBuffer[BIP32_OFFSET_PUB]=0x04;
-						// sign a dummy message 
-						sigECDSA.init(bip32_extendedkey, Signature.MODE_SIGN);
-						short sigsize=sigECDSA.sign(recvBuffer, (short)0, (short)32, buffer, BIP32_OFFSET_SIG);
-						// verify sig with pubkey (x,y) & recover compression byte
-						bip32_pubkey.setW(recvBuffer, BIP32_OFFSET_PUB, (short)(2*BIP32_KEY_SIZE+1)) ;
-						sigECDSA.init(bip32_pubkey, Signature.MODE_VERIFY);
-						boolean verify= sigECDSA.verify(recvBuffer, (short)0, (short)32, buffer, BIP32_OFFSET_SIG, sigsize);
-						boolean parity= ((recvBuffer[(short)(BIP32_OFFSET_PUBY+31)]&0x01)==0);
-						compbyte= (verify^parity)?(byte)0x03:(byte)0x02;
-						// save compbyte in parent's object for future use
-						if (parent_base==MemoryManager.NULL_OFFSET)
-							bip32_master_compbyte= compbyte;
-						else
-							bip32_mem.setByte(parent_base, (short)(BIP32_OBJECT_SIZE-1), compbyte);
-			        }
+					bip32ParentPubkey(parent_base, parent_entry);
 			        
 			        // compute HMAC of compressed pubkey + index
-					recvBuffer[BIP32_OFFSET_PUB]= compbyte;
 			        Util.arrayCopyNonAtomic(recvBuffer, (short)(BIP32_OFFSET_PATH+4*(i-1)), recvBuffer, BIP32_OFFSET_PUBY, (short)4);
 					HmacSha512.computeHmacSha512(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, BIP32_KEY_SIZE, recvBuffer, BIP32_OFFSET_PUB, (short)(1+BIP32_KEY_SIZE+4), recvBuffer, BIP32_OFFSET_CHILD_KEY);
 				}
@@ -3145,25 +3203,7 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 				}
 				
 				// addition with parent_key...
-				// First check that parse256(IL) < SECP256K1_R
-				if(!Biginteger.lessThan(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE)){
-					ISOException.throwIt(SW_BIP32_DERIVATION_ERROR);
-				}
-				// add parent_key (mod SECP256K1_R)
-				if(Biginteger.add_carry(recvBuffer, BIP32_OFFSET_CHILD_KEY, recvBuffer, (short) (BIP32_KEY_SIZE+1), BIP32_KEY_SIZE)){
-					// in case of final carry, we must substract SECP256K1_R
-					// we have IL<SECP256K1_R and parent_key<SECP256K1_R, so IL+parent_key<2*SECP256K1_R
-					Biginteger.subtract(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE);	
-				}else{
-				    // in the unlikely case where SECP256K1_R<=IL+parent_key<2^256
-					if(!Biginteger.lessThan(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE)){
-						Biginteger.subtract(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE);
-					}
-					// check that value is not 0
-					if(Biginteger.equalZero(recvBuffer, BIP32_OFFSET_CHILD_KEY, BIP32_KEY_SIZE)){
-						ISOException.throwIt(SW_BIP32_DERIVATION_ERROR);
-					}
-				}
+				bip32AddParentKey();
 				
 				// encrypt privkey & chaincode
 				aes128.init(bip32_encryptkey, Cipher.MODE_ENCRYPT);
@@ -3192,38 +3232,288 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 			recvBuffer[BIP32_KEY_SIZE]=0x00;
 			
 			// update parent_base for next iteration
-			parent_base=base;			
+			parent_base=base;
+			// cache the requested key and its parent, whose siblings are likely to come next
+			parent_entry= -1;
+			if (i>=(byte)(bip32_depth-1))
+				parent_entry= bip32CacheStore(i, base);
 		} // end for
 		
-		// at this point, recvBuffer contains a copy of the last extended key 
-		// instantiate elliptic curve with last extended key + copy ACL
-		bip32_extendedkey.setS(recvBuffer, BIP32_OFFSET_PARENT_KEY, BIP32_KEY_SIZE);
-		Util.arrayCopyNonAtomic(bip32_masterACL, (short)0, bip32_extendedACL, (short)0, KEY_ACL_SIZE); 
+		return parent_base;
+	}
+	
+	/**
+	 * The function puts the compressed public key of the parent key in recvBuffer at 
+	 * BIP32_OFFSET_PUB, using the copy in bip32_cache if any. Otherwise the coord x is computed
+	 * with bip32_derivekey and, if unknown, the compression byte is recovered and saved in the
+	 * parent's object.
+	 */
+	private void bip32ParentPubkey(short parent_base, short parent_entry){
 		
-		// clear recvBuffer
-		Util.arrayFillNonAtomic(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, BIP32_OFFSET_END, (byte)0);
+		if (parent_entry>=0 && bip32_cache[(short)(parent_entry+BIP32_CACHE_OFFSET_COMPBYTE)]!=0){
+			recvBuffer[BIP32_OFFSET_PUB]= bip32_cache[(short)(parent_entry+BIP32_CACHE_OFFSET_COMPBYTE)];
+			Util.arrayCopyNonAtomic(bip32_cache, (short)(parent_entry+BIP32_CACHE_OFFSET_PUBX), recvBuffer, BIP32_OFFSET_PUBX, BIP32_KEY_SIZE);
+			return;
+		}
+		
+		// check if parent's compression byte is available
+		byte compbyte=0x04;
+		if (parent_base==MemoryManager.NULL_OFFSET)
+			compbyte=bip32_master_compbyte;
+		else
+			compbyte=bip32_mem.getByte(parent_base, (short)(BIP32_OBJECT_SIZE-1));
+		
+		// compute coord x from privkey 
+		bip32_derivekey.setS(recvBuffer, BIP32_OFFSET_PARENT_KEY, BIP32_KEY_SIZE);
+		if (compbyte==0x04){
+			compbyte= bip32Pubkey();
+			// save compbyte in parent's object for future use
+			if (parent_base==MemoryManager.NULL_OFFSET)
+				bip32_master_compbyte= compbyte;
+			else
+				bip32_mem.setByte(parent_base, (short)(BIP32_OBJECT_SIZE-1), compbyte);
+		}else{
+			keyAgreement.init(bip32_derivekey);
+	        keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, recvBuffer, BIP32_OFFSET_PUBX); 
+			recvBuffer[BIP32_OFFSET_PUB]= compbyte;
+		}
+		
+		if (parent_entry>=0){
+			bip32_cache[(short)(parent_entry+BIP32_CACHE_OFFSET_COMPBYTE)]= compbyte;
+			Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_PUBX, bip32_cache, (short)(parent_entry+BIP32_CACHE_OFFSET_PUBX), BIP32_KEY_SIZE);
+		}
+	}
+	
+	/**
+	 * The function computes the compressed public key of bip32_derivekey in recvBuffer at 
+	 * BIP32_OFFSET_PUB. The compression byte is recovered by signing a dummy message and 
+	 * verifying the signature with one of the two possible coord y (all of tmpBuffer is used,
+	 * by EccComputation and for the signature).
+	 * 
+	 * returns the compression byte
+	 */
+	private byte bip32Pubkey(){
+		keyAgreement.init(bip32_derivekey);
+        keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, recvBuffer, BIP32_OFFSET_PUBX); 
+        // coord y= square root of X^3+7 mod p => 2 solutions!
+		EccComputation.SqrtRootOpt(recvBuffer, BIP32_OFFSET_PUBX, recvBuffer, BIP32_OFFSET_PUBY);
+		recvBuffer[BIP32_OFFSET_PUB]=0x04;
+		// sign a dummy message 
+		sigECDSA.init(bip32_derivekey, Signature.MODE_SIGN);
+		short sigsize=sigECDSA.sign(recvBuffer, (short)0, (short)32, tmpBuffer, (short)0);
+		// verify sig with pubkey (x,y) & recover compression byte
+		bip32_pubkey.setW(recvBuffer, BIP32_OFFSET_PUB, (short)(2*BIP32_KEY_SIZE+1)) ;
+		sigECDSA.init(bip32_pubkey, Signature.MODE_VERIFY);
+		boolean verify= sigECDSA.verify(recvBuffer, (short)0, (short)32, tmpBuffer, (short)0, sigsize);
+		boolean parity= ((recvBuffer[(short)(BIP32_OFFSET_PUBY+31)]&0x01)==0);
+		byte compbyte= (verify^parity)?(byte)0x03:(byte)0x02;
+		recvBuffer[BIP32_OFFSET_PUB]= compbyte;
+		return compbyte;
+	}
+	
+	/**
+	 * The function turns IL at BIP32_OFFSET_CHILD_KEY in recvBuffer into the child key, by 
+	 * adding the parent key modulo SECP256K1_R
+	 */
+	private void bip32AddParentKey(){
+		// First check that parse256(IL) < SECP256K1_R
+		if(!Biginteger.lessThan(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE)){
+			ISOException.throwIt(SW_BIP32_DERIVATION_ERROR);
+		}
+		// add parent_key (mod SECP256K1_R)
+		if(Biginteger.add_carry(recvBuffer, BIP32_OFFSET_CHILD_KEY, recvBuffer, (short) (BIP32_KEY_SIZE+1), BIP32_KEY_SIZE)){
+			// in case of final carry, we must substract SECP256K1_R
+			// we have IL<SECP256K1_R and parent_key<SECP256K1_R, so IL+parent_key<2*SECP256K1_R
+			Biginteger.subtract(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE);	
+		}else{
+		    // in the unlikely case where SECP256K1_R<=IL+parent_key<2^256
+			if(!Biginteger.lessThan(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE)){
+				Biginteger.subtract(recvBuffer, BIP32_OFFSET_CHILD_KEY, Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_R, BIP32_KEY_SIZE);
+			}
+			// check that value is not 0
+			if(Biginteger.equalZero(recvBuffer, BIP32_OFFSET_CHILD_KEY, BIP32_KEY_SIZE)){
+				ISOException.throwIt(SW_BIP32_DERIVATION_ERROR);
+			}
+		}
+	}
+	
+	/**
+	 * The function returns the public keys of consecutive normal children of a Bip32 extended key,
+	 * e.g. for address discovery, signed once by the authentikey. The children are not stored
+	 * and the last extended key used for signing is left unchanged.
+	 * As many keys are returned as fit in the response (5 for a short APDU), the client asks
+	 * for the rest starting from the next index.
+	 * 
+	 * ins: 0x74
+	 * p1: depth of the parent key (master is depth 0). Max depth is 9
+	 * p2: number of children requested
+	 * data: [index path from master to parent key (4*p1 bytes) | index of the first child (4b)]
+	 * 
+	 * returns: [first_index(4b) | nb_keys(1b) | nb_keys*(compression_byte(1b) | coordx(32b)) | sig_size(2b) | sig]
+	 * sig is the authentikey signature of the parent path followed by the preceding response bytes
+	 * 
+	 * */
+	private void getBIP32ChildPubkeys(APDU apdu, byte[] buffer){
+		
+		// check master key ACL for computation use (derivation)
+		if (!authorizeKeyOp(bip32_masterACL, ACL_USE))
+			ISOException.throwIt(SW_UNAUTHORIZED);
+		
+		// input 
+		short bytesLeft = apdu.setIncomingAndReceive();
+		if (bytesLeft != apdu.getIncomingLength())
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		short dataOffset = apdu.getOffsetCdata();
+		
+		byte bip32_depth = buffer[ISO7816.OFFSET_P1];
+		if ((bip32_depth < 0) || (bip32_depth >= MAX_BIP32_DEPTH) )
+			ISOException.throwIt(SW_INCORRECT_P1);
+		short nb_requested= (short)(buffer[ISO7816.OFFSET_P2] & 0xFF);
+		if (nb_requested==0)
+			ISOException.throwIt(SW_INCORRECT_P2);
+		if (bytesLeft != (short)(4*bip32_depth+4))
+			ISOException.throwIt(SW_INVALID_PARAMETER);
+		
+		// check whether the seed is seed is initialized
+		if (!bip32_seeded)
+			ISOException.throwIt(SW_BIP32_UNINITIALIZED_SEED);
+		
+		// as many keys as fit in the response, with room for the signature (at most 72 bytes)
+		short le= apdu.setOutgoing();
+		if (dataOffset!=ISO7816.OFFSET_EXT_CDATA && le>(short)256)
+			le=(short)256;
+		if (le>(short)buffer.length)
+			le=(short)buffer.length;
+		short nb_keys= (short)((short)(le-5-2-72)/(short)(1+BIP32_KEY_SIZE));
+		if (nb_keys<=0)
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		if (nb_keys>nb_requested)
+			nb_keys= nb_requested;
+		
+		// children must be normal ones, up to the last index
+		short index_offset= (short)(BIP32_OFFSET_PATH+4*bip32_depth);
+		Util.arrayCopyNonAtomic(buffer, dataOffset, recvBuffer, BIP32_OFFSET_PATH, bytesLeft);
+		Util.arrayFillNonAtomic(tmpBuffer, (short)0, (short)4, (byte)0);
+		tmpBuffer[3]= (byte)(nb_keys-1);
+		Util.arrayCopyNonAtomic(recvBuffer, index_offset, tmpBuffer, (short)4, (short)4);
+		if ((tmpBuffer[4] & 0x80)==0x80 
+				|| Biginteger.add_carry(tmpBuffer, (short)4, tmpBuffer, (short)0, (short)4)
+				|| (tmpBuffer[4] & 0x80)==0x80)
+			ISOException.throwIt(SW_BIP32_HARDENED_KEY_ERROR);
+		
+		// the children are derived in bip32_derivekey, so bip32_extendedkey is left unchanged
+		// the parent's coord x is kept at BIP32_OFFSET_INDEX, unused once the path is derived,
+		// as bip32Pubkey() overwrites BIP32_OFFSET_PUB and all of tmpBuffer
+		try {
+			short parent_base= bip32DerivePath(bip32_depth);
+			short parent_entry= bip32CacheFind(bip32_depth);
+			if (parent_entry>=0 && bip32_cache[(short)(parent_entry+BIP32_CACHE_OFFSET_DEPTH)]!=bip32_depth)
+				parent_entry= -1;
+			bip32ParentPubkey(parent_base, parent_entry);
+			byte parent_compbyte= recvBuffer[BIP32_OFFSET_PUB];
+			Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_PUBX, recvBuffer, BIP32_OFFSET_INDEX, BIP32_KEY_SIZE);
+			
+			short pos= 0;
+			Util.arrayCopyNonAtomic(recvBuffer, index_offset, buffer, pos, (short)4);
+			pos+=4;
+			buffer[pos++]= (byte)nb_keys;
+			for (short k=0; k<nb_keys; k++){
+				// compute HMAC of parent's compressed pubkey + index
+				recvBuffer[BIP32_OFFSET_PUB]= parent_compbyte;
+				Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_INDEX, recvBuffer, BIP32_OFFSET_PUBX, BIP32_KEY_SIZE);
+				Util.arrayCopyNonAtomic(recvBuffer, index_offset, recvBuffer, BIP32_OFFSET_PUBY, (short)4);
+				HmacSha512.computeHmacSha512(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, BIP32_KEY_SIZE, recvBuffer, BIP32_OFFSET_PUB, (short)(1+BIP32_KEY_SIZE+4), recvBuffer, BIP32_OFFSET_CHILD_KEY);
+				bip32AddParentKey();
 				
-		// compute the corresponding partial public key...
-        keyAgreement.init(bip32_extendedkey);
-        short coordx_size = keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, buffer, (short)2); // compute x coordinate of public key as k*G
-        Util.setShort(buffer, (short)0, coordx_size);
-        
-        // self-sign coordx
-        sigECDSA.init(bip32_extendedkey, Signature.MODE_SIGN);
-        short sign_size= sigECDSA.sign(buffer, (short)0, (short)(coordx_size+2), buffer, (short)(coordx_size+4));
-        Util.setShort(buffer, (short)(coordx_size+2), sign_size);
-        
-        // coordx signed by authentikey
-        sigECDSA.init(bip32_authentikey, Signature.MODE_SIGN);
-        short sign_size2= sigECDSA.sign(buffer, (short)0, (short)(coordx_size+sign_size+4), buffer, (short)(coordx_size+sign_size+6));
-        Util.setShort(buffer, (short)(coordx_size+sign_size+4), sign_size2);
-        
-        // return x-coordinate of public key+signatures
-        // the client can recover full public-key by guessing the compression value () and verifying the signature... 
-        // buffer=[coordx_size(2) | coordx | sign_size(2) | self-sign | sign_size(2) | auth_sign]
-        apdu.setOutgoingAndSend((short) 0, (short)(coordx_size+sign_size+sign_size2+6));
-        
-	}// end of getBip32ExtendedKey()	
+				// child's compressed pubkey
+				bip32_derivekey.setS(recvBuffer, BIP32_OFFSET_CHILD_KEY, BIP32_KEY_SIZE);
+				bip32Pubkey();
+				Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_PUB, buffer, pos, (short)(1+BIP32_KEY_SIZE));
+				pos+= (short)(1+BIP32_KEY_SIZE);
+				
+				Biginteger.add1_carry(recvBuffer, index_offset, (short)4);
+			}
+			
+			// sign parent path + response with authentikey
+			sigECDSA.init(bip32_authentikey, Signature.MODE_SIGN);
+			sigECDSA.update(recvBuffer, BIP32_OFFSET_PATH, (short)(4*bip32_depth));
+			short sign_size= sigECDSA.sign(buffer, (short)0, pos, buffer, (short)(pos+2));
+			Util.setShort(buffer, pos, sign_size);
+			pos+= (short)(2+sign_size);
+			
+			apdu.setOutgoingLength(pos);
+			apdu.sendBytes((short)0, pos);
+		} finally {
+			Util.arrayFillNonAtomic(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, BIP32_OFFSET_END, (byte)0);
+		}
+	}
+	
+	/**
+	 * Looks in the cache for the longest prefix of the path in recvBuffer, of at most
+	 * depth indexes, and marks it most recently used.
+	 * 
+	 * returns the offset of the entry in bip32_cache, or -1
+	 */
+	private short bip32CacheFind(byte depth){
+		if (bip32_cache==null)
+			return -1;
+		short found=-1;
+		byte found_depth=0;
+		for (short entry=0; entry<(short)bip32_cache.length; entry+=BIP32_CACHE_ENTRY_SIZE){
+			byte d= bip32_cache[(short)(entry+BIP32_CACHE_OFFSET_DEPTH)];
+			if (d>found_depth && d<=depth 
+					&& Util.arrayCompare(bip32_cache, (short)(entry+BIP32_CACHE_OFFSET_PATH), recvBuffer, BIP32_OFFSET_PATH, (short)(4*d))==0){
+				found=entry;
+				found_depth=d;
+			}
+		}
+		if (found>=0)
+			bip32CacheTouch(found);
+		return found;
+	}
+	
+	/**
+	 * Caches the (decrypted) parent key and chain code in recvBuffer as the key at depth
+	 * of the path, replacing a free or the least recently used entry.
+	 * 
+	 * returns the offset of the entry in bip32_cache, or -1
+	 */
+	private short bip32CacheStore(byte depth, short base){
+		if (bip32_cache==null)
+			return -1;
+		short entry=0;
+		byte age=-1;
+		for (short e=0; e<(short)bip32_cache.length; e+=BIP32_CACHE_ENTRY_SIZE){
+			if (bip32_cache[(short)(e+BIP32_CACHE_OFFSET_DEPTH)]==0){
+				entry=e;
+				break;
+			}
+			if (bip32_cache[(short)(e+BIP32_CACHE_OFFSET_AGE)]>age){
+				entry=e;
+				age=bip32_cache[(short)(e+BIP32_CACHE_OFFSET_AGE)];
+			}
+		}
+		bip32_cache[(short)(entry+BIP32_CACHE_OFFSET_DEPTH)]= depth;
+		Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_PATH, bip32_cache, (short)(entry+BIP32_CACHE_OFFSET_PATH), (short)(4*depth));
+		Util.setShort(bip32_cache, (short)(entry+BIP32_CACHE_OFFSET_BASE), base);
+		Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_PARENT_KEY, bip32_cache, (short)(entry+BIP32_CACHE_OFFSET_KEY), BIP32_KEY_SIZE);
+		Util.arrayCopyNonAtomic(recvBuffer, BIP32_OFFSET_PARENT_CHAINCODE, bip32_cache, (short)(entry+BIP32_CACHE_OFFSET_CHAINCODE), BIP32_KEY_SIZE);
+		bip32_cache[(short)(entry+BIP32_CACHE_OFFSET_COMPBYTE)]= 0;
+		// older than all others, so that touching it ages them all
+		bip32_cache[(short)(entry+BIP32_CACHE_OFFSET_AGE)]= BIP32_CACHE_ENTRIES;
+		bip32CacheTouch(entry);
+		return entry;
+	}
+	
+	/** Makes a cache entry the most recently used one */
+	private void bip32CacheTouch(short entry){
+		byte age= bip32_cache[(short)(entry+BIP32_CACHE_OFFSET_AGE)];
+		for (short e=0; e<(short)bip32_cache.length; e+=BIP32_CACHE_ENTRY_SIZE){
+			if (bip32_cache[(short)(e+BIP32_CACHE_OFFSET_AGE)]<=age && bip32_cache[(short)(e+BIP32_CACHE_OFFSET_DEPTH)]!=0)
+				bip32_cache[(short)(e+BIP32_CACHE_OFFSET_AGE)]++;
+		}
+		bip32_cache[(short)(entry+BIP32_CACHE_OFFSET_AGE)]= 0;
+	}
 	
 	/**
 	 * The function clears all the Bip32 objects from secure memory.
@@ -3234,6 +3524,8 @@ public class CardEdge extends javacard.framework.Applet implements ExtendedLengt
 		
 		short nb_deleted=0;
 		short obj_cla, obj_id;
+		if (bip32_cache!=null)
+			Util.arrayFillNonAtomic(bip32_cache, (short)0, (short)bip32_cache.length, (byte)0);
 		while (bip32_om.getFirstRecord(tmpBuffer, offset)){
 			
 			// get obj_class and obj_id
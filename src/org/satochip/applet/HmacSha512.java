@@ -24,18 +24,24 @@ import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
-// very limited Hmac-SHA512 implementation
+// Hmac-SHA512 implementation, for keys up to the block size
+// The hash states after the ipad and opad blocks of the last key are kept, so that
+// repeated use of a key (e.g. a BIP32 chain code) costs two compressions instead of four
 public class HmacSha512 {
 
 	public static final short BLOCKSIZE=128; // 128 bytes 
 	public static final short HASHSIZE=64;
 	private static final short SW_UNSUPPORTED_KEYSIZE = (short) 0x9c0E;
 	private static final short SW_UNSUPPORTED_MSGSIZE = (short) 0x9c0F;
-	private static byte[] data;
+	private static byte[] data; // BLOCKSIZE bytes used to build the padded key
+	private static byte[] cachedKey; // [ key_length+1 (1b) | key ], 0 if none
+	private static short[] midstates; // [ after ipad block (32 shorts) | after opad block (32 shorts) ]
 	
 	
 	public static void init(byte[] tmp){
 		data= tmp;
+		cachedKey= JCSystem.makeTransientByteArray((short)(BLOCKSIZE+1), JCSystem.CLEAR_ON_DESELECT);
+		midstates= JCSystem.makeTransientShortArray((short)64, JCSystem.CLEAR_ON_DESELECT);
 	}
 	
 	public static short computeHmacSha512(byte[] key, short key_offset, short key_length, 
@@ -45,29 +51,39 @@ public class HmacSha512 {
 		if (key_length>BLOCKSIZE || key_length<0){
 			ISOException.throwIt(SW_UNSUPPORTED_KEYSIZE); // don't accept keys bigger than block size 
 		}
-		if (message_length>HASHSIZE || message_length<0){
-			ISOException.throwIt(SW_UNSUPPORTED_MSGSIZE); // don't accept messsage bigger than block size (should be sufficient for BIP32)
+		if (message_length<0){
+			ISOException.throwIt(SW_UNSUPPORTED_MSGSIZE);
 		}
 		
-		// compute inner hash
-		for (short i=0; i<key_length; i++){
-			data[i]= (byte) (key[(short)(key_offset+i)] ^ (0x36));
+		if (cachedKey[0]!=(byte)(key_length+1) 
+				|| Util.arrayCompare(key, key_offset, cachedKey, (short)1, key_length)!=0){
+			// hash the ipad and opad blocks of the new key
+			for (short i=0; i<key_length; i++){
+				data[i]= (byte) (key[(short)(key_offset+i)] ^ (0x36));
+			}
+			Util.arrayFillNonAtomic(data, key_length, (short)(BLOCKSIZE-key_length), (byte)0x36);		
+			Sha512.reset();
+			Sha512.update(data, (short)0, BLOCKSIZE);
+			Sha512.getState(midstates, (short)0);
+			for (short i=0; i<key_length; i++){
+				data[i]= (byte) (key[(short)(key_offset+i)] ^ (0x5c));
+			}
+			Util.arrayFillNonAtomic(data, key_length, (short)(BLOCKSIZE-key_length), (byte)0x5c);
+			Sha512.reset();
+			Sha512.update(data, (short)0, BLOCKSIZE);
+			Sha512.getState(midstates, (short)32);
+			Util.arrayFillNonAtomic(data, (short)0, BLOCKSIZE, (byte)0);
+			Util.arrayCopyNonAtomic(key, key_offset, cachedKey, (short)1, key_length);
+			cachedKey[0]= (byte)(key_length+1);
 		}
-		Util.arrayFillNonAtomic(data, key_length, (short)(BLOCKSIZE-key_length), (byte)0x36);		
-		Util.arrayCopyNonAtomic(message, message_offset, data, BLOCKSIZE, message_length);
-		//Sha512.reset();
-		//Sha512.doFinal(data, (short)0, (short)(BLOCKSIZE+message_length), data, BLOCKSIZE); // copy hash result to data buffer!
-		Sha512.resetUpdateDoFinal(data, (short)0, (short)(BLOCKSIZE+message_length), data, BLOCKSIZE); // copy hash result to data buffer!
+		
+		// compute inner hash, into mac
+		Sha512.setState(midstates, (short)0, BLOCKSIZE);
+		Sha512.doFinal(message, message_offset, message_length, mac, mac_offset);
 		
 		// compute outer hash
-		for (short i=0; i<key_length; i++){
-			data[i]= (byte) (key[(short)(key_offset+i)] ^ (0x5c));
-		}
-		Util.arrayFillNonAtomic(data, key_length, (short)(BLOCKSIZE-key_length), (byte)0x5c);
-		// previous hash already copied to correct offset in data
-		//Sha512.reset();
-		//Sha512.doFinal(data, (short)0, (short)(BLOCKSIZE+HASHSIZE), mac, mac_offset);
-		Sha512.resetUpdateDoFinal(data, (short)0, (short)(BLOCKSIZE+HASHSIZE), mac, mac_offset);
+		Sha512.setState(midstates, (short)32, BLOCKSIZE);
+		Sha512.doFinal(mac, mac_offset, HASHSIZE, mac, mac_offset);
 		
 		return HASHSIZE;
 	}	
@@ -9,8 +9,9 @@ import javacard.framework.ISOException;
  * Object Manager Class
  * <p>
  * 
- * Objects are linked in a list in the dynamic memory. No smart search is done
- * at the moment.
+ * Objects are linked in a list in the dynamic memory. The list keeps the
+ * iteration order, while lookups by (type, id) go through an ObjectMap hash
+ * table allocated in the same memory.
  * <p>
  * 
  * Object fields:
@@ -59,8 +60,8 @@ public class ObjectManager {
 	/** The Memory Manager object */
 	private MemoryManager mem = null;
 
-	/** Map for fast search of objects (unimplemented) */
-	// static Map map;
+	/** Map for fast search of objects */
+	private ObjectMap map = null;
 
 	/** Head of the objects' list */
 	private short obj_list_head = MemoryManager.NULL_OFFSET;
@@ -74,7 +75,7 @@ public class ObjectManager {
 	 */
 	public ObjectManager(MemoryManager mem_ref) {
 		mem = mem_ref;
-		// map = new Map();
+		map = new ObjectMap(mem, (short) mem.getBuffer().length, OBJ_H_CLASS, OBJ_H_ID);
 		obj_list_head = MemoryManager.NULL_OFFSET;
 	}
 
@@ -107,7 +108,7 @@ public class ObjectManager {
 		obj_list_head = base;
 
 		/* Add to the map */
-		// map.addEntry(type, id, base);
+		map.addEntry(base);
 
 		// Return base address
 		return (short) (base + OBJ_HEADER_SIZE);
@@ -235,11 +236,15 @@ public class ObjectManager {
 	 *            If true, object memory is zeroed before being released.
 	 */
 	public void destroyObject(short type, short id, boolean secure) {
+		short target = getEntry(type, id);
+		if (target == MemoryManager.NULL_OFFSET)
+			return;
+		// The list is singly linked: we still need the previous node
 		short base = obj_list_head;
 		short prev = MemoryManager.NULL_OFFSET;
 		boolean found = false;
 		while ((!found) && (base != MemoryManager.NULL_OFFSET)) {
-			if ((mem.getShort(base, OBJ_H_CLASS) == type) && (mem.getShort(base, OBJ_H_ID) == id))
+			if (base == target)
 				found = true;
 			else {
 				prev = base;
@@ -247,6 +252,7 @@ public class ObjectManager {
 			}
 		}
 		if (found) {
+			map.removeEntry(base);
 			// Unlink object from the list
 			if (prev != MemoryManager.NULL_OFFSET) {
 				mem.setShort(prev, OBJ_H_NEXT, mem.getShort(base, OBJ_H_NEXT));
@@ -269,8 +275,9 @@ public class ObjectManager {
 	 * Object header is found at the returned offset, while object data starts
 	 * right after the header
 	 * <p>
-	 * This performs a linear search, so performance issues could arise as the
-	 * number of objects grows If object is not found, then returns NULL_OFFSET
+	 * This performs a hash lookup; the linear search over the list is only
+	 * needed when the map is full. If object is not found, then returns
+	 * NULL_OFFSET
 	 * 
 	 * @param type
 	 *            Object Type
@@ -280,11 +287,11 @@ public class ObjectManager {
 	 *         not found.
 	 */
 	private short getEntry(short type, short id) {
-		/*
-		 * This is a stupid linear search. It's fine for a few objects. TODO:
-		 * Use a map for high number of objects
-		 */
-		short base = obj_list_head;
+		short base = map.getEntry(type, id);
+		if ((base != MemoryManager.NULL_OFFSET) || !map.isPartial())
+			return base;
+		/* Some objects did not fit in the map: fall back to a linear search */
+		base = obj_list_head;
 		while (base != MemoryManager.NULL_OFFSET) {
 			if ((mem.getShort(base, OBJ_H_CLASS) == type) && (mem.getShort(base, OBJ_H_ID) == id))
 				return base;
@@ -0,0 +1,196 @@
+package org.satochip.applet;
+
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * Object Map class.
+ * <p>
+ *
+ * A fixed-size open-addressed hash table which indexes the objects handled by
+ * the ObjectManager by their (type, id) identifier. The table is allocated
+ * once inside the MemoryManager arena, so it takes its memory from the same
+ * pool as the objects themselves.
+ * <p>
+ *
+ * Each slot holds the header base address of an object, or NULL_OFFSET if the
+ * slot is empty. Keys are not duplicated in the table: they are read back from
+ * the object header. Collisions are resolved with linear probing and removal
+ * uses backward shifting, so no tombstones ever accumulate.
+ * <p>
+ *
+ * When the table is full, new objects are simply not indexed; the number of
+ * such objects is tracked so that the ObjectManager knows when it still has to
+ * fall back to a list walk.
+ */
+
+public class ObjectMap {
+
+	/** Minimum and maximum number of slots in the table */
+	private final static short MIN_SLOTS = (short) 16;
+	private final static short MAX_SLOTS = (short) 512;
+
+	/** The Memory Manager holding both the table and the objects */
+	private MemoryManager mem = null;
+
+	/** Table base address in the memory arena */
+	private short table = MemoryManager.NULL_OFFSET;
+
+	/** Number of slots (a power of 2) and the related mask */
+	private short slots;
+	private short mask;
+	/** Shift bringing the top bits of a 16 bit hash down to a slot number */
+	private byte shift;
+
+	/** Offsets of the key fields in the object header */
+	private byte h_class;
+	private byte h_id;
+
+	/** Number of indexed objects */
+	private short count;
+
+	/** Number of live objects which could not be indexed */
+	private short unindexed;
+
+	/**
+	 * Constructor for the ObjectMap class. The table is sized after the arena
+	 * size (one slot every 64 bytes of memory, within MIN_SLOTS and MAX_SLOTS).
+	 *
+	 * @param mem_ref
+	 *            The MemoryManager object from which the table is allocated
+	 * @param mem_size
+	 *            The size of the memory arena
+	 * @param class_offset
+	 *            Offset of the object type in the object header
+	 * @param id_offset
+	 *            Offset of the object ID in the object header
+	 */
+	public ObjectMap(MemoryManager mem_ref, short mem_size, byte class_offset, byte id_offset) {
+		mem = mem_ref;
+		h_class = class_offset;
+		h_id = id_offset;
+		short wanted = (short) ((mem_size >> 6) & 0x03FF);
+		slots = MIN_SLOTS;
+		while ((slots < wanted) && (slots < MAX_SLOTS))
+			slots = (short) (slots << 1);
+		mask = (short) (slots - 1);
+		shift = (byte) 16;
+		for (short s = slots; s > (short) 1; s = (short) (s >> 1))
+			shift--;
+		table = mem.alloc((short) (slots * 2));
+		if (table == MemoryManager.NULL_OFFSET)
+			ISOException.throwIt(ObjectManager.SW_NO_MEMORY_LEFT);
+		// NULL_OFFSET is 0xFFFF: an all-ones table is an empty table
+		Util.arrayFillNonAtomic(mem.getBuffer(), table, (short) (slots * 2), (byte) 0xFF);
+		count = (short) 0;
+		unindexed = (short) 0;
+	}
+
+	/** Computes the home slot for an object identifier */
+	private short hash(short type, short id) {
+		short h = (short) ((short) (type * (short) 31) ^ id);
+		// Multiplicative hashing, taking the top bits: consecutive IDs are
+		// spread over the table instead of filling a run of slots, which
+		// linear probing would have to walk through on every miss
+		h = (short) (h * (short) 0x9E37);
+		return (short) ((h >> shift) & mask);
+	}
+
+	/** Returns the header base address stored in a slot */
+	private short getSlot(short slot) {
+		return mem.getShort(table, (short) (slot * 2));
+	}
+
+	/** Stores a header base address into a slot */
+	private void setSlot(short slot, short base) {
+		mem.setShort(table, (short) (slot * 2), base);
+	}
+
+	/**
+	 * Adds an object to the map. The object header must already contain its
+	 * type and ID.
+	 *
+	 * @param base
+	 *            The object header base address
+	 */
+	public void addEntry(short base) {
+		// Keep one slot empty so that probe sequences always terminate
+		if (count >= mask) {
+			unindexed++;
+			return;
+		}
+		short slot = hash(mem.getShort(base, h_class), mem.getShort(base, h_id));
+		while (getSlot(slot) != MemoryManager.NULL_OFFSET)
+			slot = (short) ((short) (slot + 1) & mask);
+		setSlot(slot, base);
+		count++;
+	}
+
+	/**
+	 * Removes an object from the map.
+	 *
+	 * @param base
+	 *            The object header base address
+	 */
+	public void removeEntry(short base) {
+		short i = hash(mem.getShort(base, h_class), mem.getShort(base, h_id));
+		short cur;
+		while ((cur = getSlot(i)) != base) {
+			if (cur == MemoryManager.NULL_OFFSET) {
+				// Object was not indexed
+				unindexed--;
+				return;
+			}
+			i = (short) ((short) (i + 1) & mask);
+		}
+		count--;
+		/*
+		 * Backward shift: move up every following entry of the cluster whose
+		 * home slot does not lie cyclically in (i, j]
+		 */
+		short j = i;
+		while (true) {
+			j = (short) ((short) (j + 1) & mask);
+			cur = getSlot(j);
+			if (cur == MemoryManager.NULL_OFFSET)
+				break;
+			short k = hash(mem.getShort(cur, h_class), mem.getShort(cur, h_id));
+			if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j)))
+				continue;
+			setSlot(i, cur);
+			i = j;
+		}
+		setSlot(i, MemoryManager.NULL_OFFSET);
+	}
+
+	/**
+	 * Looks up an object in the map.
+	 *
+	 * @param type
+	 *            Object Type
+	 * @param id
+	 *            Object ID
+	 * @return The object header base address or NULL_OFFSET if the object is
+	 *         not indexed
+	 */
+	public short getEntry(short type, short id) {
+		short slot = hash(type, id);
+		short base;
+		while ((base = getSlot(slot)) != MemoryManager.NULL_OFFSET) {
+			if ((mem.getShort(base, h_class) == type) && (mem.getShort(base, h_id) == id))
+				return base;
+			slot = (short) ((short) (slot + 1) & mask);
+		}
+		return MemoryManager.NULL_OFFSET;
+	}
+
+	/**
+	 * Tells whether a miss in getEntry() is authoritative.
+	 *
+	 * @return True if some live objects could not be indexed and a full search
+	 *         is needed to prove an object does not exist
+	 */
+	public boolean isPartial() {
+		return (unindexed != (short) 0);
+	}
+} // class ObjectMap
@@ -103,8 +103,8 @@ public class Sha512 {
 
     public static short[] hashState;
     public static byte[] buffer;
-    public static short bufferOff;
-    public static short bufferLeft;
+    // [ bytes in buffer | message length in bytes (2 shorts, msb first) ]
+    private static short[] count;
 
 
 
@@ -118,78 +118,129 @@ public class Sha512 {
 
         hashState= JCSystem.makeTransientShortArray((short) (32), JCSystem.CLEAR_ON_DESELECT);
         buffer= JCSystem.makeTransientByteArray((short) (128), JCSystem.CLEAR_ON_DESELECT);
+        count= JCSystem.makeTransientShortArray((short) (3), JCSystem.CLEAR_ON_DESELECT);
 
 
 
     }
 
 
-	public static short resetUpdateDoFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset){
+    public static void reset(){
+		setState(H_INIT_SHORT, (short)0, (short)0);
+    }
 
 
-		short akku,posy,posx,addx,addy;
+    /**
+     * Continues a hash from an intermediate state, as saved by getState() after
+     * length bytes (a multiple of the block size).
+     */
+    public static void setState(short[] state, short stateOff, short length){
+		for (short i=0; i<32; i++){
+			hashState[i]=state[(short)(stateOff+i)];
+		}
+		count[0]=0;
+		count[1]=0;
+		count[2]=length;
+    }
 
 
-		bufferOff=0;
-        bufferLeft=128;
+    /** Saves the intermediate state, which is only meaningful at a block boundary */
+    public static void getState(short[] state, short stateOff){
+		for (short i=0; i<32; i++){
+			state[(short)(stateOff+i)]=hashState[i];
+		}
+    }
 
 
+    public static void update(byte[] inBuff, short inOffset, short inLength){
+
+
+		short lo;
+		while (inLength>0){
+			short n;
+			if (count[0]==0 && inLength>=128){
+				// whole block, hashed in place
+				compress(inBuff, inOffset);
+				n=128;
+			}
+			else {
+				n=(short)(128-count[0]);
+				if (n>inLength)
+					n=inLength;
+				Util.arrayCopyNonAtomic(inBuff, inOffset, buffer, count[0], n);
+				count[0]+=n;
+				if (count[0]==128){
+					compress(buffer, (short)0);
+					count[0]=0;
+				}
+			}
+			inOffset+=n;
+			inLength-=n;
+			lo=count[2];
+			count[2]+=n;
+			if ((short)(count[2]^(short)0x8000) < (short)(lo^(short)0x8000))
+				count[1]++;
+		}
+    }
 
 
+	public static short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset){
 
-		Util.arrayCopyNonAtomic(inBuff, inOffset, buffer, bufferOff, bufferLeft);
-		inOffset+=bufferLeft;
-		bufferLeft=128;
-		bufferOff=0;
 
+		update(inBuff, inOffset, inLength);
 
-		for (short i=0; i<32; i++){
-			hashState[i]= H_INIT_SHORT[i];
-			h_short[i]=hashState[i];
-		}
-		CompressionFunction(h_short, (short)0, buffer, (short)0);
 
-		for (short i=0; i<32; i+=4){
-			akku = 0; posy = (short)((i)+3); posx = (short)((i)+3); addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku); akku= (short)(( ((addx&addy)|((addx|addy) & ~hashState[posx])) >>15)&1); posy--; posx--; addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku); akku= (short)(( ((addx&addy)|((addx|addy) & ~hashState[posx])) >>15)&1); posy--; posx--; addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku); akku= (short)(( ((addx&addy)|((addx|addy) & ~hashState[posx])) >>15)&1); posy--; posx--; addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku) ;
+		short bufferOff=count[0];
+		buffer[bufferOff]=(byte)0x80;
+		bufferOff++;
+		if (bufferOff>112){
+			Util.arrayFillNonAtomic(buffer, bufferOff, (short)(128-bufferOff), (byte)0x00);
+			compress(buffer, (short)0);
+			bufferOff=0;
 		}
+		Util.arrayFillNonAtomic(buffer, bufferOff, (short)(128-bufferOff), (byte)0x00);
 
 
-		short remainingBytes= (short)(inLength-(short)128);
-        Util.arrayCopyNonAtomic(inBuff, inOffset, buffer, bufferOff, remainingBytes);
-        bufferLeft-=remainingBytes;
-        bufferOff+=remainingBytes;
+		// length in bits on 128 bits
+		buffer[123]=(byte)((count[1]>>13)&0x07);
+		Util.setShort(buffer, (short)124, (short)((count[1]<<3)|((count[2]>>13)&0x07)));
+		Util.setShort(buffer, (short)126, (short)(count[2]<<3));
+		compress(buffer, (short)0);
 
 
+        for (short i=0; i<32; i++){
+            outBuff[outOffset]=(byte)((hashState[i]>>8)&0xff);
+            outOffset++;
+            outBuff[outOffset]=(byte)(hashState[i]&0xff);
+            outOffset++;
+        }
 
+        reset();
+        return (short)64;
+    }
 
-		buffer[bufferOff]=(byte)0x80;
-		bufferLeft--;
-		bufferOff++;
-		Util.arrayFillNonAtomic(buffer, bufferOff, bufferLeft, (byte)0x00);
 
+	public static short resetUpdateDoFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset){
+		reset();
+		return doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
+	}
+
+
+    /** Hashes one block into hashState */
+    private static void compress(byte[] msgBlock, short msgOff){
 
-		buffer[(short)(buffer.length-2)]=(byte)(((short)(8*inLength)>>8)&0xff);
-		buffer[(short)(buffer.length-1)]=(byte)((8*inLength) &0xff);
+
+		short akku,posy,posx,addx,addy;
 
 
 		for (short i=0; i<32; i++){
 			h_short[i]=hashState[i];
 		}
-		CompressionFunction(h_short, (short)0, buffer, (short)0);
+		CompressionFunction(h_short, (short)0, msgBlock, msgOff);
 
 		for (short i=0; i<32; i+=4){
 			akku = 0; posy = (short)((i)+3); posx = (short)((i)+3); addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku); akku= (short)(( ((addx&addy)|((addx|addy) & ~hashState[posx])) >>15)&1); posy--; posx--; addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku); akku= (short)(( ((addx&addy)|((addx|addy) & ~hashState[posx])) >>15)&1); posy--; posx--; addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku); akku= (short)(( ((addx&addy)|((addx|addy) & ~hashState[posx])) >>15)&1); posy--; posx--; addx=hashState[posx]; addy=h_short[posy]; hashState[posx] = (short)(addx+addy+akku) ;
 		}
-
-
-        for (short i=0; i<32; i++){
-            outBuff[outOffset]=(byte)((hashState[i]>>8)&0xff);
-            outOffset++;
-            outBuff[outOffset]=(byte)(hashState[i]&0xff);
-            outOffset++;
-        }
-
-        return (short)64;
     }
 
     public static void CompressionFunction(short[] state, short stateOff, byte[] msgBlock, short msgOff){
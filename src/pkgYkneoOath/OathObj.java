@@ -21,7 +21,11 @@ import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
+import javacard.security.CryptoException;
+import javacard.security.HMACKey;
+import javacard.security.KeyBuilder;
 import javacard.security.MessageDigest;
+import javacard.security.Signature;
 
 public class OathObj {
 	public static final byte HMAC_MASK = 0x0f;
@@ -44,14 +48,27 @@ public class OathObj {
 	public static OathObj lastObject;
 	public OathObj nextObject;
 
+	// objects by a hash of their name, each bucket chained through nextInIndex
+	private static final short INDEX_SIZE = 32;
+	private static OathObj[] nameIndex;
+	private OathObj nextInIndex;
+
 	private byte[] name;
 	private short nameLen;
+	private short nameHash;
 	private byte type;
 	private byte digits;
 	private short counter = 0;
 	private byte[] imf;
 	private boolean active = false;
 
+	// HMAC is done by the card when it can (hmac is then set), else with
+	// MessageDigest over the padded key blocks
+	private static Signature hmacSha1;
+	private static Signature hmacSha256;
+	private HMACKey hmacKey;
+	private Signature hmac;
+
 	private byte[] inner;
 	private byte[] outer;
 	private static MessageDigest sha;
@@ -65,12 +82,30 @@ public class OathObj {
 	private static byte[] scratchBuf;
 
 	public OathObj() {
-		inner = new byte[hmac_buf_size];
-		outer = new byte[hmac_buf_size];
-
 		if(scratchBuf == null) {
 			scratchBuf = JCSystem.makeTransientByteArray((short) 32, JCSystem.CLEAR_ON_DESELECT);
 		}
+		if(nameIndex == null) {
+			nameIndex = new OathObj[INDEX_SIZE];
+		}
+	}
+
+	/**
+	 * Looks for the HMAC algorithms of the card, to be used for the keys set
+	 * afterwards. Without them (or with useNative false) the MessageDigest
+	 * path is used.
+	 */
+	public static void initHmac(boolean useNative) {
+		hmacSha1 = useNative ? getHmac(Signature.ALG_HMAC_SHA1) : null;
+		hmacSha256 = useNative ? getHmac(Signature.ALG_HMAC_SHA_256) : null;
+	}
+
+	private static Signature getHmac(byte algorithm) {
+		try {
+			return Signature.getInstance(algorithm, false);
+		} catch(CryptoException e) {
+			return null;
+		}
 	}
 
 	public void setKey(byte[] buf, short offs, byte type, short len) {
@@ -97,6 +132,34 @@ public class OathObj {
 
 		this.type = type;
 		this.counter = 0;
+
+		Signature engine = (type & HMAC_MASK) == HMAC_SHA1 ? hmacSha1 : hmacSha256;
+		hmac = null;
+		if(engine != null && len > 0) {
+			try {
+				if(hmacKey == null) {
+					hmacKey = (HMACKey) KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, KeyBuilder.LENGTH_HMAC_SHA_1_BLOCK_64, false);
+				}
+				hmacKey.setKey(buf, offs, len);
+				hmac = engine;
+			} catch(CryptoException e) {
+				// no HMAC keys after all, or not of this length
+			}
+		}
+		if(hmac != null) {
+			if(inner != null) {
+				Util.arrayFillNonAtomic(inner, _0, hmac_buf_size, (byte) 0);
+				Util.arrayFillNonAtomic(outer, _0, hmac_buf_size, (byte) 0);
+			}
+			return;
+		}
+		if(hmacKey != null) {
+			hmacKey.clearKey();
+		}
+		if(inner == null) {
+			inner = new byte[hmac_buf_size];
+			outer = new byte[hmac_buf_size];
+		}
 		Util.arrayFillNonAtomic(inner, _0, hmac_buf_size, (byte) 0x36);
 		Util.arrayFillNonAtomic(outer, _0, hmac_buf_size, (byte) 0x5c);
         for (short i = 0; i < len; i++, offs++) {
@@ -118,11 +181,49 @@ public class OathObj {
 	}
 
 	public void setName(byte[] buf, short offs, short len) {
+		short hash = hashName(buf, offs, len);
+		JCSystem.beginTransaction();
 		if(name == null) {
 			name = new byte[NAME_LEN];
+		} else {
+			removeFromIndex();
 		}
 		nameLen = len;
 		Util.arrayCopy(buf, offs, name, _0, len);
+		nameHash = hash;
+		nextInIndex = nameIndex[(short) (hash & (INDEX_SIZE - 1))];
+		nameIndex[(short) (hash & (INDEX_SIZE - 1))] = this;
+		JCSystem.commitTransaction();
+	}
+
+	private void removeFromIndex() {
+		short bucket = (short) (nameHash & (INDEX_SIZE - 1));
+		if(nameIndex[bucket] == this) {
+			nameIndex[bucket] = nextInIndex;
+		} else {
+			OathObj object;
+			for(object = nameIndex[bucket]; object != null; object = object.nextInIndex) {
+				if(object.nextInIndex == this) {
+					object.nextInIndex = nextInIndex;
+					break;
+				}
+			}
+		}
+		nextInIndex = null;
+	}
+
+	private static short hashName(byte[] buf, short offs, short len) {
+		short hash = 0;
+		for(short i = 0; i < len; i++) {
+			hash = (short) ((short) (hash * 31) + buf[(short) (offs + i)]);
+		}
+		return hash;
+	}
+
+	public static void clearIndex() {
+		for(short i = 0; i < INDEX_SIZE; i++) {
+			nameIndex[i] = null;
+		}
 	}
 
 	public short getName(byte[] buf, short offs) {
@@ -171,9 +272,10 @@ public class OathObj {
 	}
 
 	public static OathObj findObject(byte[] name, short offs, short len) {
+		short hash = hashName(name, offs, len);
 		OathObj object;
-		for(object = firstObject; object != null; object = object.nextObject) {
-			if(!object.isActive() || len != object.nameLen) {
+		for(object = nameIndex[(short) (hash & (INDEX_SIZE - 1))]; object != null; object = object.nextInIndex) {
+			if(!object.isActive() || hash != object.nameHash || len != object.nameLen) {
 				continue;
 			}
 			if(Util.arrayCompare(name, offs, object.name, _0, len) == 0) {
@@ -243,6 +345,11 @@ public class OathObj {
 			ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 		}
 
+		if(hmac != null) {
+			hmac.init(hmacKey, Signature.MODE_SIGN);
+			return hmac.sign(buf, chalOffs, len, dest, destOffs);
+		}
+
 		digest.reset();
 		digest.update(inner, _0, hmac_buf_size);
 		short digestLen = digest.doFinal(buf, chalOffs, len, dest, destOffs);
@@ -264,7 +371,8 @@ public class OathObj {
 	}
 
 	public short getDigestLength() {
-		return digest.getLength();
+		// known from the type, CALCULATE ALL sizes its response with it
+		return (type & HMAC_MASK) == HMAC_SHA256 ? (short) 32 : (short) 20;
 	}
 
 	public boolean isActive() {
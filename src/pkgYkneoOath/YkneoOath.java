@@ -58,11 +58,16 @@ public class YkneoOath extends Applet {
 	private OathObj authObj;
 	private OathObj scratchAuth;
 	private byte[] propBuf;
+	// next object of the CALCULATE ALL being sent, its codes are calculated as they are sent
+	private Object[] calcAllNext;
 
 	private static final byte PROP_AUTH_OFFS = 0;
 	private static final byte PROP_SENT_DATA_OFFS = 1;
 	private static final byte PROP_REMAINING_DATA_LEN = 3;
-	private static final byte PROP_BUF_SIZE = PROP_REMAINING_DATA_LEN + 2;
+	private static final byte PROP_CALC_BUFFERED_LEN = 5;
+	private static final byte PROP_CALC_CHAL_LEN = 7;
+	private static final byte PROP_CALC_P2 = 8;
+	private static final byte PROP_BUF_SIZE = PROP_CALC_P2 + 1;
 
 	private static final short BUFSIZE = 2048;
 	private static final short TMP_BUFSIZE = 32;
@@ -73,10 +78,15 @@ public class YkneoOath extends Applet {
 
 	private static final byte[] version = {0x00,0x02,0x02};
 
-	public YkneoOath() {
+	// bit of the first byte of the install parameters: no native HMAC
+	private static final byte INSTALL_SOFTWARE_HMAC = 0x01;
+
+	public YkneoOath(boolean nativeHmac) {
+		OathObj.initHmac(nativeHmac);
 		tempBuf = JCSystem.makeTransientByteArray((short) TMP_BUFSIZE, JCSystem.CLEAR_ON_DESELECT);
 		sendBuffer = JCSystem.makeTransientByteArray(BUFSIZE, JCSystem.CLEAR_ON_DESELECT);
 		propBuf = JCSystem.makeTransientByteArray(PROP_BUF_SIZE, JCSystem.CLEAR_ON_DESELECT);
+		calcAllNext = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
 		rng = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM);
 
 		identity = new byte[CHALLENGE_LENGTH];
@@ -87,7 +97,11 @@ public class YkneoOath extends Applet {
 	}
 
 	public static void install(byte[] bArray, short bOffset, byte bLength) {
-		new YkneoOath().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+		// skip the instance AID and the privileges to the application parameters
+		short offs = (short) (bOffset + bArray[bOffset] + 1);
+		offs += (short) (bArray[offs] + 1);
+		boolean nativeHmac = bArray[offs] == 0 || (bArray[(short) (offs + 1)] & INSTALL_SOFTWARE_HMAC) == 0;
+		new YkneoOath(nativeHmac).register(bArray, (short) (bOffset + 1), bArray[bOffset]);
 	}
 
 	public void process(APDU apdu) {
@@ -125,6 +139,13 @@ public class YkneoOath extends Applet {
 		short p1p2 = Util.makeShort(p1, p2);
 		byte ins = buf[ISO7816.OFFSET_INS];
 
+		// the rest of a CALCULATE ALL can only be asked for right away
+		if(ins != SEND_REMAINING_INS && calcAllNext[0] != null) {
+			calcAllNext[0] = null;
+			Util.setShort(propBuf, PROP_SENT_DATA_OFFS, _0);
+			Util.setShort(propBuf, PROP_REMAINING_DATA_LEN, _0);
+		}
+
 		if(authObj.isActive() && ins != VALIDATE_INS && ins != RESET_INS) {
 			if(propBuf[PROP_AUTH_OFFS] != 1) {
 				ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
@@ -183,7 +204,7 @@ public class YkneoOath extends Applet {
 			break;
 		case CALCULATE_ALL_INS: // calculate all codes
 			if(p1 == 0x00 && (p2 == 0x00 || p2 == 0x01)) {
-				sendLen = handleCalcAll(buf, p2, sendBuffer);
+				sendLen = handleCalcAll(buf, p2);
 			} else {
 				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
 			}
@@ -204,6 +225,7 @@ public class YkneoOath extends Applet {
 		authObj.setActive(false);
 		OathObj.firstObject = null;
 		OathObj.lastObject = null;
+		OathObj.clearIndex();
 		Util.arrayFillNonAtomic(propBuf, _0, PROP_BUF_SIZE, (byte)0);
 		rng.generateData(identity, _0, CHALLENGE_LENGTH);
 		JCSystem.requestObjectDeletion();
@@ -322,40 +344,79 @@ public class YkneoOath extends Applet {
 		return (short) (len + getLengthBytes(len) + 2);
 	}
 
-	private short handleCalcAll(byte[] challenge, byte p2, byte[] output) {
+	private short handleCalcAll(byte[] challenge, byte p2) {
 		short offs = 5;
 		if(challenge[offs++] != CHALLENGE_TAG) {
 			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 		}
 		short chalLen = getLength(challenge, offs++);
+		if(chalLen > TMP_BUFSIZE) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 		Util.arrayCopyNonAtomic(challenge, offs, tempBuf, _0, chalLen);
 
-		offs = 0;
+		// only the length is known now, the codes are calculated by sendData()
+		short len = 0;
 		OathObj obj;
 		for(obj = OathObj.firstObject; obj != null; obj = obj.nextObject) {
 			if(!obj.isActive()) {
 				continue;
 			}
-			output[offs++] = NAME_TAG;
-			output[offs++] = (byte) obj.getNameLength();
-			offs += obj.getName(output, offs);
-			short len = 0;
+			len += obj.getNameLength() + 5;
 			if((obj.getType() & OathObj.OATH_MASK) == OathObj.TOTP_TYPE) {
-				if(p2 == 0x00) {
-					output[offs++] = RESPONSE_TAG;
-					len = obj.calculate(tempBuf, _0, chalLen, output, (short) (offs + 2));
-				} else {
-					output[offs++] = T_RESPONSE_TAG;
-					len = obj.calculateTruncated(tempBuf, _0, chalLen, output, (short) (offs + 2));
+				len += p2 == 0x00 ? obj.getDigestLength() : 4;
+			}
+		}
+		if(len > 0) {
+			calcAllNext[0] = OathObj.firstObject;
+			propBuf[PROP_CALC_CHAL_LEN] = (byte) chalLen;
+			propBuf[PROP_CALC_P2] = p2;
+			Util.setShort(propBuf, PROP_CALC_BUFFERED_LEN, _0);
+		}
+		return len;
+	}
+
+	/**
+	 * Calculates the codes of CALCULATE ALL until the next len bytes of the
+	 * response are in sendBuffer, and returns where they start.
+	 */
+	private short calculateNext(short sentData, short len) {
+		short buffered = Util.getShort(propBuf, PROP_CALC_BUFFERED_LEN);
+		if(buffered < len) {
+			Util.arrayCopyNonAtomic(sendBuffer, sentData, sendBuffer, _0, buffered);
+			sentData = 0;
+			OathObj obj = (OathObj) calcAllNext[0];
+			for(; obj != null && buffered < len; obj = obj.nextObject) {
+				if(obj.isActive()) {
+					buffered = calculateEntry(obj, sendBuffer, buffered);
 				}
+			}
+			calcAllNext[0] = obj;
+		}
+		Util.setShort(propBuf, PROP_CALC_BUFFERED_LEN, (short) (buffered - len));
+		return sentData;
+	}
+
+	private short calculateEntry(OathObj obj, byte[] output, short offs) {
+		short chalLen = propBuf[PROP_CALC_CHAL_LEN];
+		output[offs++] = NAME_TAG;
+		output[offs++] = (byte) obj.getNameLength();
+		offs += obj.getName(output, offs);
+		short len = 0;
+		if((obj.getType() & OathObj.OATH_MASK) == OathObj.TOTP_TYPE) {
+			if(propBuf[PROP_CALC_P2] == 0x00) {
+				output[offs++] = RESPONSE_TAG;
+				len = obj.calculate(tempBuf, _0, chalLen, output, (short) (offs + 2));
 			} else {
-				output[offs++] = NO_RESPONSE_TAG;
+				output[offs++] = T_RESPONSE_TAG;
+				len = obj.calculateTruncated(tempBuf, _0, chalLen, output, (short) (offs + 2));
 			}
-			output[offs++] = (byte) (len + 1);
-			output[offs++] = obj.getDigits();
-			offs += len;
+		} else {
+			output[offs++] = NO_RESPONSE_TAG;
 		}
-		return offs;
+		output[offs++] = (byte) (len + 1);
+		output[offs++] = obj.getDigits();
+		return (short) (offs + len);
 	}
 
 	private short handleList(byte[] output) {
@@ -512,6 +573,9 @@ public class YkneoOath extends Applet {
 		if(len < maxLen) {
 			toSend = len;
 		}
+		if(calcAllNext[0] != null) {
+			sentData = calculateNext(sentData, toSend);
+		}
 		Util.arrayCopy(sendBuffer, sentData, buf, _0, toSend);
 		if(len > maxLen) {
 			remainingData = (short) (len - maxLen);
@@ -53,6 +53,11 @@ public class CREFPassportCrypto extends JCOP41PassportCrypto implements ISO7816
                                     false);
     }
     
+    /* encrypt() is not available, every encryption restarts the CBC chain */
+    public boolean canStreamResponses() {
+        return false;
+    }
+
     CREFPassportCrypto(KeyStore keyStore) {
         super(keyStore);
 
@@ -31,6 +31,7 @@ import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.RandomData;
 import javacard.security.Signature;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
 // API for setATRHistBytes - requires Global Platform API gp211.jar
@@ -46,7 +47,7 @@ import javacardx.crypto.Cipher;
  * 
  * @version $Revision: 945 $
  */
-public class PassportApplet extends Applet implements ISO7816 {
+public class PassportApplet extends Applet implements ISO7816, ExtendedLength {
     static byte volatileState[];
 
     static byte persistentState;
@@ -278,9 +279,10 @@ public class PassportApplet extends Applet implements ISO7816 {
         }
 
         if (responseLength > 0) {
-            if (apdu.getCurrentState() != APDU.STATE_OUTGOING)
+            // a streamed READ BINARY has already set the outgoing length
+            if (apdu.getCurrentState() < APDU.STATE_OUTGOING)
                 apdu.setOutgoing();
-            if (apdu.getCurrentState() != APDU.STATE_OUTGOING_LENGTH_KNOWN)
+            if (apdu.getCurrentState() == APDU.STATE_OUTGOING)
                 apdu.setOutgoingLength(responseLength);
             apdu.sendBytes((short) 0, responseLength);
         }
@@ -909,7 +911,7 @@ public class PassportApplet extends Applet implements ISO7816 {
      *            where the offset is carried in header bytes p1 and p2.
      * @param le
      *            expected length by terminal
-     * @return length of the response APDU
+     * @return length of the response APDU, 0 if the DO87 has been built
      */
     private short processReadBinary(APDU apdu, short le, boolean protectedApdu) {
         if (!hasMutuallyAuthenticated()) {
@@ -934,14 +936,27 @@ public class PassportApplet extends Applet implements ISO7816 {
         short len;
         short fileSize = fileSystem.getFileSize(selectedFile);
 
-        len = PassportUtil.min((short) (buffer.length - 37),
-                (short) (fileSize - offset));
-        // FIXME: 37 magic
-        len = PassportUtil.min(len, (short) buffer.length);
-        len = PassportUtil.min(le, len);
+        len = PassportUtil.min(le, (short) (fileSize - offset));
         short bufferOffset = 0;
         if (protectedApdu) {
+            // what fits the buffer and a short (256 byte) response
+            short maxLen = PassportCrypto.getMaxWrappedPlaintextLength(
+                    PassportUtil.min((short) buffer.length, (short) 256));
+            if (crypto.canStreamResponses() && len > 0) {
+                // the DO87 is encrypted straight from the file, process()
+                // only adds DO99 and DO8E
+                if (len > maxLen) {
+                    // extended length: more than the APDU buffer holds
+                    crypto.streamResponseData(ssc, apdu, file, offset, len);
+                } else {
+                    crypto.wrapResponseData(ssc, apdu, file, offset, len);
+                }
+                return 0;
+            }
+            len = PassportUtil.min(len, maxLen);
             bufferOffset = crypto.getApduBufferOffset(len);
+        } else {
+            len = PassportUtil.min(len, (short) buffer.length);
         }
         Util.arrayCopyNonAtomic(file, offset, buffer, bufferOffset, len);
 
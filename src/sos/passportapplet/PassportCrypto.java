@@ -64,6 +64,15 @@ public class PassportCrypto {
 
     public static byte[] PAD_DATA = { (byte) 0x80, 0, 0, 0, 0, 0, 0, 0 };
 
+    /* worst case DO87 header (0x87 0x82 len len 0x01), DO99 and DO8E */
+    static final short SM_RESPONSE_OVERHEAD = 19;
+
+    /* DO99 (0x99 0x02 sw1 sw2) and DO8E (0x8e 0x08 mac) */
+    static final short SM_TRAILER_LENGTH = 14;
+
+    boolean[] do87Wrapped;
+    short[] do87Length;
+
     protected void init() {
         sig = Signature.getInstance(Signature.ALG_DES_MAC8_ISO9797_1_M2_ALG3,
                                     false);            
@@ -83,6 +92,10 @@ public class PassportCrypto {
                 false);
         eacChangeKeys = JCSystem.makeTransientBooleanArray((short) 1,
                 JCSystem.CLEAR_ON_DESELECT);
+        do87Wrapped = JCSystem.makeTransientBooleanArray((short) 1,
+                JCSystem.CLEAR_ON_DESELECT);
+        do87Length = JCSystem.makeTransientShortArray((short) 1,
+                JCSystem.CLEAR_ON_DESELECT);
 
     }
 
@@ -273,9 +286,6 @@ public class PassportCrypto {
 
     public short unwrapCommandAPDU(byte[] ssc, APDU apdu) {
         byte[] buf = apdu.getBuffer();
-        short apdu_p = (short) (ISO7816.OFFSET_CDATA & 0xff);
-        short start_p = apdu_p;
-        short lc = (short) (buf[ISO7816.OFFSET_LC] & 0xff);
         short le = 0;
         short do87DataLen = 0;
         short do87Data_p = 0;
@@ -284,6 +294,9 @@ public class PassportCrypto {
         short hdrPadLen = (short) (8 - hdrLen);
 
         apdu.setIncomingAndReceive();
+        // 5 for short APDUs, 7 when the terminal used extended length
+        short apdu_p = apdu.getOffsetCdata();
+        short start_p = apdu_p;
 
         incrementSSC(ssc);
 
@@ -314,11 +327,23 @@ public class PassportCrypto {
         }
 
         if (buf[apdu_p] == (byte) 0x97) {
-            // do97
-            if (buf[++apdu_p] != 1)
-                ISOException.throwIt(PassportApplet.SW_INTERNAL_ERROR);
-            le = (short) (buf[++apdu_p] & 0xff);
+            // do97, one byte or (extended length) two bytes
             apdu_p++;
+            if (buf[apdu_p] == 1) {
+                le = (short) (buf[(short) (apdu_p + 1)] & 0xff);
+                if (le == 0) {
+                    le = 256;
+                }
+            } else if (buf[apdu_p] == 2) {
+                le = Util.getShort(buf, (short) (apdu_p + 1));
+                if (le <= 0) {
+                    // 0x0000 means 65536, more than a short holds anyway
+                    le = Short.MAX_VALUE;
+                }
+            } else {
+                ISOException.throwIt(PassportApplet.SW_INTERNAL_ERROR);
+            }
+            apdu_p += (short) (buf[apdu_p] + 1);
         }
 
         // do8e
@@ -382,11 +407,159 @@ public class PassportCrypto {
             do87Bytes += 2;
         }
         else {
-            do87Bytes += (short)(plaintextLength > 0xff ? 2 : 1);
+            do87Bytes += 3;
         }
         return do87Bytes;
     }
-    
+
+    /***
+     * Largest plaintext that fits a secure messaging response of the given
+     * length, DO87 header, padding, DO99 and DO8E included.
+     * 
+     * @param responseLength room available for the whole response
+     * @return plaintext length
+     */
+    public static short getMaxWrappedPlaintextLength(short responseLength) {
+        return (short) ((short) ((short) (responseLength - SM_RESPONSE_OVERHEAD) / 8 * 8) - 1);
+    }
+
+    /***
+     * Whether the cipher can encrypt a response in several update() calls,
+     * which wrapResponseData and streamResponseData rely on.
+     */
+    public boolean canStreamResponses() {
+        return true;
+    }
+
+    private static short writeDo87Header(byte[] buf, short offset, short do87DataLen) {
+        buf[offset++] = (byte) 0x87;
+        if (do87DataLen < 0x80) {
+            buf[offset++] = (byte) do87DataLen;
+        } else if (do87DataLen <= 0xff) {
+            buf[offset++] = (byte) 0x81;
+            buf[offset++] = (byte) do87DataLen;
+        } else {
+            buf[offset++] = (byte) 0x82;
+            offset = Util.setShort(buf, offset, do87DataLen);
+        }
+        buf[offset++] = 0x01;
+        return offset;
+    }
+
+    /***
+     * Builds the DO87 of a secure messaging response in one pass: whole
+     * blocks are encrypted straight from <code>data</code> (a file, usually)
+     * into the APDU buffer and MACed as they are produced, only the last
+     * partial block is copied to be padded. With <code>send</code> each
+     * buffer full is sent right away, so the DO87 can be larger than the
+     * APDU buffer; otherwise the DO87 is left at the start of the buffer.
+     * 
+     * The next wrapResponseAPDU call appends DO99 and DO8E.
+     * 
+     * @return length of the DO87 left in the APDU buffer
+     */
+    private short wrapData(byte[] ssc, APDU aapdu, byte[] data, short dataOffset,
+            short dataLen, boolean send) {
+        byte[] apdu = aapdu.getBuffer();
+        short do87DataLen = (short) (PassportUtil.lengthWithPadding(dataLen) + 1);
+
+        incrementSSC(ssc);
+        initMac(Signature.MODE_SIGN);
+        updateMac(ssc, (short) 0, (short) ssc.length);
+
+        short apdu_p = writeDo87Header(apdu, (short) 0, do87DataLen);
+        updateMac(apdu, (short) 0, apdu_p);
+        if (send) {
+            aapdu.sendBytes((short) 0, apdu_p);
+            apdu_p = 0;
+        }
+        // whole blocks, leaving room for the padded last block
+        short segment = (short) ((short) (apdu.length - apdu_p - 8) & (short) 0xfff8);
+
+        short ciphertextLength = 0;
+        short written;
+        short blocks = (short) (dataLen & (short) 0xfff8);
+        encryptInit();
+        while (blocks > 0) {
+            short n = PassportUtil.min(blocks, segment);
+            written = encrypt(data, dataOffset, n, apdu, apdu_p);
+            updateMac(apdu, apdu_p, written);
+            if (send) {
+                aapdu.sendBytes((short) 0, written);
+            } else {
+                apdu_p += written;
+            }
+            ciphertextLength += written;
+            dataOffset += n;
+            blocks -= n;
+        }
+        written = (short) (dataLen & 7);
+        Util.arrayCopyNonAtomic(data, dataOffset, apdu, apdu_p, written);
+        written = PassportUtil.pad(apdu, apdu_p, written);
+        written = encryptFinal(apdu, apdu_p, written, apdu, apdu_p);
+        updateMac(apdu, apdu_p, written);
+        if (send) {
+            aapdu.sendBytes((short) 0, written);
+        } else {
+            apdu_p += written;
+        }
+        ciphertextLength += written;
+
+        //sanity check, the lengths in the DO87 header have been written already
+        if (ciphertextLength != (short) (do87DataLen - 1)) {
+            ISOException.throwIt((short) 0x6d66);
+        }
+        do87Wrapped[0] = true;
+        do87Length[0] = apdu_p;
+        return apdu_p;
+    }
+
+    /***
+     * Wraps plaintext that fits a short response (see
+     * getMaxWrappedPlaintextLength) into a DO87 at the start of the APDU
+     * buffer, without copying it to the buffer first.
+     * 
+     * @param ssc send sequence counter
+     * @param aapdu the APDU
+     * @param data plaintext
+     * @param dataOffset offset of the plaintext
+     * @param dataLen length of the plaintext
+     * @return length of the DO87
+     */
+    public short wrapResponseData(byte[] ssc, APDU aapdu, byte[] data, short dataOffset,
+            short dataLen) {
+        return wrapData(ssc, aapdu, data, dataOffset, dataLen, false);
+    }
+
+    /***
+     * Sends the DO87 of a secure messaging response directly from
+     * <code>data</code>, so the plaintext can be much larger than the APDU
+     * buffer.
+     * 
+     * The response length is set here; an extended length APDU is needed
+     * for responses of more than 256 bytes.
+     * 
+     * @param ssc send sequence counter
+     * @param aapdu the APDU
+     * @param data plaintext
+     * @param dataOffset offset of the plaintext
+     * @param dataLen length of the plaintext
+     * @return number of plaintext bytes sent, at most dataLen
+     */
+    public short streamResponseData(byte[] ssc, APDU aapdu, byte[] data, short dataOffset,
+            short dataLen) {
+        short ne = aapdu.setOutgoing();
+        dataLen = PassportUtil.min(dataLen, getMaxWrappedPlaintextLength(ne));
+        if (dataLen <= 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short do87Bytes = (short) (getApduBufferOffset(dataLen)
+                + PassportUtil.lengthWithPadding(dataLen));
+        aapdu.setOutgoingLength((short) (do87Bytes + SM_TRAILER_LENGTH));
+        wrapData(ssc, aapdu, data, dataOffset, dataLen, true);
+        return dataLen;
+    }
+
     public short wrapResponseAPDU(byte[] ssc, APDU aapdu, short plaintextOffset, short plaintextLen,
             short sw1sw2) {
         byte[] apdu = aapdu.getBuffer();
@@ -395,12 +568,18 @@ public class PassportCrypto {
         short do87DataLen = PassportUtil.lengthWithPadding(plaintextLen);
         // for 0x01 marker (indicating padding is used)
         do87DataLen++;
-        short do87DataLenBytes = (short)(do87DataLen > 0xff? 2 : 1);
         short do87HeaderBytes = getApduBufferOffset(plaintextLen);
         short do87Bytes = (short)(do87HeaderBytes + do87DataLen - 1); // 0x01 is counted twice 
-        boolean hasDo87 = plaintextLen > 0;
-
-        incrementSSC(ssc);
+        // DO87 already built (or sent) by wrapData, with the MAC updated
+        boolean wrapped = do87Wrapped[0];
+        do87Wrapped[0] = false;
+        boolean hasDo87 = !wrapped && plaintextLen > 0;
+
+        if (wrapped) {
+            apdu_p = do87Length[0];
+        } else {
+            incrementSSC(ssc);
+        }
 
         short ciphertextLength=0;
         short possiblyPaddedPlaintextLength=0;
@@ -423,19 +602,7 @@ public class PassportCrypto {
         
         if (hasDo87) {
             // build do87
-            apdu[apdu_p++] = (byte) 0x87;
-            if(do87DataLen < 0x80) {
-                apdu[apdu_p++] = (byte)do87DataLen; 
-            } else {
-                apdu[apdu_p++] = (byte) (0x80 + do87DataLenBytes);
-                for(short i=(short)(do87DataLenBytes-1); i>=0; i--) {
-                    apdu[apdu_p++] = (byte) ((do87DataLen >>> (i * 8)) & 0xff);
-                }
-            }
-            apdu[apdu_p++] = 0x01;
-        }
-
-        if(hasDo87) {
+            writeDo87Header(apdu, apdu_p, do87DataLen);
             apdu_p = do87Bytes;
         }
         
@@ -446,11 +613,17 @@ public class PassportCrypto {
         apdu_p += 2;
 
         // calculate and write mac
-        initMac(Signature.MODE_SIGN);
-        updateMac(ssc, (short)0, (short)ssc.length);
+        short mac_p = 0;
+        if (wrapped) {
+            // only the DO99 is left to MAC
+            mac_p = do87Length[0];
+        } else {
+            initMac(Signature.MODE_SIGN);
+            updateMac(ssc, (short)0, (short)ssc.length);
+        }
         createMacFinal(apdu,
-                  (short) 0,
-                  apdu_p,
+                  mac_p,
+                  (short) (apdu_p - mac_p),
                   apdu,
                   (short)(apdu_p+2));
 